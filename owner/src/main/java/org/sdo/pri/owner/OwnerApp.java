@@ -3,73 +3,88 @@
 
 package org.sdo.pri.owner;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Reader;
 import java.io.Serializable;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyManagementException;
-import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
+import java.security.cert.CertPath;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.PKIXRevocationChecker.Option;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509ExtendedTrustManager;
-import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
-import org.bouncycastle.openssl.PEMKeyPair;
-import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 
+import org.sdo.pri.AdmissionLimiter;
+import org.sdo.pri.CachingObjectStorage;
 import org.sdo.pri.Error;
-import org.sdo.pri.KeyType;
+import org.sdo.pri.InstrumentedExecutorService;
+import org.sdo.pri.LiveSessionStore;
+import org.sdo.pri.MessageType;
 import org.sdo.pri.ObjectStorage;
 import org.sdo.pri.OnDieCache;
+import org.sdo.pri.OwnerKeyStore;
+import org.sdo.pri.OwnerLocationInfo;
+import org.sdo.pri.OwnerRuntime;
 import org.sdo.pri.OwnerService;
+import org.sdo.pri.OwnerServiceStateCodec;
+import org.sdo.pri.OwnerTransferOwnershipClient;
 import org.sdo.pri.OwnershipVoucher;
 import org.sdo.pri.OwnershipVoucherParser;
+import org.sdo.pri.PkixCertPathValidator;
 import org.sdo.pri.ProtocolService;
 import org.sdo.pri.RendezvousInfo;
+import org.sdo.pri.SegmentLogStorage;
 import org.sdo.pri.ServiceInfoModule;
 import org.sdo.pri.ServiceInfoMultiSource;
+import org.sdo.pri.SlabSessionStore;
+import org.sdo.pri.To0Scheduler;
+import org.sdo.pri.VoucherImporter;
+import org.sdo.pri.VoucherIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.Banner;
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
@@ -85,17 +100,62 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @SpringBootApplication
 public class OwnerApp extends SpringBootServletInitializer implements WebMvcConfigurer {
 
+  private static final String IMPORT_COMMAND = "import";
+  private static final long OUTPUT_LOG_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+  private double myAdmissionHelloShare = 0.8;
+  private Set<URI> myCrlUris = Set.of();
+  private int myAdmissionMaxInFlight = 0;
+  private Duration myAdmissionRetryAfter = Duration.ofSeconds(5);
+  private Duration myAdmissionTargetLatency = Duration.ZERO;
+  private List<String> myAdmissionTypeLimits = List.of();
   private URL myEpidOnlineUrl = null;
+  private String myExecutorMode = "platform";
+  private Duration myExecutorReportPeriod = Duration.ZERO;
+  private String myExecutorTracePinnedThreads = "";
+  private int myImportFailures = 0;
+  private int myImportParallelism = Runtime.getRuntime().availableProcessors();
   private boolean myIsEpidTestModeEnabled = false;
+  private boolean myIsRevocationCheckingEnabled = false;
   private Path myOutputDir = Paths.get(System.getProperty("java.io.tmpdir"));
+  private String myOutputFormat = "files";
   private URI myOwnerCertificateUri = null;
   private URI myOwnerKeyUri = null;
+  private String myOwnerKeyStorePassword = "";
+  private Path myOwnerKeyStorePath = null;
+  private boolean myOwnerKeyStoreWatch = true;
   private Path myOwnershipProxyDir = Paths.get(".");
+  private Path myOwnershipProxyIndex = null;
+  private long myVoucherCacheBytes = 16L * 1024 * 1024;
+  private boolean myOwnershipProxyIndexWatch = true;
+  // As for the TO0 client, check CRLs, then a soft (undecided) fail.
+  private Set<PKIXRevocationChecker.Option> myRevocationCheckerOptions =
+      EnumSet.of(Option.PREFER_CRLS, Option.SOFT_FAIL, Option.NO_FALLBACK);
   private List<String> mySecureRandomAlgorithms = List.of("NativePRNG", "Windows-PRNG", "SHA1PRNG");
+  private long mySessionMaxBytes = 0;
+  private int mySessionMaxEntries = 100000;
+  private long mySessionOffHeapBytes = 0;
+  private Path mySessionOffHeapDir = null;
+  private boolean mySessionLive = false;
+  private long mySessionLiveWeight = 16384;
+  private double mySessionSpillThreshold = 0.8;
+  private Duration mySessionTtl = Duration.ofMinutes(5);
   private String myOnDieCacheDir = "";
   private boolean myOnDieAutoUpdate = false;
   private String myOnDieSourceUrl = "";
   private boolean myOnDieRevocations = true;
+  private InetAddress myTo0AdvertisedAddress = null;
+  private String myTo0AdvertisedHostname = "";
+  private int myTo0AdvertisedPort = 0;
+  private Path myTo0Checkpoint = Paths.get("to0.checkpoint");
+  private int myTo0Parallelism = 16;
+  private double myTo0Rate = 10;
+  private double myTo0RenewFraction = 0.25;
+  private Duration myTo0RetryDelay = Duration.ofSeconds(30);
+  private Duration myTo0WaitSeconds = Duration.ofHours(1);
+  // Looked up as each transfer completes, so that the runtime doesn't depend on it.
+  private ObjectProvider<To0Scheduler> myTo0Scheduler = null;
+  private Set<URI> myTrustAnchorUris = Set.of();
 
   // A common point for spring boot config, as we must do it from both main() and configure().
   private static SpringApplicationBuilder configureApplication(SpringApplicationBuilder builder) {
@@ -113,9 +173,23 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
 
   /**
    * Command-line entry point.
+   *
+   * <p>{@code import <dir>...} imports the vouchers in each directory into the proxy directory
+   * and exits, instead of starting the server.
    */
   public static void main(String[] args) {
-    configureApplication(new SpringApplicationBuilder()).run(args);
+    if (0 < args.length && IMPORT_COMMAND.equals(args[0])) {
+      // The importer indexes what it writes, so there's nothing for the watchers to do.
+      final String[] importArgs = Arrays.copyOf(args, args.length + 3);
+      importArgs[args.length] = "--org.sdo.owner.proxy-index-watch=false";
+      importArgs[args.length + 1] = "--org.sdo.owner.keystore-watch=false";
+      importArgs[args.length + 2] = "--org.sdo.owner.to0.enabled=false";
+      System.exit(SpringApplication.exit(configureApplication(new SpringApplicationBuilder())
+          .web(WebApplicationType.NONE)
+          .run(importArgs)));
+    } else {
+      configureApplication(new SpringApplicationBuilder()).run(args);
+    }
   }
 
   // Some URI actions require absolute URIs, so this provides a common mechanism
@@ -185,6 +259,32 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     };
   }
 
+  // Limits the number of protocol messages in flight.  Messages past the limit are refused
+  // with 503 Service Unavailable, and messages which start new sessions are refused first.
+  @Bean
+  AdmissionLimiter admissionLimiter() {
+    final Map<MessageType, Integer> typeLimits = new EnumMap<>(MessageType.class);
+    for (String limit : myAdmissionTypeLimits) {
+      final String[] parts = limit.split(":", 2);
+      if (2 != parts.length) {
+        throw new IllegalArgumentException("expected <message type>:<limit>, got " + limit);
+      }
+      final String type = parts[0].trim();
+      typeLimits.put(
+          type.chars().allMatch(Character::isDigit)
+              ? MessageType.valueOfInt(Integer.parseInt(type))
+              : MessageType.valueOf(type),
+          Integer.parseInt(parts[1].trim()));
+    }
+
+    return new AdmissionLimiter(
+        0 < myAdmissionMaxInFlight ? myAdmissionMaxInFlight : Integer.MAX_VALUE,
+        myAdmissionHelloShare,
+        typeLimits,
+        myAdmissionTargetLatency,
+        myAdmissionRetryAfter);
+  }
+
   // Configure EPID service options via the same two-property scheme used in SDO <= 1.6
   @Bean
   URL epidServiceUrl() throws MalformedURLException {
@@ -212,10 +312,21 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     }
   }
 
-  // The web controller needs an executor in order to run asynchronously
+  // The web controller needs an executor in order to run asynchronously.
+  // Message handling mostly blocks on I/O, so virtual threads (where available)
+  // let far more messages be in flight than a platform thread pool would.
   @Bean
   ExecutorService executorService() {
-    return Executors.newCachedThreadPool();
+    final InstrumentedExecutorService executor;
+    if ("virtual".equalsIgnoreCase(myExecutorMode)) {
+      InstrumentedExecutorService.setTracePinnedThreads(myExecutorTracePinnedThreads);
+      executor = InstrumentedExecutorService.newVirtual();
+    } else {
+      executor = InstrumentedExecutorService.newPlatform();
+    }
+    logger().info("using " + (executor.isVirtual() ? "virtual" : "platform") + " threads");
+    executor.startReporting(myExecutorReportPeriod);
+    return executor;
   }
 
   // When the protocol service needs to 're-key' the device during TO2 device setup,
@@ -251,29 +362,35 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
   // (Re)initialize the owner service with those transient bits of state
   // which can't be serialized.  We do this when creating a new service
   // and when restoring one from storage.
-  private OwnerService initOwnerService(OwnerService ownerService)
-      throws NoSuchAlgorithmException,
-      KeyManagementException,
-      IOException, Exception {
-
-    Function<KeyType, PrivateKey> privateKeyProvider = privateKeyProvider();
-    Function<KeyType, PublicKey> publicKeyProvider = publicKeyProvider();
-
-    ownerService.setOwnershipVoucherStorage(ownershipVoucherStorage());
-    ownerService.setSecureRandom(secureRandom());
-    ownerService.setEpidServiceUrl(epidServiceUrl());
-    ownerService.setHttpClient(httpClient());
-    ownerService.setKeysProvider(
-        type -> new KeyPair(publicKeyProvider.apply(type), privateKeyProvider.apply(type)));
-    ownerService.setServiceInfoModules(serviceInfoModules());
-    ownerService.setG3Function(g3Function());
-    ownerService.setR3Function(r3Function());
-    ownerService.setDeviceErrorHandler(deviceErrorHandler());
-    ownerService.setOnDieCache(getOnDieCache());
-    ownerService.setOnDieRevocations(this.myOnDieRevocations);
+  private OwnerService initOwnerService(OwnerService ownerService) throws Exception {
+    ownerService.setRuntime(ownerRuntime());
     return ownerService;
   }
 
+  // The collaborators every owner service shares: storage, keys, randomness and so on.
+  // This is built once, and every session refers to it.
+  @Bean
+  OwnerRuntime ownerRuntime() throws Exception {
+
+    final OwnerKeyStore keyStore = ownerKeyStore();
+
+    return OwnerRuntime.builder()
+        .ownershipVoucherStorage(ownershipVoucherStorage())
+        .secureRandom(secureRandom())
+        .epidServiceUrl(epidServiceUrl())
+        .httpClient(httpClient())
+        .keysProvider(keyStore::get)
+        .rsaKeysProvider(keyStore::getRsa)
+        .serviceInfoModules(serviceInfoModules())
+        .g3Function(g3Function())
+        .r3Function(r3Function())
+        .deviceErrorHandler(deviceErrorHandler())
+        .onDieCache(getOnDieCache())
+        .onDieRevocations(this.myOnDieRevocations)
+        .transferHandler(guid -> myTo0Scheduler.ifAvailable(s -> s.transferred(guid)))
+        .build();
+  }
+
   // All kids love log.
   @Bean
   Logger logger() {
@@ -285,42 +402,88 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
   // so this builder lets the controller ask for the right service when it has information.
   @Bean
   ProtocolServiceBuilder ownerServiceBuilder() {
-    return () -> {
+    return ProtocolServiceBuilder.of(Set.of(OwnerService.HELLO), () -> {
       try {
         return initOwnerService(new OwnerService());
       } catch (Exception e) {
         logger().error(e.getMessage(), e);
         return null;
       }
-    };
+    });
   }
 
   // The owner service needs to load and store ownership vouchers as part of the
   // transfer ownership process.  We can't provide an input voucher directly
   // because which one we need won't be known until message 40 arrives, and we won't
   // know anything about the output voucher until after message 50.
+  //
+  // A TO2 session needs its voucher several times, so recently used vouchers are cached,
+  // weighed at the size of their files.  Vouchers whose files change are dropped from the
+  // cache as the index learns of it, so a replaced voucher isn't served stale.
   @Bean
-  ObjectStorage<UUID, OwnershipVoucher> ownershipVoucherStorage() {
-    return new ObjectStorage<>() {
+  ObjectStorage<UUID, OwnershipVoucher> ownershipVoucherStorage() throws IOException {
+    final VoucherIndex index = voucherIndex();
+    final ObjectStorage<UUID, OwnershipVoucher> output = outputVoucherStorage();
+    final ObjectStorage<UUID, OwnershipVoucher> storage = new ObjectStorage<>() {
       @Override
       public Optional<OwnershipVoucher> load(UUID key) {
-        logger().info("searching for SDO voucher " + key + " in " + myOwnershipProxyDir + "...");
-        File[] files = myOwnershipProxyDir.toFile().listFiles();
-        final OwnershipVoucherParser parser = new OwnershipVoucherParser();
-        for (File file : null == files ? new File[0] : files) {
-
-          try (FileReader reader = new FileReader(file)) {
-            final OwnershipVoucher op = parser.readObject(reader);
-            if (Objects.equals(key, op.getUuid())) {
-              logger().info("found voucher " + key + " in " + file);
-              return Optional.of(op);
-            }
-          } catch (IOException e) {
-            // If the file doesn't contain a valid op, just ignore it.
-          }
+        final Optional<OwnershipVoucher> voucher = index.load(key);
+        if (voucher.isPresent()) {
+          logger().info("found voucher " + key + " in " + myOwnershipProxyDir);
+        } else {
+          logger().info("no voucher " + key + " in " + myOwnershipProxyDir);
         }
+        return voucher;
+      }
 
-        return Optional.empty();
+      @Override
+      public void store(UUID key, OwnershipVoucher voucher) {
+        output.store(key, voucher);
+      }
+    };
+
+    if (0 < myVoucherCacheBytes) {
+      // A voucher whose file has already left the index isn't worth caching.
+      final CachingObjectStorage<UUID, OwnershipVoucher> cache = new CachingObjectStorage<>(
+          storage,
+          myVoucherCacheBytes,
+          voucher -> index.getSize(voucher.getUuid()).orElse(Long.MAX_VALUE));
+      index.addChangeListener(cache::invalidate);
+      return cache;
+    } else {
+      return storage;
+    }
+  }
+
+  // Where generated vouchers go.  By default each is written to a file of its own.
+  // In log format they're appended to a segment log in the output directory instead,
+  // so that a burst of completing devices shares a few syncs rather than creating
+  // a file apiece.
+  @Bean
+  ObjectStorage<UUID, OwnershipVoucher> outputVoucherStorage() throws IOException {
+    if ("log".equalsIgnoreCase(myOutputFormat)) {
+      return new SegmentLogStorage<>(myOutputDir, new SegmentLogStorage.Serializer<>() {
+        @Override
+        public OwnershipVoucher deserialize(byte[] bytes) throws IOException {
+          return new OwnershipVoucherParser().readObject(ByteBuffer.wrap(bytes));
+        }
+
+        @Override
+        public byte[] serialize(OwnershipVoucher voucher) {
+          return voucher.toString().getBytes(StandardCharsets.UTF_8);
+        }
+      }, OUTPUT_LOG_SEGMENT_BYTES, Duration.ofMinutes(1));
+    }
+
+    return new ObjectStorage<>() {
+      @Override
+      public Optional<OwnershipVoucher> load(UUID key) {
+        Path in = myOutputDir.resolve(key + ".op");
+        try {
+          return Optional.of(new OwnershipVoucherParser().readObject(in));
+        } catch (IOException e) {
+          return Optional.empty();
+        }
       }
 
       @Override
@@ -336,60 +499,190 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     };
   }
 
-  // Our private key.
-  // This is a simplified (limited) implementation, as true owners need to have a keypair
-  // for every key algorithm which their devices might use.  Since this app is configured
-  // with a single key it can only respond to one kind of request, and will fail if it has
-  // to produce a second type of key.
-  //
-  // This key is not used inside the protocol library, but is here to provide a hook
-  // to our ASYMKEX codec and signature service.
+  // Runs the import command, if that's what we were started for.  Each voucher's entry chain
+  // is checked and its last entry must name one of our keys, so bad vouchers are found here
+  // rather than when their devices arrive.
   @Bean
-  Function<KeyType, PrivateKey> privateKeyProvider() throws MalformedURLException {
+  ApplicationRunner voucherImportRunner() {
+    return args -> {
+      final List<String> operands = args.getNonOptionArgs();
+      if (operands.isEmpty() || !IMPORT_COMMAND.equals(operands.get(0))) {
+        return;
+      }
 
-    URL url = null != myOwnerKeyUri ? myOwnerKeyUri.toURL() : null;
+      final OwnerKeyStore keyStore = ownerKeyStore();
+      final VoucherImporter importer =
+          new VoucherImporter(keyStore::contains, myImportParallelism);
+      for (String dir : operands.subList(1, operands.size())) {
+        final VoucherImporter.Report report = importer.importDirectory(
+            Paths.get(dir), voucherIndex());
+        new TreeMap<>(report.getFailures()).forEach((file, reason) ->
+            logger().error("not imported: " + file + ": " + reason));
+        logger().info(dir + ": " + report);
+        myImportFailures += report.getFailures().size();
+      }
+    };
+  }
 
-    return (keyType) -> {
-      if (null != url) {
-        try (InputStream instream = url.openStream();
-            Reader reader = new InputStreamReader(instream);
-            PEMParser pemParser = new PEMParser(reader)) {
+  // The import command exits non-zero if any voucher wasn't imported.
+  @Bean
+  ExitCodeGenerator voucherImportExitCode() {
+    return () -> 0 < myImportFailures ? 1 : 0;
+  }
 
-          Object o = pemParser.readObject();
-          if (o instanceof PrivateKeyInfo) {
-            return new JcaPEMKeyConverter().getPrivateKey((PrivateKeyInfo) o);
-          } else if (o instanceof PEMKeyPair) {
-            return new JcaPEMKeyConverter().getKeyPair((PEMKeyPair) o).getPrivate();
-          }
-        } catch (IOException e) {
-          logger().error(e.getMessage(), e);
-        }
+  // Keeps the proxies in the proxy directory registered with their rendezvous servers, if
+  // enabled, so devices can find us without a separate TO0 client being run again and again.
+  // Each proxy is registered again a little before its registration expires, until its TO2
+  // completes.  Registrations are advertised at the configured to1d address, and accepted ones
+  // are checkpointed so a restart doesn't repeat them.
+  @Bean
+  @ConditionalOnProperty(name = "org.sdo.owner.to0.enabled", havingValue = "true")
+  To0Scheduler to0Scheduler() throws Exception {
+    if (null == myTo0AdvertisedAddress && myTo0AdvertisedHostname.isBlank()) {
+      throw new IllegalStateException("org.sdo.to0.ownersign.to1d.bo.i1 or "
+          + "org.sdo.to0.ownersign.to1d.bo.dns1 must be set if org.sdo.owner.to0.enabled is");
+    }
+
+    final HttpClient httpClient = httpClient();
+    final OwnerKeyStore keyStore = ownerKeyStore();
+    final OwnerLocationInfo location = new OwnerLocationInfo(
+        myTo0AdvertisedAddress, myTo0AdvertisedHostname, myTo0AdvertisedPort);
+    final VoucherIndex index = voucherIndex();
+    // Completed transfers are reported to the scheduler, which records them in its checkpoint.
+    // Those which completed while TO0 was disabled weren't, but if the device kept its GUID
+    // the voucher its TO2 generated is there to be found.
+    final ObjectStorage<UUID, OwnershipVoucher> output = outputVoucherStorage();
+    final Predicate<UUID> isTransferred = output instanceof SegmentLogStorage
+        ? ((SegmentLogStorage<?>) output)::contains
+        : guid -> Files.exists(myOutputDir.resolve(guid + ".op"));
+
+    final To0Scheduler scheduler = new To0Scheduler(
+        (voucher, rendezvous) -> new OwnerTransferOwnershipClient(
+            httpClient,
+            voucher,
+            null, // the scheduler checks the certificate path itself
+            location,
+            keyStore::get,
+            v -> myTo0WaitSeconds).to0(rendezvous),
+        index::getGuids,
+        index::load,
+        certPathValidator(),
+        isTransferred,
+        myTo0Rate,
+        myTo0RenewFraction,
+        myTo0Parallelism,
+        myTo0RetryDelay,
+        myTo0Checkpoint);
+    logger().info("keeping proxies registered with rendezvous, checkpointing to "
+        + myTo0Checkpoint);
+    return scheduler;
+  }
+
+  // Validates the device certificate chains in the proxies we register, as the TO0 client does.
+  // Unless revocation checking is enabled, every chain passes.
+  @Bean
+  Predicate<CertPath> certPathValidator() throws Exception {
+    if (myIsRevocationCheckingEnabled) {
+      return new PkixCertPathValidator(
+          myTrustAnchorUris, myCrlUris, myRevocationCheckerOptions);
+    } else {
+      return certPath -> true;
+    }
+  }
+
+  // The vouchers in the proxy directory, by GUID, so that finding one doesn't mean
+  // decoding them all.  The index is saved between runs if an index file is configured,
+  // and follows changes to the directory unless told not to.
+  @Bean
+  VoucherIndex voucherIndex() throws IOException {
+    final VoucherIndex index = new VoucherIndex(
+        myOwnershipProxyDir, myOwnershipProxyIndex, Runtime.getRuntime().availableProcessors());
+    index.build();
+    if (myOwnershipProxyIndexWatch) {
+      index.startWatching();
+    }
+    return index;
+  }
+
+  // The owner's keys, loaded once and looked up by type or RSA modulus size.
+  // Keys come from a directory of PEM files or a PKCS#12 keystore if one is configured,
+  // and from the owner certificate and key otherwise.  Keys in local files are reloaded
+  // when the files change, so they can be rotated without a restart.
+  @Bean
+  OwnerKeyStore ownerKeyStore() throws IOException {
+
+    final OwnerKeyStore keyStore;
+    if (null != myOwnerKeyStorePath) {
+      if (Files.isDirectory(myOwnerKeyStorePath)) {
+        keyStore = OwnerKeyStore.ofDirectory(myOwnerKeyStorePath);
+      } else {
+        keyStore = OwnerKeyStore.ofPkcs12(
+            myOwnerKeyStorePath, myOwnerKeyStorePassword.toCharArray());
       }
 
-      return null;
-    };
+    } else if (null != myOwnerCertificateUri && null != myOwnerKeyUri) {
+      if ("file".equals(myOwnerCertificateUri.getScheme())
+          && "file".equals(myOwnerKeyUri.getScheme())) {
+        keyStore = OwnerKeyStore.ofPemFiles(
+            List.of(Paths.get(myOwnerCertificateUri), Paths.get(myOwnerKeyUri)));
+      } else {
+        keyStore = OwnerKeyStore.ofPemUrls(
+            List.of(myOwnerCertificateUri.toURL(), myOwnerKeyUri.toURL()));
+      }
+
+    } else {
+      throw new IllegalStateException(
+          "org.sdo.owner.keystore or org.sdo.owner.cert and org.sdo.owner.key must be set");
+    }
+
+    logger().info("loaded owner keys " + keyStore.getKeyTypes());
+    if (myOwnerKeyStoreWatch) {
+      keyStore.startWatching();
+    }
+    return keyStore;
   }
 
-  // Our public key.  Again, a full implementation would be able to produce public keys
-  // of all types which might be requested by a device, but we only have one key.
+  // The protocol services which are waiting for their next request.
+  // Sessions which a device abandons expire after the configured idle TTL, and the store
+  // evicts its oldest sessions if it grows past its entry or byte caps.
+  //
+  // In live mode, services are held as-is between messages and are only serialized
+  // if the heap fills up or the application is shutting down.
+  //
+  // If an off-heap capacity is configured, serialized services are kept outside the heap.
   @Bean
-  Function<KeyType, PublicKey> publicKeyProvider() {
-    return (keyType) -> {
-      if (null != myOwnerCertificateUri) {
-        try {
-          URL url = myOwnerCertificateUri.toURL();
-          try (InputStream instream = url.openStream()) {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            Certificate certificate = cf.generateCertificate(instream);
-            return certificate.getPublicKey();
+  LiveSessionStore<OwnerService> sessionStore() {
+    final long maxBytes =
+        0 < mySessionMaxBytes ? mySessionMaxBytes : Runtime.getRuntime().maxMemory() / 4;
+    final OwnerServiceStateCodec codec = new OwnerServiceStateCodec();
+
+    return new LiveSessionStore<>(
+        new LiveSessionStore.Serializer<>() {
+          @Override
+          public OwnerService deserialize(byte[] bytes) throws IOException {
+            try {
+              return initOwnerService(codec.decode(bytes, secureRandom()));
+            } catch (IOException e) {
+              throw e;
+            } catch (Exception e) {
+              throw new IOException(e);
+            }
           }
-        } catch (CertificateException | IOException e) {
-          logger().error(e.getMessage(), e);
-        }
-      }
 
-      return null;
-    };
+          @Override
+          public byte[] serialize(OwnerService session) throws IOException {
+            return codec.encode(session);
+          }
+        },
+        mySessionLive,
+        mySessionSpillThreshold,
+        mySessionTtl,
+        mySessionMaxEntries,
+        maxBytes,
+        mySessionLiveWeight,
+        0 < mySessionOffHeapBytes
+            ? new SlabSessionStore(mySessionTtl, mySessionOffHeapBytes, mySessionOffHeapDir)
+            : null);
   }
 
   // A storage service for protocol service objects.  Between requests, the web service
@@ -398,43 +691,25 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
   ProtocolServiceStorage sdoServiceStorage() {
     return new ProtocolServiceStorage() {
 
-      private final Map<UUID, byte[]> myMap = new HashMap<>();
+      private final LiveSessionStore<OwnerService> myStore = sessionStore();
 
       @Override
-      public synchronized UUID put(ProtocolService protocolService) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        new ObjectOutputStream(out).writeObject(protocolService);
+      public UUID put(ProtocolService protocolService) throws IOException {
+        if (!(protocolService instanceof OwnerService)) {
+          throw new IOException("unsupported service " + protocolService.getClass().getName());
+        }
+
         UUID sessionId = UUID.randomUUID();
-        byte[] bytes = out.toByteArray();
-        myMap.put(sessionId, Arrays.copyOf(bytes, bytes.length));
+        myStore.put(sessionId, (OwnerService) protocolService);
         return sessionId;
       }
 
       @Override
-      public synchronized ProtocolService take(UUID sessionId) {
-
-        byte[] bytes = myMap.remove(sessionId);
-        if (null == bytes) {
-          return null;
-        }
-
-        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-        final Object o;
+      public ProtocolService take(UUID sessionId) {
         try {
-          o = new ObjectInputStream(in).readObject();
+          return myStore.take(sessionId);
         } catch (Exception e) {
-          return null;
-        }
-
-        if (o instanceof OwnerService) {
-          OwnerService sdoOwnerService = (OwnerService) o;
-          try {
-            return initOwnerService(sdoOwnerService);
-          } catch (Exception e) {
-            logger().error(e.getMessage(), e);
-            return null;
-          }
-        } else {
+          logger().error(e.getMessage(), e);
           return null;
         }
       }
@@ -471,6 +746,33 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     return List.of(new SampleServiceInfoModule());
   }
 
+  @Value("${org.sdo.admission.hello-share:0.8}")
+  void setAdmissionHelloShare(double admissionHelloShare) {
+    this.myAdmissionHelloShare = admissionHelloShare;
+  }
+
+  @Value("${org.sdo.admission.max-in-flight:0}")
+  void setAdmissionMaxInFlight(int admissionMaxInFlight) {
+    this.myAdmissionMaxInFlight = admissionMaxInFlight;
+  }
+
+  @Value("${org.sdo.admission.retry-after:PT5S}")
+  void setAdmissionRetryAfter(Duration admissionRetryAfter) {
+    this.myAdmissionRetryAfter = admissionRetryAfter;
+  }
+
+  @Value("${org.sdo.admission.target-latency:PT0S}")
+  void setAdmissionTargetLatency(Duration admissionTargetLatency) {
+    this.myAdmissionTargetLatency = admissionTargetLatency;
+  }
+
+  @Value("${org.sdo.admission.type-limits:}")
+  void setAdmissionTypeLimits(@Nullable List<String> admissionTypeLimits) {
+    if (null != admissionTypeLimits) {
+      this.myAdmissionTypeLimits = admissionTypeLimits;
+    }
+  }
+
   @Value("${org.sdo.epid.test-mode:false}")
   void setEnableEpidTestMode(boolean isEpidTestModeEnabled) {
     this.myIsEpidTestModeEnabled = isEpidTestModeEnabled;
@@ -483,20 +785,37 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     }
   }
 
-  @Value("${org.sdo.owner.cert}")
+  @Value("${org.sdo.owner.cert:}")
   void setOwnerCertificateUri(URI ownerCertificateUri) {
     if (null != ownerCertificateUri) {
       this.myOwnerCertificateUri = toAbsolute(ownerCertificateUri);
     }
   }
 
-  @Value("${org.sdo.owner.key}")
+  @Value("${org.sdo.owner.key:}")
   void setOwnerKeyUri(URI ownerKeyUri) {
     if (null != ownerKeyUri) {
       this.myOwnerKeyUri = toAbsolute(ownerKeyUri);
     }
   }
 
+  @Value("${org.sdo.owner.keystore:}")
+  void setOwnerKeyStorePath(String path) {
+    if (null != path && !path.isBlank()) {
+      this.myOwnerKeyStorePath = Paths.get(path);
+    }
+  }
+
+  @Value("${org.sdo.owner.keystore-password:}")
+  void setOwnerKeyStorePassword(String password) {
+    this.myOwnerKeyStorePassword = null != password ? password : "";
+  }
+
+  @Value("${org.sdo.owner.keystore-watch:true}")
+  void setOwnerKeyStoreWatch(boolean watch) {
+    this.myOwnerKeyStoreWatch = watch;
+  }
+
   @Value("${org.sdo.owner.output-dir:}")
   void setOwnerOutputDir(String dir) {
     if (null != dir && !dir.isBlank()) {
@@ -504,6 +823,18 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     }
   }
 
+  @Value("${org.sdo.owner.output-format:files}")
+  void setOwnerOutputFormat(String format) {
+    this.myOutputFormat = format;
+  }
+
+  @Value("${org.sdo.owner.import-parallelism:0}")
+  void setImportParallelism(int parallelism) {
+    if (0 < parallelism) {
+      this.myImportParallelism = parallelism;
+    }
+  }
+
   @Value("${org.sdo.owner.proxy-dir:}")
   void setOwnershipProxyDir(String dir) {
     if (null != dir && !dir.isBlank()) {
@@ -511,6 +842,134 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     }
   }
 
+  @Value("${org.sdo.owner.proxy-index:}")
+  void setOwnershipProxyIndex(String file) {
+    if (null != file && !file.isBlank()) {
+      this.myOwnershipProxyIndex = Paths.get(file);
+    }
+  }
+
+  @Value("${org.sdo.owner.proxy-index-watch:true}")
+  void setOwnershipProxyIndexWatch(boolean watch) {
+    this.myOwnershipProxyIndexWatch = watch;
+  }
+
+  @Autowired
+  void setTo0Scheduler(ObjectProvider<To0Scheduler> to0Scheduler) {
+    this.myTo0Scheduler = to0Scheduler;
+  }
+
+  @Value("${org.sdo.owner.to0.checkpoint:to0.checkpoint}")
+  void setTo0Checkpoint(String file) {
+    this.myTo0Checkpoint = Paths.get(file);
+  }
+
+  @Value("${org.sdo.owner.to0.parallelism:16}")
+  void setTo0Parallelism(int parallelism) {
+    this.myTo0Parallelism = parallelism;
+  }
+
+  @Value("${org.sdo.owner.to0.rate:10}")
+  void setTo0Rate(double rate) {
+    this.myTo0Rate = rate;
+  }
+
+  @Value("${org.sdo.owner.to0.renew-fraction:0.25}")
+  void setTo0RenewFraction(double fraction) {
+    this.myTo0RenewFraction = fraction;
+  }
+
+  @Value("${org.sdo.owner.to0.retry-delay:PT30S}")
+  void setTo0RetryDelay(String delay) {
+    this.myTo0RetryDelay = Duration.parse(delay);
+  }
+
+  @Value("${org.sdo.to0.ownersign.to1d.bo.i1:}")
+  void setTo0AdvertisedAddress(String s) throws UnknownHostException {
+    if (!(null == s || s.isBlank())) {
+      this.myTo0AdvertisedAddress = InetAddress.getByName(s);
+    }
+  }
+
+  @Value("${org.sdo.to0.ownersign.to1d.bo.dns1:}")
+  void setTo0AdvertisedHostname(String s) {
+    this.myTo0AdvertisedHostname = null != s ? s : "";
+  }
+
+  @Value("${org.sdo.to0.ownersign.to1d.bo.port1:${server.port:0}}")
+  void setTo0AdvertisedPort(String s) {
+    if (!(null == s || s.isBlank())) {
+      this.myTo0AdvertisedPort = Integer.parseUnsignedInt(s);
+    }
+  }
+
+  @Value("${org.sdo.to0.ownersign.to0d.ws:PT1H}")
+  void setTo0WaitSeconds(String ws) {
+    this.myTo0WaitSeconds = Duration.parse(ws);
+  }
+
+  @Value("${org.sdo.owner.voucher-cache-bytes:16777216}")
+  void setVoucherCacheBytes(long bytes) {
+    this.myVoucherCacheBytes = bytes;
+  }
+
+  @Value("${org.sdo.executor.mode:platform}")
+  void setExecutorMode(String executorMode) {
+    this.myExecutorMode = executorMode;
+  }
+
+  @Value("${org.sdo.executor.report-period:PT0S}")
+  void setExecutorReportPeriod(Duration executorReportPeriod) {
+    this.myExecutorReportPeriod = executorReportPeriod;
+  }
+
+  @Value("${org.sdo.executor.trace-pinned-threads:}")
+  void setExecutorTracePinnedThreads(String executorTracePinnedThreads) {
+    this.myExecutorTracePinnedThreads = executorTracePinnedThreads;
+  }
+
+  @Value("${org.sdo.session.live:false}")
+  void setSessionLive(boolean sessionLive) {
+    this.mySessionLive = sessionLive;
+  }
+
+  @Value("${org.sdo.session.live-weight:16384}")
+  void setSessionLiveWeight(long sessionLiveWeight) {
+    this.mySessionLiveWeight = sessionLiveWeight;
+  }
+
+  @Value("${org.sdo.session.max-bytes:0}")
+  void setSessionMaxBytes(long sessionMaxBytes) {
+    this.mySessionMaxBytes = sessionMaxBytes;
+  }
+
+  @Value("${org.sdo.session.max-entries:100000}")
+  void setSessionMaxEntries(int sessionMaxEntries) {
+    this.mySessionMaxEntries = sessionMaxEntries;
+  }
+
+  @Value("${org.sdo.session.off-heap-bytes:0}")
+  void setSessionOffHeapBytes(long sessionOffHeapBytes) {
+    this.mySessionOffHeapBytes = sessionOffHeapBytes;
+  }
+
+  @Value("${org.sdo.session.off-heap-dir:}")
+  void setSessionOffHeapDir(String dir) {
+    if (null != dir && !dir.isBlank()) {
+      this.mySessionOffHeapDir = Paths.get(dir);
+    }
+  }
+
+  @Value("${org.sdo.session.spill-threshold:0.8}")
+  void setSessionSpillThreshold(double sessionSpillThreshold) {
+    this.mySessionSpillThreshold = sessionSpillThreshold;
+  }
+
+  @Value("${org.sdo.session.ttl:PT5M}")
+  void setSessionTtl(Duration sessionTtl) {
+    this.mySessionTtl = sessionTtl;
+  }
+
   @Value("${org.sdo.secure-random:}")
   void setSecureRandomAlgorithms(@Nullable List<String> secureRandomAlgorithms) {
     if (null != secureRandomAlgorithms && !secureRandomAlgorithms.isEmpty()) {
@@ -538,6 +997,35 @@ public class OwnerApp extends SpringBootServletInitializer implements WebMvcConf
     this.myOnDieRevocations = myOnDieRevocations;
   }
 
+  @Value("${org.sdo.pkix.crls:}")
+  void setCrlUris(List<String> s) {
+    if (null != s) {
+      this.myCrlUris = s.stream().map(URI::create).map(OwnerApp::toAbsolute)
+          .collect(Collectors.toSet());
+    }
+  }
+
+  @Value("${org.sdo.pkix.revocation-options:}")
+  void setRevocationCheckerOptions(List<String> s) {
+    if (null != s && !s.isEmpty()) {
+      this.myRevocationCheckerOptions =
+          s.stream().map(PKIXRevocationChecker.Option::valueOf).collect(Collectors.toSet());
+    }
+  }
+
+  @Value("${org.sdo.pkix.revocation-checking-enabled:false}")
+  void setRevocationCheckingEnabled(boolean isRevocationCheckingEnabled) {
+    this.myIsRevocationCheckingEnabled = isRevocationCheckingEnabled;
+  }
+
+  @Value("${org.sdo.pkix.trust-anchors:}")
+  void setTrustAnchorUris(List<String> s) {
+    if (null != s) {
+      this.myTrustAnchorUris = s.stream().map(URI::create).map(OwnerApp::toAbsolute)
+          .collect(Collectors.toSet());
+    }
+  }
+
   // The SSLContext for our HttpClient.
   // If we're not validating EPID signatures, we don't need this.
   // This simple example doesn't check root of trust so it'll work against self-signed certificates.
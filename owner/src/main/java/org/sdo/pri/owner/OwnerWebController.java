@@ -3,12 +3,16 @@
 
 package org.sdo.pri.owner;
 
-import java.util.Iterator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.sdo.pri.AdmissionLimiter;
 import org.sdo.pri.MessageType;
 import org.sdo.pri.ProtocolMessage;
 import org.sdo.pri.ProtocolService;
@@ -29,8 +33,10 @@ public class OwnerWebController {
 
   private static final String BEARER = "Bearer ";
 
+  private final AdmissionLimiter myAdmissionLimiter;
   private final ExecutorService myExecutorService;
-  private final Set<ProtocolServiceBuilder> myProtocolServiceBuilders;
+  // The builders for each hello message, by version and message type.
+  private final Map<Version, Map<MessageType, ProtocolServiceBuilder>> myHelloBuilders;
   private final ProtocolServiceStorage myProtocolServiceStorage;
 
   /**
@@ -39,15 +45,36 @@ public class OwnerWebController {
    * @param executorService         The ExecutorService for asynchronous tasks
    * @param protocolServiceBuilders The ServiceBuilders providing service objects
    * @param protocolServiceStorage  The storage for our protocol services
+   * @param admissionLimiter        The limit on messages in flight
    */
   public OwnerWebController(
       ExecutorService executorService,
       Set<ProtocolServiceBuilder> protocolServiceBuilders,
-      ProtocolServiceStorage protocolServiceStorage) {
+      ProtocolServiceStorage protocolServiceStorage,
+      AdmissionLimiter admissionLimiter) {
 
     this.myExecutorService = Objects.requireNonNull(executorService);
-    this.myProtocolServiceBuilders = Objects.requireNonNull(protocolServiceBuilders);
+    this.myHelloBuilders = indexHellos(protocolServiceBuilders);
     this.myProtocolServiceStorage = Objects.requireNonNull(protocolServiceStorage);
+    this.myAdmissionLimiter = Objects.requireNonNull(admissionLimiter);
+  }
+
+  private static Map<Version, Map<MessageType, ProtocolServiceBuilder>> indexHellos(
+      Set<ProtocolServiceBuilder> builders) {
+
+    final Map<Version, Map<MessageType, ProtocolServiceBuilder>> index =
+        new EnumMap<>(Version.class);
+    for (ProtocolServiceBuilder builder : builders) {
+      for (Entry<Version, MessageType> hello : builder.getHellos()) {
+        final ProtocolServiceBuilder previous = index
+            .computeIfAbsent(hello.getKey(), k -> new EnumMap<>(MessageType.class))
+            .put(hello.getValue(), builder);
+        if (null != previous) {
+          throw new IllegalStateException("more than one service accepts hello " + hello);
+        }
+      }
+    }
+    return index;
   }
 
   private Logger logger() {
@@ -93,11 +120,20 @@ public class OwnerWebController {
       }
     };
 
-    myExecutorService.submit(() -> {
+    // Are we continuing an existing session?
+    final String auth = requestEntity.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+
+    // Shed excess load before doing any work for it, so that refusing a message stays cheap.
+    final AdmissionLimiter.Permit permit =
+        myAdmissionLimiter.tryAcquire(messageType, !(null != auth && auth.startsWith(BEARER)));
+    if (null == permit) {
+      deferredResult.setResult(serviceUnavailable());
+      return deferredResult;
+    }
+
+    final Runnable task = () -> {
       try {
         ProtocolService protocolService = null;
-        // Are we continuing an existing session?
-        final String auth = requestEntity.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
         if (null != auth && auth.startsWith(BEARER)) {
           try {
             final UUID sessionId = UUID.fromString(auth.substring(BEARER.length()));
@@ -113,12 +149,11 @@ public class OwnerWebController {
             return;
           }
         } else { // no auth, might be a hello
-          Iterator<ProtocolServiceBuilder> builderIt = myProtocolServiceBuilders.iterator();
-          while (null == protocolService && builderIt.hasNext()) {
-            final ProtocolService candidate = builderIt.next().build();
-            if (candidate.isHello(sdoRequest)) {
-              protocolService = candidate;
-            }
+          final Map<MessageType, ProtocolServiceBuilder> builders = myHelloBuilders.get(version);
+          final ProtocolServiceBuilder builder =
+              null != builders ? builders.get(messageType) : null;
+          if (null != builder) {
+            protocolService = builder.build();
           }
         }
 
@@ -148,9 +183,27 @@ public class OwnerWebController {
 
       } catch (Throwable t) {
         deferredResult.setErrorResult(t);
+      } finally {
+        permit.release();
       }
-    });
+    };
+
+    // The task releases the permit, but only if it runs.  An executor which is shutting down,
+    // or whose queue is full, refuses it, so the permit must be released here instead.
+    try {
+      myExecutorService.submit(task);
+    } catch (RejectedExecutionException e) {
+      permit.release();
+      deferredResult.setResult(serviceUnavailable());
+    }
 
     return deferredResult;
   }
+
+  // Tell the device to come back later.
+  private ResponseEntity<?> serviceUnavailable() {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(myAdmissionLimiter.getRetryAfterSeconds()))
+        .build();
+  }
 }
@@ -3,9 +3,36 @@
 
 package org.sdo.pri.owner;
 
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.sdo.pri.MessageType;
 import org.sdo.pri.ProtocolService;
+import org.sdo.pri.Version;
 
-@FunctionalInterface
 interface ProtocolServiceBuilder {
+
+  // Create a builder which builds services with the given factory.
+  static ProtocolServiceBuilder of(
+      Set<Entry<Version, MessageType>> hellos, Supplier<ProtocolService> factory) {
+
+    return new ProtocolServiceBuilder() {
+      @Override
+      public ProtocolService build() {
+        return factory.get();
+      }
+
+      @Override
+      public Set<Entry<Version, MessageType>> getHellos() {
+        return hellos;
+      }
+    };
+  }
+
   ProtocolService build();
+
+  // The (version, message type) pairs which start a session with the services this builds.
+  // The web controller uses these to pick a builder without building anything.
+  Set<Entry<Version, MessageType>> getHellos();
 }
@@ -34,6 +34,13 @@ abstract class AbstractCipher implements ProtocolCipher, Serializable {
     this.mySecureRandom = secureRandom;
   }
 
+  /**
+   * Returns the Session Encryption Key.
+   */
+  SecretKey getSek() {
+    return sek;
+  }
+
   /**
    * Builds the initialization vector for the next encode operation.
    */
@@ -0,0 +1,251 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of protocol messages in flight, shedding the excess.
+ *
+ * <p>A server which accepts every message falls over gracelessly when a fleet of devices arrives
+ * at once: latency climbs for every session, devices time out and retry, and the retries add to
+ * the load.  This limiter instead refuses messages beyond a set number in flight, so that
+ * callers can answer them at once with a cheap retry-later response.
+ *
+ * <p>Messages which start new sessions are shed first.  They may only use a share of the limit,
+ * so the remainder is always available to sessions already in progress; finishing those is what
+ * frees the server.  Individual message types may have limits of their own as well.
+ *
+ * <p>If a target latency is given, the limit adapts to it, AIMD style: after each window of
+ * completed messages, the limit shrinks multiplicatively if the window's mean latency exceeded
+ * the target, and grows by one if the window saw messages shed.
+ */
+public class AdmissionLimiter {
+
+  // Shrink the limit by this factor when latency exceeds the target.
+  private static final double BACKOFF = 0.9;
+  private static final int MIN_LIMIT = 1;
+  // The number of completed messages per adaptation window.
+  private static final int WINDOW = 100;
+
+  private final LongAdder myAdmitted = new LongAdder();
+  private final double myHelloShare;
+  private final AtomicInteger myInFlight = new AtomicInteger();
+  private volatile int myLimit;
+  private final int myMaxLimit;
+  private final Duration myRetryAfter;
+  private final LongAdder myShed = new LongAdder();
+  private final LongAdder myShedHellos = new LongAdder();
+  private final long myTargetLatencyNanos;
+  private final Map<MessageType, AtomicInteger> myTypeInFlight = new EnumMap<>(MessageType.class);
+  private final Map<MessageType, Integer> myTypeLimits;
+  private final AtomicBoolean myWindowShed = new AtomicBoolean(false);
+  private long myWindowCount = 0;
+  private long myWindowLatencyNanos = 0;
+
+  /**
+   * Construct a new limiter.
+   *
+   * @param maxInFlight   the maximum number of messages in flight
+   * @param helloShare    the fraction of the limit available to messages which start sessions
+   * @param typeLimits    limits for individual message types, which apply as well as the overall
+   *                      limit
+   * @param targetLatency the mean latency the limit adapts to, or zero for a fixed limit
+   * @param retryAfter    the minimum interval after which shed callers should retry
+   */
+  public AdmissionLimiter(
+      int maxInFlight,
+      double helloShare,
+      Map<MessageType, Integer> typeLimits,
+      Duration targetLatency,
+      Duration retryAfter) {
+
+    if (maxInFlight < MIN_LIMIT) {
+      throw new IllegalArgumentException("limit must be positive: " + maxInFlight);
+    }
+    if (!(helloShare > 0.0 && helloShare <= 1.0)) {
+      throw new IllegalArgumentException("hello share must be in (0, 1]: " + helloShare);
+    }
+
+    myMaxLimit = maxInFlight;
+    myLimit = maxInFlight;
+    myHelloShare = helloShare;
+    myTypeLimits = new EnumMap<>(MessageType.class);
+    for (Map.Entry<MessageType, Integer> entry : typeLimits.entrySet()) {
+      myTypeLimits.put(entry.getKey(), entry.getValue());
+      myTypeInFlight.put(entry.getKey(), new AtomicInteger());
+    }
+    myTargetLatencyNanos = targetLatency.toNanos();
+    myRetryAfter = Objects.requireNonNull(retryAfter);
+  }
+
+  private Logger logger() {
+    return LoggerFactory.getLogger(getClass());
+  }
+
+  /**
+   * Admit a message if there is room for it.
+   *
+   * @param type         the message's type
+   * @param isNewSession true if the message starts a new session
+   * @return a permit to be released when the message is finished, or null if the message
+   *     must be shed
+   */
+  public Permit tryAcquire(MessageType type, boolean isNewSession) {
+
+    final int limit = isNewSession ? (int) Math.max(MIN_LIMIT, myLimit * myHelloShare) : myLimit;
+    int inFlight;
+    do {
+      inFlight = myInFlight.get();
+      if (inFlight >= limit) {
+        return shed(isNewSession);
+      }
+    } while (!myInFlight.compareAndSet(inFlight, inFlight + 1));
+
+    final AtomicInteger typeInFlight = myTypeInFlight.get(type);
+    if (null != typeInFlight && typeInFlight.incrementAndGet() > myTypeLimits.get(type)) {
+      typeInFlight.decrementAndGet();
+      myInFlight.decrementAndGet();
+      return shed(isNewSession);
+    }
+
+    myAdmitted.increment();
+    return new Permit(type, System.nanoTime());
+  }
+
+  private Permit shed(boolean isNewSession) {
+    myShed.increment();
+    if (isNewSession) {
+      myShedHellos.increment();
+    }
+    myWindowShed.set(true);
+    return null;
+  }
+
+  private void release(Permit permit) {
+    final AtomicInteger typeInFlight = myTypeInFlight.get(permit.myType);
+    if (null != typeInFlight) {
+      typeInFlight.decrementAndGet();
+    }
+    myInFlight.decrementAndGet();
+
+    if (0 < myTargetLatencyNanos) {
+      adapt(System.nanoTime() - permit.myStartNanos);
+    }
+  }
+
+  private synchronized void adapt(long latencyNanos) {
+    myWindowLatencyNanos += latencyNanos;
+    if (++myWindowCount < WINDOW) {
+      return;
+    }
+
+    final long meanLatencyNanos = myWindowLatencyNanos / myWindowCount;
+    final int oldLimit = myLimit;
+    if (meanLatencyNanos > myTargetLatencyNanos) {
+      myLimit = Math.max(MIN_LIMIT, (int) (oldLimit * BACKOFF));
+    } else if (myWindowShed.get()) {
+      myLimit = Math.min(myMaxLimit, oldLimit + 1);
+    }
+
+    if (oldLimit != myLimit && logger().isDebugEnabled()) {
+      logger().debug("mean latency " + Duration.ofNanos(meanLatencyNanos)
+          + ", in-flight limit " + oldLimit + " -> " + myLimit);
+    }
+
+    myWindowCount = 0;
+    myWindowLatencyNanos = 0;
+    myWindowShed.set(false);
+  }
+
+  /**
+   * Return the number of messages admitted.
+   */
+  public long getAdmitted() {
+    return myAdmitted.sum();
+  }
+
+  /**
+   * Return the number of messages in flight.
+   */
+  public int getInFlight() {
+    return myInFlight.get();
+  }
+
+  /**
+   * Return the current in-flight limit.
+   */
+  public int getLimit() {
+    return myLimit;
+  }
+
+  /**
+   * Return the number of seconds after which a shed caller should retry.
+   *
+   * <p>The delay is spread randomly between one and two times the configured interval, so that
+   * callers shed together don't all come back together.
+   */
+  public long getRetryAfterSeconds() {
+    final long seconds = Math.max(1, myRetryAfter.getSeconds());
+    return seconds + ThreadLocalRandom.current().nextLong(seconds + 1);
+  }
+
+  /**
+   * Return the number of messages shed.
+   */
+  public long getShed() {
+    return myShed.sum();
+  }
+
+  /**
+   * Return the number of messages shed which would have started new sessions.
+   */
+  public long getShedHellos() {
+    return myShedHellos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{limit=" + getLimit()
+        + ", inFlight=" + getInFlight()
+        + ", admitted=" + getAdmitted()
+        + ", shed=" + getShed()
+        + ", shedHellos=" + getShedHellos()
+        + "}";
+  }
+
+  /**
+   * Permission for one message to be in flight.
+   */
+  public class Permit {
+
+    private final AtomicBoolean myIsReleased = new AtomicBoolean(false);
+    private final long myStartNanos;
+    private final MessageType myType;
+
+    private Permit(MessageType type, long startNanos) {
+      myType = type;
+      myStartNanos = startNanos;
+    }
+
+    /**
+     * Give the permit back.  Releasing a permit more than once has no further effect.
+     */
+    public void release() {
+      if (myIsReleased.compareAndSet(false, true)) {
+        AdmissionLimiter.this.release(this);
+      }
+    }
+  }
+}
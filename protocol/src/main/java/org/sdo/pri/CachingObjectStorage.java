@@ -0,0 +1,241 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * An {@link ObjectStorage} which keeps recently loaded objects in memory.
+ *
+ * <p>Loading an ownership voucher means reading and decoding it, and a single TO2 session
+ * needs its voucher several times over, more so if the device retries.  This cache sits in
+ * front of the real storage and hands back the same decoded object each time, so the objects
+ * it holds must not be modified.
+ *
+ * <p>The cache is bounded by the total weight of the objects it holds.  Objects are spread over
+ * lock-striped segments, each with its share of the bound, and each segment evicts its least
+ * recently used objects first.  Storing an object passes it through to the real storage and
+ * drops any cached object under the same key, so the next load sees the replacement.
+ *
+ * @param <K> the type of the storage keys
+ * @param <V> the type of the storage values
+ */
+public class CachingObjectStorage<K, V extends Serializable> implements ObjectStorage<K, V> {
+
+  private static final int DEFAULT_SEGMENTS = 16;
+
+  private final AtomicLong myBytes = new AtomicLong();
+  private final ObjectStorage<K, V> myDelegate;
+  private final LongAdder myEvictions = new LongAdder();
+  private final LongAdder myHits = new LongAdder();
+  private final long myMaxBytesPerSegment;
+  private final LongAdder myMisses = new LongAdder();
+  private final List<Segment> mySegments;
+  private final ToLongFunction<V> myWeigher;
+
+  /**
+   * Construct a new cache.
+   *
+   * @param delegate the real storage
+   * @param maxBytes the maximum total weight of the objects the cache will hold
+   * @param weigher  computes the weight, in bytes, of an object
+   */
+  public CachingObjectStorage(
+      ObjectStorage<K, V> delegate, long maxBytes, ToLongFunction<V> weigher) {
+
+    this(delegate, maxBytes, weigher, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Construct a new cache.
+   *
+   * @param delegate the real storage
+   * @param maxBytes the maximum total weight of the objects the cache will hold
+   * @param weigher  computes the weight, in bytes, of an object
+   * @param segments the number of lock stripes
+   */
+  public CachingObjectStorage(
+      ObjectStorage<K, V> delegate, long maxBytes, ToLongFunction<V> weigher, int segments) {
+
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+    }
+    if (segments < 1) {
+      throw new IllegalArgumentException("segments must be positive: " + segments);
+    }
+
+    myDelegate = Objects.requireNonNull(delegate);
+    myWeigher = Objects.requireNonNull(weigher);
+    myMaxBytesPerSegment = Math.max(1, maxBytes / segments);
+    mySegments = new ArrayList<>(segments);
+    for (int i = 0; i < segments; ++i) {
+      mySegments.add(new Segment());
+    }
+  }
+
+  @Override
+  public Optional<V> load(K key) {
+    final Segment segment = segmentOf(key);
+
+    final long version;
+    synchronized (segment) {
+      final Cached<V> cached = segment.myEntries.get(key);
+      if (null != cached) {
+        myHits.increment();
+        return Optional.of(cached.myValue);
+      }
+      version = segment.myVersion;
+    }
+
+    myMisses.increment();
+    final Optional<V> value = myDelegate.load(key);
+    value.ifPresent(v -> cache(segment, version, key, v));
+    return value;
+  }
+
+  @Override
+  public void store(K key, V value) {
+    myDelegate.store(key, value);
+    invalidate(key);
+  }
+
+  /**
+   * Drop the cached object for the given key, if there is one.
+   */
+  public void invalidate(K key) {
+    final Segment segment = segmentOf(key);
+    synchronized (segment) {
+      // Loads already under way must not cache what they find; it may be stale.
+      ++segment.myVersion;
+      final Cached<V> cached = segment.myEntries.remove(key);
+      if (null != cached) {
+        segment.myBytes -= cached.myWeight;
+        myBytes.addAndGet(-cached.myWeight);
+      }
+    }
+  }
+
+  /**
+   * Return the total weight of the cached objects.
+   */
+  public long getBytes() {
+    return myBytes.get();
+  }
+
+  /**
+   * Return the number of objects evicted to stay within the weight bound.
+   */
+  public long getEvictions() {
+    return myEvictions.sum();
+  }
+
+  /**
+   * Return the number of loads answered from the cache.
+   */
+  public long getHits() {
+    return myHits.sum();
+  }
+
+  /**
+   * Return the fraction of loads answered from the cache, or zero if there have been none.
+   */
+  public double getHitRatio() {
+    final long hits = getHits();
+    final long total = hits + getMisses();
+    return 0 < total ? (double) hits / total : 0.0;
+  }
+
+  /**
+   * Return the number of loads passed to the real storage.
+   */
+  public long getMisses() {
+    return myMisses.sum();
+  }
+
+  /**
+   * Return the number of cached objects.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment) {
+        size += segment.myEntries.size();
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{size=" + size()
+        + ", bytes=" + getBytes()
+        + ", hits=" + getHits()
+        + ", misses=" + getMisses()
+        + ", hitRatio=" + String.format("%.3f", getHitRatio())
+        + ", evictions=" + getEvictions()
+        + "}";
+  }
+
+  private void cache(Segment segment, long version, K key, V value) {
+    final long weight = myWeigher.applyAsLong(value);
+    if (weight > myMaxBytesPerSegment) {
+      return; // it would only push everything else out
+    }
+
+    synchronized (segment) {
+      if (version != segment.myVersion) {
+        return;
+      }
+
+      final Cached<V> previous = segment.myEntries.put(key, new Cached<>(value, weight));
+      long delta = weight - (null != previous ? previous.myWeight : 0);
+
+      final Iterator<Cached<V>> it = segment.myEntries.values().iterator();
+      while (segment.myBytes + delta > myMaxBytesPerSegment && it.hasNext()) {
+        final Cached<V> eldest = it.next();
+        it.remove();
+        delta -= eldest.myWeight;
+        myEvictions.increment();
+      }
+
+      segment.myBytes += delta;
+      myBytes.addAndGet(delta);
+    }
+  }
+
+  private Segment segmentOf(K key) {
+    final int hash = key.hashCode();
+    return mySegments.get(Math.floorMod(hash ^ (hash >>> 16), mySegments.size()));
+  }
+
+  private static class Cached<V> {
+
+    final V myValue;
+    final long myWeight;
+
+    Cached(V value, long weight) {
+      myValue = value;
+      myWeight = weight;
+    }
+  }
+
+  private class Segment {
+
+    long myBytes = 0;
+    // Access order makes iteration least-recently-used first.
+    final Map<K, Cached<V>> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+    long myVersion = 0;
+  }
+}
@@ -0,0 +1,364 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, expiring, concurrent store for protocol session state.
+ *
+ * <p>Entries are spread across lock-striped segments, so unrelated sessions never contend
+ * for the same lock.  Each segment keeps its entries in insertion order, which is also expiry
+ * order because every entry shares the same idle TTL.  That lets the background sweeper stop at
+ * the first live entry in each segment instead of scanning the whole store, and it means
+ * eviction (when a segment exceeds its share of the entry or byte cap) always removes the
+ * oldest entries first.
+ *
+ * <p>Nothing on the request path scans the store: {@link #put} and {@link #take} only touch
+ * the key's own segment.
+ *
+ * @param <K> the type of the session keys
+ * @param <V> the type of the stored session state
+ */
+public class ConcurrentSessionStore<K, V> implements Closeable {
+
+  private static final int DEFAULT_SEGMENTS = 64;
+
+  private final AtomicLong myBytes = new AtomicLong();
+  private final LongAdder myEvictions = new LongAdder();
+  private final LongAdder myExpirations = new LongAdder();
+  private final LongAdder myHits = new LongAdder();
+  private final long myMaxBytesPerSegment;
+  private final int myMaxEntriesPerSegment;
+  private final LongAdder myMisses = new LongAdder();
+  private final List<Segment> mySegments;
+  private final ScheduledExecutorService mySweeper;
+  private final long myTtlNanos;
+  private final ToLongFunction<V> myWeigher;
+
+  /**
+   * Construct a new store.
+   *
+   * @param ttl        the idle time after which an entry expires
+   * @param maxEntries the maximum number of entries the store will hold
+   * @param maxBytes   the maximum total weight of the entries the store will hold
+   * @param weigher    computes the weight, in bytes, of a stored value
+   */
+  public ConcurrentSessionStore(
+      Duration ttl, int maxEntries, long maxBytes, ToLongFunction<V> weigher) {
+
+    this(ttl, maxEntries, maxBytes, weigher, DEFAULT_SEGMENTS, sweepPeriodOf(ttl));
+  }
+
+  /**
+   * Construct a new store.
+   *
+   * @param ttl         the idle time after which an entry expires
+   * @param maxEntries  the maximum number of entries the store will hold
+   * @param maxBytes    the maximum total weight of the entries the store will hold
+   * @param weigher     computes the weight, in bytes, of a stored value
+   * @param segments    the number of lock stripes
+   * @param sweepPeriod the interval between background expiry sweeps
+   */
+  public ConcurrentSessionStore(
+      Duration ttl,
+      int maxEntries,
+      long maxBytes,
+      ToLongFunction<V> weigher,
+      int segments,
+      Duration sweepPeriod) {
+
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    }
+    if (maxEntries < 1 || maxBytes < 1 || segments < 1) {
+      throw new IllegalArgumentException("capacities must be positive");
+    }
+
+    myTtlNanos = ttl.toNanos();
+    myWeigher = Objects.requireNonNull(weigher);
+    mySegments = new ArrayList<>(segments);
+    for (int i = 0; i < segments; i++) {
+      mySegments.add(new Segment());
+    }
+    myMaxEntriesPerSegment = Math.max(1, maxEntries / segments);
+    myMaxBytesPerSegment = Math.max(1, maxBytes / segments);
+
+    mySweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    final long period = Math.max(1, sweepPeriod.toMillis());
+    mySweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  // Sweep often enough that expired entries don't linger much past their TTL,
+  // but not so often that the sweeper competes with request threads.
+  private static Duration sweepPeriodOf(Duration ttl) {
+    Duration period = ttl.dividedBy(8);
+    return period.compareTo(Duration.ofSeconds(1)) < 0 ? Duration.ofSeconds(1) : period;
+  }
+
+  private Logger logger() {
+    return LoggerFactory.getLogger(getClass());
+  }
+
+  private Segment segmentFor(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return mySegments.get((h & 0x7fffffff) % mySegments.size());
+  }
+
+  /**
+   * Store a value, replacing any value already stored under the same key.
+   *
+   * <p>If the key's segment is over capacity after the insert, its oldest entries are evicted.
+   *
+   * @param key   the key
+   * @param value the value
+   */
+  public void put(K key, V value) {
+    Objects.requireNonNull(key);
+    final long weight = myWeigher.applyAsLong(Objects.requireNonNull(value));
+    segmentFor(key).put(key, new Node<>(value, weight, System.nanoTime() + myTtlNanos));
+  }
+
+  /**
+   * Remove and return the value stored under the given key.
+   *
+   * @param key the key
+   * @return the value, or null if no live value exists
+   */
+  public V take(K key) {
+    final Node<V> node = segmentFor(key).remove(key);
+    if (null == node) {
+      myMisses.increment();
+      return null;
+    } else if (node.isExpired(System.nanoTime())) {
+      myExpirations.increment();
+      myMisses.increment();
+      return null;
+    } else {
+      myHits.increment();
+      return node.value;
+    }
+  }
+
+  /**
+   * Replace every stored value with the result of the given function.
+   *
+   * <p>Replaced entries keep their place in expiry order and are re-weighed, and if that takes
+   * a segment over its caps, its eldest entries are evicted.  If the function returns null,
+   * the entry is removed.  The function runs under its segment's lock, so it
+   * should not call back into this store.
+   *
+   * @param function computes each replacement value from its key and current value
+   */
+  public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+    Objects.requireNonNull(function);
+    for (Segment segment : mySegments) {
+      segment.replaceAll(function);
+    }
+  }
+
+  /**
+   * Remove every expired entry.
+   *
+   * <p>This runs periodically in the background and need not be called directly.
+   */
+  public void sweep() {
+    final long now = System.nanoTime();
+    for (Segment segment : mySegments) {
+      segment.expire(now);
+    }
+
+    if (logger().isDebugEnabled()) {
+      logger().debug(toString());
+    }
+  }
+
+  /**
+   * Return the total weight of all stored entries.
+   */
+  public long getBytes() {
+    return myBytes.get();
+  }
+
+  /**
+   * Return the number of entries removed to keep the store under its capacity.
+   */
+  public long getEvictions() {
+    return myEvictions.sum();
+  }
+
+  /**
+   * Return the number of entries removed because their TTL elapsed.
+   */
+  public long getExpirations() {
+    return myExpirations.sum();
+  }
+
+  /**
+   * Return the number of successful takes.
+   */
+  public long getHits() {
+    return myHits.sum();
+  }
+
+  /**
+   * Return the number of takes which found no live entry.
+   */
+  public long getMisses() {
+    return myMisses.sum();
+  }
+
+  /**
+   * Return the number of stored entries.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : mySegments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  @Override
+  public void close() {
+    mySweeper.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{size=" + size()
+        + ", bytes=" + getBytes()
+        + ", hits=" + getHits()
+        + ", misses=" + getMisses()
+        + ", expirations=" + getExpirations()
+        + ", evictions=" + getEvictions()
+        + "}";
+  }
+
+  private static class Node<V> {
+
+    final long expiresAt;
+    final V value;
+    final long weight;
+
+    Node(V value, long weight, long expiresAt) {
+      this.value = value;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return now - expiresAt > 0;
+    }
+  }
+
+  private class Segment {
+
+    // Insertion-ordered, so the eldest entry is always the first to expire.
+    private final LinkedHashMap<K, Node<V>> myEntries = new LinkedHashMap<>();
+    private long mySegmentBytes = 0;
+
+    synchronized void put(K key, Node<V> node) {
+      final Node<V> old = myEntries.remove(key);
+      if (null != old) {
+        release(old);
+      }
+      myEntries.put(key, node);
+      mySegmentBytes += node.weight;
+      myBytes.addAndGet(node.weight);
+
+      // The entry we just added is never evicted, even if it alone exceeds the byte cap.
+      evict(1);
+    }
+
+    synchronized Node<V> remove(Object key) {
+      final Node<V> node = myEntries.remove(key);
+      if (null != node) {
+        release(node);
+      }
+      return node;
+    }
+
+    synchronized void expire(long now) {
+      final Iterator<Map.Entry<K, Node<V>>> it = myEntries.entrySet().iterator();
+      while (it.hasNext()) {
+        final Node<V> node = it.next().getValue();
+        if (!node.isExpired(now)) {
+          break;
+        }
+        release(node);
+        it.remove();
+        myExpirations.increment();
+      }
+    }
+
+    synchronized void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+      final Iterator<Map.Entry<K, Node<V>>> it = myEntries.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<K, Node<V>> entry = it.next();
+        final Node<V> node = entry.getValue();
+        final V value = function.apply(entry.getKey(), node.value);
+        release(node);
+
+        if (null == value) {
+          it.remove();
+        } else {
+          final Node<V> replacement =
+              new Node<>(value, myWeigher.applyAsLong(value), node.expiresAt);
+          entry.setValue(replacement);
+          mySegmentBytes += replacement.weight;
+          myBytes.addAndGet(replacement.weight);
+        }
+      }
+
+      // Replacements may weigh more than what they replaced.
+      evict(0);
+    }
+
+    synchronized int size() {
+      return myEntries.size();
+    }
+
+    // Evict eldest-first until we're back within our share of the caps,
+    // or only the given number of entries is left.
+    private void evict(int keep) {
+      final Iterator<Node<V>> it = myEntries.values().iterator();
+      while (myEntries.size() > keep
+          && (myEntries.size() > myMaxEntriesPerSegment
+          || mySegmentBytes > myMaxBytesPerSegment)) {
+
+        release(it.next());
+        it.remove();
+        myEvictions.increment();
+      }
+    }
+
+    private void release(Node<V> node) {
+      mySegmentBytes -= node.weight;
+      myBytes.addAndGet(-node.weight);
+    }
+  }
+}
@@ -5,6 +5,7 @@ package org.sdo.pri;
 
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import javax.crypto.SecretKey;
 
 /**
@@ -42,6 +43,28 @@ class CtrCipher extends AbstractCipher {
     new SecureRandom().nextBytes(ivSeed);
   }
 
+  /**
+   * Construct an object which resumes a session already in progress.
+   *
+   * @param sek          The SDO Session Encryption Key (SEK)
+   * @param secureRandom The source of our randomness
+   * @param ivSeed       The session's IV seed
+   * @param counter      The session's current IV counter
+   */
+  CtrCipher(SecretKey sek, SecureRandom secureRandom, byte[] ivSeed, long counter) {
+    super(sek, secureRandom);
+    this.ivSeed = Arrays.copyOf(ivSeed, ivSeed.length);
+    this.counter = counter;
+  }
+
+  long getCounter() {
+    return counter;
+  }
+
+  byte[] getIvSeed() {
+    return Arrays.copyOf(ivSeed, ivSeed.length);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -0,0 +1,432 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link RedirectStore} which survives restarts.
+ *
+ * <p>If the rendezvous server forgets its redirections, every owner must repeat TO0 for every
+ * device, and devices get nothing from TO1 until they have.  This store writes each accepted
+ * redirection to the end of a write-ahead log before it's used, and periodically writes a
+ * snapshot of all the live redirections and starts a new log, so the logs never grow long.
+ * On startup the snapshot is read and the logs since are replayed, skipping anything which
+ * has expired in the meantime.
+ *
+ * <p>The log is synced to disk in the background rather than on every store, so a crash can
+ * lose the last sync period's redirections.  Owners repeat TO0 when their registrations run
+ * out, so a lost redirection is re-registered; what must not be lost is the bulk of them.
+ *
+ * <p>Only {@link RedirectionEntry} records are written to disk.
+ */
+public class DurableRedirectStore implements ObjectStorage<UUID, PerishableRecord>, Closeable {
+
+  private static final int MAGIC = 0x53444f52; // "SDOR"
+  // No real record comes close; a longer length is a corrupt one.
+  private static final int MAX_RECORD_BYTES = 1 << 20;
+  // Records are decoded in parallel, this many at a time.
+  private static final int RECOVERY_BATCH = 65536;
+  private static final String SNAPSHOT_NAME = "redirects.snapshot";
+  private static final int VERSION = 1;
+  private static final Pattern WAL_NAME = Pattern.compile("redirects-([0-9a-f]{16})\\.wal");
+
+  private final Path myDir;
+  private long myGeneration = 0;
+  private final ScheduledExecutorService myScheduler;
+  private final LongAdder mySnapshots = new LongAdder();
+  private final RedirectStore myStore;
+  private FileChannel myWal = null;
+  private final LongAdder myWalRecords = new LongAdder();
+  private final Object myWriteLock = new Object();
+
+  /**
+   * Open a store, recovering whatever is already in its directory.
+   *
+   * @param dir            the directory which holds the snapshot and logs
+   * @param store          the in-memory store to recover into and serve from
+   * @param syncPeriod     the interval between log syncs
+   * @param snapshotPeriod the interval between snapshots
+   * @throws IOException if the directory can't be read or written
+   */
+  public DurableRedirectStore(
+      Path dir, RedirectStore store, Duration syncPeriod, Duration snapshotPeriod)
+      throws IOException {
+
+    myDir = Files.createDirectories(dir);
+    myStore = Objects.requireNonNull(store);
+    recover();
+    synchronized (myWriteLock) {
+      startLog(myGeneration + 1);
+    }
+
+    myScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-writer");
+      t.setDaemon(true);
+      return t;
+    });
+    final long syncMillis = Math.max(1, syncPeriod.toMillis());
+    myScheduler.scheduleWithFixedDelay(() -> {
+      try {
+        sync();
+      } catch (IOException | RuntimeException e) {
+        logger().warn("redirect log sync failed: " + e.getMessage());
+      }
+    }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    final long snapshotMillis = Math.max(1, snapshotPeriod.toMillis());
+    myScheduler.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot();
+      } catch (IOException | RuntimeException e) {
+        logger().warn("redirect snapshot failed: " + e.getMessage());
+      }
+    }, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(DurableRedirectStore.class);
+  }
+
+  // Record layout: payload length, CRC-32 of payload, payload.
+  // Payload: GUID, then the encoded entry.
+  private static byte[] encode(UUID guid, RedirectionEntry entry) {
+    final byte[] encoded = entry.encode();
+    final int payloadBytes = Long.BYTES * 2 + encoded.length;
+
+    final ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 2 + payloadBytes);
+    buf.putInt(payloadBytes).putInt(0);
+    buf.putLong(guid.getMostSignificantBits()).putLong(guid.getLeastSignificantBits());
+    buf.put(encoded);
+    buf.putInt(Integer.BYTES, crcOf(buf.array(), Integer.BYTES * 2, payloadBytes));
+    return buf.array();
+  }
+
+  private static int crcOf(byte[] bytes, int offset, int length) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+  // Read one record's payload, or return null at the end of the data or at a torn
+  // or corrupt record.
+  private static byte[] readRecord(DataInputStream in) throws IOException {
+    try {
+      final int length = in.readInt();
+      if (length <= 0 || MAX_RECORD_BYTES < length) {
+        return null;
+      }
+      final int crc = in.readInt();
+      final byte[] payload = new byte[length];
+      in.readFully(payload);
+      return crc == crcOf(payload, 0, length) ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public Optional<PerishableRecord> load(UUID key) {
+    return myStore.load(key);
+  }
+
+  @Override
+  public void store(UUID key, PerishableRecord value) {
+    if (value instanceof RedirectionEntry) {
+      final byte[] record = encode(key, (RedirectionEntry) value);
+      // Log and store under one lock, so a snapshot started after this record's log was
+      // closed is sure to find the record in the in-memory store.
+      synchronized (myWriteLock) {
+        writeRecord(record);
+        myStore.store(key, value);
+      }
+      myWalRecords.increment();
+    } else {
+      myStore.store(key, value);
+    }
+  }
+
+  // Drop the redirection for a GUID, if there is one.  An already-expired record is logged
+  // in its place, which replaces any earlier record for the GUID when the log is replayed.
+  void discard(UUID key) {
+    final byte[] record = encode(key, new RedirectionEntry(null, "", Instant.EPOCH));
+    synchronized (myWriteLock) {
+      writeRecord(record);
+      myStore.discard(key);
+    }
+    myWalRecords.increment();
+  }
+
+  /**
+   * Return the number of records written to the log since the store was opened.
+   */
+  public long getLogRecords() {
+    return myWalRecords.sum();
+  }
+
+  /**
+   * Return the number of snapshots written since the store was opened.
+   */
+  public long getSnapshots() {
+    return mySnapshots.sum();
+  }
+
+  /**
+   * Return the in-memory store this store serves from.
+   */
+  public RedirectStore getStore() {
+    return myStore;
+  }
+
+  /**
+   * Sync the log to disk.
+   */
+  public void sync() throws IOException {
+    final FileChannel wal;
+    synchronized (myWriteLock) {
+      wal = myWal;
+    }
+    try {
+      wal.force(false);
+    } catch (ClosedChannelException e) {
+      // A snapshot started a new log, and synced this one as it closed it.
+    }
+  }
+
+  /**
+   * Write a snapshot of the live redirections, and drop the logs it replaces.
+   *
+   * <p>A new log is started first, so that redirections stored while the snapshot is being
+   * written are in the new log if they miss the snapshot.
+   */
+  public synchronized void snapshot() throws IOException {
+    final long generation;
+    synchronized (myWriteLock) {
+      myWal.force(false);
+      myWal.close();
+      generation = myGeneration + 1;
+      startLog(generation);
+    }
+
+    final Path snapshot = myDir.resolve(SNAPSHOT_NAME);
+    final Path temp = myDir.resolve(SNAPSHOT_NAME + ".tmp");
+    final int[] count = {0};
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+      final OutputStream os = Channels.newOutputStream(channel);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(generation);
+      try {
+        myStore.forEach((guid, value) -> {
+          if (value instanceof RedirectionEntry) {
+            try {
+              out.write(encode(guid, (RedirectionEntry) value));
+              ++count[0];
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.writeInt(0);
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(temp, snapshot,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    // The snapshot covers every log before the one just started.
+    for (Map.Entry<Long, Path> wal : listLogs().entrySet()) {
+      if (wal.getKey() < generation) {
+        Files.deleteIfExists(wal.getValue());
+      }
+    }
+    mySnapshots.increment();
+    logger().info("wrote snapshot of " + count[0] + " redirections");
+  }
+
+  /**
+   * Write a final snapshot and close the store.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    myScheduler.shutdownNow();
+    try {
+      snapshot();
+    } finally {
+      synchronized (myWriteLock) {
+        myWal.close();
+      }
+      myStore.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{dir=" + myDir
+        + ", store=" + myStore
+        + ", logRecords=" + getLogRecords()
+        + ", snapshots=" + getSnapshots()
+        + "}";
+  }
+
+  // Decode records and store those which haven't expired.  Within a batch only the last
+  // record for each GUID counts, and batches are stored in order, so later records win.
+  private int apply(List<byte[]> batch) {
+    final long now = myStore.getClock().millis();
+    final Map<UUID, ByteBuffer> latest = new LinkedHashMap<>();
+    for (byte[] payload : batch) {
+      final ByteBuffer buf = ByteBuffer.wrap(payload);
+      latest.put(new UUID(buf.getLong(), buf.getLong()), buf);
+    }
+    batch.clear();
+
+    final LongAdder stored = new LongAdder();
+    latest.entrySet().parallelStream().forEach(record -> {
+      final ByteBuffer buf = record.getValue();
+      final long expiresAt = buf.getLong(buf.position());
+      if (expiresAt <= now) {
+        // This record replaces any earlier one for its GUID, which must go too.
+        if (myStore.load(record.getKey()).isPresent()) {
+          myStore.store(record.getKey(),
+              new RedirectionEntry(null, "", Instant.ofEpochMilli(expiresAt)));
+        }
+        return;
+      }
+      try {
+        myStore.store(record.getKey(), RedirectionEntry.decode(buf));
+        stored.increment();
+      } catch (IOException | RuntimeException e) {
+        logger().warn("dropping redirection " + record.getKey() + ": " + e.getMessage());
+      }
+    });
+    return stored.intValue();
+  }
+
+  private TreeMap<Long, Path> listLogs() throws IOException {
+    final TreeMap<Long, Path> logs = new TreeMap<>();
+    try (Stream<Path> paths = Files.list(myDir)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        final Matcher m = WAL_NAME.matcher(path.getFileName().toString());
+        if (m.matches()) {
+          logs.put(Long.parseUnsignedLong(m.group(1), 16), path);
+        }
+      }
+    }
+    return logs;
+  }
+
+  // Load the snapshot, then replay the logs written since it, oldest first.
+  private void recover() throws IOException {
+    final long start = System.nanoTime();
+    final List<byte[]> batch = new ArrayList<>();
+    int records = 0;
+    int recovered = 0;
+
+    long snapshotGeneration = 0;
+    final Path snapshot = myDir.resolve(SNAPSHOT_NAME);
+    if (Files.exists(snapshot)) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+
+        if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+          throw new IOException("unrecognized redirect snapshot " + snapshot);
+        }
+        snapshotGeneration = in.readLong();
+        for (byte[] payload; null != (payload = readRecord(in)); ) {
+          batch.add(payload);
+          ++records;
+          if (RECOVERY_BATCH <= batch.size()) {
+            recovered += apply(batch);
+          }
+        }
+      }
+    }
+    myGeneration = snapshotGeneration;
+
+    for (Map.Entry<Long, Path> wal : listLogs().entrySet()) {
+      myGeneration = Math.max(myGeneration, wal.getKey());
+      if (wal.getKey() < snapshotGeneration) {
+        Files.deleteIfExists(wal.getValue());
+        continue;
+      }
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(wal.getValue()), 1 << 16))) {
+        // A crash can leave a torn record at the end of a log; replay stops there.
+        for (byte[] payload; null != (payload = readRecord(in)); ) {
+          batch.add(payload);
+          ++records;
+          if (RECOVERY_BATCH <= batch.size()) {
+            recovered += apply(batch);
+          }
+        }
+      }
+    }
+    recovered += apply(batch);
+
+    logger().info("recovered " + recovered + " live redirections from " + records
+        + " records in " + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms");
+  }
+
+  // Append a record to the current log.  The caller holds the write lock.
+  private void writeRecord(byte[] record) {
+    try {
+      final ByteBuffer buf = ByteBuffer.wrap(record);
+      while (buf.hasRemaining()) {
+        myWal.write(buf);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Start writing a new log.  Logs are never appended to after a restart, so a torn record
+  // can only be at the end of one.
+  private void startLog(long generation) throws IOException {
+    myGeneration = generation;
+    myWal = FileChannel.open(myDir.resolve(String.format("redirects-%016x.wal", generation)),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+}
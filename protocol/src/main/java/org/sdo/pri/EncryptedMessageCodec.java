@@ -36,6 +36,13 @@ class EncryptedMessageCodec implements Serializable {
     this.svk = svk;
   }
 
+  /**
+   * Returns the Session Validation Key (SVK).
+   */
+  SecretKey getSvk() {
+    return svk;
+  }
+
   /**
    * Decodes an encoded Encrypted Message as a {@link CipherText113a} object.
    *
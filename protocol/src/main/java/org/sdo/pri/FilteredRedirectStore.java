@@ -0,0 +1,227 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A redirect store which keeps a filter of the GUIDs it holds, to answer misses cheaply.
+ *
+ * <p>Devices poll TO1 every couple of minutes until their owner runs TO0, so most TO1
+ * lookups find nothing.  A Bloom filter of every registered GUID lets those lookups, and the
+ * rendezvous service's answers to them, skip the store.
+ *
+ * <p>Expired redirections stay in the filter until it's rebuilt from the store, which happens
+ * periodically and whenever more GUIDs have been added than the filter was sized for.  Until
+ * then, lookups for them fall through to the store.
+ */
+public class FilteredRedirectStore implements ObjectStorage<UUID, PerishableRecord>, Closeable {
+
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+  private static final int MIN_CAPACITY = 1024;
+
+  private volatile GuidFilter myCurrent;
+  private final ObjectStorage<UUID, PerishableRecord> myDelegate;
+  private final LongAdder myFalsePositives = new LongAdder();
+  private final RedirectStore myKeys;
+  private final ReadWriteLock myLock = new ReentrantReadWriteLock();
+  private volatile GuidFilter myNext = null;
+  private final LongAdder myPassed = new LongAdder();
+  private final AtomicBoolean myRebuildPending = new AtomicBoolean();
+  private final ScheduledExecutorService myRebuilder;
+  private final LongAdder myRejected = new LongAdder();
+  private final LongAdder mySinceRebuild = new LongAdder();
+
+  /**
+   * Construct a new store.
+   *
+   * @param delegate      the store to filter
+   * @param keys          the in-memory store holding the delegate's redirections; the same
+   *                      object as the delegate, or the one it wraps
+   * @param rebuildPeriod the interval between filter rebuilds
+   */
+  public FilteredRedirectStore(ObjectStorage<UUID, PerishableRecord> delegate,
+      RedirectStore keys, Duration rebuildPeriod) {
+
+    myDelegate = Objects.requireNonNull(delegate);
+    myKeys = Objects.requireNonNull(keys);
+    myCurrent = new GuidFilter(capacityFor(keys.size()), FALSE_POSITIVE_RATE);
+    keys.forEach((guid, value) -> myCurrent.add(guid));
+
+    myRebuilder = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-rebuilder");
+      t.setDaemon(true);
+      return t;
+    });
+    final long period = Math.max(1, rebuildPeriod.toMillis());
+    myRebuilder.scheduleWithFixedDelay(this::rebuild, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(FilteredRedirectStore.class);
+  }
+
+  // Leave room to grow before the next rebuild.
+  private static int capacityFor(int size) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_CAPACITY, 2L * size));
+  }
+
+  /**
+   * Return false if the store certainly holds no redirection for the given GUID.
+   */
+  public boolean mightContain(UUID guid) {
+    if (myCurrent.mightContain(guid)) {
+      myPassed.increment();
+      return true;
+    } else {
+      myRejected.increment();
+      return false;
+    }
+  }
+
+  @Override
+  public Optional<PerishableRecord> load(UUID key) {
+    if (!mightContain(key)) {
+      return Optional.empty();
+    }
+    final Optional<PerishableRecord> value = myDelegate.load(key);
+    if (value.isEmpty()) {
+      myFalsePositives.increment();
+    }
+    return value;
+  }
+
+  @Override
+  public void store(UUID key, PerishableRecord value) {
+    myLock.readLock().lock();
+    try {
+      // Filter first, so a lookup never finds a stored GUID missing from the filter.
+      myCurrent.add(key);
+      final GuidFilter next = myNext;
+      if (null != next) {
+        next.add(key);
+      }
+      myDelegate.store(key, value);
+    } finally {
+      myLock.readLock().unlock();
+    }
+
+    mySinceRebuild.increment();
+    if (mySinceRebuild.sum() > myCurrent.getCapacity() / 2
+        && myRebuildPending.compareAndSet(false, true)) {
+      myRebuilder.execute(this::rebuild);
+    }
+  }
+
+  /**
+   * Return the number of filter checks which let a lookup through to the store, but the store
+   * had nothing.  These are false positives, or redirections which have since expired.
+   */
+  public long getFalsePositives() {
+    return myFalsePositives.sum();
+  }
+
+  /**
+   * Return the number of filter checks which let a lookup through to the store.
+   */
+  public long getPassed() {
+    return myPassed.sum();
+  }
+
+  /**
+   * Return the number of filter checks which answered a lookup with a miss.
+   */
+  public long getRejected() {
+    return myRejected.sum();
+  }
+
+  /**
+   * Log the filter's counts, and its miss rate since the last report, periodically.
+   *
+   * @param period the interval between reports, or zero for none
+   */
+  public void startReporting(Duration period) {
+    if (!(period.isZero() || period.isNegative())) {
+      final long millis = Math.max(1, period.toMillis());
+      final long[] last = {getRejected(), System.nanoTime()};
+      myRebuilder.scheduleAtFixedRate(() -> {
+        final long rejected = getRejected();
+        final long now = System.nanoTime();
+        final double rate = (rejected - last[0]) * 1e9 / Math.max(1, now - last[1]);
+        last[0] = rejected;
+        last[1] = now;
+        logger().info(this + String.format(" %.1f misses/s", rate));
+      }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop the background rebuilds and close the filtered store.
+   */
+  @Override
+  public void close() throws IOException {
+    myRebuilder.shutdownNow();
+    if (myDelegate instanceof Closeable) {
+      ((Closeable) myDelegate).close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{rejected=" + getRejected()
+        + ", passed=" + getPassed()
+        + ", falsePositives=" + getFalsePositives()
+        + "}";
+  }
+
+  // Build a new filter from the store's live redirections, dropping expired ones.
+  void rebuild() {
+    try {
+      final GuidFilter next = new GuidFilter(capacityFor(myKeys.size()), FALSE_POSITIVE_RATE);
+
+      // Once no store is mid-way, every later store adds to the new filter too,
+      // and every earlier one is in the store for the scan to find.
+      myLock.writeLock().lock();
+      try {
+        myNext = next;
+        mySinceRebuild.reset();
+      } finally {
+        myLock.writeLock().unlock();
+      }
+
+      myKeys.forEach((guid, value) -> next.add(guid));
+
+      // Swap under the lock too, so no store can add to the old filter and miss the new one.
+      myLock.writeLock().lock();
+      try {
+        myCurrent = next;
+        myNext = null;
+      } finally {
+        myLock.writeLock().unlock();
+      }
+      logger().debug("rebuilt redirection filter, " + this);
+
+    } catch (RuntimeException e) {
+      // Keep the rebuilder alive; the old filter is still correct, just fuller.
+      logger().warn("redirection filter rebuild failed: " + e.getMessage(), e);
+    } finally {
+      myRebuildPending.set(false);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over GUIDs.
+ *
+ * <p>{@link #mightContain} never says no to a GUID which was added, and says yes to one which
+ * wasn't with about the false-positive rate the filter was sized for, until more GUIDs than
+ * its capacity are added.  Adds and lookups may run on many threads at once.
+ */
+class GuidFilter {
+
+  private final long myBitCount;
+  private final AtomicLongArray myBits;
+  private final int myCapacity;
+  private final int myHashCount;
+
+  /**
+   * Construct an empty filter.
+   *
+   * @param capacity           the number of GUIDs the filter is sized for
+   * @param falsePositiveRate  the false-positive rate wanted at capacity
+   */
+  GuidFilter(int capacity, double falsePositiveRate) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    if (!(0.0 < falsePositiveRate && falsePositiveRate < 1.0)) {
+      throw new IllegalArgumentException("bad false-positive rate: " + falsePositiveRate);
+    }
+    final double ln2 = Math.log(2);
+    final long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+    final int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+    myBits = new AtomicLongArray(words);
+    myBitCount = words * 64L;
+    myHashCount = (int) Math.max(1, Math.round((double) myBitCount / capacity * ln2));
+    myCapacity = capacity;
+  }
+
+  // SplitMix64's finalizer.  GUIDs from some sources aren't random in every bit.
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  void add(UUID guid) {
+    final long h1 = mix(guid.getMostSignificantBits() ^ mix(guid.getLeastSignificantBits()));
+    final long h2 = mix(h1) | 1;
+    for (int i = 0; i < myHashCount; ++i) {
+      final long bit = Math.floorMod(h1 + i * h2, myBitCount);
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long old = myBits.get(word);
+      while (0 == (old & mask) && !myBits.compareAndSet(word, old, old | mask)) {
+        old = myBits.get(word);
+      }
+    }
+  }
+
+  int getCapacity() {
+    return myCapacity;
+  }
+
+  boolean mightContain(UUID guid) {
+    final long h1 = mix(guid.getMostSignificantBits() ^ mix(guid.getLeastSignificantBits()));
+    final long h2 = mix(h1) | 1;
+    for (int i = 0; i < myHashCount; ++i) {
+      final long bit = Math.floorMod(h1 + i * h2, myBitCount);
+      if (0 == (myBits.get((int) (bit >>> 6)) & (1L << bit))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
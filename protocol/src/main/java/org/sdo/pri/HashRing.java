@@ -0,0 +1,75 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * A consistent-hash ring which assigns each GUID to one of a set of members.
+ *
+ * <p>Each member is placed at many points around the ring, and a GUID belongs to the member at
+ * the first point at or after the GUID's hash.  Adding or removing a member moves only the GUIDs
+ * between its points and their neighbours, about 1/n of them.
+ *
+ * <p>Placement depends only on the members' names, so every node which agrees on the members
+ * agrees on every GUID's owner.  Rings are immutable.
+ */
+class HashRing<M extends Comparable<M>> {
+
+  private static final int POINTS_PER_MEMBER = 128;
+
+  private final Set<M> myMembers;
+  private final NavigableMap<Long, M> myPoints = new TreeMap<>();
+
+  HashRing(Collection<M> members) {
+    myMembers = new TreeSet<>(members);
+    final MessageDigest sha256;
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every JRE has SHA-256
+    }
+    for (M member : myMembers) {
+      for (int i = 0; i < POINTS_PER_MEMBER; ++i) {
+        final byte[] digest =
+            sha256.digest((member + "#" + i).getBytes(StandardCharsets.UTF_8));
+        // On the rare collision, the lesser member keeps the point, on every node alike.
+        myPoints.putIfAbsent(ByteBuffer.wrap(digest).getLong(), member);
+      }
+    }
+  }
+
+  // SplitMix64's finalizer, so GUIDs which differ in few bits still spread around the ring.
+  private static long hash(UUID guid) {
+    long z = guid.getMostSignificantBits() ^ Long.rotateLeft(guid.getLeastSignificantBits(), 32);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  Set<M> getMembers() {
+    return myMembers;
+  }
+
+  /**
+   * Return the member which owns the given GUID, or null if the ring is empty.
+   */
+  M ownerOf(UUID guid) {
+    if (myPoints.isEmpty()) {
+      return null;
+    }
+    final Map.Entry<Long, M> point = myPoints.ceilingEntry(hash(guid));
+    return null != point ? point.getValue() : myPoints.firstEntry().getValue();
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An executor for protocol message handling which reports on its own load.
+ *
+ * <p>The web controllers run each message on its own task, and those tasks spend most of their
+ * time blocked on file, network and crypto work.  On a pool of platform threads that means one
+ * thread per in-flight message; on virtual threads, those blocked messages cost almost nothing.
+ * {@link #newVirtual} selects virtual threads when the runtime offers them (Java 21 and later)
+ * and falls back to the platform pool otherwise, so the same build runs everywhere.
+ *
+ * <p>The executor tracks in-flight and peak in-flight tasks alongside the JVM's platform thread
+ * count, and can log them periodically.  Virtual threads which block while pinned to their
+ * carrier can be reported by the JDK itself; see {@link #setTracePinnedThreads}.
+ */
+public class InstrumentedExecutorService extends AbstractExecutorService {
+
+  private static final String TRACE_PINNED_THREADS = "jdk.tracePinnedThreads";
+
+  private final LongAdder myCompleted = new LongAdder();
+  private final ExecutorService myDelegate;
+  private final LongAdder myFailed = new LongAdder();
+  private final AtomicLong myInFlight = new AtomicLong();
+  private final boolean myIsVirtual;
+  private final AtomicLong myPeakInFlight = new AtomicLong();
+  private ScheduledExecutorService myReporter = null;
+
+  /**
+   * Construct a new executor.
+   *
+   * @param delegate  the executor which runs the tasks
+   * @param isVirtual true if the delegate runs tasks on virtual threads
+   */
+  public InstrumentedExecutorService(ExecutorService delegate, boolean isVirtual) {
+    myDelegate = Objects.requireNonNull(delegate);
+    myIsVirtual = isVirtual;
+  }
+
+  /**
+   * Create an executor which runs each task on a pooled platform thread.
+   */
+  public static InstrumentedExecutorService newPlatform() {
+    return new InstrumentedExecutorService(Executors.newCachedThreadPool(), false);
+  }
+
+  /**
+   * Create an executor which runs each task on its own virtual thread.
+   *
+   * <p>If the runtime doesn't support virtual threads, this logs a warning and returns
+   * {@link #newPlatform()} instead.
+   */
+  public static InstrumentedExecutorService newVirtual() {
+    // This build targets Java 11, so virtual threads can only be reached reflectively.
+    try {
+      final Object executor =
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return new InstrumentedExecutorService((ExecutorService) executor, true);
+
+    } catch (ReflectiveOperationException e) {
+      LoggerFactory.getLogger(InstrumentedExecutorService.class).warn(
+          "virtual threads are not available in Java " + Runtime.version().feature()
+              + ", using platform threads");
+      return newPlatform();
+    }
+  }
+
+  /**
+   * Ask the JDK to print a stack trace when a virtual thread blocks while pinned to its carrier.
+   *
+   * <p>This must be called before the first virtual thread is created.  It has no effect on
+   * runtimes without virtual threads, or on those which report pinning through JFR instead.
+   *
+   * @param mode "short" or "full", or null or blank to leave the JDK default in place
+   */
+  public static void setTracePinnedThreads(String mode) {
+    if (null != mode && !mode.isBlank()) {
+      System.setProperty(TRACE_PINNED_THREADS, mode);
+    }
+  }
+
+  private Logger logger() {
+    return LoggerFactory.getLogger(getClass());
+  }
+
+  /**
+   * Log this executor's diagnostics at the given interval.
+   *
+   * @param period the logging interval, or zero to disable logging
+   */
+  public synchronized void startReporting(Duration period) {
+    if (null == myReporter && !(period.isZero() || period.isNegative())) {
+      myReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, getClass().getSimpleName() + "-reporter");
+        t.setDaemon(true);
+        return t;
+      });
+      final long millis = Math.max(1, period.toMillis());
+      myReporter.scheduleAtFixedRate(
+          () -> logger().info(toString()), millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    Objects.requireNonNull(command);
+    final long inFlight = myInFlight.incrementAndGet();
+    myPeakInFlight.accumulateAndGet(inFlight, Math::max);
+
+    try {
+      myDelegate.execute(() -> {
+        try {
+          command.run();
+          myCompleted.increment();
+        } catch (RuntimeException | java.lang.Error e) {
+          myFailed.increment();
+          throw e;
+        } finally {
+          myInFlight.decrementAndGet();
+        }
+      });
+    } catch (RuntimeException e) {
+      myInFlight.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Return the number of tasks which ran to completion.
+   */
+  public long getCompleted() {
+    return myCompleted.sum();
+  }
+
+  /**
+   * Return the number of tasks which threw.
+   */
+  public long getFailed() {
+    return myFailed.sum();
+  }
+
+  /**
+   * Return the number of tasks submitted but not yet finished.
+   */
+  public long getInFlight() {
+    return myInFlight.get();
+  }
+
+  /**
+   * Return the largest number of tasks ever in flight at once.
+   */
+  public long getPeakInFlight() {
+    return myPeakInFlight.get();
+  }
+
+  /**
+   * Return the number of live platform threads in the JVM.
+   *
+   * <p>Virtual threads are not counted.
+   */
+  public int getPlatformThreadCount() {
+    return ManagementFactory.getThreadMXBean().getThreadCount();
+  }
+
+  /**
+   * Return true if tasks run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return myIsVirtual;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return myDelegate.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return myDelegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return myDelegate.isTerminated();
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    stopReporting();
+    myDelegate.shutdown();
+  }
+
+  @Override
+  public synchronized List<Runnable> shutdownNow() {
+    stopReporting();
+    return myDelegate.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{virtual=" + isVirtual()
+        + ", inFlight=" + getInFlight()
+        + ", peakInFlight=" + getPeakInFlight()
+        + ", completed=" + getCompleted()
+        + ", failed=" + getFailed()
+        + ", platformThreads=" + getPlatformThreadCount()
+        + "}";
+  }
+
+  private void stopReporting() {
+    if (null != myReporter) {
+      myReporter.shutdownNow();
+      myReporter = null;
+    }
+  }
+}
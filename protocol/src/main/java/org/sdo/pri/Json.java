@@ -3,6 +3,8 @@
 
 package org.sdo.pri;
 
+import java.nio.CharBuffer;
+
 class Json {
 
   public static final Character BEGIN_ARRAY = '[';
@@ -16,4 +18,40 @@ class Json {
   public static String asKey(String name) {
     return QUOTE + name + QUOTE + COLON;
   }
+
+  /**
+   * Advance past one JSON value without decoding it.
+   *
+   * @throws java.nio.BufferUnderflowException if the buffer ends before the value does
+   */
+  public static void skipValue(CharBuffer in) {
+    int depth = 0;
+    do {
+      final char c = in.get();
+      if (QUOTE == c) {
+        // Strings may hold brackets, and escaped quotes.
+        for (char s = in.get(); QUOTE != s; s = in.get()) {
+          if ('\\' == s) {
+            in.get();
+          }
+        }
+
+      } else if (BEGIN_OBJECT == c || BEGIN_ARRAY == c) {
+        ++depth;
+
+      } else if (END_OBJECT == c || END_ARRAY == c) {
+        --depth;
+
+      } else if (0 == depth) {
+        // A bare number or literal ends at the next delimiter.
+        while (in.hasRemaining() && !isDelimiter(in.get(in.position()))) {
+          in.get();
+        }
+      }
+    } while (0 < depth);
+  }
+
+  private static boolean isDelimiter(char c) {
+    return COMMA == c || END_ARRAY == c || END_OBJECT == c;
+  }
 }
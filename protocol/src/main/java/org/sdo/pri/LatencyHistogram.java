@@ -0,0 +1,79 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, from which percentiles can be read to within about 6%.
+ *
+ * <p>Each power of two is split into 16 buckets, so memory is fixed however many latencies are
+ * recorded.  Recording may run on many threads at once.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final AtomicLongArray myCounts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+  private static int indexOf(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) Math.max(0, micros);
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    final int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  // The least value which falls in the given bucket.
+  private static long lowerBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+    return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (exponent - SUB_BITS);
+  }
+
+  void record(Duration latency) {
+    myCounts.incrementAndGet(indexOf(latency.toNanos() / 1000));
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int i = 0; i < myCounts.length(); ++i) {
+      count += myCounts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Return the latency below which the given fraction of those recorded fall.
+   *
+   * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+   * @return the latency, or zero if none were recorded
+   */
+  Duration getPercentile(double fraction) {
+    final long count = getCount();
+    if (0 == count) {
+      return Duration.ZERO;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    int index = 0;
+    while (index < myCounts.length() - 1 && (seen += myCounts.get(index)) < rank) {
+      ++index;
+    }
+    return Duration.ofNanos(lowerBoundOf(index) * 1000);
+  }
+
+  @Override
+  public String toString() {
+    return "p50=" + getPercentile(0.50).toMillis() + "ms"
+        + ", p90=" + getPercentile(0.90).toMillis() + "ms"
+        + ", p99=" + getPercentile(0.99).toMillis() + "ms"
+        + ", max=" + getPercentile(1.0).toMillis() + "ms";
+  }
+}
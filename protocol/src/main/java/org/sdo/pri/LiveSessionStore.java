@@ -0,0 +1,342 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A session store which can hold live protocol service objects between messages.
+ *
+ * <p>In serialized mode, every session is encoded on {@link #put} and decoded on {@link #take},
+ * exactly as a multi-node deployment must do.
+ *
+ * <p>In live mode, single-node deployments skip that round trip: the service object itself is
+ * held and handed back unchanged, with its transient collaborators still in place.  Live
+ * sessions are spilled to their serialized form when the heap retained after garbage
+ * collection crosses the spill threshold, and when the store is draining, so that neither a
+ * load spike nor a shutdown is held hostage by a heap full of live session objects.  Spilled
+ * sessions are decoded on take as usual.
+ *
+ * <p>Entries of both forms share one {@link ConcurrentSessionStore}, so the TTL, entry and
+ * byte caps apply regardless of form.  Live sessions are weighed at a fixed estimate.
+ *
+ * <p>If an off-heap tier is given, serialized sessions are kept there instead, and only fall
+ * back to the heap when the tier is full.
+ *
+ * @param <S> the type of the sessions
+ */
+public class LiveSessionStore<S> implements Closeable {
+
+  private static final List<MemoryPoolMXBean> HEAP_POOLS =
+      ManagementFactory.getMemoryPoolMXBeans().stream()
+          .filter(pool -> MemoryType.HEAP == pool.getType())
+          .collect(Collectors.toList());
+
+  private final AtomicBoolean myIsDraining = new AtomicBoolean(false);
+  private final boolean myIsLive;
+  private final AtomicBoolean myIsSpilling = new AtomicBoolean(false);
+  private final SlabSessionStore myOffHeap;
+  private final Serializer<S> mySerializer;
+  private final ExecutorService mySpiller;
+  private final LongAdder mySpills = new LongAdder();
+  private final double mySpillThreshold;
+  private final ConcurrentSessionStore<UUID, Object> myStore;
+  private final long myTtlNanos;
+
+  /**
+   * Construct a new store.
+   *
+   * @param serializer     converts sessions to and from their serialized form
+   * @param isLive         true to hold live sessions, false to always serialize
+   * @param spillThreshold the fraction of the maximum heap above which live sessions are spilled
+   * @param ttl            the idle time after which a session expires
+   * @param maxEntries     the maximum number of sessions the store will hold
+   * @param maxBytes       the maximum total weight of the sessions the store will hold
+   * @param liveWeight     the estimated weight, in bytes, of one live session
+   */
+  public LiveSessionStore(
+      Serializer<S> serializer,
+      boolean isLive,
+      double spillThreshold,
+      Duration ttl,
+      int maxEntries,
+      long maxBytes,
+      long liveWeight) {
+
+    this(serializer, isLive, spillThreshold, ttl, maxEntries, maxBytes, liveWeight, null);
+  }
+
+  /**
+   * Construct a new store with an off-heap tier for serialized sessions.
+   *
+   * @param serializer     converts sessions to and from their serialized form
+   * @param isLive         true to hold live sessions, false to always serialize
+   * @param spillThreshold the fraction of the maximum heap above which live sessions are spilled
+   * @param ttl            the idle time after which a session expires
+   * @param maxEntries     the maximum number of sessions the store will hold on the heap
+   * @param maxBytes       the maximum total weight of the sessions the store will hold on the heap
+   * @param liveWeight     the estimated weight, in bytes, of one live session
+   * @param offHeap        the off-heap tier, or null to keep serialized sessions on the heap.
+   *                       The tier is closed along with this store.
+   */
+  public LiveSessionStore(
+      Serializer<S> serializer,
+      boolean isLive,
+      double spillThreshold,
+      Duration ttl,
+      int maxEntries,
+      long maxBytes,
+      long liveWeight,
+      SlabSessionStore offHeap) {
+
+    if (!(spillThreshold > 0.0 && spillThreshold <= 1.0)) {
+      throw new IllegalArgumentException("spill threshold must be in (0, 1]: " + spillThreshold);
+    }
+
+    mySerializer = Objects.requireNonNull(serializer);
+    myIsLive = isLive;
+    mySpillThreshold = spillThreshold;
+    myOffHeap = offHeap;
+    myTtlNanos = ttl.toNanos();
+    myStore = new ConcurrentSessionStore<>(ttl, maxEntries, maxBytes,
+        o -> o instanceof byte[] ? ((byte[]) o).length : liveWeight);
+
+    mySpiller = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-spiller");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  private Logger logger() {
+    return LoggerFactory.getLogger(getClass());
+  }
+
+  /**
+   * Store a session, replacing any session already stored under the same key.
+   *
+   * @param key     the key
+   * @param session the session
+   * @throws IOException if the session must be serialized and can't be
+   */
+  public void put(UUID key, S session) throws IOException {
+
+    if (myIsLive && !myIsDraining.get()) {
+      if (isUnderPressure()) {
+        // Spill this session now and the rest in the background.
+        putSerialized(key, mySerializer.serialize(session));
+        mySpills.increment();
+        spillInBackground();
+      } else {
+        myStore.put(key, new Live<>(session, System.nanoTime() + myTtlNanos));
+      }
+    } else {
+      putSerialized(key, mySerializer.serialize(session));
+    }
+  }
+
+  private void putSerialized(UUID key, byte[] bytes) {
+    if (null == myOffHeap || !myOffHeap.put(key, bytes)) {
+      myStore.put(key, bytes);
+    }
+  }
+
+  /**
+   * Remove and return the session stored under the given key.
+   *
+   * @param key the key
+   * @return the session, or null if no live session exists
+   * @throws IOException if the session was serialized and can't be deserialized
+   */
+  @SuppressWarnings("unchecked")
+  public S take(UUID key) throws IOException {
+    Object o = myStore.take(key);
+    if (null == o && null != myOffHeap) {
+      o = myOffHeap.take(key);
+    }
+
+    if (o instanceof Live) {
+      return ((Live<S>) o).session;
+    } else if (o instanceof byte[]) {
+      return mySerializer.deserialize((byte[]) o);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Serialize every live session in place.
+   *
+   * <p>Sessions which fail to serialize are discarded.
+   */
+  @SuppressWarnings("unchecked")
+  public void spill() {
+    myStore.replaceAll((key, o) -> {
+      if (o instanceof Live) {
+        final Live<S> live = (Live<S>) o;
+        try {
+          final byte[] bytes = mySerializer.serialize(live.session);
+          mySpills.increment();
+          // Sessions which fit off the heap leave this store entirely, keeping the time they
+          // had left here.
+          final Duration left = Duration.ofNanos(live.expiresAt - System.nanoTime());
+          return null != myOffHeap && myOffHeap.put(key, bytes, left) ? null : bytes;
+        } catch (IOException e) {
+          logger().warn("discarding session " + key + ": " + e.getMessage());
+          return null;
+        }
+      } else {
+        return o;
+      }
+    });
+  }
+
+  /**
+   * Stop holding live sessions.
+   *
+   * <p>Every live session is spilled, and every session stored from now on is serialized.
+   */
+  public void drain() {
+    if (myIsDraining.compareAndSet(false, true)) {
+      logger().info("draining live sessions");
+      spill();
+    }
+  }
+
+  /**
+   * Return the number of sessions spilled from live to serialized form.
+   */
+  public long getSpills() {
+    return mySpills.sum();
+  }
+
+  /**
+   * Return the off-heap tier, or null if there is none.
+   */
+  public SlabSessionStore getOffHeap() {
+    return myOffHeap;
+  }
+
+  /**
+   * Return the on-heap store.
+   */
+  public ConcurrentSessionStore<UUID, Object> getStore() {
+    return myStore;
+  }
+
+  /**
+   * Return true if live sessions are being held.
+   */
+  public boolean isLive() {
+    return myIsLive && !myIsDraining.get();
+  }
+
+  /**
+   * Drain the store and release its threads.
+   */
+  @Override
+  public void close() throws IOException {
+    if (myIsLive) {
+      drain();
+    }
+    mySpiller.shutdownNow();
+    myStore.close();
+    if (null != myOffHeap) {
+      myOffHeap.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{live=" + isLive()
+        + ", spills=" + getSpills()
+        + ", store=" + myStore
+        + (null != myOffHeap ? ", offHeap=" + myOffHeap : "")
+        + "}";
+  }
+
+  // Heap in use counts garbage which hasn't been collected yet, so it runs high between
+  // collections.  What's left after the last collection of each heap pool is what the live
+  // sessions are really holding.  If the JVM doesn't report that, fall back to heap in use.
+  private static long heapRetained() {
+    long retained = 0;
+    boolean isReported = false;
+    for (MemoryPoolMXBean pool : HEAP_POOLS) {
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (null != usage) {
+        retained += usage.getUsed();
+        isReported = true;
+      }
+    }
+    final Runtime runtime = Runtime.getRuntime();
+    return isReported ? retained : runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private boolean isUnderPressure() {
+    return heapRetained() > Runtime.getRuntime().maxMemory() * mySpillThreshold;
+  }
+
+  private void spillInBackground() {
+    // One spill at a time is plenty; the request which noticed the pressure doesn't wait for it.
+    if (myIsSpilling.compareAndSet(false, true)) {
+      mySpiller.execute(() -> {
+        try {
+          logger().warn("heap use above " + mySpillThreshold + " of max, spilling live sessions");
+          spill();
+        } finally {
+          myIsSpilling.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * Converts sessions to and from their serialized form.
+   *
+   * @param <S> the type of the sessions
+   */
+  public interface Serializer<S> {
+
+    /**
+     * Restore a session from its serialized form.
+     *
+     * <p>Transient collaborators must be re-injected here, as the restored session
+     * has none of them.
+     */
+    S deserialize(byte[] bytes) throws IOException;
+
+    /**
+     * Serialize a session.
+     */
+    byte[] serialize(S session) throws IOException;
+  }
+
+  private static class Live<S> {
+
+    final long expiresAt; // in System.nanoTime() terms
+    final S session;
+
+    Live(S session, long expiresAt) {
+      this.session = session;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -11,7 +11,7 @@ import java.util.Base64;
 
 class Nonce implements Serializable {
 
-  private static final short BYTES = 16;
+  static final short BYTES = 16;
   private static final short CHARS = 24; // ceil(16 * 4 / 3), rounded up to block
   private static final String QUOTE = "\"";
 
@@ -44,6 +44,16 @@ class Nonce implements Serializable {
     this.bytes = Base64.getDecoder().decode(s.substring(1, s.length() - 1));
   }
 
+  /**
+   * Constructor.
+   */
+  Nonce(final byte[] bytes) {
+    if (BYTES != bytes.length) {
+      throw new IllegalArgumentException("nonce length must be " + BYTES);
+    }
+    this.bytes = Arrays.copyOf(bytes, bytes.length);
+  }
+
   public byte[] getBytes() {
     return Arrays.copyOf(bytes, bytes.length);
   }
@@ -0,0 +1,448 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The owner's key pairs, loaded once and indexed for lookup by {@link KeyType}
+ * and by RSA modulus size.
+ *
+ * <p>Keys come from PEM files (certificates, public keys and unencrypted private keys, in any
+ * mix), from a directory of such files, or from a PKCS#12 keystore.  Private keys are paired
+ * with their public halves when loaded, so lookups on the request path are map reads with no
+ * I/O or ASN.1 parsing.
+ *
+ * <p>If {@link #startWatching()} is called, the store watches its files and reloads them when
+ * they change.  A complete new set of keys is swapped in at once; if a reload fails, the old
+ * keys stay in place.
+ */
+public class OwnerKeyStore implements Closeable {
+
+  private static final String PKCS12 = "PKCS12";
+  // Wait for this long after the last change to a watched file before reloading,
+  // so that files being written aren't read half-finished.
+  private static final long SETTLE_MILLIS = 250;
+
+  private final Loader myLoader;
+  private final LongAdder myReloadFailures = new LongAdder();
+  private final LongAdder myReloads = new LongAdder();
+  private volatile Snapshot mySnapshot;
+  private final List<Path> myWatched;
+  private Thread myWatcher = null;
+  private WatchService myWatchService = null;
+
+  private OwnerKeyStore(Loader loader, List<Path> watched) throws IOException {
+    myLoader = loader;
+    myWatched = List.copyOf(watched);
+    mySnapshot = new Snapshot(loader.load());
+  }
+
+  /**
+   * Load every PEM file in a directory.
+   *
+   * <p>Files which hold no keys or certificates are ignored.
+   */
+  public static OwnerKeyStore ofDirectory(Path dir) throws IOException {
+    return new OwnerKeyStore(() -> {
+      try (Stream<Path> files = Files.list(dir)) {
+        return readPem(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+      }
+    }, List.of(dir));
+  }
+
+  /**
+   * Load the given PEM files.
+   */
+  public static OwnerKeyStore ofPemFiles(List<Path> files) throws IOException {
+    final List<Path> copy = List.copyOf(files);
+    return new OwnerKeyStore(() -> readPem(copy), copy);
+  }
+
+  /**
+   * Load PEM data from the given URLs.
+   *
+   * <p>URLs can't be watched, so these keys never change.
+   */
+  public static OwnerKeyStore ofPemUrls(List<URL> urls) throws IOException {
+    final List<URL> copy = List.copyOf(urls);
+    return new OwnerKeyStore(() -> {
+      final PemReader reader = new PemReader();
+      for (URL url : copy) {
+        try (InputStream in = url.openStream()) {
+          reader.read(in);
+        }
+      }
+      return reader.pair();
+    }, List.of());
+  }
+
+  /**
+   * Load every key entry in a PKCS#12 keystore.
+   *
+   * @param file     the keystore
+   * @param password the password of the keystore and its keys
+   */
+  public static OwnerKeyStore ofPkcs12(Path file, char[] password) throws IOException {
+    final char[] copy = null != password ? password.clone() : new char[0];
+    return new OwnerKeyStore(() -> readPkcs12(file, copy), List.of(file));
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(OwnerKeyStore.class);
+  }
+
+  private static List<KeyPair> readPem(List<Path> files) throws IOException {
+    final PemReader reader = new PemReader();
+    for (Path file : files) {
+      try (InputStream in = Files.newInputStream(file)) {
+        reader.read(in);
+      }
+    }
+    return reader.pair();
+  }
+
+  private static List<KeyPair> readPkcs12(Path file, char[] password) throws IOException {
+    final List<KeyPair> keyPairs = new ArrayList<>();
+    try (InputStream in = Files.newInputStream(file)) {
+      final KeyStore keyStore = KeyStore.getInstance(PKCS12);
+      keyStore.load(in, password);
+      for (String alias : Collections.list(keyStore.aliases())) {
+        if (keyStore.isKeyEntry(alias)) {
+          final Key key = keyStore.getKey(alias, password);
+          final Certificate certificate = keyStore.getCertificate(alias);
+          if (key instanceof PrivateKey && null != certificate) {
+            keyPairs.add(new KeyPair(certificate.getPublicKey(), (PrivateKey) key));
+          }
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    return keyPairs;
+  }
+
+  /**
+   * Return true if the given public key is the public half of one of this store's key pairs.
+   */
+  public boolean contains(PublicKey key) {
+    return null != key && mySnapshot.myPublicKeys.contains(ByteBuffer.wrap(key.getEncoded()));
+  }
+
+  /**
+   * Return the key pair of the given type, or null if there is none.
+   *
+   * <p>If there are several, the first one loaded is returned.
+   */
+  public KeyPair get(KeyType type) {
+    return mySnapshot.myByType.get(type);
+  }
+
+  /**
+   * Return an RSA key pair with the given modulus size, or null if there is none.
+   *
+   * <p>Key pairs with the F4 public exponent are preferred.
+   */
+  public KeyPair getRsa(int bits) {
+    return mySnapshot.myRsaByBits.get(bits);
+  }
+
+  /**
+   * Return the types of the keys in this store.
+   */
+  public Set<KeyType> getKeyTypes() {
+    return Collections.unmodifiableSet(mySnapshot.myByType.keySet());
+  }
+
+  /**
+   * Return the number of successful reloads.
+   */
+  public long getReloads() {
+    return myReloads.sum();
+  }
+
+  /**
+   * Return the number of failed reloads.
+   */
+  public long getReloadFailures() {
+    return myReloadFailures.sum();
+  }
+
+  /**
+   * Reload the keys from their source, replacing the current keys all at once.
+   *
+   * @throws IOException if no keys can be loaded, in which case the current keys remain
+   */
+  public void reload() throws IOException {
+    final Snapshot snapshot;
+    try {
+      snapshot = new Snapshot(myLoader.load());
+      if (snapshot.myByType.isEmpty()) {
+        // Most likely a file caught mid-replacement.  An owner with no keys is no owner at all.
+        throw new IOException("no owner keys found");
+      }
+    } catch (IOException | RuntimeException e) {
+      myReloadFailures.increment();
+      throw e;
+    }
+    mySnapshot = snapshot;
+    myReloads.increment();
+    logger().info("reloaded owner keys " + getKeyTypes());
+  }
+
+  /**
+   * Reload the keys whenever their files change.
+   *
+   * <p>Keys loaded from URLs are not watched.
+   */
+  public synchronized void startWatching() throws IOException {
+    if (null != myWatchService || myWatched.isEmpty()) {
+      return;
+    }
+
+    // Directories are watched themselves, files by way of their parents.
+    final Set<Path> dirs = new LinkedHashSet<>();
+    final Set<Path> names = new LinkedHashSet<>();
+    for (Path path : myWatched) {
+      final Path absolute = path.toAbsolutePath();
+      if (Files.isDirectory(absolute)) {
+        dirs.add(absolute);
+      } else {
+        dirs.add(absolute.getParent());
+        names.add(absolute.getFileName());
+      }
+    }
+
+    final WatchService watchService = dirs.iterator().next().getFileSystem().newWatchService();
+    for (Path dir : dirs) {
+      dir.register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    myWatchService = watchService;
+    myWatcher = new Thread(() -> watch(watchService, names),
+        getClass().getSimpleName() + "-watcher");
+    myWatcher.setDaemon(true);
+    myWatcher.start();
+  }
+
+  /**
+   * Stop watching for changes.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (null != myWatchService) {
+      myWatchService.close();
+      myWatchService = null;
+      myWatcher = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{types=" + getKeyTypes()
+        + ", rsaBits=" + mySnapshot.myRsaByBits.keySet()
+        + ", reloads=" + getReloads()
+        + ", reloadFailures=" + getReloadFailures()
+        + "}";
+  }
+
+  // Block for changes, wait for them to settle, then reload.
+  // Closing the watch service ends the loop.
+  private void watch(WatchService watchService, Set<Path> names) {
+    try {
+      for (;;) {
+        boolean isChanged = isRelevant(watchService.take(), names);
+        WatchKey key;
+        while (null != (key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS))) {
+          isChanged |= isRelevant(key, names);
+        }
+
+        if (isChanged) {
+          try {
+            reload();
+          } catch (IOException | RuntimeException e) {
+            logger().warn("keeping current owner keys, reload failed: " + e.getMessage());
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      // We're finished.
+    }
+  }
+
+  // True if the key's events touch a watched file.
+  // If no individual files are watched, every change in a watched directory counts.
+  private boolean isRelevant(WatchKey key, Set<Path> names) {
+    boolean isRelevant = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      isRelevant |= names.isEmpty()
+          || StandardWatchEventKinds.OVERFLOW == event.kind()
+          || names.contains((Path) event.context());
+    }
+    key.reset();
+    return isRelevant;
+  }
+
+  private interface Loader {
+
+    List<KeyPair> load() throws IOException;
+  }
+
+  // Gathers keys from PEM data and matches private keys to public keys.
+  private static class PemReader {
+
+    private final JcaPEMKeyConverter myConverter = new JcaPEMKeyConverter();
+    private final List<KeyPair> myKeyPairs = new ArrayList<>();
+    private final List<PrivateKey> myPrivateKeys = new ArrayList<>();
+    private final List<PublicKey> myPublicKeys = new ArrayList<>();
+
+    void read(InputStream in) throws IOException {
+      try (Reader reader = new InputStreamReader(in, StandardCharsets.US_ASCII);
+          PEMParser parser = new PEMParser(reader)) {
+
+        Object o;
+        while (null != (o = parser.readObject())) {
+          if (o instanceof PEMKeyPair) {
+            myKeyPairs.add(myConverter.getKeyPair((PEMKeyPair) o));
+          } else if (o instanceof PrivateKeyInfo) {
+            myPrivateKeys.add(myConverter.getPrivateKey((PrivateKeyInfo) o));
+          } else if (o instanceof SubjectPublicKeyInfo) {
+            myPublicKeys.add(myConverter.getPublicKey((SubjectPublicKeyInfo) o));
+          } else if (o instanceof X509CertificateHolder) {
+            myPublicKeys.add(myConverter.getPublicKey(
+                ((X509CertificateHolder) o).getSubjectPublicKeyInfo()));
+          }
+        }
+      }
+    }
+
+    // Unpaired keys are of no use to the owner, and are dropped.
+    List<KeyPair> pair() {
+      final List<KeyPair> keyPairs = new ArrayList<>(myKeyPairs);
+      final List<PublicKey> publicKeys = new ArrayList<>(myPublicKeys);
+      for (PrivateKey privateKey : myPrivateKeys) {
+        for (PublicKey publicKey : publicKeys) {
+          if (isPair(publicKey, privateKey)) {
+            keyPairs.add(new KeyPair(publicKey, privateKey));
+            publicKeys.remove(publicKey);
+            break;
+          }
+        }
+      }
+      return keyPairs;
+    }
+
+    // Keys match if a signature made with one verifies with the other.
+    // This is slow, but it's done at load time only and works for every algorithm.
+    private static boolean isPair(PublicKey publicKey, PrivateKey privateKey) {
+      // Algorithm names vary by provider ("EC" or "ECDSA"), so go by key class.
+      final String algorithm;
+      if (publicKey instanceof RSAKey && privateKey instanceof RSAKey) {
+        algorithm = "SHA256withRSA";
+      } else if (publicKey instanceof ECKey && privateKey instanceof ECKey) {
+        algorithm = "SHA256withECDSA";
+      } else {
+        return false;
+      }
+
+      try {
+        final byte[] challenge = OwnerKeyStore.class.getName().getBytes(StandardCharsets.US_ASCII);
+        final Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(privateKey);
+        signer.update(challenge);
+        final byte[] signature = signer.sign();
+
+        final Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(publicKey);
+        verifier.update(challenge);
+        return verifier.verify(signature);
+
+      } catch (GeneralSecurityException e) {
+        return false;
+      }
+    }
+  }
+
+  // One complete, immutable set of keys.
+  private static class Snapshot {
+
+    final Map<KeyType, KeyPair> myByType = new EnumMap<>(KeyType.class);
+    // Compared by encoding, since keys from different providers needn't be equal() otherwise.
+    final Set<ByteBuffer> myPublicKeys = new HashSet<>();
+    final Map<Integer, KeyPair> myRsaByBits = new HashMap<>();
+
+    Snapshot(List<KeyPair> keyPairs) {
+      for (KeyPair keyPair : keyPairs) {
+        final KeyType type;
+        try {
+          type = Keys.toType(keyPair.getPublic());
+        } catch (RuntimeException e) {
+          logger().warn("ignoring owner key: " + e.getMessage());
+          continue;
+        }
+        myByType.putIfAbsent(type, keyPair);
+        myPublicKeys.add(ByteBuffer.wrap(keyPair.getPublic().getEncoded()));
+
+        if (keyPair.getPublic() instanceof RSAPublicKey) {
+          final int bits = ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength();
+          final KeyPair current = myRsaByBits.get(bits);
+          if (null == current || (KeyType.RSA2048RESTR == type
+              && KeyType.RSA2048RESTR != Keys.toType(current.getPublic()))) {
+            myRsaByBits.put(bits, keyPair);
+          }
+        }
+      }
+    }
+  }
+}
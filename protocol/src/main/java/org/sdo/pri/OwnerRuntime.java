@@ -0,0 +1,265 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The collaborators an {@link OwnerService} needs but does not own.
+ *
+ * <p>Storage, keys, randomness, service info modules and so on are the same for every session
+ * an owner server runs.  A runtime holds them all, is built once at startup, and is shared by
+ * reference between sessions, so that starting or restoring a session is a single assignment.
+ * Runtimes are immutable; use {@link #toBuilder()} to derive a modified copy.
+ */
+public final class OwnerRuntime {
+
+  private final BiConsumer<OwnershipVoucher, Error> myDeviceErrorHandler;
+  private final URL myEpidServiceUrl;
+  private final Function<OwnershipVoucher, UUID> myG3Function;
+  private final HttpClient myHttpClient;
+  private final Function<KeyType, KeyPair> myKeysProvider;
+  private final OnDieCache myOnDieCache;
+  private final boolean myOnDieRevocations;
+  private final ObjectStorage<UUID, OwnershipVoucher> myOwnershipVoucherStorage;
+  private final Function<OwnershipVoucher, RendezvousInfo> myR3Function;
+  private final IntFunction<KeyPair> myRsaKeysProvider;
+  private final SecureRandom mySecureRandom;
+  private final List<ServiceInfoModule> myServiceInfoModules;
+  private final Consumer<UUID> myTransferHandler;
+
+  private OwnerRuntime(Builder builder) { // use Builder to create instances
+    myDeviceErrorHandler = builder.myDeviceErrorHandler;
+    myEpidServiceUrl = builder.myEpidServiceUrl;
+    myG3Function = builder.myG3Function;
+    myHttpClient = null != builder.myHttpClient
+        ? builder.myHttpClient
+        : HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    myKeysProvider = builder.myKeysProvider;
+    myOnDieCache = builder.myOnDieCache;
+    myOnDieRevocations = builder.myOnDieRevocations;
+    myOwnershipVoucherStorage = builder.myOwnershipVoucherStorage;
+    myR3Function = builder.myR3Function;
+    myRsaKeysProvider = builder.myRsaKeysProvider;
+    mySecureRandom = null != builder.mySecureRandom ? builder.mySecureRandom : new SecureRandom();
+    myServiceInfoModules = builder.myServiceInfoModules;
+    myTransferHandler = builder.myTransferHandler;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Return the runtime used by services which haven't been given one.
+   *
+   * <p>It has no keys, no voucher storage and no service info modules.
+   */
+  public static OwnerRuntime getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /**
+   * Return a builder initialized with this runtime's collaborators.
+   */
+  public Builder toBuilder() {
+    return new Builder()
+        .deviceErrorHandler(myDeviceErrorHandler)
+        .epidServiceUrl(myEpidServiceUrl)
+        .g3Function(myG3Function)
+        .httpClient(myHttpClient)
+        .keysProvider(myKeysProvider)
+        .onDieCache(myOnDieCache)
+        .onDieRevocations(myOnDieRevocations)
+        .ownershipVoucherStorage(myOwnershipVoucherStorage)
+        .r3Function(myR3Function)
+        .rsaKeysProvider(myRsaKeysProvider)
+        .secureRandom(mySecureRandom)
+        .serviceInfoModules(myServiceInfoModules)
+        .transferHandler(myTransferHandler);
+  }
+
+  /**
+   * Return the handler for errors reported by devices, or null to log them.
+   */
+  public BiConsumer<OwnershipVoucher, Error> getDeviceErrorHandler() {
+    return myDeviceErrorHandler;
+  }
+
+  public URL getEpidServiceUrl() {
+    return myEpidServiceUrl;
+  }
+
+  public Function<OwnershipVoucher, UUID> getG3Function() {
+    return myG3Function;
+  }
+
+  public HttpClient getHttpClient() {
+    return myHttpClient;
+  }
+
+  /**
+   * Return the owner's key pairs by type, or null if the owner has no keys.
+   *
+   * <p>The key pairs are shared by every session.  Callers must not destroy them.
+   */
+  public Function<KeyType, KeyPair> getKeysProvider() {
+    return myKeysProvider;
+  }
+
+  public OnDieCache getOnDieCache() {
+    return myOnDieCache;
+  }
+
+  public boolean getOnDieRevocations() {
+    return myOnDieRevocations;
+  }
+
+  /**
+   * Return the voucher storage, or null if vouchers can't be loaded or stored.
+   */
+  public ObjectStorage<UUID, OwnershipVoucher> getOwnershipVoucherStorage() {
+    return myOwnershipVoucherStorage;
+  }
+
+  public Function<OwnershipVoucher, RendezvousInfo> getR3Function() {
+    return myR3Function;
+  }
+
+  /**
+   * Return the owner's RSA key pairs by modulus size in bits, or null if keys of a given size
+   * must be found through the {@link #getKeysProvider() keys provider}.
+   */
+  public IntFunction<KeyPair> getRsaKeysProvider() {
+    return myRsaKeysProvider;
+  }
+
+  public SecureRandom getSecureRandom() {
+    return mySecureRandom;
+  }
+
+  /**
+   * Return the service info modules.  The list is unmodifiable.
+   */
+  public List<ServiceInfoModule> getServiceInfoModules() {
+    return myServiceInfoModules;
+  }
+
+  /**
+   * Return the handler told of each completed transfer.
+   *
+   * <p>It's given the GUID of the voucher the device arrived with, which may differ from the
+   * GUID of the voucher its TO2 generated.
+   */
+  public Consumer<UUID> getTransferHandler() {
+    return myTransferHandler;
+  }
+
+  public static class Builder {
+
+    private BiConsumer<OwnershipVoucher, Error> myDeviceErrorHandler = null;
+    private URL myEpidServiceUrl = EpidConstants.onlineEpidUrlDefault;
+    private Function<OwnershipVoucher, UUID> myG3Function = voucher -> null;
+    private HttpClient myHttpClient = null;
+    private Function<KeyType, KeyPair> myKeysProvider = null;
+    private OnDieCache myOnDieCache = null;
+    private boolean myOnDieRevocations = true;
+    private ObjectStorage<UUID, OwnershipVoucher> myOwnershipVoucherStorage = null;
+    private Function<OwnershipVoucher, RendezvousInfo> myR3Function = voucher -> null;
+    private IntFunction<KeyPair> myRsaKeysProvider = null;
+    private SecureRandom mySecureRandom = null;
+    private List<ServiceInfoModule> myServiceInfoModules = List.of();
+    private Consumer<UUID> myTransferHandler = guid -> { };
+
+    private Builder() {
+    }
+
+    public OwnerRuntime build() {
+      return new OwnerRuntime(this);
+    }
+
+    public Builder deviceErrorHandler(BiConsumer<OwnershipVoucher, Error> errorHandler) {
+      myDeviceErrorHandler = errorHandler;
+      return this;
+    }
+
+    public Builder epidServiceUrl(URL url) {
+      myEpidServiceUrl = Objects.requireNonNull(url);
+      return this;
+    }
+
+    public Builder g3Function(Function<OwnershipVoucher, UUID> g3Function) {
+      myG3Function = Objects.requireNonNull(g3Function);
+      return this;
+    }
+
+    public Builder httpClient(HttpClient httpClient) {
+      myHttpClient = Objects.requireNonNull(httpClient);
+      return this;
+    }
+
+    public Builder keysProvider(Function<KeyType, KeyPair> provider) {
+      myKeysProvider = provider;
+      return this;
+    }
+
+    public Builder onDieCache(OnDieCache onDieCache) {
+      myOnDieCache = onDieCache;
+      return this;
+    }
+
+    public Builder onDieRevocations(boolean onDieRevocations) {
+      myOnDieRevocations = onDieRevocations;
+      return this;
+    }
+
+    public Builder ownershipVoucherStorage(ObjectStorage<UUID, OwnershipVoucher> storage) {
+      myOwnershipVoucherStorage = storage;
+      return this;
+    }
+
+    public Builder r3Function(Function<OwnershipVoucher, RendezvousInfo> r3Function) {
+      myR3Function = Objects.requireNonNull(r3Function);
+      return this;
+    }
+
+    public Builder rsaKeysProvider(IntFunction<KeyPair> provider) {
+      myRsaKeysProvider = provider;
+      return this;
+    }
+
+    public Builder secureRandom(SecureRandom secureRandom) {
+      mySecureRandom = Objects.requireNonNull(secureRandom);
+      return this;
+    }
+
+    // The modules are copied here, once, rather than by every session.
+    public Builder serviceInfoModules(Collection<ServiceInfoModule> serviceInfoModules) {
+      myServiceInfoModules = List.copyOf(serviceInfoModules);
+      return this;
+    }
+
+    public Builder transferHandler(Consumer<UUID> transferHandler) {
+      myTransferHandler = Objects.requireNonNull(transferHandler);
+      return this;
+    }
+  }
+
+  // Built on first use, as it creates an HttpClient and a SecureRandom.
+  private static class DefaultHolder {
+
+    static final OwnerRuntime DEFAULT = builder().build();
+  }
+}
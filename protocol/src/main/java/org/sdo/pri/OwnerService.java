@@ -8,6 +8,7 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.lang.Character;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -30,11 +31,12 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.UUID;
 import java.util.function.BiConsumer;
@@ -49,33 +51,30 @@ import org.slf4j.LoggerFactory;
 
 public class OwnerService implements ProtocolService, Serializable {
 
+  /**
+   * The protocol version and message type which start a session with this service.
+   */
+  public static final Entry<Version, MessageType> HELLO =
+      Map.entry(Version.VERSION_1_13, MessageType.TO2_HELLO_DEVICE);
+
   private static final int TWO_K = 1024 * 2;
   private static final int THREE_K = 1024 * 3;
 
   private ProtocolCipher myCipher = null;
   private CipherType myCipherType = null;
-  private transient BiConsumer<OwnershipVoucher, Error> myDeviceErrorHandler = this::handleError;
   private EncryptedMessageCodec myEncryptedMessageCodec = null;
-  private URL myEpidServiceUrl = EpidConstants.onlineEpidUrlDefault;
   private UUID myG3 = null;
-  private transient Function<OwnershipVoucher, UUID> myG3Function = this::defaultG3;
-  private transient HttpClient myHttpClient = HttpClient.newBuilder()
-      .version(HttpClient.Version.HTTP_1_1).build();
   private boolean myIsDone = false;
   private KeyExchange myKeyExchange = null;
   private Nonce myN6 = null;
   private Nonce myN7 = null;
   private Integer myNn = null;
-  private OwnershipVoucher113 myOwnershipVoucher = null;
-  private transient ObjectStorage<UUID, OwnershipVoucher> myOwnershipVoucherStorage = null;
+  private transient OwnershipVoucher113 myOwnershipVoucher = null;
+  private UUID myOwnershipVoucherId = null;
   private RendezvousInfo myR3 = null;
-  private transient Function<OwnershipVoucher, RendezvousInfo> myR3Function = this::defaultR3;
-  private transient SecureRandom mySecureRandom = new SecureRandom();
-  private Iterator<Supplier<ServiceInfo>> myServiceInfoIterator = null;
-  private transient Collection<ServiceInfoModule> myServiceInfoModules = List.of();
-  private transient Function<KeyType, KeyPair> myKeysProvider = null;
-  private transient OnDieCache onDieCache = null;
-  private transient boolean onDieRevocations = true;
+  private transient OwnerRuntime myRuntime = OwnerRuntime.getDefault();
+  private Integer myServiceInfoCursor = null;
+  private transient Iterator<Supplier<ServiceInfo>> myServiceInfoIterator = null;
 
   @Override
   public boolean isDone() {
@@ -84,100 +83,123 @@ public class OwnerService implements ProtocolService, Serializable {
 
   @Override
   public boolean isHello(ProtocolMessage message) {
-    return Version.VERSION_1_13 == message.getVersion()
-        && MessageType.TO2_HELLO_DEVICE == message.getType();
+    return HELLO.getKey() == message.getVersion() && HELLO.getValue() == message.getType();
+  }
+
+  /**
+   * Return the runtime context this service resolves its collaborators from.
+   */
+  public OwnerRuntime getRuntime() {
+    return myRuntime;
   }
 
+  /**
+   * Set the runtime context this service resolves its collaborators from.
+   *
+   * <p>Runtimes are immutable and meant to be shared by every session, so this is all a new
+   * or restored service needs.
+   */
+  public void setRuntime(OwnerRuntime runtime) {
+    myRuntime = Objects.requireNonNull(runtime);
+  }
+
+  // The single-collaborator setters below each derive a new runtime from the current one.
+  // They're convenient for tests and one-off services; servers should prefer setRuntime.
+
   public void setDeviceErrorHandler(BiConsumer<OwnershipVoucher, Error> errorHandler) {
-    myDeviceErrorHandler = Objects.requireNonNull(errorHandler);
+    myRuntime = myRuntime.toBuilder()
+        .deviceErrorHandler(Objects.requireNonNull(errorHandler)).build();
   }
 
   public void setEpidServiceUrl(URL url) {
-    myEpidServiceUrl = Objects.requireNonNull(url);
+    myRuntime = myRuntime.toBuilder().epidServiceUrl(url).build();
   }
 
   public void setG3Function(Function<OwnershipVoucher, UUID> g3Function) {
-    myG3Function = Objects.requireNonNull(g3Function);
+    myRuntime = myRuntime.toBuilder().g3Function(g3Function).build();
   }
 
   public void setHttpClient(HttpClient httpClient) {
-    myHttpClient = Objects.requireNonNull(httpClient);
+    myRuntime = myRuntime.toBuilder().httpClient(httpClient).build();
   }
 
   public void setKeysProvider(Function<KeyType, KeyPair> provider) {
-    myKeysProvider = Objects.requireNonNull(provider);
+    myRuntime = myRuntime.toBuilder().keysProvider(Objects.requireNonNull(provider)).build();
   }
 
   public void setOwnershipVoucherStorage(ObjectStorage<UUID, OwnershipVoucher> storage) {
-    this.myOwnershipVoucherStorage = Objects.requireNonNull(storage);
+    myRuntime = myRuntime.toBuilder()
+        .ownershipVoucherStorage(Objects.requireNonNull(storage)).build();
   }
 
   public void setR3Function(Function<OwnershipVoucher, RendezvousInfo> r3Function) {
-    myR3Function = Objects.requireNonNull(r3Function);
+    myRuntime = myRuntime.toBuilder().r3Function(r3Function).build();
   }
 
   public void setSecureRandom(SecureRandom secureRandom) {
-    this.mySecureRandom = Objects.requireNonNull(secureRandom);
+    myRuntime = myRuntime.toBuilder().secureRandom(secureRandom).build();
   }
 
   public void setServiceInfoModules(Collection<ServiceInfoModule> serviceInfoModules) {
-    myServiceInfoModules =
-        Collections.unmodifiableList(List.copyOf(Objects.requireNonNull(serviceInfoModules)));
+    myRuntime = myRuntime.toBuilder()
+        .serviceInfoModules(Objects.requireNonNull(serviceInfoModules)).build();
   }
 
   public void setOnDieCache(OnDieCache onDieCache) {
-    this.onDieCache = Objects.requireNonNull(onDieCache);
+    myRuntime = myRuntime.toBuilder().onDieCache(Objects.requireNonNull(onDieCache)).build();
   }
 
   public void setOnDieRevocations(boolean onDieRevocations) {
-    this.onDieRevocations = onDieRevocations;
+    myRuntime = myRuntime.toBuilder().onDieRevocations(onDieRevocations).build();
   }
 
   private KeyExchange buildAsym2KKeyExchange() {
-    KeyPair keys = myKeysProvider.apply(KeyType.RSA2048RESTR);
+    KeyPair keys = myRuntime.getKeysProvider().apply(KeyType.RSA2048RESTR);
     if (null == keys) {
       // If we can't get a restricted (exponent = F4) key pair, we might still be able
       // to get a short unrestricted keypair
-      keys = myKeysProvider.apply(KeyType.RSA_UR);
-      if (null != keys) {
-        // RSA_UR doesn't strictly define key length, so we have to check if it's the right length
-        RSAPublicKey rsaKey = (RSAPublicKey) keys.getPublic();
-        if (TWO_K != rsaKey.getModulus().bitLength()) {
-          // no good, toss this result out
-          keys = null;
-        }
-      }
+      keys = getRsaKeys(TWO_K);
     }
 
     if (null != keys) { // we found a usable keypair
-      return new AsymmetricKeyExchange.Owner(keys, mySecureRandom);
+      return new AsymmetricKeyExchange.Owner(keys, myRuntime.getSecureRandom());
     } else {
       return null;
     }
   }
 
   private KeyExchange buildAsym3KKeyExchange() {
-    KeyPair keys = myKeysProvider.apply(KeyType.RSA_UR);
+    final KeyPair keys = getRsaKeys(THREE_K);
+
+    if (null != keys) { // we found a usable keypair
+      return new AsymmetricKeyExchange.Owner(keys, myRuntime.getSecureRandom());
+    } else {
+      return null;
+    }
+  }
+
+  // Find an RSA key pair with the given modulus size.
+  private KeyPair getRsaKeys(int bits) {
+    if (null != myRuntime.getRsaKeysProvider()) {
+      return myRuntime.getRsaKeysProvider().apply(bits);
+    }
+
+    KeyPair keys = myRuntime.getKeysProvider().apply(KeyType.RSA_UR);
     if (null != keys) {
       // RSA_UR doesn't strictly define key length, so we have to check if it's the right length
       RSAPublicKey rsaKey = (RSAPublicKey) keys.getPublic();
-      if (THREE_K != rsaKey.getModulus().bitLength()) {
+      if (bits != rsaKey.getModulus().bitLength()) {
         // no good, toss this result out
         keys = null;
       }
     }
-
-    if (null != keys) { // we found a usable keypair
-      return new AsymmetricKeyExchange.Owner(keys, mySecureRandom);
-    } else {
-      return null;
-    }
+    return keys;
   }
 
   private EpidLib buildEpidLib() throws URISyntaxException {
     return new EpidLib(
-        new EpidOnlineMaterial(myEpidServiceUrl.toURI(), myHttpClient),
-        new EpidOnlineVerifier(myEpidServiceUrl.toURI(), myHttpClient));
+        new EpidOnlineMaterial(myRuntime.getEpidServiceUrl().toURI(), myRuntime.getHttpClient()),
+        new EpidOnlineVerifier(myRuntime.getEpidServiceUrl().toURI(), myRuntime.getHttpClient()));
   }
 
   private <T> T decipherAndDecode(ProtocolMessage in, ProtocolDecoder<T> decoder) {
@@ -238,14 +260,6 @@ public class OwnerService implements ProtocolService, Serializable {
     return decodeMessageBody(in.getVersion(), in.getType(), in.getBody(), decoder);
   }
 
-  private UUID defaultG3(OwnershipVoucher voucher) {
-    return null;
-  }
-
-  private RendezvousInfo defaultR3(OwnershipVoucher voucher) {
-    return null;
-  }
-
   private EncodedProtocolMessage encipherAndEncode(EncodedProtocolMessage in) {
 
     if (null == myCipher || null == myEncryptedMessageCodec) {
@@ -302,7 +316,7 @@ public class OwnerService implements ProtocolService, Serializable {
   }
 
   private Nonce initN6() {
-    myN6 = new Nonce(mySecureRandom);
+    myN6 = new Nonce(myRuntime.getSecureRandom());
     return myN6;
   }
 
@@ -323,6 +337,50 @@ public class OwnerService implements ProtocolService, Serializable {
     return LoggerFactory.getLogger(getClass());
   }
 
+  // Sessions restored from a snapshot carry only the voucher's UUID,
+  // so the voucher itself is reloaded from storage on first use.
+  private Optional<OwnershipVoucher113> findOwnershipVoucher() {
+    if (null == myOwnershipVoucher
+        && null != myOwnershipVoucherId
+        && null != myRuntime.getOwnershipVoucherStorage()) {
+
+      myRuntime.getOwnershipVoucherStorage().load(myOwnershipVoucherId)
+          .filter(OwnershipVoucher113.class::isInstance)
+          .map(OwnershipVoucher113.class::cast)
+          .ifPresent(ov -> myOwnershipVoucher = ov);
+    }
+    return Optional.ofNullable(myOwnershipVoucher);
+  }
+
+  // The voucher this session is transferring.  Fails the session if TO2.HelloDevice hasn't
+  // named one yet, or a restored session's voucher has since left storage.
+  private OwnershipVoucher113 getOwnershipVoucher(MessageType cause) {
+    return findOwnershipVoucher().orElseThrow(() -> null == myOwnershipVoucherId
+        ? fail(ErrorCode.MessageRefused, cause,
+            loadResourceBundle().getString("ERR_INVALID_STATE"))
+        : fail(ErrorCode.ResourceNotFound, cause, MessageFormat.format(
+            loadResourceBundle().getString("ERR_PROXY_NOT_FOUND"), myOwnershipVoucherId)));
+  }
+
+  private Iterable<Supplier<ServiceInfo>> marshalServiceInfo(MessageType cause) {
+    final List<ServiceInfoSource> serviceInfoSources = new ArrayList<>();
+    final List<ServiceInfoMultiSource> serviceInfoMultiSources = new ArrayList<>();
+    for (Object serviceInfoObject : myRuntime.getServiceInfoModules()) {
+
+      if (serviceInfoObject instanceof ServiceInfoSource) {
+        serviceInfoSources.add((ServiceInfoSource) serviceInfoObject);
+
+      } else if (serviceInfoObject instanceof ServiceInfoMultiSource) {
+        serviceInfoMultiSources.add((ServiceInfoMultiSource) serviceInfoObject);
+      }
+    }
+
+    final ServiceInfoMarshaller marshaller = new ServiceInfoMarshaller();
+    marshaller.setSources(serviceInfoSources);
+    marshaller.setMultiSources(serviceInfoMultiSources);
+    return marshaller.marshal(getOwnershipVoucher(cause).getUuid());
+  }
+
   @Override
   public ProtocolMessage next(ProtocolMessage in) throws ProtocolException {
 
@@ -340,43 +398,48 @@ public class OwnerService implements ProtocolService, Serializable {
           MessageFormat.format(format, in.getVersion()));
     }
 
-    switch (in.getType()) {
-      case TO2_HELLO_DEVICE:
-        return next(decodeMessageBody(in, new To2HelloDeviceCodec().decoder()::apply));
+    try {
+      switch (in.getType()) {
+        case TO2_HELLO_DEVICE:
+          return next(decodeMessageBody(in, new To2HelloDeviceCodec().decoder()::apply));
 
-      case TO2_GET_OP_NEXT_ENTRY:
-        return next(decodeMessageBody(in, new To2GetOpNextEntryCodec().decoder()::apply));
+        case TO2_GET_OP_NEXT_ENTRY:
+          return next(decodeMessageBody(in, new To2GetOpNextEntryCodec().decoder()::apply));
 
-      case TO2_PROVE_DEVICE:
-        final SignatureBlock sb = decodeMessageBody(in, new SignatureBlockCodec.Decoder(null));
-        final To2ProveDevice to2ProveDevice = decodeMessageBody(
-            in.getVersion(),
-            in.getType(),
-            sb.getBo(),
-            new To2ProveDeviceCodec().decoder()::apply);
-        return encipherAndEncode(next(sb, to2ProveDevice));
+        case TO2_PROVE_DEVICE:
+          final SignatureBlock sb = decodeMessageBody(in, new SignatureBlockCodec.Decoder(null));
+          final To2ProveDevice to2ProveDevice = decodeMessageBody(
+              in.getVersion(),
+              in.getType(),
+              sb.getBo(),
+              new To2ProveDeviceCodec().decoder()::apply);
+          return encipherAndEncode(next(sb, to2ProveDevice));
 
-      case TO2_NEXT_DEVICE_SERVICE_INFO:
-        return encipherAndEncode(
-            next(decipherAndDecode(in, new To2NextDeviceServiceInfoCodec().decoder()::apply)));
+        case TO2_NEXT_DEVICE_SERVICE_INFO:
+          return encipherAndEncode(
+              next(decipherAndDecode(in, new To2NextDeviceServiceInfoCodec().decoder()::apply)));
 
-      case TO2_GET_NEXT_OWNER_SERVICE_INFO:
-        return encipherAndEncode(
-            next(decipherAndDecode(in, new To2GetNextOwnerServiceInfoCodec().decoder()::apply)));
+        case TO2_GET_NEXT_OWNER_SERVICE_INFO:
+          return encipherAndEncode(
+              next(decipherAndDecode(in, new To2GetNextOwnerServiceInfoCodec().decoder()::apply)));
 
-      case TO2_DONE:
-        return encipherAndEncode(
-            next(decipherAndDecode(in, new To2DoneCodec().decoder()::apply)));
+        case TO2_DONE:
+          return encipherAndEncode(
+              next(decipherAndDecode(in, new To2DoneCodec().decoder()::apply)));
 
-      case ERROR:
-        return next(decodeMessageBody(in, new ErrorCodec().decoder()::apply));
+        case ERROR:
+          return next(decodeMessageBody(in, new ErrorCodec().decoder()::apply));
 
-      default:
-        final String format = loadResourceBundle().getString("INVALID_MESSAGE_TYPE");
-        throw fail(
-            ErrorCode.MessageRefused,
-            in.getType(),
-            MessageFormat.format(format, in.getType()));
+        default:
+          final String format = loadResourceBundle().getString("INVALID_MESSAGE_TYPE");
+          throw fail(
+              ErrorCode.MessageRefused,
+              in.getType(),
+              MessageFormat.format(format, in.getType()));
+      }
+    } catch (UncheckedIOException e) {
+      // Vouchers decode their chains and entries lazily, so malformed ones only surface here.
+      throw fail(ErrorCode.SyntaxError, in.getType(), e.getMessage());
     }
   }
 
@@ -384,13 +447,14 @@ public class OwnerService implements ProtocolService, Serializable {
 
     // This is the first time we see the voucher UUID, so try and load the voucher
     final UUID g2 = to2HelloDevice.getG2();
-    if (null != myOwnershipVoucherStorage) {
-      var ov = myOwnershipVoucherStorage.load(g2).orElseThrow(() -> fail(
+    if (null != myRuntime.getOwnershipVoucherStorage()) {
+      var ov = myRuntime.getOwnershipVoucherStorage().load(g2).orElseThrow(() -> fail(
           ErrorCode.ResourceNotFound,
           to2HelloDevice.getType(),
           MessageFormat.format(loadResourceBundle().getString("ERR_PROXY_NOT_FOUND"), g2)));
       if (ov instanceof OwnershipVoucher113) {
         myOwnershipVoucher = (OwnershipVoucher113) ov;
+        myOwnershipVoucherId = g2;
       } else {
         throw fail(
             ErrorCode.InvalidOwnershipProxy,
@@ -403,6 +467,7 @@ public class OwnerService implements ProtocolService, Serializable {
           to2HelloDevice.getType(),
           loadResourceBundle().getString("ERR_PROXY_STORAGE_NULL"));
     }
+    final OwnershipVoucher113 voucher = myOwnershipVoucher;
 
     // Initialize the key exchange, which won't be performed until step 44 but we must pass the
     // first exchange message here, as xA.
@@ -416,19 +481,19 @@ public class OwnerService implements ProtocolService, Serializable {
         break;
 
       case DHKEXid14:
-        myKeyExchange = new DiffieHellmanKeyExchange.Group14(mySecureRandom);
+        myKeyExchange = new DiffieHellmanKeyExchange.Group14(myRuntime.getSecureRandom());
         break;
 
       case DHKEXid15:
-        myKeyExchange = new DiffieHellmanKeyExchange.Group15(mySecureRandom);
+        myKeyExchange = new DiffieHellmanKeyExchange.Group15(myRuntime.getSecureRandom());
         break;
 
       case ECDH:
-        myKeyExchange = new EcdhKeyExchange.P256.Owner(mySecureRandom);
+        myKeyExchange = new EcdhKeyExchange.P256.Owner(myRuntime.getSecureRandom());
         break;
 
       case ECDH384:
-        myKeyExchange = new EcdhKeyExchange.P384.Owner(mySecureRandom);
+        myKeyExchange = new EcdhKeyExchange.P384.Owner(myRuntime.getSecureRandom());
         break;
 
       default:
@@ -443,10 +508,14 @@ public class OwnerService implements ProtocolService, Serializable {
 
     final To2ProveOpHdr to2ProveOpHdr;
     try {
+      // The voucher's own header and HMAC text is passed through, not re-encoded, so the
+      // device hashes exactly what the voucher was made from.
       to2ProveOpHdr = new To2ProveOpHdr(
-          myOwnershipVoucher.getEn().size(),
-          myOwnershipVoucher.getOh(),
-          myOwnershipVoucher.getHmac(),
+          voucher.getEn().size(),
+          voucher.getOh(),
+          voucher.getOhText(),
+          voucher.getHmac(),
+          voucher.getHmacText(),
           to2HelloDevice.getN5(),
           initN6(),
           new SigInfoResponder(buildEpidLib()).apply(to2HelloDevice.getEa()),
@@ -458,19 +527,21 @@ public class OwnerService implements ProtocolService, Serializable {
           e.getMessage());
     }
 
-    if (null == myKeysProvider) {
+    if (null == myRuntime.getKeysProvider()) {
       throw fail(ErrorCode.MessageRefused,
           to2HelloDevice.getType(),
           loadResourceBundle().getString("ERR_INVALID_STATE"));
     }
 
-    KeyType voucherKeyType = Keys.toType(myOwnershipVoucher.getOh().getPk());
+    KeyType voucherKeyType = Keys.toType(voucher.getOh().getPk());
     final SignatureBlock signatureBlock;
-    try (KeyPairCloser keys = new KeyPairCloser(myKeysProvider.apply(voucherKeyType))) {
+    // The runtime's keys are shared by every session, and mustn't be destroyed after use.
+    final KeyPair keys = myRuntime.getKeysProvider().apply(voucherKeyType);
+    try {
       String bo = encodeToString(to2ProveOpHdr, new To2ProveOpHdrCodec().encoder()::apply);
       signatureBlock = new SignatureBlock(
           bo,
-          myOwnershipVoucher.getCurrentOwnerKey(),
+          voucher.getCurrentOwnerKey(),
           Signatures.sign(bo, keys.getPrivate()));
 
     } catch (GeneralSecurityException | IOException e) {
@@ -480,7 +551,7 @@ public class OwnerService implements ProtocolService, Serializable {
     final String responseBody = encodeToString(
         signatureBlock,
         new SignatureBlockCodec.Encoder(
-            new PublicKeyCodec.Encoder(myOwnershipVoucher.getOh().getPe())));
+            new PublicKeyCodec.Encoder(voucher.getOh().getPe())));
 
     return EncodedProtocolMessage.getInstance(
         to2ProveOpHdr.getVersion(), to2ProveOpHdr.getType(), responseBody);
@@ -489,14 +560,17 @@ public class OwnerService implements ProtocolService, Serializable {
   private EncodedProtocolMessage next(To2GetOpNextEntry to2GetOpNextEntry)
       throws ProtocolException {
 
+    final OwnershipVoucher113 voucher = getOwnershipVoucher(to2GetOpNextEntry.getType());
     final Integer enn = to2GetOpNextEntry.getEnn();
-    final To2OpNextEntry to2OpNextEntry =
-        new To2OpNextEntry(enn, myOwnershipVoucher.getEn().get(enn));
+    final String eniText = voucher.getEnText(enn);
+    final To2OpNextEntry to2OpNextEntry = null != eniText
+        ? new To2OpNextEntry(enn, eniText)
+        : new To2OpNextEntry(enn, voucher.getEn().get(enn));
     final String responseBody = encodeToString(
         to2OpNextEntry,
         new To2OpNextEntryCodec.Encoder(
             new SignatureBlockCodec.Encoder(
-                new PublicKeyCodec.Encoder(myOwnershipVoucher.getOh().getPe()))));
+                new PublicKeyCodec.Encoder(voucher.getOh().getPe()))));
 
     return EncodedProtocolMessage.getInstance(
         to2OpNextEntry.getVersion(), to2OpNextEntry.getType(), responseBody);
@@ -506,11 +580,12 @@ public class OwnerService implements ProtocolService, Serializable {
       To2ProveDevice to2ProveDevice)
       throws ProtocolException {
 
+    final OwnershipVoucher113 voucher = getOwnershipVoucher(to2ProveDevice.getType());
     PublicKey devicePk = signatureBlock.getPk();
 
     // 1.13a 5.6.6 non-epid device keys must result in a null TO2.ProveDevice.pk
     if (null == devicePk) {
-      CertPath certPath = myOwnershipVoucher.getDc();
+      CertPath certPath = voucher.getDc();
 
       if (null != certPath) {
         List<? extends Certificate> certs = certPath.getCertificates();
@@ -599,9 +674,9 @@ public class OwnerService implements ProtocolService, Serializable {
         isVerified = OnDieSignatureValidator.validateWithRevocations(
                 signatureBlock.getBo(),
                 signatureBlock.getSg(),
-                myOwnershipVoucher.getDc(),
-                onDieCache,
-                this.onDieRevocations);
+                voucher.getDc(),
+                myRuntime.getOnDieCache(),
+                myRuntime.getOnDieRevocations());
       } catch (CertificateException ex) {
         throw fail(ErrorCode.InternalError, to2ProveDevice.getType(), ex.getMessage());
       }
@@ -642,10 +717,10 @@ public class OwnerService implements ProtocolService, Serializable {
           cryptoLevel.getSekDerivationFunction().apply(Buffers.unwrap(eraser.getBuf()));
       switch (myCipherType.getMode()) {
         case CTR:
-          myCipher = new CtrCipher(sek, mySecureRandom);
+          myCipher = new CtrCipher(sek, myRuntime.getSecureRandom());
           break;
         case CBC:
-          myCipher = new CbcCipher(sek, mySecureRandom);
+          myCipher = new CbcCipher(sek, myRuntime.getSecureRandom());
           break;
         default:
           throw fail(
@@ -687,10 +762,10 @@ public class OwnerService implements ProtocolService, Serializable {
     }
 
     final PreServiceInfo preServiceInfo = new PreServiceInfo();
-    myServiceInfoModules.stream()
+    myRuntime.getServiceInfoModules().stream()
         .filter(o -> o instanceof PreServiceInfoMultiSource)
         .map(PreServiceInfoMultiSource.class::cast)
-        .map(o -> o.getPreServiceInfo(myOwnershipVoucher.getUuid()))
+        .map(o -> o.getPreServiceInfo(voucher.getUuid()))
         .forEach(preServiceInfo::addAll);
     final To2GetNextDeviceServiceInfo getNextDeviceServiceInfo =
         new To2GetNextDeviceServiceInfo(0, preServiceInfo);
@@ -705,7 +780,8 @@ public class OwnerService implements ProtocolService, Serializable {
   private EncodedProtocolMessage next(To2NextDeviceServiceInfo to2NextDeviceServiceInfo)
       throws ProtocolException {
 
-    if (null == myOwnershipVoucher || null == myNn) {
+    final OwnershipVoucher113 voucher = getOwnershipVoucher(to2NextDeviceServiceInfo.getType());
+    if (null == myNn) {
       throw fail(
           ErrorCode.MessageRefused,
           to2NextDeviceServiceInfo.getType(),
@@ -713,7 +789,7 @@ public class OwnerService implements ProtocolService, Serializable {
     }
 
     // dispatch the service info to interested modules
-    for (Object serviceInfoObject : myServiceInfoModules) {
+    for (Object serviceInfoObject : myRuntime.getServiceInfoModules()) {
 
       if (serviceInfoObject instanceof ServiceInfoSink) {
         ServiceInfoSink sink = (ServiceInfoSink) serviceInfoObject;
@@ -726,7 +802,7 @@ public class OwnerService implements ProtocolService, Serializable {
         ServiceInfoMultiSink sink = (ServiceInfoMultiSink) serviceInfoObject;
 
         for (Entry<CharSequence, CharSequence> entry : to2NextDeviceServiceInfo.getDsi()) {
-          sink.putServiceInfo(myOwnershipVoucher.getUuid(), entry);
+          sink.putServiceInfo(voucher.getUuid(), entry);
         }
       }
     }
@@ -748,32 +824,33 @@ public class OwnerService implements ProtocolService, Serializable {
       // If the list is complete, move on to TO2.SetupDevice
       myNn = null; // we don't need this anymore
 
-      if (null == myN7 || null == myOwnershipVoucher) {
+      if (null == myN7) {
         throw fail(
             ErrorCode.MessageRefused,
             to2NextDeviceServiceInfo.getType(),
             loadResourceBundle().getString("ERR_INVALID_STATE"));
       }
 
-      myR3 = myR3Function.apply(myOwnershipVoucher);
+      myR3 = myRuntime.getR3Function().apply(voucher);
       if (null == myR3) { // null means 'reuse previous'
-        myR3 = myOwnershipVoucher.getOh().getR();
+        myR3 = voucher.getOh().getR();
       }
 
-      myG3 = myG3Function.apply(myOwnershipVoucher);
+      myG3 = myRuntime.getG3Function().apply(voucher);
       if (null == myG3) {
-        myG3 = myOwnershipVoucher.getUuid();
+        myG3 = voucher.getUuid();
       }
 
       final String nohBody = encodeToString(
           new To2SetupDeviceNoh(myR3, myG3, myN7),
           new To2SetupDeviceNohCodec().encoder()::apply);
-      KeyType voucherKeyType = Keys.toType(myOwnershipVoucher.getOh().getPk());
+      KeyType voucherKeyType = Keys.toType(voucher.getOh().getPk());
       final SignatureBlock noh;
-      try (KeyPairCloser keys = new KeyPairCloser(myKeysProvider.apply(voucherKeyType))) {
+      final KeyPair keys = myRuntime.getKeysProvider().apply(voucherKeyType);
+      try {
         noh = new SignatureBlock(
             nohBody,
-            myOwnershipVoucher.getCurrentOwnerKey(),
+            voucher.getCurrentOwnerKey(),
             Signatures.sign(nohBody, keys.getPrivate()));
 
       } catch (GeneralSecurityException | IOException e) {
@@ -782,36 +859,22 @@ public class OwnerService implements ProtocolService, Serializable {
 
       // Compute osinn, which requires knowing how many service info messages will be sent.
       // As of this writing, the only way to get this number is to count them.
-      final List<ServiceInfoSource> serviceInfoSources = new ArrayList<>();
-      final List<ServiceInfoMultiSource> serviceInfoMultiSources = new ArrayList<>();
-      for (Object serviceInfoObject : myServiceInfoModules) {
-
-        if (serviceInfoObject instanceof ServiceInfoSource) {
-          serviceInfoSources.add((ServiceInfoSource) serviceInfoObject);
-
-        } else if (serviceInfoObject instanceof ServiceInfoMultiSource) {
-          serviceInfoMultiSources.add((ServiceInfoMultiSource) serviceInfoObject);
-        }
-      }
-
-      final ServiceInfoMarshaller marshaller = new ServiceInfoMarshaller();
-      marshaller.setSources(serviceInfoSources);
-      marshaller.setMultiSources(serviceInfoMultiSources);
       Iterable<Supplier<ServiceInfo>> serviceInfos =
-          marshaller.marshal(myOwnershipVoucher.getUuid());
+          marshalServiceInfo(to2NextDeviceServiceInfo.getType());
 
       int osinn = 0;
       for (Supplier<?> s : serviceInfos) {
         osinn++;
       }
       myServiceInfoIterator = serviceInfos.iterator();
+      myServiceInfoCursor = 0;
 
       final To2SetupDevice to2SetupDevice = new To2SetupDevice(osinn, noh);
       final String responseBody = encodeToString(
           to2SetupDevice,
           new To2SetupDeviceCodec.Encoder(
               new SignatureBlockCodec.Encoder(
-                  new PublicKeyCodec.Encoder(myOwnershipVoucher.getOh().getPe()))));
+                  new PublicKeyCodec.Encoder(voucher.getOh().getPe()))));
 
       return EncodedProtocolMessage.getInstance(
           to2SetupDevice.getVersion(), to2SetupDevice.getType(), responseBody);
@@ -822,6 +885,16 @@ public class OwnerService implements ProtocolService, Serializable {
   private EncodedProtocolMessage next(To2GetNextOwnerServiceInfo to2GetNextOwnerServiceInfo)
       throws ProtocolException {
 
+    if (null == myServiceInfoIterator && null != myServiceInfoCursor) {
+      // This session was restored from a snapshot, which records only how far through the
+      // service info sequence we'd got.  Rebuild the sequence and skip what we've already sent.
+      myServiceInfoIterator =
+          marshalServiceInfo(to2GetNextOwnerServiceInfo.getType()).iterator();
+      for (int i = 0; i < myServiceInfoCursor && myServiceInfoIterator.hasNext(); i++) {
+        myServiceInfoIterator.next();
+      }
+    }
+
     if (null == myServiceInfoIterator || !myServiceInfoIterator.hasNext()) {
       throw fail(
           ErrorCode.MessageRefused,
@@ -830,6 +903,7 @@ public class OwnerService implements ProtocolService, Serializable {
     }
 
     final Supplier<ServiceInfo> serviceInfoSupplier = myServiceInfoIterator.next();
+    myServiceInfoCursor++;
     if (null == serviceInfoSupplier) {
       throw fail(
           ErrorCode.InternalError,
@@ -873,8 +947,9 @@ public class OwnerService implements ProtocolService, Serializable {
           loadResourceBundle().getString("ERR_INVALID_NONCE"));
     }
 
-    if (null != myOwnershipVoucherStorage) {
-      if (null == myG3 || null == myR3 || null == myOwnershipVoucher) {
+    if (null != myRuntime.getOwnershipVoucherStorage()) {
+      final OwnershipVoucher113 voucher = getOwnershipVoucher(to2Done.getType());
+      if (null == myG3 || null == myR3) {
         throw fail(
             ErrorCode.MessageRefused,
             to2Done.getType(),
@@ -900,14 +975,14 @@ public class OwnerService implements ProtocolService, Serializable {
         try {
           generatedVoucher = new OwnershipVoucher113(
               new OwnershipVoucherHeader(
-                  myOwnershipVoucher.getOh().getPe(),
+                  voucher.getOh().getPe(),
                   myR3,
                   myG3,
-                  myOwnershipVoucher.getOh().getD(),
-                  myOwnershipVoucher.getCurrentOwnerKey(),
-                  myOwnershipVoucher.getOh().getHdc()),
+                  voucher.getOh().getD(),
+                  voucher.getCurrentOwnerKey(),
+                  voucher.getOh().getHdc()),
               to2Done.getHmac(),
-              myOwnershipVoucher.getDc(),
+              voucher.getDc(),
               List.of());
         } catch (IOException e) {
           // This should not happen, as we've already parsed the ownership voucher successfully.
@@ -916,7 +991,8 @@ public class OwnerService implements ProtocolService, Serializable {
               to2Done.getType(),
               e.getMessage());
         }
-        myOwnershipVoucherStorage.store(generatedVoucher.getUuid(), generatedVoucher);
+        myRuntime.getOwnershipVoucherStorage().store(generatedVoucher.getUuid(), generatedVoucher);
+        myRuntime.getTransferHandler().accept(voucher.getUuid());
       }
     }
 
@@ -929,7 +1005,108 @@ public class OwnerService implements ProtocolService, Serializable {
   }
 
   private EncodedProtocolMessage next(Error error) throws ProtocolException {
-    myDeviceErrorHandler.accept(myOwnershipVoucher, error);
+    final BiConsumer<OwnershipVoucher, Error> handler = myRuntime.getDeviceErrorHandler();
+    if (null != handler) {
+      handler.accept(findOwnershipVoucher().orElse(null), error);
+    } else {
+      handleError(findOwnershipVoucher().orElse(null), error);
+    }
     return null;
   }
+
+  // The accessors below expose this service's protocol state to OwnerServiceStateCodec.
+
+  ProtocolCipher getCipher() {
+    return myCipher;
+  }
+
+  void setCipher(ProtocolCipher cipher) {
+    myCipher = cipher;
+  }
+
+  CipherType getCipherType() {
+    return myCipherType;
+  }
+
+  void setCipherType(CipherType cipherType) {
+    myCipherType = cipherType;
+  }
+
+  EncryptedMessageCodec getEncryptedMessageCodec() {
+    return myEncryptedMessageCodec;
+  }
+
+  void setEncryptedMessageCodec(EncryptedMessageCodec encryptedMessageCodec) {
+    myEncryptedMessageCodec = encryptedMessageCodec;
+  }
+
+  UUID getG3() {
+    return myG3;
+  }
+
+  void setG3(UUID g3) {
+    myG3 = g3;
+  }
+
+  void setDone(boolean isDone) {
+    myIsDone = isDone;
+  }
+
+  KeyExchange getKeyExchange() {
+    return myKeyExchange;
+  }
+
+  void setKeyExchange(KeyExchange keyExchange) {
+    myKeyExchange = keyExchange;
+  }
+
+  Nonce getN6() {
+    return myN6;
+  }
+
+  void setN6(Nonce n6) {
+    myN6 = n6;
+  }
+
+  Nonce getN7() {
+    return myN7;
+  }
+
+  void setN7(Nonce n7) {
+    myN7 = n7;
+  }
+
+  Integer getNn() {
+    return myNn;
+  }
+
+  void setNn(Integer nn) {
+    myNn = nn;
+  }
+
+  UUID getOwnershipVoucherId() {
+    return myOwnershipVoucherId;
+  }
+
+  void setOwnershipVoucherId(UUID id) {
+    myOwnershipVoucherId = id;
+    myOwnershipVoucher = null;
+  }
+
+  RendezvousInfo getR3() {
+    return myR3;
+  }
+
+  void setR3(RendezvousInfo r3) {
+    myR3 = r3;
+  }
+
+  Integer getServiceInfoCursor() {
+    return myServiceInfoCursor;
+  }
+
+  void setServiceInfoCursor(Integer cursor) {
+    myServiceInfoCursor = cursor;
+    myServiceInfoIterator = null;
+  }
 }
@@ -0,0 +1,274 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.security.SecureRandom;
+import java.util.UUID;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A compact binary snapshot of an {@link OwnerService}'s protocol state.
+ *
+ * <p>Only the state the protocol needs to resume is written: the nonces, the negotiated
+ * cipher and its session keys, the voucher's UUID and the service info cursor.
+ * The voucher itself is not written; the restored service reloads it from its voucher storage
+ * on first use.  Transient collaborators (storage, keys, service info modules and so on)
+ * must be re-injected after decoding, as they would be after Java deserialization.
+ *
+ * <p>The in-flight key exchange, which only exists between TO2.HelloDevice and
+ * TO2.ProveDevice, is carried as an opaque serialized object.
+ */
+public class OwnerServiceStateCodec {
+
+  // Bump this when the layout changes.  Decoders refuse snapshots of other versions.
+  private static final int VERSION = 1;
+
+  private static final int HAS_CIPHER = 1;
+  private static final int HAS_CIPHER_TYPE = 1 << 1;
+  private static final int HAS_G3 = 1 << 2;
+  private static final int HAS_KEY_EXCHANGE = 1 << 3;
+  private static final int HAS_N6 = 1 << 4;
+  private static final int HAS_N7 = 1 << 5;
+  private static final int HAS_NN = 1 << 6;
+  private static final int HAS_R3 = 1 << 7;
+  private static final int HAS_SERVICE_INFO_CURSOR = 1 << 8;
+  private static final int HAS_VOUCHER = 1 << 9;
+  private static final int IS_DONE = 1 << 10;
+
+  private static final int MODE_CBC = 0;
+  private static final int MODE_CTR = 1;
+
+  /**
+   * Decode a snapshot written by {@link #encode}.
+   *
+   * @param snapshot     the encoded snapshot
+   * @param secureRandom the randomness source for the restored session cipher
+   * @return the restored service
+   * @throws IOException if the snapshot is malformed or of an unsupported version
+   */
+  public OwnerService decode(byte[] snapshot, SecureRandom secureRandom) throws IOException {
+
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+    final int version = in.readUnsignedByte();
+    if (VERSION != version) {
+      throw new IOException("unsupported owner session snapshot version " + version);
+    }
+
+    final int flags = in.readUnsignedShort();
+    final OwnerService service = new OwnerService();
+    service.setDone(0 != (flags & IS_DONE));
+
+    if (0 != (flags & HAS_VOUCHER)) {
+      service.setOwnershipVoucherId(readUuid(in));
+    }
+
+    if (0 != (flags & HAS_N6)) {
+      service.setN6(readNonce(in));
+    }
+
+    if (0 != (flags & HAS_N7)) {
+      service.setN7(readNonce(in));
+    }
+
+    if (0 != (flags & HAS_NN)) {
+      service.setNn(in.readInt());
+    }
+
+    if (0 != (flags & HAS_CIPHER_TYPE)) {
+      service.setCipherType(new CipherType(
+          CipherAlgorithm.valueOf(in.readUTF()),
+          CipherBlockMode.valueOf(in.readUTF()),
+          MacType.fromNumber(in.readUnsignedByte())));
+    }
+
+    if (0 != (flags & HAS_KEY_EXCHANGE)) {
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+        service.setKeyExchange((KeyExchange) ois.readObject());
+      } catch (ClassNotFoundException | ClassCastException e) {
+        throw new IOException(e);
+      }
+    }
+
+    if (0 != (flags & HAS_CIPHER)) {
+      final int mode = in.readUnsignedByte();
+      final SecretKey sek = readKey(in);
+      final SecretKey svk = readKey(in);
+
+      if (MODE_CTR == mode) {
+        final byte[] ivSeed = readBytes(in);
+        final long counter = in.readLong();
+        service.setCipher(new CtrCipher(sek, secureRandom, ivSeed, counter));
+
+      } else if (MODE_CBC == mode) {
+        service.setCipher(new CbcCipher(sek, secureRandom));
+
+      } else {
+        throw new IOException("unknown cipher mode " + mode);
+      }
+
+      service.setEncryptedMessageCodec(new EncryptedMessageCodec(svk));
+    }
+
+    if (0 != (flags & HAS_G3)) {
+      service.setG3(readUuid(in));
+    }
+
+    if (0 != (flags & HAS_R3)) {
+      final String r3 = new String(readBytes(in), US_ASCII);
+      service.setR3(new RendezvousInfoCodec().decoder().apply(CharBuffer.wrap(r3)));
+    }
+
+    if (0 != (flags & HAS_SERVICE_INFO_CURSOR)) {
+      service.setServiceInfoCursor(in.readInt());
+    }
+
+    return service;
+  }
+
+  /**
+   * Encode a snapshot of the given service's protocol state.
+   *
+   * @param service the service
+   * @return the encoded snapshot
+   * @throws IOException if the service's state cannot be encoded
+   */
+  public byte[] encode(OwnerService service) throws IOException {
+
+    final ProtocolCipher cipher = service.getCipher();
+    final EncryptedMessageCodec encryptedMessageCodec = service.getEncryptedMessageCodec();
+    if (null != cipher && !(cipher instanceof CtrCipher || cipher instanceof CbcCipher)) {
+      throw new IOException("unsupported cipher " + cipher.getClass().getName());
+    }
+
+    int flags = 0;
+    flags |= service.isDone() ? IS_DONE : 0;
+    flags |= null != service.getOwnershipVoucherId() ? HAS_VOUCHER : 0;
+    flags |= null != service.getN6() ? HAS_N6 : 0;
+    flags |= null != service.getN7() ? HAS_N7 : 0;
+    flags |= null != service.getNn() ? HAS_NN : 0;
+    flags |= null != service.getCipherType() ? HAS_CIPHER_TYPE : 0;
+    flags |= null != service.getKeyExchange() ? HAS_KEY_EXCHANGE : 0;
+    flags |= null != cipher && null != encryptedMessageCodec ? HAS_CIPHER : 0;
+    flags |= null != service.getG3() ? HAS_G3 : 0;
+    flags |= null != service.getR3() ? HAS_R3 : 0;
+    flags |= null != service.getServiceInfoCursor() ? HAS_SERVICE_INFO_CURSOR : 0;
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(VERSION);
+    out.writeShort(flags);
+
+    if (0 != (flags & HAS_VOUCHER)) {
+      writeUuid(out, service.getOwnershipVoucherId());
+    }
+
+    if (0 != (flags & HAS_N6)) {
+      out.write(service.getN6().getBytes());
+    }
+
+    if (0 != (flags & HAS_N7)) {
+      out.write(service.getN7().getBytes());
+    }
+
+    if (0 != (flags & HAS_NN)) {
+      out.writeInt(service.getNn());
+    }
+
+    if (0 != (flags & HAS_CIPHER_TYPE)) {
+      final CipherType cipherType = service.getCipherType();
+      out.writeUTF(cipherType.getAlgorithm().name());
+      out.writeUTF(cipherType.getMode().name());
+      out.writeByte(cipherType.getMacType().getCode());
+    }
+
+    if (0 != (flags & HAS_KEY_EXCHANGE)) {
+      final ByteArrayOutputStream kx = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(kx)) {
+        oos.writeObject(service.getKeyExchange());
+      }
+      writeBytes(out, kx.toByteArray());
+    }
+
+    if (0 != (flags & HAS_CIPHER)) {
+      out.writeByte(cipher instanceof CtrCipher ? MODE_CTR : MODE_CBC);
+      writeKey(out, ((AbstractCipher) cipher).getSek());
+      writeKey(out, encryptedMessageCodec.getSvk());
+
+      if (cipher instanceof CtrCipher) {
+        final CtrCipher ctr = (CtrCipher) cipher;
+        writeBytes(out, ctr.getIvSeed());
+        out.writeLong(ctr.getCounter());
+      }
+    }
+
+    if (0 != (flags & HAS_G3)) {
+      writeUuid(out, service.getG3());
+    }
+
+    if (0 != (flags & HAS_R3)) {
+      final StringWriter r3 = new StringWriter();
+      new RendezvousInfoCodec().encoder().apply(r3, service.getR3());
+      writeBytes(out, r3.toString().getBytes(US_ASCII));
+    }
+
+    if (0 != (flags & HAS_SERVICE_INFO_CURSOR)) {
+      out.writeInt(service.getServiceInfoCursor());
+    }
+
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("invalid length " + length);
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static SecretKey readKey(DataInputStream in) throws IOException {
+    final String algorithm = in.readUTF();
+    return new SecretKeySpec(readBytes(in), algorithm);
+  }
+
+  private static void writeKey(DataOutputStream out, SecretKey key) throws IOException {
+    out.writeUTF(key.getAlgorithm());
+    writeBytes(out, key.getEncoded());
+  }
+
+  private static Nonce readNonce(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[16];
+    in.readFully(bytes);
+    return new Nonce(bytes);
+  }
+
+  private static UUID readUuid(DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+}
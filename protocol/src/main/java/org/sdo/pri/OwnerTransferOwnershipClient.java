@@ -63,7 +63,7 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
    * @param certPathValidator  A Predicate tested to validate any device certificate chain, may be
    *                           null.
    * @param ownerLocationInfo  The owner location info to advertise with the SDO service.
-   * @param keysProvider       A provider of owner signing keys.
+   * @param keysProvider       A provider of owner signing keys, which may be shared.
    * @param waitSecondsBuilder The factory providing our wait-second values.
    * @param retryPredicate     A predicate which, if it fails, will interrupt the retry loop.
    *                           Arguments are the voucher for which we are currently retrying and the
@@ -98,7 +98,7 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
    * @param certPathValidator  A Predicate tested to validate any device certificate chain, may be
    *                           null.
    * @param ownerLocationInfo  The owner location info to advertise with the SDO service.
-   * @param keysProvider       A provider of owner signing keys.
+   * @param keysProvider       A provider of owner signing keys, which may be shared.
    * @param waitSecondsBuilder The factory providing our wait-second values.
    */
   public OwnerTransferOwnershipClient(
@@ -228,7 +228,16 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
     return LoggerFactory.getLogger(getClass());
   }
 
-  private Duration to0(URI serverUri) throws
+  /**
+   * Run TO0 once with one rendezvous server.
+   *
+   * <p>Unlike {@link #call}, this doesn't check the device certificate path, try the voucher's
+   * other rendezvous servers, or retry.
+   *
+   * @param serverUri the rendezvous server's base URI
+   * @return the wait time the server accepted
+   */
+  public Duration to0(URI serverUri) throws
       IOException,
       InterruptedException,
       InvalidKeyException,
@@ -243,9 +252,9 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
         .uri(serverUri.resolve(HttpPath.of(hello)))
         .POST(BodyPublishers.ofString(encodeToString(hello, new To0HelloCodec().encoder())))
         .build();
-    logger().info(HttpUtil.dump(httpRequest));
+    logger().debug(HttpUtil.dump(httpRequest));
     HttpResponse<String> httpResponse = myHttpClient.send(httpRequest, BodyHandlers.ofString());
-    logger().info(HttpUtil.dump(httpResponse));
+    logger().debug(HttpUtil.dump(httpResponse));
     if (HttpUtil.OK_200 != httpResponse.statusCode()) {
       throw new IOException(httpResponse.toString() + " " + httpResponse.body());
     }
@@ -267,10 +276,10 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
 
     final String redirectText = encodeToString(redirect, new To1SdoRedirectCodec().encoder());
     final SignatureBlock to1d;
-    try (KeyPairCloser keys = new KeyPairCloser(myKeysProvider.apply(voucherKeyType))) {
-      to1d = new SignatureBlock(
-          redirectText, null, Signatures.sign(redirectText, keys.getPrivate()));
-    }
+    // The provider's keys may be shared between clients, so they aren't ours to destroy.
+    final KeyPair keys = myKeysProvider.apply(voucherKeyType);
+    to1d = new SignatureBlock(
+        redirectText, null, Signatures.sign(redirectText, keys.getPrivate()));
 
     final To0OwnerSign ownerSign = new To0OwnerSign(to0d, to1d);
     PublicKeyCodec.Encoder pkEncoder = new PublicKeyCodec.Encoder(myVoucher.getOh().getPe());
@@ -284,9 +293,9 @@ public class OwnerTransferOwnershipClient implements Callable<Optional<Duration>
             httpResponse.headers().firstValue(HttpUtil.AUTHORIZATION).orElse(""))
         .POST(BodyPublishers.ofString(encodeToString(ownerSign, ownerSignEncoder)))
         .build();
-    logger().info(HttpUtil.dump(httpRequest));
+    logger().debug(HttpUtil.dump(httpRequest));
     httpResponse = myHttpClient.send(httpRequest, BodyHandlers.ofString());
-    logger().info(HttpUtil.dump(httpResponse));
+    logger().debug(HttpUtil.dump(httpResponse));
     if (HttpUtil.OK_200 != httpResponse.statusCode()) {
       throw new IOException(httpResponse.toString() + " " + httpResponse.body());
     }
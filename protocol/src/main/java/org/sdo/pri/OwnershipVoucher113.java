@@ -6,23 +6,36 @@ package org.sdo.pri;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.CharBuffer;
 import java.security.PublicKey;
 import java.security.cert.CertPath;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.UUID;
 
 /**
  * PM.OwnershipVoucher113.
  *
+ * <p>Decoded vouchers keep their device certificate chain and entries as text, and decode
+ * them on first use.  A TO2 session needs only the header and the entry count to get started,
+ * then sends the entries one at a time, and needs the chain at the very end if at all.
+ *
+ * <p>They also keep the exact text of their header and HMAC.  Anything sent on from a decoded
+ * voucher is sent as that text rather than re-encoded, so the device hashes the very bytes
+ * the voucher was made from.
+ *
  * @see "SDO Protocol Specification, 1.12k, 5.2.3: PM.OwnershipVoucher113"
  */
 class OwnershipVoucher113 implements OwnershipVoucher, Serializable {
 
-  private final CertPath myDc;
+  private volatile CertPath myDc;
+  private final String myDcText;
   private final List<SignatureBlock> myEn;
   private final HashMac myHmac;
+  private final String myHmacText;
   private final OwnershipVoucherHeader myOh;
+  private final String myOhText;
 
   /**
    * Constructor.
@@ -33,7 +46,33 @@ class OwnershipVoucher113 implements OwnershipVoucher, Serializable {
     this.myOh = oh;
     this.myHmac = hmac;
     this.myDc = dc;
+    this.myDcText = null;
     this.myEn = en;
+    this.myOhText = null;
+    this.myHmacText = null;
+  }
+
+  /**
+   * Construct a voucher from its decoded header and HMAC and the text of everything else.
+   *
+   * <p>The chain and entries are decoded on first use.
+   *
+   * @param ohText the header's text
+   * @param hmacText the HMAC's text
+   * @param dcText the device certificate chain's text, or null if there is none
+   * @param enText the entries' text
+   */
+  OwnershipVoucher113(
+      OwnershipVoucherHeader oh, HashMac hmac, String ohText, String hmacText,
+      String dcText, List<String> enText) {
+
+    this.myOh = oh;
+    this.myOhText = ohText;
+    this.myHmac = hmac;
+    this.myHmacText = hmacText;
+    this.myDc = null;
+    this.myDcText = dcText;
+    this.myEn = new Entries(enText);
   }
 
   /**
@@ -50,22 +89,69 @@ class OwnershipVoucher113 implements OwnershipVoucher, Serializable {
     }
   }
 
+  /**
+   * Return the device certificate chain, or null if there is none.
+   *
+   * @throws UncheckedIOException if the chain's text can't be decoded
+   */
   public CertPath getDc() {
-    return myDc;
+    CertPath dc = myDc;
+    if (null == dc && null != myDcText) {
+      try {
+        dc = new CertPathCodec().decoder().apply(CharBuffer.wrap(myDcText));
+      } catch (IOException | RuntimeException e) {
+        throw malformed("dc", e);
+      }
+      myDc = dc;
+    }
+    return dc;
+  }
+
+  // Text decoders throw runtime exceptions as well as IOExceptions for some malformed input,
+  // bad base64 for one, so callers get the same exception for all of them.
+  private static UncheckedIOException malformed(String field, Exception e) {
+    return new UncheckedIOException(
+        new IOException("malformed voucher " + field + ": " + e.getMessage(), e));
+  }
+
+  // The chain's original text, or null if it wasn't decoded from text.
+  String getDcText() {
+    return myDcText;
   }
 
+  /**
+   * Return the entries.
+   *
+   * <p>Entries read from text are decoded as they're fetched from the list, which throws
+   * {@link UncheckedIOException} if one can't be.
+   */
   public List<SignatureBlock> getEn() {
     return myEn;
   }
 
+  // An entry's original text, or null if it wasn't decoded from text.
+  String getEnText(int index) {
+    return myEn instanceof Entries ? ((Entries) myEn).myText.get(index) : null;
+  }
+
   public HashMac getHmac() {
     return myHmac;
   }
 
+  // The HMAC's original text, or null if it wasn't decoded from text.
+  String getHmacText() {
+    return myHmacText;
+  }
+
   public OwnershipVoucherHeader getOh() {
     return myOh;
   }
 
+  // The header's original text, or null if it wasn't decoded from text.
+  String getOhText() {
+    return myOhText;
+  }
+
   @Override
   public String toString() {
     StringWriter w = new StringWriter();
@@ -81,4 +167,37 @@ class OwnershipVoucher113 implements OwnershipVoucher, Serializable {
   public UUID getUuid() {
     return (null != myOh ? myOh.getG() : null);
   }
+
+  // Entries kept as text, each decoded the first time it's fetched.
+  // Vouchers may be shared between sessions, so decoding is synchronized.
+  private static class Entries extends AbstractList<SignatureBlock> implements Serializable {
+
+    private transient SignatureBlock[] myDecoded;
+    private final List<String> myText;
+
+    Entries(List<String> text) {
+      myText = List.copyOf(text);
+    }
+
+    @Override
+    public synchronized SignatureBlock get(int index) {
+      if (null == myDecoded) {
+        myDecoded = new SignatureBlock[myText.size()];
+      }
+      if (null == myDecoded[index]) {
+        try {
+          myDecoded[index] = new SignatureBlockCodec.Decoder(null)
+              .decode(CharBuffer.wrap(myText.get(index)));
+        } catch (IOException | RuntimeException e) {
+          throw malformed("en[" + index + "]", e);
+        }
+      }
+      return myDecoded[index];
+    }
+
+    @Override
+    public int size() {
+      return myText.size();
+    }
+  }
 }
@@ -10,7 +10,7 @@ import java.io.Writer;
 import java.nio.BufferUnderflowException;
 import java.nio.CharBuffer;
 import java.security.cert.CertPath;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -26,7 +26,6 @@ abstract class OwnershipVoucherCodec {
 
   static class OwnershipProxyDecoder implements ProtocolDecoder<OwnershipVoucher113> {
 
-    private final Codec<CertPath>.Decoder dcDec = new CertPathCodec().decoder();
     private final OwnershipVoucherHeaderCodec.OwnershipProxyHeaderDecoder ohDec =
         new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderDecoder();
     private final Codec<Number>.Decoder szDec = new Uint32Codec().decoder();
@@ -59,21 +58,22 @@ abstract class OwnershipVoucherCodec {
       lastHmac = new char[cbuf.remaining()];
       cbuf.get(lastHmac);
 
-      CertPath dc;
+      // The device certificate chain and the entries are kept as text, and only decoded
+      // if and when they're needed.
+      String dc = null;
       in.mark();
-
       try {
         expect(in, Json.COMMA);
         expect(in, Json.asKey(DC));
-        cbuf = in.duplicate();
-        dc = dcDec.apply(in);
+        cbuf = in.asReadOnlyBuffer();
+        Json.skipValue(in);
         cbuf.limit(in.position());
         lastDc = new char[cbuf.remaining()];
         cbuf.get(lastDc);
+        dc = new String(lastDc);
 
       } catch (BufferUnderflowException | IOException e) {
         in.reset(); // dc not present in this proxy
-        dc = null;
       }
 
       expect(in, Json.COMMA);
@@ -81,8 +81,7 @@ abstract class OwnershipVoucherCodec {
       expect(in, Json.BEGIN_ARRAY);
 
       Character separator = null;
-      List<SignatureBlock> en = new LinkedList<>();
-      SignatureBlockCodec.Decoder enDec = new SignatureBlockCodec.Decoder(null);
+      List<String> en = new ArrayList<>(sz);
       for (int n = 0; n < sz; n++) {
 
         if (null != separator) {
@@ -92,13 +91,17 @@ abstract class OwnershipVoucherCodec {
           separator = Json.COMMA;
         }
 
-        en.add(enDec.decode(in));
+        cbuf = in.asReadOnlyBuffer();
+        Json.skipValue(in);
+        cbuf.limit(in.position());
+        en.add(cbuf.toString());
       }
 
       expect(in, Json.END_ARRAY);
       expect(in, Json.END_OBJECT);
 
-      return new OwnershipVoucher113(oh, hmac, dc, en);
+      return new OwnershipVoucher113(
+          oh, hmac, new String(lastOh), new String(lastHmac), dc, en);
     }
 
     public CharBuffer getLastD() {
@@ -156,20 +159,28 @@ abstract class OwnershipVoucherCodec {
       out.write(Json.asKey(SZ));
       szEnc.apply(out, val.getEn().size());
 
+      // Text read from the wire is written back exactly as it was read.
       out.write(Json.COMMA);
       out.write(Json.asKey(OH));
-      new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderEncoder().encode(out, val.getOh());
+      if (null != val.getOhText()) {
+        out.write(val.getOhText());
+      } else {
+        new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderEncoder().encode(out, val.getOh());
+      }
 
       out.write(Json.COMMA);
       out.write(Json.asKey(HMAC));
-      out.write(val.getHmac().toString());
+      out.write(null != val.getHmacText() ? val.getHmacText() : val.getHmac().toString());
 
-      CertPath dc = val.getDc();
+      if (null != val.getDcText()) {
+        out.write(Json.COMMA);
+        out.write(Json.asKey(DC));
+        out.write(val.getDcText());
 
-      if (null != dc) {
+      } else if (null != val.getDc()) {
         out.write(Json.COMMA);
         out.write(Json.asKey(DC));
-        dcEnc.apply(out, dc);
+        dcEnc.apply(out, val.getDc());
       }
 
       out.write(Json.COMMA);
@@ -179,7 +190,8 @@ abstract class OwnershipVoucherCodec {
       Character separator = null;
       SignatureBlockCodec.Encoder enEnc =
           new SignatureBlockCodec.Encoder(new PublicKeyCodec.Encoder(val.getOh().getPe()));
-      for (SignatureBlock en : val.getEn()) {
+      final List<SignatureBlock> en = val.getEn();
+      for (int i = 0; i < en.size(); i++) {
 
         if (null != separator) {
           out.write(separator);
@@ -188,7 +200,12 @@ abstract class OwnershipVoucherCodec {
           separator = Json.COMMA;
         }
 
-        enEnc.encode(out, en);
+        final String text = val.getEnText(i);
+        if (null != text) {
+          out.write(text);
+        } else {
+          enEnc.encode(out, en.get(i));
+        }
       }
 
       out.write(Json.END_ARRAY);
@@ -3,16 +3,46 @@
 
 package org.sdo.pri;
 
-import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * A parser of serialized ownership vouchers.
+ *
+ * <p>Vouchers are decoded from a single buffer holding their whole text.  Each input form is
+ * decoded straight into that buffer, without first collecting the text elsewhere: files and
+ * byte buffers are sized exactly, and streams grow the buffer as they go.
  */
 public class OwnershipVoucherParser {
 
+  private static final int CHUNK = 8192;
+  // Files at least this large are memory-mapped rather than read.
+  private static final long MAP_THRESHOLD = 64 * 1024;
+
+  private static CharsetDecoder newDecoder() {
+    // Vouchers are US-ASCII, which UTF-8 decodes at the same speed and byte for byte.
+    return StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+  }
+
+  private static CharBuffer grow(CharBuffer buf) {
+    buf.flip();
+    return CharBuffer.allocate(buf.capacity() * 2).put(buf);
+  }
+
   /**
    * Read an OwnershipVoucher from the provided Reader.
    *
@@ -21,10 +51,109 @@ public class OwnershipVoucherParser {
    * @throws IOException if the input is invalid, or if a low-level IO error occurs.
    */
   public OwnershipVoucher readObject(Reader reader) throws IOException {
-    CharArrayWriter writer = new CharArrayWriter();
-    reader.transferTo(writer);
-    writer.flush();
-    return new OwnershipVoucherCodec.OwnershipProxyDecoder().decode(
-      CharBuffer.wrap(writer.toCharArray()));
+    char[] buf = new char[CHUNK];
+    int length = 0;
+    for (int count; 0 <= (count = reader.read(buf, length, buf.length - length)); ) {
+      length += count;
+      if (buf.length == length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+    }
+    return decode(CharBuffer.wrap(buf, 0, length).slice());
+  }
+
+  /**
+   * Read an OwnershipVoucher from the provided InputStream.
+   *
+   * <p>The stream is decoded as it is read.
+   *
+   * @param in the input stream
+   * @return The decoded OwnershipVoucher
+   * @throws IOException if the input is invalid, or if a low-level IO error occurs.
+   */
+  public OwnershipVoucher readObject(InputStream in) throws IOException {
+    final CharsetDecoder decoder = newDecoder();
+    final ByteBuffer bytes = ByteBuffer.allocate(CHUNK);
+    CharBuffer chars = CharBuffer.allocate(CHUNK);
+
+    boolean isEnd = false;
+    while (!isEnd) {
+      final int count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+      if (count < 0) {
+        isEnd = true;
+      } else {
+        bytes.position(bytes.position() + count);
+      }
+
+      bytes.flip();
+      CoderResult result;
+      while ((result = decoder.decode(bytes, chars, isEnd)).isOverflow()) {
+        chars = grow(chars);
+      }
+      if (result.isError()) {
+        result.throwException();
+      }
+      bytes.compact();
+    }
+
+    while (decoder.flush(chars).isOverflow()) {
+      chars = grow(chars);
+    }
+    return decode(chars.flip());
+  }
+
+  /**
+   * Read an OwnershipVoucher from a file.
+   *
+   * <p>Large files are memory-mapped.
+   *
+   * @param file the file
+   * @return The decoded OwnershipVoucher
+   * @throws IOException if the input is invalid, or if a low-level IO error occurs.
+   */
+  public OwnershipVoucher readObject(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (Integer.MAX_VALUE < size) {
+        throw new IOException(file + " is too large to be a voucher");
+      }
+
+      final ByteBuffer bytes;
+      if (MAP_THRESHOLD <= size) {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining() && 0 <= channel.read(bytes)) {
+          // keep reading
+        }
+        bytes.flip();
+      }
+      return readObject(bytes);
+    }
+  }
+
+  /**
+   * Read an OwnershipVoucher from a buffer of encoded text.
+   *
+   * @param bytes the buffer, from its position to its limit
+   * @return The decoded OwnershipVoucher
+   * @throws IOException if the input is invalid
+   */
+  public OwnershipVoucher readObject(ByteBuffer bytes) throws IOException {
+    // A character never takes fewer than one byte, so this buffer can't overflow.
+    final CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+    final CharsetDecoder decoder = newDecoder();
+    CoderResult result = decoder.decode(bytes.duplicate(), chars, true);
+    if (!result.isError()) {
+      result = decoder.flush(chars);
+    }
+    if (result.isError()) {
+      throw new CharacterCodingException();
+    }
+    return decode(chars.flip());
+  }
+
+  private OwnershipVoucher decode(CharBuffer text) throws IOException {
+    return new OwnershipVoucherCodec.OwnershipProxyDecoder().decode(text);
   }
 }
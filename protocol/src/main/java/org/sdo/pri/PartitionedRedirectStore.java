@@ -0,0 +1,385 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store of TO0 redirections partitioned across a cluster of rendezvous nodes.
+ *
+ * <p>The nodes share a consistent-hash ring over device GUIDs, and each holds the redirections
+ * for its slice of the ring in a local store.  A TO0 registration or TO1 lookup for a GUID in
+ * another node's slice is forwarded to that node.  Memory and capacity grow with the number of
+ * nodes, and nothing outside the cluster is needed.
+ *
+ * <p>The members come from a static list.  Each node probes the others periodically and builds
+ * its ring from those which answer, so a node which goes down drops out of the ring and its
+ * slice is shared among the rest.  Whenever the ring changes, each node hands off the
+ * redirections it holds which now belong to another node.  Redirections held only by a node
+ * which goes down are lost with it, and their owners must repeat TO0.
+ */
+public class PartitionedRedirectStore implements ObjectStorage<UUID, PerishableRecord>, Closeable {
+
+  /**
+   * The header in which cluster members present their shared secret to each other.
+   */
+  public static final String SECRET_HEADER = "X-Sdo-Cluster-Secret";
+
+  private final LongAdder myForwarded = new LongAdder();
+  private final LongAdder myHandedOff = new LongAdder();
+  private final RedirectStore myKeys;
+  private final ObjectStorage<UUID, PerishableRecord> myLocal;
+  private final Set<URI> myPeers;
+  private final ScheduledExecutorService myProber;
+  private volatile HashRing<URI> myRing;
+  private final URI mySelf;
+  private final Transport myTransport;
+
+  /**
+   * Construct a new store.
+   *
+   * @param self        this node's URI, as the other members know it
+   * @param members     every member's URI; this node's is added if it's missing
+   * @param local       the store for this node's slice
+   * @param keys        the in-memory store holding the local store's redirections; the same
+   *                    object as the local store, or the one it wraps
+   * @param transport   the means of reaching other members
+   * @param probePeriod the interval between probes of the other members
+   */
+  public PartitionedRedirectStore(URI self,
+      Collection<URI> members,
+      ObjectStorage<UUID, PerishableRecord> local,
+      RedirectStore keys,
+      Transport transport,
+      Duration probePeriod) {
+
+    mySelf = normalize(self);
+    final Set<URI> peers = new HashSet<>();
+    for (URI member : members) {
+      peers.add(normalize(member));
+    }
+    peers.remove(mySelf);
+    myPeers = Set.copyOf(peers);
+    myLocal = Objects.requireNonNull(local);
+    myKeys = Objects.requireNonNull(keys);
+    myTransport = Objects.requireNonNull(transport);
+
+    // Assume every member is up until a probe says otherwise, so that nodes starting
+    // together agree on the ring from the start.
+    final Set<URI> all = new HashSet<>(myPeers);
+    all.add(mySelf);
+    myRing = new HashRing<>(all);
+
+    myProber = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-prober");
+      t.setDaemon(true);
+      return t;
+    });
+    // Give this node and its peers a period to start serving before the first probe.
+    final long period = Math.max(1, probePeriod.toMillis());
+    myProber.scheduleWithFixedDelay(this::probe, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(PartitionedRedirectStore.class);
+  }
+
+  // Member URIs are used as base URIs, and must compare equal on every node.
+  static URI normalize(URI member) {
+    final String s = member.toString();
+    return s.endsWith("/") ? member : URI.create(s + "/");
+  }
+
+  /**
+   * Return the members currently in the ring, including this node.
+   */
+  public Set<URI> getLiveMembers() {
+    return myRing.getMembers();
+  }
+
+  /**
+   * Return the number of loads and stores forwarded to other members.
+   */
+  public long getForwarded() {
+    return myForwarded.sum();
+  }
+
+  /**
+   * Return the number of redirections handed off to other members after the ring changed.
+   */
+  public long getHandedOff() {
+    return myHandedOff.sum();
+  }
+
+  @Override
+  public Optional<PerishableRecord> load(UUID key) {
+    final URI owner = myRing.ownerOf(key);
+    if (mySelf.equals(owner)) {
+      return myLocal.load(key);
+    }
+
+    myForwarded.increment();
+    try {
+      final Optional<byte[]> bytes = myTransport.load(owner, key);
+      if (bytes.isPresent()) {
+        final RedirectionEntry entry = RedirectionEntry.decode(ByteBuffer.wrap(bytes.get()));
+        return entry.isExpired() ? Optional.empty() : Optional.of(entry);
+      } else {
+        return Optional.empty();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("redirection lookup at " + owner + " failed", e);
+    }
+  }
+
+  /**
+   * Load a redirection from this node's slice, for another member.
+   *
+   * @return the encoded redirection, or empty if there's none
+   */
+  public Optional<byte[]> loadLocal(UUID key) {
+    return myLocal.load(key)
+        .filter(value -> value instanceof RedirectionEntry && !value.isExpired())
+        .map(value -> ((RedirectionEntry) value).encode());
+  }
+
+  @Override
+  public void store(UUID key, PerishableRecord value) {
+    if (!(value instanceof RedirectionEntry)) {
+      throw new IllegalArgumentException("unsupported record type: " + value);
+    }
+
+    final URI owner = myRing.ownerOf(key);
+    if (mySelf.equals(owner)) {
+      myLocal.store(key, value);
+      return;
+    }
+
+    myForwarded.increment();
+    try {
+      myTransport.store(owner, key, ((RedirectionEntry) value).encode(), false);
+    } catch (IOException e) {
+      throw new UncheckedIOException("redirection store at " + owner + " failed", e);
+    }
+  }
+
+  /**
+   * Store a redirection in this node's slice, for another member.
+   *
+   * @param key       the device GUID
+   * @param entry     the encoded redirection
+   * @param isHandoff true if the sender is handing off a redirection it held, which mustn't
+   *                  replace one registered here since
+   * @throws IOException if the redirection can't be decoded
+   */
+  public void storeLocal(UUID key, byte[] entry, boolean isHandoff) throws IOException {
+    final RedirectionEntry decoded = RedirectionEntry.decode(ByteBuffer.wrap(entry));
+    if (!(isHandoff && myLocal.load(key).isPresent())) {
+      myLocal.store(key, decoded);
+    }
+  }
+
+  /**
+   * Stop probing and close the local store.
+   */
+  @Override
+  public void close() throws IOException {
+    myProber.shutdownNow();
+    if (myLocal instanceof Closeable) {
+      ((Closeable) myLocal).close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{self=" + mySelf
+        + ", live=" + getLiveMembers().size() + "/" + (1 + myPeers.size())
+        + ", forwarded=" + getForwarded()
+        + ", handedOff=" + getHandedOff()
+        + "}";
+  }
+
+  // Rebuild the ring from the members which answer, and rebalance if it changed.
+  void probe() {
+    try {
+      final Set<URI> live = new HashSet<>();
+      live.add(mySelf);
+      for (URI peer : myPeers) {
+        if (myTransport.isAlive(peer)) {
+          live.add(peer);
+        }
+      }
+
+      if (!live.equals(myRing.getMembers())) {
+        myRing = new HashRing<>(live);
+        logger().info("cluster membership changed, " + this);
+        handOff();
+      }
+    } catch (RuntimeException e) {
+      // Keep the prober alive; the next probe will try again.
+      logger().warn("cluster probe failed: " + e.getMessage(), e);
+    }
+  }
+
+  // Send each held redirection which now belongs elsewhere to its owner.
+  private void handOff() {
+    final HashRing<URI> ring = myRing;
+    final List<Map.Entry<UUID, PerishableRecord>> moving = new ArrayList<>();
+    myKeys.forEach((guid, value) -> {
+      if (!mySelf.equals(ring.ownerOf(guid))) {
+        moving.add(Map.entry(guid, value));
+      }
+    });
+
+    int failed = 0;
+    for (Map.Entry<UUID, PerishableRecord> entry : moving) {
+      final URI owner = ring.ownerOf(entry.getKey());
+      try {
+        myTransport.store(
+            owner, entry.getKey(), ((RedirectionEntry) entry.getValue()).encode(), true);
+        discardLocal(entry.getKey());
+        myHandedOff.increment();
+      } catch (IOException | RuntimeException e) {
+        // Keep it; if the owner stays unreachable, the next probe drops it from the ring.
+        ++failed;
+      }
+    }
+    if (0 < moving.size()) {
+      logger().info("handed off " + (moving.size() - failed) + " of " + moving.size()
+          + " redirections, " + this);
+    }
+  }
+
+  // Drop a redirection from this node's slice, and from its log if it has one, so that it
+  // doesn't come back after a restart.
+  private void discardLocal(UUID guid) {
+    if (myLocal instanceof DurableRedirectStore) {
+      ((DurableRedirectStore) myLocal).discard(guid);
+    } else {
+      myKeys.discard(guid);
+    }
+  }
+
+  /**
+   * The means by which cluster members reach each other.
+   */
+  public interface Transport {
+
+    /**
+     * Load a redirection from a member's slice.
+     *
+     * @return the encoded redirection, or empty if the member has none
+     */
+    Optional<byte[]> load(URI member, UUID guid) throws IOException;
+
+    /**
+     * Store a redirection in a member's slice.
+     *
+     * @see PartitionedRedirectStore#storeLocal
+     */
+    void store(URI member, UUID guid, byte[] entry, boolean isHandoff) throws IOException;
+
+    /**
+     * Return true if the member answers.
+     */
+    boolean isAlive(URI member);
+  }
+
+  /**
+   * Reaches other members over HTTP.
+   *
+   * <p>Each member serves {@code GET} and {@code PUT} on {@code internal/redirects/<guid>},
+   * with base64 bodies, and {@code GET} on {@code internal/ping}, all relative to its URI.
+   * Every request carries the cluster's shared secret in {@link #SECRET_HEADER}.
+   */
+  public static class HttpTransport implements Transport {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(2);
+
+    private final HttpClient myClient;
+    private final String mySecret;
+
+    public HttpTransport(HttpClient client, String secret) {
+      myClient = Objects.requireNonNull(client);
+      mySecret = Objects.requireNonNull(secret);
+    }
+
+    @Override
+    public Optional<byte[]> load(URI member, UUID guid) throws IOException {
+      final HttpResponse<String> response =
+          send(request(member.resolve("internal/redirects/" + guid)).GET());
+      if (404 == response.statusCode()) {
+        return Optional.empty();
+      }
+      try {
+        return Optional.of(Base64.getDecoder().decode(response.body()));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("bad redirection from " + member, e);
+      }
+    }
+
+    @Override
+    public void store(URI member, UUID guid, byte[] entry, boolean isHandoff)
+        throws IOException {
+      send(request(member.resolve("internal/redirects/" + guid + "?handoff=" + isHandoff))
+          .PUT(BodyPublishers.ofString(Base64.getEncoder().encodeToString(entry))));
+    }
+
+    @Override
+    public boolean isAlive(URI member) {
+      try {
+        return 200 == send(request(member.resolve("internal/ping")).GET()).statusCode();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private HttpRequest.Builder request(URI uri) {
+      return HttpRequest.newBuilder(uri).timeout(TIMEOUT).header(SECRET_HEADER, mySecret);
+    }
+
+    // Send a request, failing on any status but 2xx and 404.
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException {
+      final HttpResponse<String> response;
+      try {
+        response = myClient.send(request.build(), BodyHandlers.ofString());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      final int status = response.statusCode();
+      if (!(200 <= status && status < 300 || 404 == status)) {
+        throw new IOException(response.uri() + " returned " + status);
+      }
+      return response;
+    }
+  }
+}
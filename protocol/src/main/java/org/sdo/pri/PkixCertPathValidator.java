@@ -0,0 +1,131 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.CRL;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXParameters;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates device certificate paths against a set of trust anchors, with revocation checking.
+ *
+ * <p>Trust anchors and CRLs are X.509 PEM files, or directories of them, and are read once,
+ * when the validator is built.
+ */
+public class PkixCertPathValidator implements Predicate<CertPath> {
+
+  private final PKIXParameters myParameters;
+  private final PKIXRevocationChecker myRevocationChecker;
+  private final CertPathValidator myValidator;
+
+  /**
+   * Construct a new validator.
+   *
+   * @param trustAnchorUris   the files and directories holding the trust anchors
+   * @param crlUris           the files and directories holding the CRLs
+   * @param revocationOptions the revocation checker options
+   * @throws IOException              if a trust anchor or CRL can't be read
+   * @throws GeneralSecurityException if a trust anchor or CRL can't be parsed, or there
+   *                                  are no trust anchors
+   */
+  public PkixCertPathValidator(
+      Collection<URI> trustAnchorUris,
+      Collection<URI> crlUris,
+      Set<PKIXRevocationChecker.Option> revocationOptions)
+      throws IOException, GeneralSecurityException {
+
+    final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+
+    final Set<CRL> crls = new HashSet<>();
+    for (URI uri : crlUris) {
+      for (File file : findRegularFiles(uri)) {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+          crls.addAll(certificateFactory.generateCRLs(inputStream));
+        }
+      }
+    }
+    final CertStore certStore =
+        CertStore.getInstance("Collection", new CollectionCertStoreParameters(crls));
+
+    final Set<TrustAnchor> trustAnchors = new HashSet<>();
+    for (URI uri : trustAnchorUris) {
+      for (File file : findRegularFiles(uri)) {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+          certificateFactory.generateCertificates(inputStream).stream()
+              .filter(cert -> cert instanceof X509Certificate)
+              .map(cert -> new TrustAnchor((X509Certificate) cert, null))
+              .forEach(trustAnchors::add);
+        }
+      }
+    }
+
+    // BouncyCastle does not provide CertPathValidatorSpi::engineGetRevocationChecker
+    // so we must explicitly use the SUN provider
+    myValidator = CertPathValidator.getInstance("PKIX", "SUN");
+    myRevocationChecker = (PKIXRevocationChecker) myValidator.getRevocationChecker();
+    myRevocationChecker.setOptions(revocationOptions);
+    myParameters = new PKIXParameters(trustAnchors);
+    myParameters.addCertPathChecker(myRevocationChecker);
+    myParameters.addCertStore(certStore);
+    myParameters.setRevocationEnabled(true);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(PkixCertPathValidator.class);
+  }
+
+  // The regular files in a directory, or the file itself if it isn't a directory.
+  private static Collection<File> findRegularFiles(URI uri) throws IOException {
+    final Path path = Paths.get(uri);
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> files = Files.list(path)) {
+        return files.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+      }
+    } else if (Files.isRegularFile(path)) {
+      return List.of(path.toFile());
+    } else {
+      return Collections.emptyList();
+    }
+  }
+
+  @Override
+  public boolean test(CertPath certPath) {
+    try {
+      myValidator.validate(certPath, myParameters);
+      return true; // If it didn't throw an exception, test passes
+    } catch (CertPathValidatorException | InvalidAlgorithmParameterException e) {
+      logger().error(e.getMessage(), e);
+      return false;
+    } finally {
+      logger().debug(myRevocationChecker.getSoftFailExceptions().toString());
+    }
+  }
+}
@@ -23,6 +23,21 @@ public class ProtocolException extends RuntimeException {
     setError(err);
   }
 
+  private ProtocolException(Error err, boolean writableStackTrace) {
+    super(buildMessage(err), null, false, writableStackTrace);
+    setError(err);
+  }
+
+  /**
+   * Return an exception for a routine protocol failure, without a stack trace.
+   *
+   * <p>Failures like a device polling TO1 before its owner has run TO0 happen all the time,
+   * and a stack trace costs more than the rest of the exception and says nothing useful.
+   */
+  static ProtocolException routine(Error err) {
+    return new ProtocolException(err, false);
+  }
+
   private static String buildMessage(Error err) {
 
     try {
@@ -0,0 +1,658 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rendezvous service's store of TO0 redirections, by device GUID.
+ *
+ * <p>Every TO1.HelloSDO looks up one redirection, and every TO0.OwnerSign stores one, from
+ * many threads at once.  Lookups are optimistic reads which take no lock unless a store
+ * overlaps them, and neither lookups nor stores scan the store.
+ *
+ * <p>A rendezvous service may hold tens of millions of redirections, so they're kept in
+ * primitive arrays rather than as objects.  Each redirection is a record number in an
+ * open-addressing hash table keyed by the GUID's two halves, with its expiry in epoch seconds
+ * and the address of its redirect and device key bytes in an arena of large byte arrays.
+ * Lookups build a {@link RedirectionEntry} from those, and the device key is decoded from its
+ * X.509 form only if TO1.ProveToSDO asks for it.
+ *
+ * <p>Each redirection expires when its TO0 wait time runs out.  The store keeps a heap of
+ * records ordered by expiry, and a background sweeper removes redirections from the top of the
+ * heap until it reaches one which hasn't expired.  A lookup which finds an expired redirection
+ * the sweeper hasn't reached yet treats it as gone.  If the store is full, the redirections
+ * nearest their expiry are evicted to make room.  The sweeper also copies the records out of
+ * arena arrays which have become mostly garbage, and drops those arrays.
+ */
+public class RedirectStore implements ObjectStorage<UUID, PerishableRecord>, Closeable {
+
+  private static final int CHUNK_BYTES = 1 << 20;
+  private static final int DEAD = -1;
+  private static final int EMPTY = -1;
+  private static final int FOR_EACH_BATCH = 4096;
+  private static final int MAX_FIELD_BYTES = 0xfffe;
+  private static final int MIN_RECORDS = 16;
+  private static final int NO_KEY = 0xffff;
+  private static final int SWEEP_BATCH = 4096;
+
+  private final Clock myClock;
+  private final Duration myDefaultTtl;
+  private final LongAdder myEvictions = new LongAdder();
+  private final LongAdder myExpirations = new LongAdder();
+  private final StampedLock myLock = new StampedLock();
+  private final int myMaxEntries;
+  private final ScheduledExecutorService mySweeper;
+
+  // Everything below is guarded by myLock.  Records are numbered densely from zero, and
+  // removing one moves the last into its place.
+  private long[] myAddresses = new long[MIN_RECORDS];
+  private int[] myExpiries = new int[MIN_RECORDS]; // unsigned epoch seconds
+  private long[] myGuidHighs = new long[MIN_RECORDS];
+  private long[] myGuidLows = new long[MIN_RECORDS];
+  private int[] myHeap = new int[MIN_RECORDS];
+  private int[] myHeapIndex = new int[MIN_RECORDS];
+  private volatile int mySize = 0;
+  private int[] myTable = emptyTable(MIN_RECORDS * 2);
+
+  // The arena.  Each record is its record number (DEAD once removed), then the redirect and
+  // device key, each a 16-bit length and that many bytes.  An address is a chunk index in the
+  // high word and an offset in the low word.
+  private int myActiveChunk = -1;
+  private long myArenaBytes = 0;
+  private long myArenaLive = 0;
+  private int[] myChunkEnds = new int[8];
+  private int[] myChunkLive = new int[8];
+  private byte[][] myChunks = new byte[8][];
+
+  /**
+   * Construct a new store.
+   *
+   * @param maxEntries  the maximum number of redirections the store will hold
+   * @param defaultTtl  how long redirections which don't carry their own expiry time are kept
+   * @param sweepPeriod the interval between background expiry sweeps
+   */
+  public RedirectStore(int maxEntries, Duration defaultTtl, Duration sweepPeriod) {
+    this(maxEntries, defaultTtl, sweepPeriod, Clock.systemUTC());
+  }
+
+  RedirectStore(int maxEntries, Duration defaultTtl, Duration sweepPeriod, Clock clock) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    myMaxEntries = maxEntries;
+    myDefaultTtl = Objects.requireNonNull(defaultTtl);
+    myClock = Objects.requireNonNull(clock);
+
+    mySweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    final long period = Math.max(1, sweepPeriod.toMillis());
+    mySweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(RedirectStore.class);
+  }
+
+  private static int[] emptyTable(int length) {
+    final int[] table = new int[length];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  // SplitMix64's finalizer, as in GuidFilter.
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static int home(long high, long low, int mask) {
+    return (int) mix(high ^ mix(low)) & mask;
+  }
+
+  private static int getInt(byte[] chunk, int at) {
+    return (chunk[at] << 24) | (chunk[at + 1] & 0xff) << 16
+        | (chunk[at + 2] & 0xff) << 8 | (chunk[at + 3] & 0xff);
+  }
+
+  private static void putInt(byte[] chunk, int at, int value) {
+    chunk[at] = (byte) (value >>> 24);
+    chunk[at + 1] = (byte) (value >>> 16);
+    chunk[at + 2] = (byte) (value >>> 8);
+    chunk[at + 3] = (byte) value;
+  }
+
+  private static int getShort(byte[] chunk, int at) {
+    return (chunk[at] & 0xff) << 8 | (chunk[at + 1] & 0xff);
+  }
+
+  private static void putShort(byte[] chunk, int at, int value) {
+    chunk[at] = (byte) (value >>> 8);
+    chunk[at + 1] = (byte) value;
+  }
+
+  // The length of the arena record at the given offset.
+  private static int recordLength(byte[] chunk, int at) {
+    final int redirect = getShort(chunk, at + Integer.BYTES);
+    final int pk = getShort(chunk, at + Integer.BYTES + Short.BYTES + redirect);
+    return Integer.BYTES + Short.BYTES * 2 + redirect + (NO_KEY == pk ? 0 : pk);
+  }
+
+  @Override
+  public Optional<PerishableRecord> load(UUID key) {
+    RedirectionEntry entry;
+    long stamp = myLock.tryOptimisticRead();
+    try {
+      entry = read(key);
+    } catch (RuntimeException e) {
+      if (myLock.validate(stamp)) {
+        throw e;
+      }
+      entry = null; // torn by a concurrent store; read again under the lock
+    }
+    if (!myLock.validate(stamp)) {
+      stamp = myLock.readLock();
+      try {
+        entry = read(key);
+      } finally {
+        myLock.unlockRead(stamp);
+      }
+    }
+    return Optional.ofNullable(entry);
+  }
+
+  @Override
+  public void store(UUID key, PerishableRecord value) {
+    if (!(value instanceof RedirectionEntry)) {
+      throw new IllegalArgumentException("unsupported record type: " + value);
+    }
+    final RedirectionEntry entry = (RedirectionEntry) value;
+    final byte[] redirect = entry.getRedirect().getBytes(StandardCharsets.UTF_8);
+    final byte[] pk = entry.getDevicePkEncoded();
+    if (MAX_FIELD_BYTES < redirect.length || null != pk && MAX_FIELD_BYTES < pk.length) {
+      throw new IllegalArgumentException("redirection for " + key + " is too large");
+    }
+    final int expiry = expiryOf(entry);
+    final long high = key.getMostSignificantBits();
+    final long low = key.getLeastSignificantBits();
+
+    final long stamp = myLock.writeLock();
+    try {
+      final int record;
+      final int slot = find(myTable, high, low);
+      if (0 <= slot) {
+        record = myTable[slot];
+        free(myAddresses[record]);
+      } else {
+        record = add(high, low);
+      }
+      myExpiries[record] = expiry;
+      myAddresses[record] = append(record, redirect, pk);
+      reposition(record, mySize);
+
+      while (mySize > myMaxEntries) {
+        remove(myHeap[0]);
+        myEvictions.increment();
+      }
+    } finally {
+      myLock.unlockWrite(stamp);
+    }
+  }
+
+  // Drop the redirection for a GUID, if there is one.
+  void discard(UUID key) {
+    final long stamp = myLock.writeLock();
+    try {
+      final int slot = find(myTable, key.getMostSignificantBits(), key.getLeastSignificantBits());
+      if (0 <= slot) {
+        remove(myTable[slot]);
+      }
+    } finally {
+      myLock.unlockWrite(stamp);
+    }
+  }
+
+  Clock getClock() {
+    return myClock;
+  }
+
+  /**
+   * Pass each unexpired redirection to the given action, in no particular order.
+   *
+   * <p>The store is read in batches, and stores may run between them.  Every redirection held
+   * throughout is passed at least once.  Records are visited from the last down, and removing
+   * one moves the last record into its place, so a record only ever moves to a place which
+   * has already been visited or is yet to be.
+   */
+  void forEach(BiConsumer<UUID, PerishableRecord> action) {
+    final List<Map.Entry<UUID, RedirectionEntry>> batch = new ArrayList<>();
+    for (int next = Integer.MAX_VALUE; 0 < next; ) {
+      final long stamp = myLock.readLock();
+      try {
+        final long now = myClock.millis();
+        next = Math.min(next, mySize);
+        for (final int end = Math.max(0, next - FOR_EACH_BATCH); end < next; ) {
+          final int record = --next;
+          final long expiresAt = expiresAt(record);
+          if (now < expiresAt) {
+            batch.add(Map.entry(new UUID(myGuidHighs[record], myGuidLows[record]),
+                entryAt(myAddresses[record], expiresAt)));
+          }
+        }
+      } finally {
+        myLock.unlockRead(stamp);
+      }
+      for (Map.Entry<UUID, RedirectionEntry> entry : batch) {
+        action.accept(entry.getKey(), entry.getValue());
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Return the number of redirections evicted to stay within the size bound.
+   */
+  public long getEvictions() {
+    return myEvictions.sum();
+  }
+
+  /**
+   * Return the number of redirections which have expired.
+   */
+  public long getExpirations() {
+    return myExpirations.sum();
+  }
+
+  /**
+   * Return the number of redirections held, including any expired ones not yet swept.
+   */
+  public int size() {
+    return mySize;
+  }
+
+  /**
+   * Log the store's counts periodically.
+   *
+   * @param period the interval between reports, or zero for none
+   */
+  public void startReporting(Duration period) {
+    if (!(period.isZero() || period.isNegative())) {
+      final long millis = Math.max(1, period.toMillis());
+      mySweeper.scheduleAtFixedRate(
+          () -> logger().info(toString()), millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop the background sweeper.
+   */
+  @Override
+  public void close() {
+    mySweeper.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{live=" + size()
+        + ", expired=" + getExpirations()
+        + ", evicted=" + getEvictions()
+        + "}";
+  }
+
+  // Remove expired redirections, soonest-expiring first, then compact the arena.
+  // Each batch takes the lock separately, so lookups aren't held up for long.
+  void sweep() {
+    try {
+      final long now = myClock.millis();
+      long swept = 0;
+      for (int batch; 0 < (batch = sweepBatch(now)); ) {
+        swept += batch;
+      }
+      if (0 < swept) {
+        myExpirations.add(swept);
+        logger().debug("expired " + swept + " redirections, " + this);
+      }
+
+      if (isFragmented()) {
+        int compacted = 0;
+        for (int chunk = 0; chunk < chunkSlots(); ++chunk) {
+          if (compactChunk(chunk)) {
+            ++compacted;
+          }
+        }
+        logger().debug("compacted " + compacted + " redirection arena chunks, " + this);
+      }
+    } catch (RuntimeException e) {
+      // Keep the sweeper alive; the next sweep will try again.
+      logger().warn("redirection sweep failed: " + e.getMessage(), e);
+    }
+  }
+
+  private int sweepBatch(long now) {
+    final long stamp = myLock.writeLock();
+    try {
+      int swept = 0;
+      while (swept < SWEEP_BATCH && 0 < mySize && expiresAt(myHeap[0]) <= now) {
+        remove(myHeap[0]);
+        ++swept;
+      }
+      return swept;
+    } finally {
+      myLock.unlockWrite(stamp);
+    }
+  }
+
+  private boolean isFragmented() {
+    final long stamp = myLock.readLock();
+    try {
+      return Math.max(CHUNK_BYTES, myArenaBytes / 4) < myArenaBytes - myArenaLive;
+    } finally {
+      myLock.unlockRead(stamp);
+    }
+  }
+
+  // The number of chunk slots.  Stores, and compaction itself, grow the slot array under the
+  // lock, so the sweeper must read it there too.
+  private int chunkSlots() {
+    final long stamp = myLock.readLock();
+    try {
+      return myChunks.length;
+    } finally {
+      myLock.unlockRead(stamp);
+    }
+  }
+
+  // If the given chunk is less than half live, copy its live records out and drop it.
+  private boolean compactChunk(int chunk) {
+    final long stamp = myLock.writeLock();
+    try {
+      final byte[] bytes = myChunks[chunk];
+      if (null == bytes || myActiveChunk == chunk || bytes.length <= 2L * myChunkLive[chunk]) {
+        return false;
+      }
+      for (int at = 0; at < myChunkEnds[chunk]; ) {
+        final int record = getInt(bytes, at);
+        final int length = recordLength(bytes, at);
+        if (DEAD != record) {
+          final long address = allocate(length);
+          System.arraycopy(bytes, at, myChunks[(int) (address >>> 32)], (int) address, length);
+          myAddresses[record] = address;
+        }
+        at += length;
+      }
+      release(chunk);
+      return true;
+    } finally {
+      myLock.unlockWrite(stamp);
+    }
+  }
+
+  private int expiryOf(RedirectionEntry entry) {
+    final long millis = null != entry.getExpiresAt()
+        ? entry.getExpiresAt().toEpochMilli()
+        : myClock.millis() + myDefaultTtl.toMillis();
+    return (int) Math.max(0, Math.min(0xffffffffL, Math.floorDiv(millis, 1000)));
+  }
+
+  private long expiresAt(int record) {
+    return Integer.toUnsignedLong(myExpiries[record]) * 1000;
+  }
+
+  // Look up a redirection.  This may run without the lock, so it only reads, and a concurrent
+  // store may make it fail or return garbage.
+  private RedirectionEntry read(UUID key) {
+    final int slot = find(myTable, key.getMostSignificantBits(), key.getLeastSignificantBits());
+    if (slot < 0) {
+      return null;
+    }
+    final int record = myTable[slot];
+    final long expiresAt = expiresAt(record);
+    return myClock.millis() < expiresAt ? entryAt(myAddresses[record], expiresAt) : null;
+  }
+
+  private RedirectionEntry entryAt(long address, long expiresAt) {
+    final byte[] chunk = myChunks[(int) (address >>> 32)];
+    int at = (int) address + Integer.BYTES;
+    final int redirectLength = getShort(chunk, at);
+    at += Short.BYTES;
+    final String redirect = new String(chunk, at, redirectLength, StandardCharsets.UTF_8);
+    at += redirectLength;
+    final int pkLength = getShort(chunk, at);
+    at += Short.BYTES;
+    final byte[] pk = NO_KEY != pkLength ? Arrays.copyOfRange(chunk, at, at + pkLength) : null;
+    return RedirectionEntry.withEncodedKey(pk, redirect, Instant.ofEpochMilli(expiresAt));
+  }
+
+  // Return the slot holding the given GUID's record, or -1 minus the empty slot where it
+  // would go.
+  private int find(int[] table, long high, long low) {
+    final long[] highs = myGuidHighs;
+    final long[] lows = myGuidLows;
+    final int mask = table.length - 1;
+    int slot = home(high, low, mask);
+    for (int probes = 0; probes < table.length; ++probes) {
+      final int record = table[slot];
+      if (EMPTY == record) {
+        return -1 - slot;
+      } else if (highs[record] == high && lows[record] == low) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    throw new IllegalStateException("redirection table is full");
+  }
+
+  // Add a record for a new GUID, growing the arrays if need be, and return its number.
+  private int add(long high, long low) {
+    final int record = mySize;
+    if (myGuidHighs.length <= record) {
+      final int length = record + (record >> 1);
+      myAddresses = Arrays.copyOf(myAddresses, length);
+      myExpiries = Arrays.copyOf(myExpiries, length);
+      myGuidHighs = Arrays.copyOf(myGuidHighs, length);
+      myGuidLows = Arrays.copyOf(myGuidLows, length);
+      myHeap = Arrays.copyOf(myHeap, length);
+      myHeapIndex = Arrays.copyOf(myHeapIndex, length);
+    }
+    myGuidHighs[record] = high;
+    myGuidLows[record] = low;
+
+    // Keep the table at most three-quarters full.
+    if (3L * myTable.length < 4L * (record + 1)) {
+      final int[] table = emptyTable(2 * myTable.length);
+      for (int r = 0; r < record; ++r) {
+        table[-1 - find(table, myGuidHighs[r], myGuidLows[r])] = r;
+      }
+      myTable = table;
+    }
+    myTable[-1 - find(myTable, high, low)] = record;
+
+    myHeap[record] = record;
+    myHeapIndex[record] = record;
+    mySize = record + 1;
+    return record;
+  }
+
+  // Remove a record, moving the last record into its place.
+  private void remove(int record) {
+    free(myAddresses[record]);
+    removeSlot(find(myTable, myGuidHighs[record], myGuidLows[record]));
+
+    final int size = mySize;
+    final int position = myHeapIndex[record];
+    final int lastInHeap = myHeap[size - 1];
+    if (position != size - 1) {
+      myHeap[position] = lastInHeap;
+      myHeapIndex[lastInHeap] = position;
+      reposition(lastInHeap, size - 1);
+    }
+
+    final int last = size - 1;
+    if (record != last) {
+      myTable[find(myTable, myGuidHighs[last], myGuidLows[last])] = record;
+      myGuidHighs[record] = myGuidHighs[last];
+      myGuidLows[record] = myGuidLows[last];
+      myExpiries[record] = myExpiries[last];
+      myAddresses[record] = myAddresses[last];
+      myHeapIndex[record] = myHeapIndex[last];
+      myHeap[myHeapIndex[record]] = record;
+      final long address = myAddresses[record];
+      putInt(myChunks[(int) (address >>> 32)], (int) address, record);
+    }
+    mySize = last;
+  }
+
+  // Empty a table slot, shifting back any later records in its probe run which may move.
+  private void removeSlot(int slot) {
+    final int mask = myTable.length - 1;
+    int gap = slot;
+    for (int next = (slot + 1) & mask; EMPTY != myTable[next]; next = (next + 1) & mask) {
+      final int record = myTable[next];
+      final int home = home(myGuidHighs[record], myGuidLows[record], mask);
+      final boolean staysPut = gap < next
+          ? gap < home && home <= next
+          : gap < home || home <= next;
+      if (!staysPut) {
+        myTable[gap] = record;
+        gap = next;
+      }
+    }
+    myTable[gap] = EMPTY;
+  }
+
+  private boolean expiresBefore(int a, int b) {
+    return Integer.compareUnsigned(myExpiries[a], myExpiries[b]) < 0;
+  }
+
+  // Restore the heap order around a record whose expiry may have changed.
+  private void reposition(int record, int heapSize) {
+    int position = myHeapIndex[record];
+    while (0 < position) {
+      final int parent = (position - 1) >>> 1;
+      if (!expiresBefore(record, myHeap[parent])) {
+        break;
+      }
+      myHeap[position] = myHeap[parent];
+      myHeapIndex[myHeap[position]] = position;
+      position = parent;
+    }
+    while (true) {
+      int child = 2 * position + 1;
+      if (heapSize <= child) {
+        break;
+      }
+      if (child + 1 < heapSize && expiresBefore(myHeap[child + 1], myHeap[child])) {
+        ++child;
+      }
+      if (!expiresBefore(myHeap[child], record)) {
+        break;
+      }
+      myHeap[position] = myHeap[child];
+      myHeapIndex[myHeap[position]] = position;
+      position = child;
+    }
+    myHeap[position] = record;
+    myHeapIndex[record] = position;
+  }
+
+  // Write a record into the arena and return its address.
+  private long append(int record, byte[] redirect, byte[] pk) {
+    final int length = Integer.BYTES + Short.BYTES * 2 + redirect.length
+        + (null != pk ? pk.length : 0);
+    final long address = allocate(length);
+    final byte[] chunk = myChunks[(int) (address >>> 32)];
+    int at = (int) address;
+    putInt(chunk, at, record);
+    at += Integer.BYTES;
+    putShort(chunk, at, redirect.length);
+    at += Short.BYTES;
+    System.arraycopy(redirect, 0, chunk, at, redirect.length);
+    at += redirect.length;
+    putShort(chunk, at, null != pk ? pk.length : NO_KEY);
+    at += Short.BYTES;
+    if (null != pk) {
+      System.arraycopy(pk, 0, chunk, at, pk.length);
+    }
+    return address;
+  }
+
+  private long allocate(int length) {
+    if (myActiveChunk < 0
+        || myChunks[myActiveChunk].length - myChunkEnds[myActiveChunk] < length) {
+      final int previous = myActiveChunk;
+      myActiveChunk = newChunk(Math.max(CHUNK_BYTES, length));
+      if (0 <= previous && 0 == myChunkLive[previous]) {
+        release(previous);
+      }
+    }
+    final int chunk = myActiveChunk;
+    final int at = myChunkEnds[chunk];
+    myChunkEnds[chunk] += length;
+    myChunkLive[chunk] += length;
+    myArenaLive += length;
+    return (long) chunk << 32 | at;
+  }
+
+  private int newChunk(int length) {
+    int chunk = 0;
+    while (chunk < myChunks.length && null != myChunks[chunk]) {
+      ++chunk;
+    }
+    if (myChunks.length == chunk) {
+      myChunks = Arrays.copyOf(myChunks, 2 * chunk);
+      myChunkEnds = Arrays.copyOf(myChunkEnds, 2 * chunk);
+      myChunkLive = Arrays.copyOf(myChunkLive, 2 * chunk);
+    }
+    myChunks[chunk] = new byte[length];
+    myChunkEnds[chunk] = 0;
+    myChunkLive[chunk] = 0;
+    myArenaBytes += length;
+    return chunk;
+  }
+
+  // Mark a record dead, and drop its chunk if nothing in it is live.
+  private void free(long address) {
+    final int chunk = (int) (address >>> 32);
+    final byte[] bytes = myChunks[chunk];
+    final int length = recordLength(bytes, (int) address);
+    putInt(bytes, (int) address, DEAD);
+    myChunkLive[chunk] -= length;
+    myArenaLive -= length;
+    if (0 == myChunkLive[chunk] && myActiveChunk != chunk) {
+      release(chunk);
+    }
+  }
+
+  private void release(int chunk) {
+    myArenaBytes -= myChunks[chunk].length;
+    myArenaLive -= myChunkLive[chunk];
+    myChunks[chunk] = null;
+    myChunkLive[chunk] = 0;
+    myChunkEnds[chunk] = 0;
+  }
+}
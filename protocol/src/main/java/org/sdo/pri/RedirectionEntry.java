@@ -3,12 +3,19 @@
 
 package org.sdo.pri;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.time.Instant;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 
 class RedirectionEntry implements PerishableRecord {
 
-  private final PublicKey myDevicePk;
+  // The device key is kept in its X.509 encoding, and decoded only when TO1.ProveToSDO needs it.
+  private transient volatile PublicKey myDevicePk;
+  private final byte[] myDevicePkEncoded;
   private final Instant myExpiresAt;
   private final String myRedirect;
 
@@ -16,13 +23,82 @@ class RedirectionEntry implements PerishableRecord {
    * Constructor.
    */
   RedirectionEntry(PublicKey devicePk, String redirect, Instant expiresAt) {
+    this(devicePk, null != devicePk ? devicePk.getEncoded() : null, redirect, expiresAt);
+  }
+
+  private RedirectionEntry(
+      PublicKey devicePk, byte[] devicePkEncoded, String redirect, Instant expiresAt) {
     this.myDevicePk = devicePk;
+    this.myDevicePkEncoded = devicePkEncoded;
     this.myExpiresAt = expiresAt;
     this.myRedirect = redirect;
   }
 
+  /**
+   * Construct an entry from a device key's X.509 encoding, which isn't decoded until needed.
+   */
+  static RedirectionEntry withEncodedKey(
+      byte[] devicePkEncoded, String redirect, Instant expiresAt) {
+    return new RedirectionEntry(null, devicePkEncoded, redirect, expiresAt);
+  }
+
+  /**
+   * Decode an entry written by {@link #encode}.
+   *
+   * @throws IOException if the entry is truncated
+   */
+  static RedirectionEntry decode(ByteBuffer in) throws IOException {
+    try {
+      final Instant expiresAt = Instant.ofEpochMilli(in.getLong());
+      final byte[] redirect = new byte[in.getInt()];
+      in.get(redirect);
+      final int pkLength = in.getInt();
+      byte[] pk = null;
+      if (0 <= pkLength) {
+        pk = new byte[pkLength];
+        in.get(pk);
+      }
+      return withEncodedKey(pk, new String(redirect, StandardCharsets.UTF_8), expiresAt);
+    } catch (RuntimeException e) {
+      throw new IOException("bad redirection entry", e);
+    }
+  }
+
+  // Layout: expiry (epoch millis), redirect length and UTF-8 bytes,
+  // device key length (-1 for none) and X.509 encoding.
+  byte[] encode() {
+    final byte[] redirect = myRedirect.getBytes(StandardCharsets.UTF_8);
+    final byte[] pk = null != myDevicePkEncoded ? myDevicePkEncoded : new byte[0];
+    final ByteBuffer buf =
+        ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 2 + redirect.length + pk.length);
+    buf.putLong(myExpiresAt.toEpochMilli());
+    buf.putInt(redirect.length).put(redirect);
+    buf.putInt(null != myDevicePkEncoded ? pk.length : -1).put(pk);
+    return buf.array();
+  }
+
+  /**
+   * Return the device key, decoding it on first use.
+   *
+   * @throws IllegalStateException if the stored encoding can't be decoded
+   */
   public PublicKey getDevicePk() {
-    return myDevicePk;
+    PublicKey pk = myDevicePk;
+    if (null == pk && null != myDevicePkEncoded) {
+      try {
+        pk = new JcaPEMKeyConverter()
+            .getPublicKey(SubjectPublicKeyInfo.getInstance(myDevicePkEncoded));
+      } catch (IOException | RuntimeException e) {
+        throw new IllegalStateException("bad device key in redirection", e);
+      }
+      myDevicePk = pk;
+    }
+    return pk;
+  }
+
+  // The device key's X.509 encoding, or null if there's none.  Not a copy.
+  byte[] getDevicePkEncoded() {
+    return myDevicePkEncoded;
   }
 
   public Instant getExpiresAt() {
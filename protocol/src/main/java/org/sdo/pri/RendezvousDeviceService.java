@@ -8,36 +8,102 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.lang.Character;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.UUID;
+import java.util.function.Predicate;
 
 public class RendezvousDeviceService implements ProtocolService, Serializable {
 
+  /**
+   * The protocol version and message type which start a session with this service.
+   */
+  public static final Entry<Version, MessageType> HELLO =
+      Map.entry(Version.VERSION_1_13, MessageType.TO1_HELLO_SDO);
+
+  // The ResourceNotFound reply to a TO1.HelloSDO, either side of its GUID.
+  private static final String[] NOT_FOUND_BODY = encodeNotFoundBody();
+
   private URL myEpidServiceUrl = EpidConstants.onlineEpidUrlDefault;
-  private transient HttpClient myHttpClient = HttpClient.newBuilder()
-      .version(HttpClient.Version.HTTP_1_1).build();
+  // Built on first use if none is set: each client starts a thread, and most services
+  // never need one.
+  private transient HttpClient myHttpClient = null;
   private boolean myIsDone = false;
   private Nonce myN4 = null;
   private RedirectionEntry myRedirectionEntry = null;
   private transient ObjectStorage<UUID, PerishableRecord> myRedirectionMap;
   private transient SecureRandom mySecureRandom = new SecureRandom();
 
+  /**
+   * Answer a TO1.HelloSDO from a device which has no redirection, without a service.
+   *
+   * <p>Most TO1.HelloSDO messages come from devices polling before their owner has run TO0.
+   * If a cheap test says a device can't have a redirection, this reads only its GUID and
+   * answers with a ready-made ResourceNotFound error.
+   *
+   * @param hello             the TO1.HelloSDO
+   * @param mightBeRegistered tests whether a GUID might have a redirection, never wrongly
+   *                          saying no
+   * @return the error reply, or null if the message needs a service to answer it
+   */
+  public static ProtocolMessage answerUnregistered(
+      ProtocolMessage hello, Predicate<UUID> mightBeRegistered) {
+
+    if (!HELLO.getKey().equals(hello.getVersion()) || !HELLO.getValue().equals(hello.getType())) {
+      return null;
+    }
+
+    final UUID g2;
+    try {
+      g2 = To1HelloSdoCodec.decodeG2(CharBuffer.wrap(hello.getBody()));
+    } catch (IOException | RuntimeException e) {
+      return null; // let a service report the problem
+    }
+
+    if (mightBeRegistered.test(g2)) {
+      return null;
+    } else {
+      return EncodedProtocolMessage.getInstance(Version.VERSION_1_13, MessageType.ERROR,
+          NOT_FOUND_BODY[0] + g2 + NOT_FOUND_BODY[1]);
+    }
+  }
+
+  private static String[] encodeNotFoundBody() {
+    final String marker = "@g2@";
+    final String em = MessageFormat.format(
+        ResourceBundle.getBundle(RendezvousDeviceService.class.getPackageName()
+            + ".RendezvousService").getString("ERR_REDIRECT_NOT_FOUND"), marker);
+    final StringWriter w = new StringWriter();
+    try {
+      new ErrorCodec().encoder().apply(
+          w, new Error(ErrorCode.ResourceNotFound, MessageType.TO1_HELLO_SDO, em));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // writing to a string can't fail
+    }
+    final String body = w.toString();
+    final int at = body.indexOf(marker);
+    return new String[]{body.substring(0, at), body.substring(at + marker.length())};
+  }
+
   private EpidLib buildEpidLib() throws URISyntaxException {
     return new EpidLib(
-        new EpidOnlineMaterial(myEpidServiceUrl.toURI(), myHttpClient),
-        new EpidOnlineVerifier(myEpidServiceUrl.toURI(), myHttpClient));
+        new EpidOnlineMaterial(myEpidServiceUrl.toURI(), getHttpClient()),
+        new EpidOnlineVerifier(myEpidServiceUrl.toURI(), getHttpClient()));
   }
 
   private <T> T decodeMessageBody(
@@ -75,9 +141,19 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
     return w.toString();
   }
 
+  private HttpClient getHttpClient() {
+    if (null == myHttpClient) {
+      myHttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+    return myHttpClient;
+  }
+
   private ProtocolException fail(ErrorCode ec, MessageType cause, String message) {
     finish();
-    return new ProtocolException(new Error(ec, cause, message));
+    final Error error = new Error(ec, cause, message);
+    return ErrorCode.InternalError == ec
+        ? new ProtocolException(error)
+        : ProtocolException.routine(error);
   }
 
   private void finish() {
@@ -91,8 +167,7 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
 
   @Override
   public boolean isHello(ProtocolMessage message) {
-    return Version.VERSION_1_13 == message.getVersion()
-        && MessageType.TO1_HELLO_SDO == message.getType();
+    return HELLO.getKey() == message.getVersion() && HELLO.getValue() == message.getType();
   }
 
   @Override
@@ -186,7 +261,11 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
     // NULL pk means the device key is ECDSA, and we must get it from the voucher header DC.
     PublicKey pk = signatureBlock.getPk();
     if (null == pk) {
-      pk = myRedirectionEntry.getDevicePk();
+      try {
+        pk = myRedirectionEntry.getDevicePk();
+      } catch (IllegalStateException e) {
+        throw fail(ErrorCode.InternalError, to1ProveToSdo.getType(), e.getMessage());
+      }
     }
 
     if (null == pk) {
@@ -242,7 +321,8 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
       } else {
         isVerified = Signatures.verify(signatureBlock.getBo(), signatureBlock.getSg(), pk);
       }
-    } catch (GeneralSecurityException | IOException | URISyntaxException e) {
+    } catch (GeneralSecurityException | IOException | URISyntaxException
+        | IllegalStateException e) {
       throw fail(ErrorCode.InternalError, to1ProveToSdo.getType(), e.getMessage());
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
@@ -280,6 +360,20 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
     return null;
   }
 
+  /**
+   * Return the state this session carries between messages.
+   *
+   * <p>A new service given the state by {@link #setSessionState} carries on the session.
+   */
+  public byte[] getSessionState() {
+    if (null == myN4 || null == myRedirectionEntry) {
+      return new byte[0];
+    }
+    final byte[] n4 = myN4.getBytes();
+    final byte[] entry = myRedirectionEntry.encode();
+    return ByteBuffer.allocate(n4.length + entry.length).put(n4).put(entry).array();
+  }
+
   private byte[] hexToBytes(final String appId) {
     final byte[] appIdBytes = new byte[appId.length() / 2];
     for (int i = 0; i < appId.length(); i += 2) {
@@ -305,6 +399,28 @@ public class RendezvousDeviceService implements ProtocolService, Serializable {
     myRedirectionMap = Objects.requireNonNull(redirectionMap);
   }
 
+  /**
+   * Resume a session from the state returned by {@link #getSessionState}.
+   *
+   * @throws IOException if the state is malformed
+   */
+  public void setSessionState(byte[] state) throws IOException {
+    if (0 == state.length) {
+      myN4 = null;
+      myRedirectionEntry = null;
+      return;
+    }
+    try {
+      final ByteBuffer buf = ByteBuffer.wrap(state);
+      final byte[] n4 = new byte[Nonce.BYTES];
+      buf.get(n4);
+      myN4 = new Nonce(n4);
+      myRedirectionEntry = RedirectionEntry.decode(buf);
+    } catch (RuntimeException e) {
+      throw new IOException(e);
+    }
+  }
+
   public void setSecureRandom(SecureRandom secureRandom) {
     this.mySecureRandom = Objects.requireNonNull(secureRandom);
   }
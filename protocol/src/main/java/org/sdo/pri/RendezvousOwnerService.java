@@ -6,6 +6,7 @@ package org.sdo.pri;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.CharBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PublicKey;
@@ -15,6 +16,8 @@ import java.text.MessageFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.ResourceBundle;
 import java.util.UUID;
@@ -22,6 +25,12 @@ import java.util.function.BiFunction;
 
 public class RendezvousOwnerService implements ProtocolService, Serializable {
 
+  /**
+   * The protocol version and message type which start a session with this service.
+   */
+  public static final Entry<Version, MessageType> HELLO =
+      Map.entry(Version.VERSION_1_13, MessageType.TO0_HELLO);
+
   private boolean myIsDone = false;
   private Nonce myN3 = null;
   private transient ObjectStorage<UUID, PerishableRecord> myRedirectionMap = null;
@@ -66,7 +75,10 @@ public class RendezvousOwnerService implements ProtocolService, Serializable {
 
   private ProtocolException fail(ErrorCode ec, MessageType cause, String message) {
     finish();
-    return new ProtocolException(new Error(ec, cause, message));
+    final Error error = new Error(ec, cause, message);
+    return ErrorCode.InternalError == ec
+        ? new ProtocolException(error)
+        : ProtocolException.routine(error);
   }
 
   private void finish() {
@@ -80,8 +92,7 @@ public class RendezvousOwnerService implements ProtocolService, Serializable {
 
   @Override
   public boolean isHello(ProtocolMessage message) {
-    return Version.VERSION_1_13 == message.getVersion()
-        && MessageType.TO0_HELLO == message.getType();
+    return HELLO.getKey() == message.getVersion() && HELLO.getValue() == message.getType();
   }
 
   @Override
@@ -101,21 +112,27 @@ public class RendezvousOwnerService implements ProtocolService, Serializable {
           MessageFormat.format(format, in.getVersion()));
     }
 
-    switch (in.getType()) {
-      case TO0_HELLO:
-        return next(decodeMessageBody(in, new To0HelloCodec().decoder()::apply));
-
-      case TO0_OWNER_SIGN:
-        To0OwnerSignCodec.Decoder decoder = new To0OwnerSignCodec.Decoder();
-        To0OwnerSign to0OwnerSign = decodeMessageBody(in, decoder);
-        return next(to0OwnerSign, decoder.getLastTo1d().toString());
-
-      default:
-        final String format = loadResourceBundle().getString("ERR_INVALID_MESSAGE_TYPE");
-        throw fail(
-            ErrorCode.MessageRefused,
-            in.getType(),
-            MessageFormat.format(format, in.getType()));
+    try {
+      switch (in.getType()) {
+        case TO0_HELLO:
+          return next(decodeMessageBody(in, new To0HelloCodec().decoder()::apply));
+
+        case TO0_OWNER_SIGN:
+          To0OwnerSignCodec.Decoder decoder = new To0OwnerSignCodec.Decoder();
+          To0OwnerSign to0OwnerSign = decodeMessageBody(in, decoder);
+          return next(to0OwnerSign, decoder.getLastTo1d().toString());
+
+        default:
+          final String format = loadResourceBundle().getString("ERR_INVALID_MESSAGE_TYPE");
+          throw fail(
+              ErrorCode.MessageRefused,
+              in.getType(),
+              MessageFormat.format(format, in.getType()));
+      }
+    } catch (UncheckedIOException e) {
+      // The voucher in TO0.OwnerSign decodes its chain and entries lazily, so malformed ones
+      // only surface here.
+      throw fail(ErrorCode.SyntaxError, in.getType(), e.getMessage());
     }
   }
 
@@ -208,6 +225,15 @@ public class RendezvousOwnerService implements ProtocolService, Serializable {
         to0AcceptOwner.getVersion(), to0AcceptOwner.getType(), responseBody);
   }
 
+  /**
+   * Return the state this session carries between messages.
+   *
+   * <p>A new service given the state by {@link #setSessionState} carries on the session.
+   */
+  public byte[] getSessionState() {
+    return null != myN3 ? myN3.getBytes() : new byte[0];
+  }
+
   private ResourceBundle loadResourceBundle() {
     return ResourceBundle.getBundle(getClass().getPackageName() + ".RendezvousService");
   }
@@ -216,6 +242,19 @@ public class RendezvousOwnerService implements ProtocolService, Serializable {
     myRedirectionMap = Objects.requireNonNull(redirectionMap);
   }
 
+  /**
+   * Resume a session from the state returned by {@link #getSessionState}.
+   *
+   * @throws IOException if the state is malformed
+   */
+  public void setSessionState(byte[] state) throws IOException {
+    try {
+      myN3 = 0 < state.length ? new Nonce(state) : null;
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e);
+    }
+  }
+
   public void setSecureRandom(SecureRandom secureRandom) {
     this.mySecureRandom = Objects.requireNonNull(secureRandom);
   }
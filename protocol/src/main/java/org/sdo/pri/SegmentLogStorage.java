@@ -0,0 +1,533 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ObjectStorage} which appends objects to a log of segment files.
+ *
+ * <p>Writing one file per object costs a file creation and a metadata update each time, and
+ * an fsync on top if the object must survive a crash.  This store appends every object to the
+ * end of the current segment instead, and keeps an in-memory index of where the latest version
+ * of each object lives.
+ *
+ * <p>Stores are durable when {@link #store} returns, and concurrent stores share their syncs:
+ * while one thread syncs the log, the others queue up behind it, and the next sync covers all
+ * of them at once (group commit).
+ *
+ * <p>Segments which fill up are sealed, and a background compactor copies the live objects out
+ * of mostly-dead sealed segments and deletes them.  On startup the index is rebuilt from the
+ * segments' record headers; the newest segment is checked record by record and truncated at
+ * the first torn or corrupt record, which is where a crash would have left it.
+ *
+ * @param <V> the type of the stored objects
+ */
+public class SegmentLogStorage<V extends Serializable>
+    implements ObjectStorage<UUID, V>, Closeable {
+
+  // Record layout: payload length, CRC-32 of GUID and payload, GUID, payload.
+  private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES * 2;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("([0-9a-f]{16})\\.log");
+  // Sealed segments with less than this fraction of live bytes are compacted.
+  private static final double COMPACT_THRESHOLD = 0.5;
+
+  private Segment myActive;
+  private final ScheduledExecutorService myCompactor;
+  private final LongAdder myCompactions = new LongAdder();
+  private final Path myDir;
+  private final Map<UUID, Location> myIndex = new ConcurrentHashMap<>();
+  private final long myMaxSegmentBytes;
+  private final Map<Long, Segment> mySegments = new ConcurrentSkipListMap<>();
+  private final Serializer<V> mySerializer;
+  private final LongAdder myStores = new LongAdder();
+  // Package-private so that tests can hold syncs back while stores pile up.
+  final Object mySyncLock = new Object();
+  private long mySynced = 0;
+  private final LongAdder mySyncs = new LongAdder();
+  // Package-private so that tests can hold compaction copies back while stores go ahead.
+  final Object myWriteLock = new Object();
+  private long myWritten = 0;
+
+  /**
+   * Open a store, recovering whatever is already in its directory.
+   *
+   * @param dir             the directory which holds the segments
+   * @param serializer      converts objects to and from bytes
+   * @param maxSegmentBytes the size at which a segment is sealed and a new one started
+   * @param compactPeriod   the interval between compaction passes, or zero for none
+   * @throws IOException if the directory can't be read or written
+   */
+  public SegmentLogStorage(
+      Path dir,
+      Serializer<V> serializer,
+      long maxSegmentBytes,
+      Duration compactPeriod) throws IOException {
+
+    if (maxSegmentBytes <= HEADER_BYTES) {
+      throw new IllegalArgumentException("segment size too small: " + maxSegmentBytes);
+    }
+
+    myDir = Files.createDirectories(dir);
+    mySerializer = Objects.requireNonNull(serializer);
+    myMaxSegmentBytes = maxSegmentBytes;
+    recover();
+
+    if (compactPeriod.isZero() || compactPeriod.isNegative()) {
+      myCompactor = null;
+    } else {
+      myCompactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, getClass().getSimpleName() + "-compactor");
+        t.setDaemon(true);
+        return t;
+      });
+      final long millis = Math.max(1, compactPeriod.toMillis());
+      myCompactor.scheduleWithFixedDelay(() -> {
+        try {
+          compact();
+        } catch (IOException | RuntimeException e) {
+          logger().warn("segment compaction failed: " + e.getMessage());
+        }
+      }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(SegmentLogStorage.class);
+  }
+
+  private static int crcOf(UUID guid, ByteBuffer payload) {
+    final CRC32 crc = new CRC32();
+    final ByteBuffer guidBytes = ByteBuffer.allocate(Long.BYTES * 2)
+        .putLong(guid.getMostSignificantBits())
+        .putLong(guid.getLeastSignificantBits())
+        .flip();
+    crc.update(guidBytes);
+    crc.update(payload.duplicate());
+    return (int) crc.getValue();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      final int count = channel.read(buf, position);
+      if (count < 0) {
+        throw new EOFException();
+      }
+      position += count;
+    }
+    buf.flip();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  @Override
+  public Optional<V> load(UUID key) {
+    // A segment may be compacted away between the index lookup and the read.
+    // If so, the index has moved on, so look again.
+    for (;;) {
+      final Location location = myIndex.get(key);
+      if (null == location) {
+        return Optional.empty();
+      }
+
+      try {
+        return Optional.of(mySerializer.deserialize(read(key, location)));
+      } catch (ClosedChannelException e) {
+        if (location == myIndex.get(key)) {
+          throw new UncheckedIOException(e);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The object is on stable storage when this returns.
+   *
+   * @throws UncheckedIOException if the object can't be written
+   */
+  @Override
+  public void store(UUID key, V value) {
+    try {
+      sync(append(key, ByteBuffer.wrap(mySerializer.serialize(value)), null));
+      myStores.increment();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copy the live objects out of mostly-dead sealed segments, then delete them.
+   */
+  public void compact() throws IOException {
+    for (Segment segment : List.copyOf(mySegments.values())) {
+      final long live = segment.myLiveBytes.get();
+      if (segment != currentSegment()
+          && (0 == live || live < segment.mySize * COMPACT_THRESHOLD)) {
+        compactSegment(segment);
+      }
+    }
+  }
+
+  /**
+   * Return true if an object is stored under the given key.
+   *
+   * <p>Unlike {@link #load}, this doesn't read the object.
+   */
+  public boolean contains(UUID key) {
+    return myIndex.containsKey(key);
+  }
+
+  /**
+   * Return the number of segments compacted away.
+   */
+  public long getCompactions() {
+    return myCompactions.sum();
+  }
+
+  /**
+   * Return the number of segments.
+   */
+  public int getSegmentCount() {
+    return mySegments.size();
+  }
+
+  /**
+   * Return the number of objects stored.
+   */
+  public long getStores() {
+    return myStores.sum();
+  }
+
+  /**
+   * Return the number of syncs the stores needed.
+   *
+   * <p>With group commit, this can be much smaller than the number of stores.
+   */
+  public long getSyncs() {
+    return mySyncs.sum();
+  }
+
+  /**
+   * Return the number of distinct objects in the store.
+   */
+  public int size() {
+    return myIndex.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (null != myCompactor) {
+      myCompactor.shutdownNow();
+    }
+    synchronized (myWriteLock) {
+      for (Segment segment : mySegments.values()) {
+        segment.myChannel.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{dir=" + myDir
+        + ", size=" + size()
+        + ", segments=" + getSegmentCount()
+        + ", stores=" + getStores()
+        + ", syncs=" + getSyncs()
+        + ", compactions=" + getCompactions()
+        + "}";
+  }
+
+  // Append a record to the active segment and return the log position which must be
+  // synced for it to be durable.
+  //
+  // If expected is not null, this is a compaction copy, which is only written if the index
+  // still points at the expected location.  Otherwise the key has been stored again since
+  // the copy was read, and writing it would put a stale record after the newer one, where
+  // recovery would take it for the latest.
+  private long append(UUID key, ByteBuffer payload, Location expected) throws IOException {
+    final int length = HEADER_BYTES + payload.remaining();
+    final ByteBuffer record = ByteBuffer.allocate(length)
+        .putInt(payload.remaining())
+        .putInt(crcOf(key, payload))
+        .putLong(key.getMostSignificantBits())
+        .putLong(key.getLeastSignificantBits())
+        .put(payload.duplicate())
+        .flip();
+
+    synchronized (myWriteLock) {
+      if (null != expected && expected != myIndex.get(key)) {
+        return myWritten;
+      }
+      if (0 < myActive.mySize && myActive.mySize + length > myMaxSegmentBytes) {
+        roll();
+      }
+
+      final long offset = myActive.mySize;
+      writeFully(myActive.myChannel, record, offset);
+      myActive.mySize += length;
+      myActive.myLiveBytes.addAndGet(length);
+      myWritten += length;
+
+      final Location location = new Location(myActive, offset, length);
+      // Stores only change the index under the write lock, so a copy's expected location
+      // is still current here.
+      final Location previous = myIndex.put(key, location);
+      if (null != previous) {
+        previous.mySegment.myLiveBytes.addAndGet(-previous.myLength);
+      }
+
+      return myWritten;
+    }
+  }
+
+  private void compactSegment(Segment segment) throws IOException {
+    long position = 0;
+    long copied = 0;
+    while (position + HEADER_BYTES <= segment.mySize) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(segment.myChannel, header, position);
+      final int payloadLength = header.getInt();
+      header.getInt(); // crc
+      final UUID key = new UUID(header.getLong(), header.getLong());
+      final int length = HEADER_BYTES + payloadLength;
+
+      final Location location = myIndex.get(key);
+      if (null != location && segment == location.mySegment && position == location.myOffset) {
+        append(key, ByteBuffer.wrap(read(key, location)), location);
+        ++copied;
+      }
+      position += length;
+    }
+
+    // The copies must be durable before the originals go.
+    final long written;
+    synchronized (myWriteLock) {
+      written = myWritten;
+    }
+    sync(written);
+    synchronized (myWriteLock) {
+      mySegments.remove(segment.myId);
+      segment.myChannel.close();
+    }
+    Files.deleteIfExists(segment.myPath);
+    myCompactions.increment();
+    logger().info("compacted segment " + segment.myPath.getFileName() + ", " + copied + " live");
+  }
+
+  private Segment currentSegment() {
+    synchronized (myWriteLock) {
+      return myActive;
+    }
+  }
+
+  private Segment openSegment(long id) throws IOException {
+    final Path path = myDir.resolve(String.format("%016x.log", id));
+    final FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final Segment segment = new Segment(id, path, channel);
+    mySegments.put(id, segment);
+    return segment;
+  }
+
+  // Read and check a record's payload.
+  private byte[] read(UUID key, Location location) throws IOException {
+    final ByteBuffer record = ByteBuffer.allocate(location.myLength);
+    readFully(location.mySegment.myChannel, record, location.myOffset);
+    final int payloadLength = record.getInt();
+    final int crc = record.getInt();
+    final UUID guid = new UUID(record.getLong(), record.getLong());
+    if (HEADER_BYTES + payloadLength != location.myLength
+        || !key.equals(guid)
+        || crc != crcOf(guid, record)) {
+      throw new IOException("corrupt record for " + key + " in " + location.mySegment.myPath);
+    }
+
+    final byte[] payload = new byte[payloadLength];
+    record.get(payload);
+    return payload;
+  }
+
+  private void recover() throws IOException {
+    final List<Long> ids = new ArrayList<>();
+    try (Stream<Path> files = Files.list(myDir)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        final Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          ids.add(Long.parseUnsignedLong(matcher.group(1), 16));
+        }
+      }
+    }
+    ids.sort(null);
+
+    for (int i = 0; i < ids.size(); ++i) {
+      // Only the newest segment can have been cut short by a crash, so only its
+      // payloads are checked here.  Older ones are checked as they're read.
+      final Segment segment = openSegment(ids.get(i));
+      scan(segment, ids.size() - 1 == i);
+      myWritten += segment.mySize;
+    }
+    mySynced = myWritten;
+
+    synchronized (myWriteLock) {
+      myActive = ids.isEmpty() ? openSegment(0) : mySegments.get(ids.get(ids.size() - 1));
+    }
+    logger().info("recovered " + size() + " objects from " + mySegments.size() + " segments in "
+        + myDir);
+  }
+
+  // Must be called with the write lock held.
+  private void roll() throws IOException {
+    myActive.myChannel.force(false);
+    myActive = openSegment(myActive.myId + 1);
+  }
+
+  private void scan(Segment segment, boolean isTail) throws IOException {
+    final long fileSize = segment.myChannel.size();
+    long position = 0;
+    while (position + HEADER_BYTES <= fileSize) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(segment.myChannel, header, position);
+      final int payloadLength = header.getInt();
+      final int crc = header.getInt();
+      final UUID key = new UUID(header.getLong(), header.getLong());
+      if (payloadLength < 0 || position + HEADER_BYTES + payloadLength > fileSize) {
+        break;
+      }
+
+      if (isTail) {
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        readFully(segment.myChannel, payload, position + HEADER_BYTES);
+        if (crc != crcOf(key, payload)) {
+          break;
+        }
+      }
+
+      final int length = HEADER_BYTES + payloadLength;
+      final Location previous = myIndex.put(key, new Location(segment, position, length));
+      if (null != previous) {
+        previous.mySegment.myLiveBytes.addAndGet(-previous.myLength);
+      }
+      segment.myLiveBytes.addAndGet(length);
+      position += length;
+    }
+
+    if (position < fileSize) {
+      logger().warn("truncating " + segment.myPath + " from " + fileSize + " to " + position
+          + " bytes");
+      segment.myChannel.truncate(position);
+      segment.myChannel.force(true);
+    }
+    segment.mySize = position;
+  }
+
+  // Make the log durable up to the given position.
+  // Threads which arrive while another is syncing wait, and usually find their
+  // writes were covered by that sync.
+  private void sync(long position) throws IOException {
+    synchronized (mySyncLock) {
+      if (mySynced >= position) {
+        return;
+      }
+
+      final FileChannel channel;
+      final long written;
+      synchronized (myWriteLock) {
+        // Sealed segments were synced as they were rolled.
+        channel = myActive.myChannel;
+        written = myWritten;
+      }
+      channel.force(false);
+      mySynced = written;
+      mySyncs.increment();
+    }
+  }
+
+  /**
+   * Converts objects to and from bytes.
+   *
+   * @param <V> the type of the objects
+   */
+  public interface Serializer<V> {
+
+    /**
+     * Restore an object from bytes.
+     */
+    V deserialize(byte[] bytes) throws IOException;
+
+    /**
+     * Convert an object to bytes.
+     */
+    byte[] serialize(V value) throws IOException;
+  }
+
+  private static class Location {
+
+    final int myLength;
+    final long myOffset;
+    final Segment mySegment;
+
+    Location(Segment segment, long offset, int length) {
+      mySegment = segment;
+      myOffset = offset;
+      myLength = length;
+    }
+  }
+
+  private static class Segment {
+
+    final FileChannel myChannel;
+    final long myId;
+    final AtomicLong myLiveBytes = new AtomicLong();
+    final Path myPath;
+    // Only changed with the write lock held, or before the store is shared.
+    volatile long mySize = 0;
+
+    Segment(long id, Path path, FileChannel channel) {
+      myId = id;
+      myPath = path;
+      myChannel = channel;
+    }
+  }
+}
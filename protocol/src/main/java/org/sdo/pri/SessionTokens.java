@@ -0,0 +1,135 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.Optional;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals session state into bearer tokens, so a server needn't keep it between messages.
+ *
+ * <p>A token is the state and its expiry time, encrypted and authenticated with AES-GCM under
+ * a key shared by every server which may see the session's next message.  A token which has
+ * been altered, was sealed under another key, or has expired won't open.
+ *
+ * <p>Nothing stops a client presenting the same token twice before it expires.  Services whose
+ * state goes in a token must tolerate that.
+ */
+public class SessionTokens {
+
+  private static final String ALGORITHM = "AES";
+  private static final String CIPHER = "AES/GCM/NoPadding";
+  private static final byte FORMAT = 1;
+  private static final int IV_BYTES = 12;
+  private static final int TAG_BITS = 128;
+
+  private final Clock myClock;
+  private final SecretKey myKey;
+  private final SecureRandom myRandom;
+  private final long myTtlMillis;
+
+  /**
+   * Construct a new token sealer.
+   *
+   * @param key    the AES key shared by every server which opens these tokens
+   * @param ttl    how long a token stays valid
+   * @param random the source of IVs
+   */
+  public SessionTokens(SecretKey key, Duration ttl, SecureRandom random) {
+    this(key, ttl, random, Clock.systemUTC());
+  }
+
+  SessionTokens(SecretKey key, Duration ttl, SecureRandom random, Clock clock) {
+    myKey = Objects.requireNonNull(key);
+    myTtlMillis = ttl.toMillis();
+    myRandom = Objects.requireNonNull(random);
+    myClock = Objects.requireNonNull(clock);
+  }
+
+  /**
+   * Generate a new random key.
+   */
+  public static SecretKey generateKey(SecureRandom random) {
+    final byte[] bytes = new byte[32];
+    random.nextBytes(bytes);
+    return new SecretKeySpec(bytes, ALGORITHM);
+  }
+
+  /**
+   * Decode a base64 AES key of 16, 24 or 32 bytes.
+   */
+  public static SecretKey parseKey(String base64) {
+    final byte[] bytes = Base64.getDecoder().decode(base64.trim());
+    if (16 != bytes.length && 24 != bytes.length && 32 != bytes.length) {
+      throw new IllegalArgumentException("key must be 16, 24 or 32 bytes, not " + bytes.length);
+    }
+    return new SecretKeySpec(bytes, ALGORITHM);
+  }
+
+  /**
+   * Seal session state into a token.
+   *
+   * @param state the state to seal
+   * @return a URL-safe base64 token
+   */
+  public String seal(byte[] state) throws GeneralSecurityException {
+    final byte[] iv = new byte[IV_BYTES];
+    myRandom.nextBytes(iv);
+
+    final Cipher cipher = Cipher.getInstance(CIPHER);
+    cipher.init(Cipher.ENCRYPT_MODE, myKey, new GCMParameterSpec(TAG_BITS, iv));
+    cipher.updateAAD(new byte[]{FORMAT});
+    final ByteBuffer plain = ByteBuffer.allocate(Long.BYTES + state.length)
+        .putLong(myClock.millis() + myTtlMillis)
+        .put(state)
+        .flip();
+
+    final ByteBuffer token =
+        ByteBuffer.allocate(1 + IV_BYTES + cipher.getOutputSize(plain.remaining()));
+    token.put(FORMAT).put(iv);
+    cipher.doFinal(plain, token);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+  }
+
+  /**
+   * Open a token sealed by {@link #seal}.
+   *
+   * @param token the token
+   * @return the sealed state, or empty if the token is malformed, forged or expired
+   */
+  public Optional<byte[]> open(String token) {
+    try {
+      final byte[] bytes = Base64.getUrlDecoder().decode(token);
+      if (bytes.length < 1 + IV_BYTES || FORMAT != bytes[0]) {
+        return Optional.empty();
+      }
+
+      final Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, myKey, new GCMParameterSpec(TAG_BITS, bytes, 1, IV_BYTES));
+      cipher.updateAAD(bytes, 0, 1);
+      final ByteBuffer plain = ByteBuffer.wrap(
+          cipher.doFinal(bytes, 1 + IV_BYTES, bytes.length - 1 - IV_BYTES));
+
+      if (plain.getLong() <= myClock.millis()) {
+        return Optional.empty();
+      }
+      final byte[] state = new byte[plain.remaining()];
+      plain.get(state);
+      return Optional.of(state);
+
+    } catch (GeneralSecurityException | RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+}
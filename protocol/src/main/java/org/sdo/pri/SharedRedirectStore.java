@@ -0,0 +1,352 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store of TO0 redirections held in a key/value server shared by several rendezvous nodes.
+ *
+ * <p>With a store in each node's heap, a device can only complete TO1 at the node which took
+ * its owner's TO0.  With this store, any node behind a load balancer can answer for any device.
+ *
+ * <p>The store speaks the Redis wire protocol (RESP), using only {@code GET}, {@code SET} with
+ * a {@code PX} expiry and {@code DEL}, so any Redis-compatible server will do.  Each
+ * redirection is stored under {@code sdo:redirect:<guid>} and the server expires it when its
+ * TO0 wait time runs out.
+ *
+ * <p>Each node keeps a near-cache of what it has read and written, including lookups which
+ * found nothing.  A cached result is used for at most the near-cache TTL, so a node can see a
+ * redirection which another node has replaced or registered for at most that long.
+ */
+public class SharedRedirectStore implements ObjectStorage<UUID, PerishableRecord>, Closeable {
+
+  private static final String KEY_PREFIX = "sdo:redirect:";
+  private static final int MAX_IDLE_CONNECTIONS = 64;
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private final Clock myClock;
+  private final Queue<Connection> myIdle = new ConcurrentLinkedQueue<>();
+  private volatile boolean myIsClosed = false;
+  private final int myNearCacheMaxEntries;
+  private final LongAdder myNearCacheHits = new LongAdder();
+  private final long myNearCacheTtlMillis;
+  private final Map<UUID, Cached> myNearCache = new ConcurrentHashMap<>();
+  private final LongAdder myServerReads = new LongAdder();
+  private final InetSocketAddress myServer;
+
+  /**
+   * Construct a new store.
+   *
+   * @param server               the key/value server's address
+   * @param nearCacheTtl         how long a node may use a result without asking the server
+   *                             again, or zero to always ask
+   * @param nearCacheMaxEntries  the maximum number of results each node caches
+   */
+  public SharedRedirectStore(
+      InetSocketAddress server, Duration nearCacheTtl, int nearCacheMaxEntries) {
+    this(server, nearCacheTtl, nearCacheMaxEntries, Clock.systemUTC());
+  }
+
+  SharedRedirectStore(
+      InetSocketAddress server, Duration nearCacheTtl, int nearCacheMaxEntries, Clock clock) {
+    myServer = Objects.requireNonNull(server);
+    myNearCacheTtlMillis = Math.max(0, nearCacheTtl.toMillis());
+    myNearCacheMaxEntries = nearCacheMaxEntries;
+    myClock = Objects.requireNonNull(clock);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(SharedRedirectStore.class);
+  }
+
+  /**
+   * Parse a {@code host:port} server address.
+   */
+  public static InetSocketAddress parseAddress(String hostAndPort) {
+    final int colon = hostAndPort.lastIndexOf(':');
+    if (colon < 1) {
+      throw new IllegalArgumentException("expected <host>:<port>, got " + hostAndPort);
+    }
+    return InetSocketAddress.createUnresolved(
+        hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+  }
+
+  @Override
+  public Optional<PerishableRecord> load(UUID key) {
+    final long now = myClock.millis();
+    final Cached cached = myNearCache.get(key);
+    if (null != cached && now < cached.myCachedUntil) {
+      myNearCacheHits.increment();
+      return live(cached.myValue, now);
+    }
+
+    final byte[] bytes;
+    try {
+      bytes = (byte[]) command("GET", keyOf(key));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    myServerReads.increment();
+
+    final RedirectionEntry value;
+    try {
+      value = null != bytes ? RedirectionEntry.decode(ByteBuffer.wrap(bytes)) : null;
+    } catch (IOException e) {
+      throw new UncheckedIOException("bad redirection for " + key, e);
+    }
+    cache(key, value, now);
+    return live(value, now);
+  }
+
+  @Override
+  public void store(UUID key, PerishableRecord value) {
+    if (!(value instanceof RedirectionEntry)) {
+      throw new IllegalArgumentException("unsupported record type: " + value);
+    }
+    final RedirectionEntry entry = (RedirectionEntry) value;
+    final long now = myClock.millis();
+    final long ttlMillis = entry.getExpiresAt().toEpochMilli() - now;
+    try {
+      if (0 < ttlMillis) {
+        command("SET", keyOf(key), entry.encode(), "PX", Long.toString(ttlMillis));
+      } else {
+        command("DEL", keyOf(key));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    cache(key, entry, now);
+  }
+
+  /**
+   * Return the number of lookups answered from the near-cache.
+   */
+  public long getNearCacheHits() {
+    return myNearCacheHits.sum();
+  }
+
+  /**
+   * Return the number of lookups answered by the server.
+   */
+  public long getServerReads() {
+    return myServerReads.sum();
+  }
+
+  /**
+   * Close the pooled connections.
+   */
+  @Override
+  public void close() {
+    myIsClosed = true;
+    for (Connection c; null != (c = myIdle.poll()); ) {
+      c.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{server=" + myServer
+        + ", nearCacheHits=" + getNearCacheHits()
+        + ", serverReads=" + getServerReads()
+        + "}";
+  }
+
+  private static String keyOf(UUID guid) {
+    return KEY_PREFIX + guid;
+  }
+
+  private static Optional<PerishableRecord> live(RedirectionEntry value, long now) {
+    return null != value && now < value.getExpiresAt().toEpochMilli()
+        ? Optional.of(value) : Optional.empty();
+  }
+
+  private void cache(UUID key, RedirectionEntry value, long now) {
+    if (0 < myNearCacheTtlMillis) {
+      // Wholesale clearing is crude, but cheap, and only costs a round of server reads.
+      if (myNearCache.size() >= myNearCacheMaxEntries) {
+        myNearCache.clear();
+      }
+      myNearCache.put(key, new Cached(value, now + myNearCacheTtlMillis));
+    }
+  }
+
+  // Send one command on a pooled connection and return its reply.
+  //
+  // The server may have closed a pooled connection while it sat idle, so a command which
+  // fails on one is sent once more on a new connection.  Every command used is idempotent.
+  private Object command(Object... args) throws IOException {
+    if (myIsClosed) {
+      throw new IOException(getClass().getSimpleName() + " is closed");
+    }
+    final Connection pooled = myIdle.poll();
+    if (null != pooled) {
+      try {
+        return release(pooled, pooled.command(args));
+      } catch (ServerError | RuntimeException e) {
+        pooled.close();
+        throw e;
+      } catch (IOException e) {
+        pooled.close();
+        logger().debug("pooled connection failed, reconnecting: " + e.getMessage());
+      }
+    }
+
+    final Connection c = new Connection(myServer);
+    try {
+      return release(c, c.command(args));
+    } catch (IOException | RuntimeException e) {
+      c.close();
+      throw e;
+    }
+  }
+
+  // Return a connection to the pool, and pass its reply through.
+  private Object release(Connection c, Object reply) {
+    if (myIsClosed || myIdle.size() >= MAX_IDLE_CONNECTIONS) {
+      c.close();
+    } else {
+      myIdle.offer(c);
+    }
+    return reply;
+  }
+
+  // An error reply.  The connection is fine, so there's no point retrying on another.
+  static class ServerError extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ServerError(String message) {
+      super("server error: " + message);
+    }
+  }
+
+  private static class Cached {
+
+    final long myCachedUntil;
+    final RedirectionEntry myValue; // null if the server had none
+
+    Cached(RedirectionEntry value, long cachedUntil) {
+      myValue = value;
+      myCachedUntil = cachedUntil;
+    }
+  }
+
+  /**
+   * One RESP client connection.
+   *
+   * <p>Commands go out as arrays of bulk strings.  Replies come back as a String for a simple
+   * string, a Long for an integer, or a byte[] (null if absent) for a bulk string.
+   */
+  static class Connection implements Closeable {
+
+    private final InputStream myIn;
+    private final OutputStream myOut;
+    private final Socket mySocket;
+
+    Connection(InetSocketAddress address) throws IOException {
+      final InetSocketAddress resolved = address.isUnresolved()
+          ? new InetSocketAddress(address.getHostString(), address.getPort())
+          : address;
+      mySocket = new Socket();
+      try {
+        mySocket.connect(resolved, TIMEOUT_MILLIS);
+        mySocket.setSoTimeout(TIMEOUT_MILLIS);
+        mySocket.setTcpNoDelay(true);
+        myIn = new BufferedInputStream(mySocket.getInputStream());
+        myOut = new BufferedOutputStream(mySocket.getOutputStream());
+      } catch (IOException e) {
+        mySocket.close();
+        throw e;
+      }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+      final ByteArrayOutputStream line = new ByteArrayOutputStream();
+      for (int b; '\n' != (b = in.read()); ) {
+        if (b < 0) {
+          throw new EOFException();
+        }
+        line.write(b);
+      }
+      final byte[] bytes = line.toByteArray();
+      final int length = 0 < bytes.length && '\r' == bytes[bytes.length - 1]
+          ? bytes.length - 1 : bytes.length;
+      return new String(bytes, 0, length, US_ASCII);
+    }
+
+    static void writeBulk(OutputStream out, byte[] bytes) throws IOException {
+      out.write(("$" + bytes.length + "\r\n").getBytes(US_ASCII));
+      out.write(bytes);
+      out.write("\r\n".getBytes(US_ASCII));
+    }
+
+    static byte[] readBulk(InputStream in, int length) throws IOException {
+      final byte[] bytes = in.readNBytes(length);
+      if (bytes.length != length || '\r' != in.read() || '\n' != in.read()) {
+        throw new EOFException();
+      }
+      return bytes;
+    }
+
+    Object command(Object... args) throws IOException {
+      myOut.write(("*" + args.length + "\r\n").getBytes(US_ASCII));
+      for (Object arg : args) {
+        writeBulk(myOut, arg instanceof byte[] ? (byte[]) arg : arg.toString().getBytes(US_ASCII));
+      }
+      myOut.flush();
+
+      final String line = readLine(myIn);
+      final String rest = line.substring(Math.min(1, line.length()));
+      switch (line.isEmpty() ? ' ' : line.charAt(0)) {
+        case '+':
+          return rest;
+        case '-':
+          throw new ServerError(rest);
+        case ':':
+          return Long.parseLong(rest);
+        case '$':
+          final int length = Integer.parseInt(rest);
+          return 0 <= length ? readBulk(myIn, length) : null;
+        default:
+          throw new IOException("unexpected reply: " + line);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        mySocket.close();
+      } catch (IOException e) {
+        logger().debug("close failed: " + e.getMessage());
+      }
+    }
+  }
+}
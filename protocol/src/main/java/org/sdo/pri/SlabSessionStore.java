@@ -0,0 +1,635 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An off-heap store for serialized protocol sessions.
+ *
+ * <p>Session bytes live in fixed-size slabs, which are either direct {@link ByteBuffer}s or,
+ * if a directory is given, memory-mapped regions of temporary files in that directory.
+ * Either way the bytes never occupy the Java heap, so a few million concurrent sessions
+ * don't turn into a few million old-generation arrays for the garbage collector to trace.
+ *
+ * <p>The store is split into independently locked segments.  Each segment owns its slabs and
+ * an open-addressed index of primitive arrays keyed by the two halves of the session UUID,
+ * so the on-heap cost of a session is a few dozen bytes of array slots and no objects.
+ *
+ * <p>Each segment appends to one slab at a time.  Space is freed when a session is taken or
+ * expires; a slab whose sessions are all gone is reused, and the background maintenance pass
+ * compacts slabs which are mostly empty by moving their remaining sessions to the current
+ * slab.  If a segment has no room left, {@link #put} refuses the session and the caller
+ * must keep it elsewhere.
+ *
+ * <p>Memory-mapped files are deleted on close, but their mappings are only released when
+ * their buffers are garbage collected.
+ */
+public class SlabSessionStore implements Closeable {
+
+  // Slabs whose live bytes fall below this fraction of their size are compacted.
+  private static final double COMPACTION_THRESHOLD = 0.5;
+  private static final int DEFAULT_SEGMENTS = 16;
+  private static final int DEFAULT_SLAB_BYTES = 1 << 20;
+  private static final int INITIAL_INDEX_CAPACITY = 1 << 10;
+  private static final int MIN_SLAB_BYTES = 1 << 16;
+
+  private final LongAdder myCompactions = new LongAdder();
+  private final Path myDirectory;
+  private final LongAdder myExpirations = new LongAdder();
+  private final LongAdder myHits = new LongAdder();
+  private final AtomicLong myLiveBytes = new AtomicLong();
+  private final ScheduledExecutorService myMaintainer;
+  private final LongAdder myMisses = new LongAdder();
+  private final LongAdder myRejections = new LongAdder();
+  private final List<Segment> mySegments;
+  private final int mySlabBytes;
+  private final long myTtlNanos;
+
+  /**
+   * Construct a new store.
+   *
+   * <p>Slabs are 1 MiB, or smaller if the capacity is too small for two per segment, down to
+   * 64 KiB.  The slab size is also the largest session the store will take.
+   *
+   * @param ttl       the idle time after which a session expires
+   * @param capacity  the maximum number of bytes of slab space to allocate, at least 2 MiB
+   * @param directory the directory for memory-mapped slab files, or null for direct buffers
+   */
+  public SlabSessionStore(Duration ttl, long capacity, Path directory) {
+    this(ttl, capacity, directory, slabBytesFor(capacity), DEFAULT_SEGMENTS,
+        maintenancePeriodOf(ttl));
+  }
+
+  /**
+   * Construct a new store.
+   *
+   * @param ttl               the idle time after which a session expires
+   * @param capacity          the maximum number of bytes of slab space to allocate
+   * @param directory         the directory for memory-mapped slab files,
+   *                          or null for direct buffers
+   * @param slabBytes         the size of each slab, which is also the largest storable session
+   * @param segments          the number of lock stripes
+   * @param maintenancePeriod the interval between background expiry and compaction passes
+   */
+  public SlabSessionStore(
+      Duration ttl,
+      long capacity,
+      Path directory,
+      int slabBytes,
+      int segments,
+      Duration maintenancePeriod) {
+
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    }
+    if (slabBytes < 1 || segments < 1) {
+      throw new IllegalArgumentException("slab size and segments must be positive");
+    }
+
+    // Every segment needs at least two slabs: one to write and one to compact into it.
+    final long slabsPerSegment = capacity / slabBytes / segments;
+    if (slabsPerSegment < 2) {
+      throw new IllegalArgumentException("off-heap session capacity " + capacity
+          + " is too small; at least " + 2L * slabBytes * segments + " bytes are needed for "
+          + segments + " segments of two " + slabBytes + "-byte slabs");
+    }
+
+    myTtlNanos = ttl.toNanos();
+    myDirectory = directory;
+    mySlabBytes = slabBytes;
+    mySegments = new ArrayList<>(segments);
+    for (int i = 0; i < segments; i++) {
+      mySegments.add(new Segment((int) Math.min(Integer.MAX_VALUE, slabsPerSegment)));
+    }
+
+    myMaintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-maintainer");
+      t.setDaemon(true);
+      return t;
+    });
+    final long period = Math.max(1, maintenancePeriod.toMillis());
+    myMaintainer.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  // Shrink the slabs to fit small capacities, but not so far that ordinary sessions won't fit.
+  private static int slabBytesFor(long capacity) {
+    final long fit = Integer.highestOneBit((int) Math.min(
+        Integer.MAX_VALUE, Math.max(1, capacity / DEFAULT_SEGMENTS / 2)));
+    return (int) Math.max(MIN_SLAB_BYTES, Math.min(DEFAULT_SLAB_BYTES, fit));
+  }
+
+  private static Duration maintenancePeriodOf(Duration ttl) {
+    Duration period = ttl.dividedBy(8);
+    return period.compareTo(Duration.ofSeconds(1)) < 0 ? Duration.ofSeconds(1) : period;
+  }
+
+  // Random UUIDs are already well mixed, but this store must not assume they're random.
+  private static int hash(long msb, long lsb) {
+    long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private Logger logger() {
+    return LoggerFactory.getLogger(getClass());
+  }
+
+  // Segments are chosen by the hash's high bits and index slots by its low bits,
+  // so a segment's index doesn't inherit the segment choice as a stuck bit pattern.
+  private Segment segmentFor(int hash) {
+    return mySegments.get((Integer.reverse(hash) & 0x7fffffff) % mySegments.size());
+  }
+
+  /**
+   * Store a session, replacing any session already stored under the same key.
+   *
+   * @param key   the key
+   * @param bytes the serialized session
+   * @return true if the session was stored, false if there was no room for it
+   */
+  public boolean put(UUID key, byte[] bytes) {
+    return put(key, bytes, System.nanoTime() + myTtlNanos);
+  }
+
+  /**
+   * Store a session which has only part of its TTL left, such as one moved from another store.
+   *
+   * @param key   the key
+   * @param bytes the serialized session
+   * @param ttl   the time the session has left, at most the store's TTL
+   * @return true if the session was stored, false if there was no room for it
+   */
+  public boolean put(UUID key, byte[] bytes, Duration ttl) {
+    return put(key, bytes, System.nanoTime() + Math.min(myTtlNanos, Math.max(0, ttl.toNanos())));
+  }
+
+  private boolean put(UUID key, byte[] bytes, long expiresAt) {
+    final long msb = key.getMostSignificantBits();
+    final long lsb = key.getLeastSignificantBits();
+    final int hash = hash(msb, lsb);
+
+    if (bytes.length <= mySlabBytes
+        && segmentFor(hash).put(hash, msb, lsb, bytes, expiresAt)) {
+      return true;
+    } else {
+      myRejections.increment();
+      return false;
+    }
+  }
+
+  /**
+   * Remove and return the session stored under the given key.
+   *
+   * @param key the key
+   * @return the serialized session, or null if no live session exists
+   */
+  public byte[] take(UUID key) {
+    final long msb = key.getMostSignificantBits();
+    final long lsb = key.getLeastSignificantBits();
+    final int hash = hash(msb, lsb);
+    final byte[] bytes = segmentFor(hash).take(hash, msb, lsb, System.nanoTime());
+
+    if (null != bytes) {
+      myHits.increment();
+    } else {
+      myMisses.increment();
+    }
+    return bytes;
+  }
+
+  /**
+   * Remove every expired session, then compact sparsely used slabs.
+   *
+   * <p>This runs periodically in the background and need not be called directly.
+   */
+  public void maintain() {
+    final long now = System.nanoTime();
+    for (Segment segment : mySegments) {
+      segment.expire(now);
+      segment.compact();
+    }
+
+    if (logger().isDebugEnabled()) {
+      logger().debug(toString());
+    }
+  }
+
+  /**
+   * Return the number of bytes of slab space allocated.
+   */
+  public long getAllocatedBytes() {
+    long slabs = 0;
+    for (Segment segment : mySegments) {
+      slabs += segment.slabCount();
+    }
+    return slabs * mySlabBytes;
+  }
+
+  /**
+   * Return the number of sessions moved by compaction.
+   */
+  public long getCompactions() {
+    return myCompactions.sum();
+  }
+
+  /**
+   * Return the number of sessions removed because their TTL elapsed.
+   */
+  public long getExpirations() {
+    return myExpirations.sum();
+  }
+
+  /**
+   * Return the number of successful takes.
+   */
+  public long getHits() {
+    return myHits.sum();
+  }
+
+  /**
+   * Return the total size of all stored sessions.
+   */
+  public long getLiveBytes() {
+    return myLiveBytes.get();
+  }
+
+  /**
+   * Return the number of takes which found no live session.
+   */
+  public long getMisses() {
+    return myMisses.sum();
+  }
+
+  /**
+   * Return the number of puts refused for lack of room.
+   */
+  public long getRejections() {
+    return myRejections.sum();
+  }
+
+  /**
+   * Return the number of stored sessions.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : mySegments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    myMaintainer.shutdownNow();
+
+    IOException failure = null;
+    for (Segment segment : mySegments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    if (null != failure) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{size=" + size()
+        + ", liveBytes=" + getLiveBytes()
+        + ", allocatedBytes=" + getAllocatedBytes()
+        + ", hits=" + getHits()
+        + ", misses=" + getMisses()
+        + ", expirations=" + getExpirations()
+        + ", compactions=" + getCompactions()
+        + ", rejections=" + getRejections()
+        + "}";
+  }
+
+  private class Segment {
+
+    private static final int EMPTY = -1;
+
+    private FileChannel myChannel = null;
+    private Path myFile = null;
+    private final int[] myFreeSlabs;
+    private int myFreeSlabCount = 0;
+    private final int[] mySlabLiveBytes;
+    private final ByteBuffer[] mySlabs;
+    private int mySlabCount = 0;
+    private int myWritePosition = 0;
+    private int myWriteSlab = EMPTY;
+
+    // The index: parallel arrays, linear probing, backward-shift deletion.
+    // A slot is empty if its length is EMPTY.
+    private long[] myExpiries;
+    private long[] myLocations;
+    private int[] myLengths;
+    private long[] myLsbs;
+    private long[] myMsbs;
+    private int mySize = 0;
+
+    Segment(int maxSlabs) {
+      mySlabs = new ByteBuffer[maxSlabs];
+      mySlabLiveBytes = new int[maxSlabs];
+      myFreeSlabs = new int[maxSlabs];
+      allocateIndex(INITIAL_INDEX_CAPACITY);
+    }
+
+    synchronized boolean put(int hash, long msb, long lsb, byte[] bytes, long expiresAt) {
+      int slot = find(hash, msb, lsb);
+      if (EMPTY != slot) {
+        release(slot);
+        removeAt(slot);
+      }
+
+      final long location = allocate(bytes.length);
+      if (location < 0) {
+        return false;
+      }
+
+      final ByteBuffer slab = mySlabs[slabOf(location)];
+      slab.position(offsetOf(location));
+      slab.put(bytes);
+
+      if ((mySize + 1) * 2 > myLengths.length) {
+        resize(myLengths.length * 2);
+      }
+      slot = hash & (myLengths.length - 1);
+      while (EMPTY != myLengths[slot]) {
+        slot = (slot + 1) & (myLengths.length - 1);
+      }
+      myMsbs[slot] = msb;
+      myLsbs[slot] = lsb;
+      myLocations[slot] = location;
+      myLengths[slot] = bytes.length;
+      myExpiries[slot] = expiresAt;
+      mySize++;
+      myLiveBytes.addAndGet(bytes.length);
+      return true;
+    }
+
+    synchronized byte[] take(int hash, long msb, long lsb, long now) {
+      final int slot = find(hash, msb, lsb);
+      if (EMPTY == slot) {
+        return null;
+      }
+
+      byte[] bytes = null;
+      if (now - myExpiries[slot] > 0) {
+        myExpirations.increment();
+      } else {
+        bytes = new byte[myLengths[slot]];
+        final ByteBuffer slab = mySlabs[slabOf(myLocations[slot])];
+        slab.position(offsetOf(myLocations[slot]));
+        slab.get(bytes);
+      }
+
+      release(slot);
+      removeAt(slot);
+      return bytes;
+    }
+
+    synchronized void expire(long now) {
+      int slot = 0;
+      while (slot < myLengths.length) {
+        if (EMPTY != myLengths[slot] && now - myExpiries[slot] > 0) {
+          release(slot);
+          removeAt(slot);
+          myExpirations.increment();
+          // removeAt may have shifted another entry into this slot, so look again.
+        } else {
+          slot++;
+        }
+      }
+    }
+
+    synchronized void compact() {
+      for (int slab = 0; slab < mySlabCount; slab++) {
+        if (slab == myWriteSlab
+            || 0 == mySlabLiveBytes[slab]
+            || mySlabLiveBytes[slab] >= mySlabBytes * COMPACTION_THRESHOLD) {
+          continue;
+        }
+
+        for (int slot = 0; slot < myLengths.length && 0 < mySlabLiveBytes[slab]; slot++) {
+          if (EMPTY == myLengths[slot] || slabOf(myLocations[slot]) != slab) {
+            continue;
+          }
+
+          final long to = allocate(myLengths[slot]);
+          if (to < 0) {
+            return; // no room to compact into; try again next time
+          }
+
+          final ByteBuffer src = mySlabs[slab].duplicate();
+          src.position(offsetOf(myLocations[slot]));
+          src.limit(src.position() + myLengths[slot]);
+          final ByteBuffer dst = mySlabs[slabOf(to)];
+          dst.position(offsetOf(to));
+          dst.put(src);
+
+          release(slot);
+          myLocations[slot] = to;
+          myLiveBytes.addAndGet(myLengths[slot]);
+          myCompactions.increment();
+        }
+      }
+    }
+
+    synchronized int size() {
+      return mySize;
+    }
+
+    synchronized int slabCount() {
+      return mySlabCount;
+    }
+
+    synchronized void close() throws IOException {
+      Arrays.fill(mySlabs, null);
+      mySlabCount = 0;
+      myFreeSlabCount = 0;
+      myWriteSlab = EMPTY;
+      allocateIndex(INITIAL_INDEX_CAPACITY);
+
+      if (null != myChannel) {
+        myChannel.close();
+        Files.deleteIfExists(myFile);
+      }
+    }
+
+    private int slabOf(long location) {
+      return (int) (location >>> 32);
+    }
+
+    private int offsetOf(long location) {
+      return (int) location;
+    }
+
+    // Reserve space in the write slab, moving to a fresh slab if it's full.
+    // Returns the location of the reserved space, or -1 if there's no room left.
+    private long allocate(int length) {
+      if (EMPTY == myWriteSlab || myWritePosition + length > mySlabBytes) {
+        final int next = nextSlab();
+        if (EMPTY == next) {
+          return -1;
+        }
+
+        final int previous = myWriteSlab;
+        myWriteSlab = next;
+        myWritePosition = 0;
+        if (EMPTY != previous && 0 == mySlabLiveBytes[previous]) {
+          freeSlab(previous);
+        }
+      }
+
+      final long location = ((long) myWriteSlab << 32) | myWritePosition;
+      myWritePosition += length;
+      mySlabLiveBytes[myWriteSlab] += length;
+      return location;
+    }
+
+    private int nextSlab() {
+      if (0 < myFreeSlabCount) {
+        return myFreeSlabs[--myFreeSlabCount];
+
+      } else if (mySlabCount < mySlabs.length) {
+        try {
+          mySlabs[mySlabCount] = newSlab(mySlabCount);
+        } catch (IOException e) {
+          logger().error("failed to allocate slab: " + e.getMessage(), e);
+          return EMPTY;
+        }
+        return mySlabCount++;
+
+      } else {
+        return EMPTY;
+      }
+    }
+
+    private ByteBuffer newSlab(int index) throws IOException {
+      if (null == myDirectory) {
+        return ByteBuffer.allocateDirect(mySlabBytes);
+      }
+
+      if (null == myChannel) {
+        myFile = Files.createTempFile(myDirectory, "sessions", ".slab");
+        myChannel = FileChannel.open(myFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+      return myChannel.map(FileChannel.MapMode.READ_WRITE, (long) index * mySlabBytes, mySlabBytes);
+    }
+
+    private void freeSlab(int slab) {
+      myFreeSlabs[myFreeSlabCount++] = slab;
+    }
+
+    // Give back the slab space held by the entry in the given slot.
+    private void release(int slot) {
+      final int slab = slabOf(myLocations[slot]);
+      mySlabLiveBytes[slab] -= myLengths[slot];
+      myLiveBytes.addAndGet(-myLengths[slot]);
+      if (slab != myWriteSlab && 0 == mySlabLiveBytes[slab]) {
+        freeSlab(slab);
+      }
+    }
+
+    private int find(int hash, long msb, long lsb) {
+      final int mask = myLengths.length - 1;
+      for (int slot = hash & mask; EMPTY != myLengths[slot]; slot = (slot + 1) & mask) {
+        if (msb == myMsbs[slot] && lsb == myLsbs[slot]) {
+          return slot;
+        }
+      }
+      return EMPTY;
+    }
+
+    private void removeAt(int slot) {
+      final int mask = myLengths.length - 1;
+      int hole = slot;
+      int next = slot;
+
+      while (true) {
+        next = (next + 1) & mask;
+        if (EMPTY == myLengths[next]) {
+          break;
+        }
+
+        // An entry may only move back into the hole if that doesn't put it before its home slot.
+        final int home = hash(myMsbs[next], myLsbs[next]) & mask;
+        final boolean movable = hole <= next
+            ? home <= hole || home > next
+            : home <= hole && home > next;
+
+        if (movable) {
+          myMsbs[hole] = myMsbs[next];
+          myLsbs[hole] = myLsbs[next];
+          myLocations[hole] = myLocations[next];
+          myLengths[hole] = myLengths[next];
+          myExpiries[hole] = myExpiries[next];
+          hole = next;
+        }
+      }
+
+      myLengths[hole] = EMPTY;
+      mySize--;
+    }
+
+    private void allocateIndex(int capacity) {
+      myMsbs = new long[capacity];
+      myLsbs = new long[capacity];
+      myLocations = new long[capacity];
+      myLengths = new int[capacity];
+      myExpiries = new long[capacity];
+      Arrays.fill(myLengths, EMPTY);
+      mySize = 0;
+    }
+
+    private void resize(int capacity) {
+      final long[] msbs = myMsbs;
+      final long[] lsbs = myLsbs;
+      final long[] locations = myLocations;
+      final int[] lengths = myLengths;
+      final long[] expiries = myExpiries;
+
+      allocateIndex(capacity);
+      final int mask = capacity - 1;
+      for (int i = 0; i < lengths.length; i++) {
+        if (EMPTY != lengths[i]) {
+          int slot = hash(msbs[i], lsbs[i]) & mask;
+          while (EMPTY != myLengths[slot]) {
+            slot = (slot + 1) & mask;
+          }
+          myMsbs[slot] = msbs[i];
+          myLsbs[slot] = lsbs[i];
+          myLocations[slot] = locations[i];
+          myLengths[slot] = lengths[i];
+          myExpiries[slot] = expiries[i];
+          mySize++;
+        }
+      }
+    }
+  }
+}
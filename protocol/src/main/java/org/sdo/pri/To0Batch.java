@@ -0,0 +1,403 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertPath;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import org.sdo.pri.RendezvousInstr.Only;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs TO0 for a large batch of ownership vouchers.
+ *
+ * <p>TO0 is two round trips per voucher, so registering vouchers one at a time spends nearly
+ * all its time waiting.  The batch streams voucher files from directories and runs many
+ * registrations at once, limiting how many are in flight to any one rendezvous host.  A
+ * voucher which fails at every one of its rendezvous URIs is tried again after a jittered,
+ * exponentially growing delay, up to a fixed number of attempts.
+ *
+ * <p>Each accepted registration is appended to a checkpoint file.  A batch run again with the
+ * same checkpoint skips vouchers whose registration is less than half way to its expiry, so an
+ * interrupted batch resumes where it left off, and a later one renews only what needs it.
+ */
+public class To0Batch {
+
+  private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(5);
+  private static final Duration PROGRESS_PERIOD = Duration.ofSeconds(10);
+
+  private final Predicate<CertPath> myCertPathValidator;
+  private final Path myCheckpoint;
+  private final int myMaxAttempts;
+  private final int myParallelism;
+  private final int myPerHostConcurrency;
+  private final Registrar myRegistrar;
+  private final Duration myRetryDelay;
+
+  /**
+   * Construct a new batch.
+   *
+   * @param registrar          runs one TO0 exchange
+   * @param certPathValidator  tests each voucher's device certificate path, if it has one
+   * @param parallelism        the number of vouchers in progress at once
+   * @param perHostConcurrency the number of TO0 exchanges in flight to any one host at once
+   * @param maxAttempts        the number of times to try each voucher's rendezvous URIs
+   * @param retryDelay         the delay before the second attempt, doubling for each after
+   * @param checkpoint         the file recording accepted registrations
+   */
+  public To0Batch(Registrar registrar,
+      Predicate<CertPath> certPathValidator,
+      int parallelism,
+      int perHostConcurrency,
+      int maxAttempts,
+      Duration retryDelay,
+      Path checkpoint) {
+
+    if (parallelism < 1 || perHostConcurrency < 1 || maxAttempts < 1) {
+      throw new IllegalArgumentException("parallelism, perHostConcurrency and maxAttempts"
+          + " must be positive");
+    }
+    myRegistrar = Objects.requireNonNull(registrar);
+    myCertPathValidator = Objects.requireNonNull(certPathValidator);
+    myParallelism = parallelism;
+    myPerHostConcurrency = perHostConcurrency;
+    myMaxAttempts = maxAttempts;
+    myRetryDelay = Objects.requireNonNull(retryDelay);
+    myCheckpoint = Objects.requireNonNull(checkpoint);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(To0Batch.class);
+  }
+
+  // Requests to different ports on one machine still share its capacity.
+  private static String hostOf(URI uri) {
+    return String.valueOf(uri.getHost()).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Register every voucher in the given files and directories.
+   *
+   * <p>Directories are read one entry at a time, and only regular files in them are taken.
+   *
+   * @param sources voucher files, and directories of them
+   * @return the counts and latencies of the batch
+   */
+  public Report run(List<Path> sources) throws IOException, InterruptedException {
+
+    final Progress progress = new Progress();
+    final AtomicInteger workers = new AtomicInteger();
+    final ExecutorService pool = Executors.newFixedThreadPool(myParallelism, r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-" + workers.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    final long period = PROGRESS_PERIOD.toMillis();
+    reporter.scheduleAtFixedRate(() -> logger().info(progress.toReport().toString()),
+        period, period, TimeUnit.MILLISECONDS);
+
+    try (To0Checkpoint checkpoint = To0Checkpoint.open(myCheckpoint)) {
+
+      final Run run = new Run(currentIn(checkpoint), checkpoint, pool, progress);
+      for (Path source : sources) {
+        if (Files.isDirectory(source)) {
+          try (DirectoryStream<Path> files =
+              Files.newDirectoryStream(source, Files::isRegularFile)) {
+            for (Path file : files) {
+              run.submit(file);
+            }
+          }
+        } else {
+          run.submit(source);
+        }
+      }
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    } finally {
+      pool.shutdownNow();
+      reporter.shutdownNow();
+    }
+
+    final Report report = progress.toReport();
+    logger().info(report.toString());
+    return report;
+  }
+
+  // Exponential backoff with jitter, so vouchers which failed together don't retry together.
+  private long retryDelayMillis(int attempt) {
+    final long base = Math.min(MAX_RETRY_DELAY.toMillis(),
+        myRetryDelay.toMillis() << Math.min(attempt - 1, 20));
+    return (long) (base * (0.5 + ThreadLocalRandom.current().nextDouble()));
+  }
+
+  // Return the GUIDs whose latest registration is less than half way to expiry.
+  private Set<UUID> currentIn(To0Checkpoint checkpoint) {
+    final Instant now = Instant.now();
+    final Set<UUID> current = new HashSet<>();
+    checkpoint.getRegistrations().forEach((guid, registration) -> {
+      if (now.isBefore(registration.getAfter(0.5))) {
+        current.add(guid);
+      }
+    });
+    if (!current.isEmpty()) {
+      logger().info(current.size() + " registrations in " + myCheckpoint + " are current");
+    }
+    return current;
+  }
+
+  /**
+   * Return the URIs at which a voucher's owner registers, each once.
+   */
+  static Set<URI> ownerUris(OwnershipVoucher113 voucher) throws URISyntaxException {
+    final Set<URI> uris = new LinkedHashSet<>();
+    for (RendezvousInstr instr : voucher.getOh().getR()) {
+      uris.addAll(instr.toUris(Only.owner));
+    }
+    return uris;
+  }
+
+  /**
+   * Runs one TO0 exchange for a voucher with one rendezvous server.
+   */
+  public interface Registrar {
+
+    /**
+     * Register a voucher.
+     *
+     * @return the wait time the server accepted
+     * @throws Exception if the server didn't accept the registration
+     */
+    Duration register(OwnershipVoucher voucher, URI rendezvous) throws Exception;
+  }
+
+  // The state of one run of the batch.
+  private class Run {
+
+    private final To0Checkpoint myCheckpointFile;
+    private final Set<UUID> myCurrent;
+    private final Map<String, Semaphore> myHosts = new ConcurrentHashMap<>();
+    private final ExecutorService myPool;
+    private final Progress myProgress;
+    // The queue is bounded too, so the directories are read only as fast as vouchers finish.
+    private final Semaphore myQueued = new Semaphore(2 * myParallelism);
+
+    Run(Set<UUID> current, To0Checkpoint checkpoint, ExecutorService pool, Progress progress) {
+      myCurrent = current;
+      myCheckpointFile = checkpoint;
+      myPool = pool;
+      myProgress = progress;
+    }
+
+    void submit(Path file) throws InterruptedException {
+      myQueued.acquire();
+      myPool.execute(() -> {
+        try {
+          register(file);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          myProgress.myFailed.increment();
+          logger().error("TO0 failed for " + file + ": " + e.getMessage(), e);
+        } finally {
+          myQueued.release();
+        }
+      });
+    }
+
+    // Register one voucher, trying each of its rendezvous URIs until one accepts it.
+    private void register(Path file) throws InterruptedException {
+
+      myProgress.mySubmitted.increment();
+      final OwnershipVoucher113 voucher;
+      final Set<URI> uris;
+      try {
+        final OwnershipVoucher parsed = new OwnershipVoucherParser().readObject(file);
+        if (!(parsed instanceof OwnershipVoucher113)) {
+          throw new IOException("unsupported voucher type");
+        }
+        voucher = (OwnershipVoucher113) parsed;
+        if (myCurrent.contains(voucher.getUuid())) {
+          myProgress.mySkipped.increment();
+          return;
+        }
+        final CertPath dc = voucher.getDc();
+        if (null != dc && !myCertPathValidator.test(dc)) {
+          throw new IOException("device certificate path is invalid");
+        }
+        uris = ownerUris(voucher);
+        if (uris.isEmpty()) {
+          throw new IOException("no rendezvous URIs for the owner");
+        }
+      } catch (IOException | URISyntaxException | RuntimeException e) {
+        myProgress.myFailed.increment();
+        logger().warn("TO0 skipped for " + file + ": " + e.getMessage());
+        return;
+      }
+
+      String lastError = null;
+      for (int attempt = 0; attempt < myMaxAttempts; ++attempt) {
+        if (0 < attempt) {
+          myProgress.myRetries.increment();
+          TimeUnit.MILLISECONDS.sleep(retryDelayMillis(attempt));
+        }
+
+        for (URI uri : uris) {
+          final Semaphore host =
+              myHosts.computeIfAbsent(hostOf(uri), h -> new Semaphore(myPerHostConcurrency));
+          final long start;
+          final Duration ws;
+          host.acquire();
+          try {
+            start = System.nanoTime();
+            ws = myRegistrar.register(voucher, uri);
+          } catch (InterruptedException e) {
+            throw e;
+          } catch (Exception e) {
+            lastError = uri + ": " + e.getMessage();
+            logger().debug("TO0 attempt failed for " + voucher.getUuid() + " at " + lastError);
+            continue;
+          } finally {
+            host.release();
+          }
+
+          myProgress.myLatencies.record(Duration.ofNanos(System.nanoTime() - start));
+          myProgress.myRegistered.increment();
+          myCheckpointFile.append(
+              voucher.getUuid(), new To0Checkpoint.Registration(Instant.now(), ws));
+          return;
+        }
+      }
+
+      myProgress.myFailed.increment();
+      logger().warn("TO0 failed for " + file + " after " + myMaxAttempts + " attempts, last at "
+          + lastError);
+    }
+  }
+
+  private static class Progress {
+
+    final LongAdder myFailed = new LongAdder();
+    final LatencyHistogram myLatencies = new LatencyHistogram();
+    final LongAdder myRegistered = new LongAdder();
+    final LongAdder myRetries = new LongAdder();
+    final LongAdder mySkipped = new LongAdder();
+    final long myStart = System.nanoTime();
+    final LongAdder mySubmitted = new LongAdder();
+
+    Report toReport() {
+      return new Report(mySubmitted.intValue(), myRegistered.intValue(), mySkipped.intValue(),
+          myFailed.intValue(), myRetries.longValue(), myLatencies,
+          Duration.ofNanos(System.nanoTime() - myStart));
+    }
+  }
+
+  /**
+   * The outcome of a batch.
+   */
+  public static class Report {
+
+    private final Duration myElapsed;
+    private final int myFailed;
+    private final LatencyHistogram myLatencies;
+    private final int myRegistered;
+    private final long myRetries;
+    private final int mySkipped;
+    private final int mySubmitted;
+
+    Report(int submitted, int registered, int skipped, int failed, long retries,
+        LatencyHistogram latencies, Duration elapsed) {
+      mySubmitted = submitted;
+      myRegistered = registered;
+      mySkipped = skipped;
+      myFailed = failed;
+      myRetries = retries;
+      myLatencies = latencies;
+      myElapsed = elapsed;
+    }
+
+    public Duration getElapsed() {
+      return myElapsed;
+    }
+
+    public int getFailed() {
+      return myFailed;
+    }
+
+    /**
+     * Return the latency of the accepted TO0 exchanges at the given percentile.
+     *
+     * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+     */
+    public Duration getLatency(double fraction) {
+      return myLatencies.getPercentile(fraction);
+    }
+
+    public int getRegistered() {
+      return myRegistered;
+    }
+
+    public long getRetries() {
+      return myRetries;
+    }
+
+    /**
+     * Return the number of vouchers skipped because the checkpoint shows them current.
+     */
+    public int getSkipped() {
+      return mySkipped;
+    }
+
+    public int getSubmitted() {
+      return mySubmitted;
+    }
+
+    /**
+     * Return the number of registrations accepted per second.
+     */
+    public double getThroughput() {
+      final double seconds = myElapsed.toNanos() / 1e9;
+      return 0 < seconds ? myRegistered / seconds : 0.0;
+    }
+
+    @Override
+    public String toString() {
+      return "registered " + myRegistered + " of " + mySubmitted + " vouchers"
+          + ", " + mySkipped + " current, " + myFailed + " failed, " + myRetries + " retries"
+          + ", in " + myElapsed.toMillis() + " ms"
+          + String.format(" (%.1f/s)", getThroughput())
+          + ", latency " + myLatencies;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file recording the TO0 registrations which rendezvous servers have accepted.
+ *
+ * <p>Each line is a GUID, the epoch second its registration was accepted and the accepted wait
+ * time in seconds, or a GUID and the word {@code transferred} once its device's TO2 has
+ * completed.  Lines are appended as they happen, and a later line for a GUID replaces earlier
+ * ones.  The file is rewritten with only the latest line for each GUID when it's opened, and
+ * again whenever the lines replaced outnumber those still current, so it doesn't grow without
+ * bound however long it's kept open.
+ */
+class To0Checkpoint implements Closeable {
+
+  private static final String TRANSFERRED = "transferred";
+  // The file isn't rewritten until it holds at least this many replaced lines.
+  private static final int MIN_DEAD_LINES = 1024;
+
+  private final Path myFile;
+  private int myLines; // guarded by myLock
+  private final Object myLock = new Object();
+  private final Map<UUID, Registration> myRegistrations;
+  private final Set<UUID> myTransferred;
+  private BufferedWriter myWriter; // guarded by myLock
+
+  private To0Checkpoint(Path file, Map<UUID, Registration> registrations, Set<UUID> transferred)
+      throws IOException {
+    myFile = file;
+    myRegistrations = registrations;
+    myTransferred = transferred;
+    myLines = registrations.size() + transferred.size();
+    myWriter = appendTo(file);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(To0Checkpoint.class);
+  }
+
+  /**
+   * Open a checkpoint file for appending, creating it if need be.
+   */
+  static To0Checkpoint open(Path file) throws IOException {
+    final Map<UUID, Registration> registrations = new ConcurrentHashMap<>();
+    final Set<UUID> transferred = ConcurrentHashMap.newKeySet();
+    if (Files.exists(file)) {
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        final String[] fields = line.trim().split(" ");
+        try {
+          final UUID guid = UUID.fromString(fields[0]);
+          if (TRANSFERRED.equals(fields[1])) {
+            registrations.remove(guid);
+            transferred.add(guid);
+          } else {
+            registrations.put(guid, new Registration(
+                Instant.ofEpochSecond(Long.parseLong(fields[1])),
+                Duration.ofSeconds(Long.parseLong(fields[2]))));
+            transferred.remove(guid);
+          }
+        } catch (RuntimeException e) {
+          // A torn last line, from a run which was killed mid-write.
+          logger().debug("ignoring checkpoint line: " + line);
+        }
+      }
+      rewrite(file, registrations, transferred);
+    }
+
+    return new To0Checkpoint(file, registrations, transferred);
+  }
+
+  private static BufferedWriter appendTo(Path file) throws IOException {
+    return Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  // Replace the file with one holding only the given lines.
+  private static void rewrite(Path file, Map<UUID, Registration> registrations,
+      Set<UUID> transferred) throws IOException {
+
+    final Path temp = Files.createTempFile(
+        file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<UUID, Registration> entry : registrations.entrySet()) {
+        write(writer, entry.getKey(), entry.getValue());
+      }
+      for (UUID guid : transferred) {
+        write(writer, guid);
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void write(BufferedWriter writer, UUID guid, Registration registration)
+      throws IOException {
+    writer.write(guid + " " + registration.getAcceptedAt().getEpochSecond()
+        + " " + registration.getWs().getSeconds());
+    writer.newLine();
+  }
+
+  private static void write(BufferedWriter writer, UUID guid) throws IOException {
+    writer.write(guid + " " + TRANSFERRED);
+    writer.newLine();
+  }
+
+  /**
+   * Return the latest registration for each GUID whose device hasn't been transferred.
+   */
+  Map<UUID, Registration> getRegistrations() {
+    return Collections.unmodifiableMap(myRegistrations);
+  }
+
+  /**
+   * Return the GUIDs whose devices have been transferred.
+   */
+  Set<UUID> getTransferred() {
+    return Collections.unmodifiableSet(myTransferred);
+  }
+
+  /**
+   * Record an accepted registration.
+   *
+   * <p>A failed write is logged, not thrown: the registration stands, and the worst outcome is
+   * that it's repeated after a restart.
+   */
+  void append(UUID guid, Registration registration) {
+    synchronized (myLock) {
+      myRegistrations.put(guid, registration);
+      myTransferred.remove(guid);
+      try {
+        write(myWriter, guid, registration);
+        afterWrite();
+      } catch (IOException e) {
+        logger().warn("checkpoint write failed for " + guid + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Record that a device's TO2 has completed, so its voucher needn't be registered again.
+   *
+   * <p>As with {@link #append}, a failed write is logged, not thrown.
+   */
+  void appendTransferred(UUID guid) {
+    synchronized (myLock) {
+      myRegistrations.remove(guid);
+      myTransferred.add(guid);
+      try {
+        write(myWriter, guid);
+        afterWrite();
+      } catch (IOException e) {
+        logger().warn("checkpoint write failed for " + guid + ": " + e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (myLock) {
+      myWriter.close();
+    }
+  }
+
+  // Flush the line just written, and rewrite the file once it's mostly replaced lines.
+  // Must be called with the lock held.
+  private void afterWrite() throws IOException {
+    myWriter.flush();
+    final int current = myRegistrations.size() + myTransferred.size();
+    if (++myLines - current < Math.max(MIN_DEAD_LINES, current)) {
+      return;
+    }
+
+    myWriter.close();
+    try {
+      rewrite(myFile, myRegistrations, myTransferred);
+      myLines = current;
+    } finally {
+      myWriter = appendTo(myFile);
+    }
+  }
+
+  /**
+   * A registration a rendezvous server accepted.
+   */
+  static class Registration {
+
+    private final Instant myAcceptedAt;
+    private final Duration myWs;
+
+    Registration(Instant acceptedAt, Duration ws) {
+      myAcceptedAt = acceptedAt;
+      myWs = null != ws ? ws : Duration.ZERO;
+    }
+
+    Instant getAcceptedAt() {
+      return myAcceptedAt;
+    }
+
+    Duration getWs() {
+      return myWs;
+    }
+
+    // The time after which the registration is more than the given fraction of the way to
+    // expiry.
+    Instant getAfter(double fraction) {
+      return myAcceptedAt.plusMillis((long) (myWs.toMillis() * fraction));
+    }
+  }
+}
@@ -0,0 +1,460 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.security.cert.CertPath;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the owner's vouchers registered with their rendezvous servers.
+ *
+ * <p>A TO0 registration lasts for the wait time the server accepted, after which the device
+ * can't find its owner until TO0 is run again.  The scheduler holds a queue of vouchers ordered
+ * by when each is next due, and runs TO0 for each one a jittered fraction of its wait time
+ * before it expires.  Registrations start no faster than a global rate, so however many
+ * vouchers are due at once the work is spread out evenly.  Vouchers whose TO2 has completed,
+ * and vouchers which are no longer held, are dropped from the queue when they come due,
+ * without waiting for a turn under the rate, and aren't queued again.  So are vouchers whose
+ * device certificate path fails validation, until the scheduler is restarted.
+ *
+ * <p>Accepted registrations are recorded in a checkpoint file, as {@link To0Batch} does, so a
+ * restart doesn't repeat registrations which are still good.  Completed transfers reported to
+ * {@link #transferred} are recorded there too.  Vouchers the checkpoint doesn't know are first
+ * registered at random times across the period the rate allows for all of them.
+ */
+public class To0Scheduler implements Closeable {
+
+  private static final double JITTER = 0.5;
+  // The largest renew fraction for which even the earliest jittered renewal is after the
+  // registration was accepted.
+  private static final double MAX_RENEW_FRACTION = 1 / (1 + JITTER);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(5);
+  private static final Duration RESCAN_PERIOD = Duration.ofMinutes(1);
+
+  private final Predicate<CertPath> myCertPathValidator;
+  private final To0Checkpoint myCheckpoint;
+  private final Clock myClock;
+  private final Thread myDispatcher;
+  private final Set<UUID> myDone = new HashSet<>(); // guarded by this
+  private final LongAdder myDropped = new LongAdder();
+  private final LongAdder myFailed = new LongAdder();
+  private final Supplier<Collection<UUID>> myGuids;
+  private final Semaphore myIdleWorkers;
+  private final long myIntervalNanos;
+  private final Predicate<UUID> myIsTransferred;
+  private final PriorityQueue<Due> myQueue = new PriorityQueue<>(); // guarded by this
+  private final To0Batch.Registrar myRegistrar;
+  private final LongAdder myRegistered = new LongAdder();
+  private final double myRenewFraction;
+  private final Duration myRetryDelay;
+  private final Set<UUID> myTracked = new HashSet<>(); // guarded by this
+  private final Function<UUID, Optional<OwnershipVoucher>> myVouchers;
+  private final ExecutorService myWorkers;
+
+  /**
+   * Construct a new scheduler, and start it.
+   *
+   * @param registrar         runs one TO0 exchange
+   * @param guids             supplies the GUIDs of every voucher held, checked once a minute
+   * @param vouchers          loads a voucher by GUID
+   * @param certPathValidator tests each voucher's device certificate path, if it has one
+   * @param isTransferred     tests whether a device's TO2 has completed, for transfers which
+   *                          weren't reported to {@link #transferred}
+   * @param ratePerSecond     the most registrations to start each second
+   * @param renewFraction     the fraction of each wait time, on average, before expiry at which
+   *                          to register again, at most 2/3
+   * @param parallelism       the most registrations in flight at once
+   * @param retryDelay        the delay before retrying a failed registration, doubling each time
+   * @param checkpoint        the file recording accepted registrations
+   */
+  public To0Scheduler(To0Batch.Registrar registrar,
+      Supplier<Collection<UUID>> guids,
+      Function<UUID, Optional<OwnershipVoucher>> vouchers,
+      Predicate<CertPath> certPathValidator,
+      Predicate<UUID> isTransferred,
+      double ratePerSecond,
+      double renewFraction,
+      int parallelism,
+      Duration retryDelay,
+      Path checkpoint) throws IOException {
+
+    this(registrar, guids, vouchers, certPathValidator, isTransferred, ratePerSecond,
+        renewFraction, parallelism, retryDelay, checkpoint, Clock.systemUTC());
+    myDispatcher.start();
+  }
+
+  // Tests use this to set the clock, and leave the dispatcher unstarted so they can call
+  // scan and runDue themselves.
+  To0Scheduler(To0Batch.Registrar registrar,
+      Supplier<Collection<UUID>> guids,
+      Function<UUID, Optional<OwnershipVoucher>> vouchers,
+      Predicate<CertPath> certPathValidator,
+      Predicate<UUID> isTransferred,
+      double ratePerSecond,
+      double renewFraction,
+      int parallelism,
+      Duration retryDelay,
+      Path checkpoint,
+      Clock clock) throws IOException {
+
+    if (!(0 < ratePerSecond)
+        || !(0 < renewFraction && renewFraction <= MAX_RENEW_FRACTION)
+        || parallelism < 1) {
+      throw new IllegalArgumentException("bad rate, renew fraction or parallelism");
+    }
+    myRegistrar = Objects.requireNonNull(registrar);
+    myGuids = Objects.requireNonNull(guids);
+    myVouchers = Objects.requireNonNull(vouchers);
+    myCertPathValidator = Objects.requireNonNull(certPathValidator);
+    myIsTransferred = Objects.requireNonNull(isTransferred);
+    myIntervalNanos = (long) (1e9 / ratePerSecond);
+    myRenewFraction = renewFraction;
+    myRetryDelay = Objects.requireNonNull(retryDelay);
+    myClock = Objects.requireNonNull(clock);
+    myCheckpoint = To0Checkpoint.open(checkpoint);
+
+    myIdleWorkers = new Semaphore(parallelism);
+    final AtomicInteger workers = new AtomicInteger();
+    myWorkers = Executors.newFixedThreadPool(parallelism, r -> {
+      Thread t = new Thread(r, getClass().getSimpleName() + "-" + workers.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    myDispatcher = new Thread(this::dispatch, getClass().getSimpleName() + "-dispatcher");
+    myDispatcher.setDaemon(true);
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(To0Scheduler.class);
+  }
+
+  private static long jittered(long millis) {
+    return (long) (millis * (1 - JITTER + 2 * JITTER * ThreadLocalRandom.current().nextDouble()));
+  }
+
+  /**
+   * Return the number of vouchers dropped because their TO2 completed, they're gone, or their
+   * device certificate path is invalid.
+   */
+  public long getDropped() {
+    return myDropped.sum();
+  }
+
+  /**
+   * Return the number of registration attempts which failed at every rendezvous server.
+   */
+  public long getFailed() {
+    return myFailed.sum();
+  }
+
+  /**
+   * Return the number of registrations accepted.
+   */
+  public long getRegistered() {
+    return myRegistered.sum();
+  }
+
+  /**
+   * Return the number of vouchers being kept registered.
+   */
+  public synchronized int getTracked() {
+    return myTracked.size();
+  }
+
+  /**
+   * Stop registering a voucher, because its device's TO2 has completed.
+   *
+   * <p>This is recorded in the checkpoint, so the voucher isn't registered again after a
+   * restart either.
+   *
+   * @param guid the GUID of the voucher the device had before its TO2
+   */
+  public void transferred(UUID guid) {
+    myCheckpoint.appendTransferred(guid);
+    if (drop(guid)) {
+      logger().debug("no longer registering " + guid + ", its TO2 is complete");
+    }
+  }
+
+  /**
+   * Stop scheduling.  Registrations in flight are interrupted.
+   */
+  @Override
+  public void close() throws IOException {
+    myDispatcher.interrupt();
+    myWorkers.shutdownNow();
+    myCheckpoint.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{tracked=" + getTracked()
+        + ", registered=" + getRegistered()
+        + ", failed=" + getFailed()
+        + ", dropped=" + getDropped()
+        + "}";
+  }
+
+  // Take vouchers from the queue as they come due, starting them no closer together than the
+  // rate allows, and look for new vouchers periodically.
+  private void dispatch() {
+    long nextStart = System.nanoTime();
+    long nextScan = System.nanoTime();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        if (nextScan - System.nanoTime() <= 0) {
+          scan();
+          nextScan = System.nanoTime() + RESCAN_PERIOD.toNanos();
+        }
+
+        final Due due;
+        synchronized (this) {
+          final Due head = myQueue.peek();
+          final long wait = Math.min(
+              null != head ? head.myAtMillis - myClock.millis() : Long.MAX_VALUE,
+              TimeUnit.NANOSECONDS.toMillis(nextScan - System.nanoTime()));
+          if (0 < wait) {
+            wait(wait);
+            continue;
+          }
+          due = myQueue.poll();
+        }
+        if (null == due) {
+          continue;
+        }
+
+        // Vouchers we're done with are dropped without using up a turn.
+        final OwnershipVoucher113 voucher;
+        try {
+          voucher = current(due.myGuid);
+        } catch (RuntimeException e) {
+          logger().error("can't load voucher " + due.myGuid + ": " + e.getMessage(), e);
+          retry(due);
+          continue;
+        }
+        if (null == voucher) {
+          continue;
+        }
+
+        final long pause = nextStart - System.nanoTime();
+        if (0 < pause) {
+          TimeUnit.NANOSECONDS.sleep(pause);
+        }
+        nextStart = Math.max(nextStart, System.nanoTime()) + myIntervalNanos;
+
+        myIdleWorkers.acquire();
+        myWorkers.execute(() -> {
+          try {
+            register(due, voucher);
+          } catch (RuntimeException e) {
+            logger().error("TO0 failed for " + due.myGuid + ": " + e.getMessage(), e);
+            retry(due);
+          } finally {
+            myIdleWorkers.release();
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      // Closed.
+    } catch (RuntimeException e) {
+      logger().error("TO0 scheduler stopped: " + e.getMessage(), e);
+    }
+  }
+
+  // Queue any vouchers neither tracked nor done with.  Those with a current
+  // registration in the checkpoint come due when it needs renewing, and the rest are spread
+  // over the time the rate allows.
+  void scan() {
+    final Set<UUID> guids = new HashSet<>(myGuids.get());
+    final long now = myClock.millis();
+    final long spreadMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+        (long) Math.min(Long.MAX_VALUE, (double) myIntervalNanos * guids.size())));
+
+    int added = 0;
+    synchronized (this) {
+      // Forget vouchers which are gone, in case they come back.
+      myDone.retainAll(guids);
+      for (UUID guid : guids) {
+        if (myDone.contains(guid)
+            || myCheckpoint.getTransferred().contains(guid)
+            || !myTracked.add(guid)) {
+          continue;
+        }
+        final To0Checkpoint.Registration known = myCheckpoint.getRegistrations().get(guid);
+        final long renewAt = null != known ? renewAt(known) : 0;
+        myQueue.add(new Due(guid, now < renewAt
+            ? renewAt : now + ThreadLocalRandom.current().nextLong(spreadMillis), 0));
+        ++added;
+      }
+      if (0 < added) {
+        notifyAll();
+      }
+    }
+    logger().info((0 < added ? "tracking " + added + " more vouchers, " : "") + this);
+  }
+
+  // Register every voucher which is due by the clock, one after another in this thread, and
+  // return how many came due.  Tests use this in place of the dispatcher, without the rate.
+  int runDue() {
+    int count = 0;
+    for (Due due = pollDue(); null != due; due = pollDue()) {
+      final OwnershipVoucher113 voucher = current(due.myGuid);
+      if (null != voucher) {
+        register(due, voucher);
+      }
+      ++count;
+    }
+    return count;
+  }
+
+  private synchronized Due pollDue() {
+    final Due head = myQueue.peek();
+    return null != head && head.myAtMillis <= myClock.millis() ? myQueue.poll() : null;
+  }
+
+  // Return the voucher to register, or null if we're done with it: it's gone, or TO2 is
+  // complete.  Vouchers we're done with are dropped, and skipped by later scans.
+  private OwnershipVoucher113 current(UUID guid) {
+    synchronized (this) {
+      if (myDone.contains(guid)) {
+        return null;
+      }
+    }
+    if (!myCheckpoint.getTransferred().contains(guid) && !myIsTransferred.test(guid)) {
+      final Optional<OwnershipVoucher> voucher = myVouchers.apply(guid);
+      if (voucher.isPresent() && voucher.get() instanceof OwnershipVoucher113) {
+        return (OwnershipVoucher113) voucher.get();
+      }
+    }
+
+    if (drop(guid)) {
+      logger().debug("no longer registering " + guid);
+    }
+    return null;
+  }
+
+  // Stop tracking a voucher, and skip it in later scans.  Returns false if it was already
+  // dropped, or never tracked.
+  private synchronized boolean drop(UUID guid) {
+    myDone.add(guid);
+    if (!myTracked.remove(guid)) {
+      return false;
+    }
+    myDropped.increment();
+    return true;
+  }
+
+  private void register(Due due, OwnershipVoucher113 voucher) {
+    final UUID guid = due.myGuid;
+    try {
+      final CertPath dc = voucher.getDc();
+      if (null != dc && !myCertPathValidator.test(dc)) {
+        logger().warn("not registering " + guid + ": device certificate path is invalid");
+        drop(guid);
+        return;
+      }
+    } catch (UncheckedIOException e) {
+      logger().warn("not registering " + guid + ": device certificate path is malformed");
+      drop(guid);
+      return;
+    }
+
+    final Set<URI> uris;
+    try {
+      uris = To0Batch.ownerUris(voucher);
+    } catch (URISyntaxException | RuntimeException e) {
+      logger().warn("no rendezvous URIs for " + guid + ": " + e.getMessage());
+      retry(due);
+      return;
+    }
+
+    for (URI uri : uris) {
+      try {
+        final To0Checkpoint.Registration accepted =
+            new To0Checkpoint.Registration(myClock.instant(), myRegistrar.register(voucher, uri));
+        if (accepted.getWs().isZero() || accepted.getWs().isNegative()) {
+          logger().warn(uri + " accepted TO0 for " + guid + " with no wait time");
+          retry(due);
+          return;
+        }
+        myRegistered.increment();
+        myCheckpoint.append(guid, accepted);
+        schedule(new Due(guid, renewAt(accepted), 0));
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        logger().debug("TO0 attempt failed for " + guid + " at " + uri + ": " + e.getMessage());
+      }
+    }
+    logger().warn("TO0 failed for " + guid + " at every rendezvous server");
+    retry(due);
+  }
+
+  // A jittered fraction of the wait time before expiry.
+  private long renewAt(To0Checkpoint.Registration registration) {
+    final long ws = registration.getWs().toMillis();
+    final long early = jittered((long) (ws * myRenewFraction));
+    return registration.getAcceptedAt().toEpochMilli() + ws - early;
+  }
+
+  private void retry(Due due) {
+    myFailed.increment();
+    final long delay = Math.min(MAX_RETRY_DELAY.toMillis(),
+        myRetryDelay.toMillis() << Math.min(due.myFailures, 20));
+    schedule(new Due(due.myGuid, myClock.millis() + jittered(delay), due.myFailures + 1));
+  }
+
+  private synchronized void schedule(Due due) {
+    myQueue.add(due);
+    notifyAll();
+  }
+
+  // A voucher and when it's next due for TO0.
+  private static class Due implements Comparable<Due> {
+
+    final long myAtMillis;
+    final int myFailures;
+    final UUID myGuid;
+
+    Due(UUID guid, long atMillis, int failures) {
+      myGuid = guid;
+      myAtMillis = atMillis;
+      myFailures = failures;
+    }
+
+    @Override
+    public int compareTo(Due that) {
+      return Long.compare(myAtMillis, that.myAtMillis);
+    }
+  }
+}
@@ -18,6 +18,13 @@ class To1HelloSdoCodec extends Codec<To1HelloSdo> {
   private final Codec<SigInfo> eaCodec = new SigInfoCodec();
   private final Codec<UUID> g2Codec = new UuidCodec();
 
+  // Decode only g2, which comes first, leaving the rest of the message unread.
+  static UUID decodeG2(CharBuffer in) throws IOException {
+    expect(in, Json.BEGIN_OBJECT);
+    expect(in, Json.asKey(G2));
+    return new UuidCodec().decoder().apply(in);
+  }
+
   @Override
   Codec<To1HelloSdo>.Decoder decoder() {
     return new Decoder();
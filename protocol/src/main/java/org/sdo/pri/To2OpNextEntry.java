@@ -3,20 +3,54 @@
 
 package org.sdo.pri;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+
 class To2OpNextEntry implements ProtocolMessage {
 
-  private final SignatureBlock eni;
+  private SignatureBlock eni;
+  private final String eniText;
   private final Integer enn;
 
   public To2OpNextEntry(final Integer enn, final SignatureBlock eni) {
     this.enn = enn;
     this.eni = eni;
+    this.eniText = null;
+  }
+
+  /**
+   * Construct a message which carries its entry as the entry's original text.
+   *
+   * <p>The text is sent as-is, and only decoded if {@link #getEni()} is called.
+   */
+  To2OpNextEntry(final Integer enn, final String eniText) {
+    this.enn = enn;
+    this.eni = null;
+    this.eniText = eniText;
   }
 
+  /**
+   * Return the entry.
+   *
+   * @throws UncheckedIOException if the entry's text can't be decoded
+   */
   public SignatureBlock getEni() {
+    if (null == eni && null != eniText) {
+      try {
+        eni = new SignatureBlockCodec.Decoder(null).decode(CharBuffer.wrap(eniText));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return eni;
   }
 
+  // The entry's original text, or null if it should be encoded.
+  String getEniText() {
+    return eniText;
+  }
+
   public Integer getEnn() {
     return enn;
   }
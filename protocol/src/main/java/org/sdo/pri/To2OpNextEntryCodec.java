@@ -56,7 +56,11 @@ class To2OpNextEntryCodec {
 
       writer.write(Json.COMMA);
       writer.write(Json.asKey(ENI));
-      eniEncoder.encode(writer, value.getEni());
+      if (null != value.getEniText()) {
+        writer.write(value.getEniText());
+      } else {
+        eniEncoder.encode(writer, value.getEni());
+      }
 
       writer.write(Json.END_OBJECT);
     }
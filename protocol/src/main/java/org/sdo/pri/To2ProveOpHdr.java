@@ -12,9 +12,11 @@ class To2ProveOpHdr implements ProtocolMessage {
 
   private final SigInfo eb;
   private final HashMac hmac;
+  private final String hmacText;
   private final Nonce n5;
   private final Nonce n6;
   private final OwnershipVoucherHeader oh;
+  private final String ohText;
   private final Integer sz;
   private final ByteBuffer xa;
 
@@ -30,9 +32,30 @@ class To2ProveOpHdr implements ProtocolMessage {
       final SigInfo eb,
       final ByteBuffer xa) {
 
+    this(sz, oh, null, hmac, null, n5, n6, eb, xa);
+  }
+
+  /**
+   * Construct a message which carries the voucher header and HMAC as their original text.
+   *
+   * <p>The text is sent as-is, so it must be the encoding of oh and hmac.
+   */
+  To2ProveOpHdr(
+      final Integer sz,
+      final OwnershipVoucherHeader oh,
+      final String ohText,
+      final HashMac hmac,
+      final String hmacText,
+      final Nonce n5,
+      final Nonce n6,
+      final SigInfo eb,
+      final ByteBuffer xa) {
+
     this.sz = sz;
     this.oh = oh;
+    this.ohText = ohText;
     this.hmac = hmac;
+    this.hmacText = hmacText;
     this.n5 = n5;
     this.n6 = n6;
     this.eb = eb;
@@ -47,6 +70,11 @@ class To2ProveOpHdr implements ProtocolMessage {
     return hmac;
   }
 
+  // The HMAC's original text, or null if it should be encoded.
+  String getHmacText() {
+    return hmacText;
+  }
+
   public Nonce getN5() {
     return n5;
   }
@@ -59,6 +87,11 @@ class To2ProveOpHdr implements ProtocolMessage {
     return oh;
   }
 
+  // The header's original text, or null if it should be encoded.
+  String getOhText() {
+    return ohText;
+  }
+
   public Integer getSz() {
     return sz;
   }
@@ -159,11 +159,17 @@ class To2ProveOpHdrCodec extends Codec<To2ProveOpHdr> {
 
       writer.write(Json.COMMA);
       writer.write(Json.asKey(OH));
-      new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderEncoder().encode(writer, value.getOh());
+      if (null != value.getOhText()) {
+        writer.write(value.getOhText());
+      } else {
+        new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderEncoder()
+            .encode(writer, value.getOh());
+      }
 
       writer.write(Json.COMMA);
       writer.write(Json.asKey(HMAC));
-      writer.write(value.getHmac().toString());
+      writer.write(
+          null != value.getHmacText() ? value.getHmacText() : value.getHmac().toString());
 
       writer.write(Json.COMMA);
       writer.write(Json.asKey(N5));
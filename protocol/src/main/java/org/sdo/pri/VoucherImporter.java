@@ -0,0 +1,322 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports ownership vouchers in bulk, checking each one on the way in.
+ *
+ * <p>A customer order arrives as many thousands of voucher files, and nothing else looks at
+ * them until a device turns up for TO2.  A voucher which won't verify then fails in front of
+ * the device.  The importer does the checks the device would do, up front and in parallel:
+ * each entry must be signed by the key before it and must hash-chain to the header, and the
+ * last entry's key must be one of ours.  Each GUID is imported once.
+ *
+ * <p>Vouchers which pass are copied byte for byte into the voucher directory and added to its
+ * index.  Those which fail are left where they are and listed in the returned report.
+ */
+public class VoucherImporter {
+
+  private final Predicate<PublicKey> myIsOwnerKey;
+  private final int myParallelism;
+
+  /**
+   * Construct a new importer.
+   *
+   * @param isOwnerKey  tests whether a public key is one of the owner's
+   * @param parallelism the number of threads which check vouchers
+   */
+  public VoucherImporter(Predicate<PublicKey> isOwnerKey, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    myIsOwnerKey = Objects.requireNonNull(isOwnerKey);
+    myParallelism = parallelism;
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(VoucherImporter.class);
+  }
+
+  /**
+   * Check a voucher's entry chain, as a device would in TO2.
+   *
+   * <p>The header HMAC can't be checked, since only the device holds its secret.
+   *
+   * @throws VoucherException if the voucher doesn't verify
+   */
+  static void verify(OwnershipVoucher113 voucher) throws VoucherException {
+
+    final String ohText = voucher.getOhText();
+    final String hmacText = voucher.getHmacText();
+    if (null == ohText || null == hmacText) {
+      throw new VoucherException("voucher was not read from text");
+    }
+
+    final OwnershipVoucherHeaderCodec.OwnershipProxyHeaderDecoder ohDec =
+        new OwnershipVoucherHeaderCodec.OwnershipProxyHeaderDecoder();
+    try {
+      ohDec.decode(CharBuffer.wrap(ohText));
+    } catch (IOException e) {
+      throw new VoucherException("oh invalid: " + e.getMessage());
+    }
+
+    PublicKey pk = voucher.getOh().getPk();
+    final DigestService digestService;
+    try {
+      digestService = CryptoLevels.keyTypeToCryptoLevel(Keys.toType(pk)).buildDigestService();
+    } catch (RuntimeException e) {
+      throw new VoucherException("oh.pk unsupported: " + e.getMessage());
+    }
+
+    final HashDigest hc = digestService.digestOf(
+        US_ASCII.encode(ohDec.getLastG()), US_ASCII.encode(ohDec.getLastD()));
+    HashDigest hp = digestService.digestOf(US_ASCII.encode(ohText), US_ASCII.encode(hmacText));
+
+    final OwnershipVoucherEntryCodec.Decoder entryDecoder =
+        new OwnershipVoucherEntryCodec.Decoder();
+    final List<SignatureBlock> en = voucher.getEn();
+    for (int enn = 0; enn < en.size(); ++enn) {
+      final SignatureBlock eni;
+      final OwnershipVoucherEntry entry;
+      try {
+        eni = en.get(enn);
+        entry = entryDecoder.decode(CharBuffer.wrap(eni.getBo()));
+      } catch (IOException | RuntimeException e) {
+        throw new VoucherException("en[" + enn + "] invalid: " + e.getMessage());
+      }
+
+      final boolean verified;
+      try {
+        verified = Signatures.verify(eni.getBo(), eni.getSg(), pk);
+      } catch (GeneralSecurityException e) {
+        throw new VoucherException("en[" + enn + "].sg unverifiable: " + e.getMessage());
+      }
+      if (!verified) {
+        throw new VoucherException("en[" + enn + "].sg invalid");
+      }
+      if (!Objects.equals(hc, entry.getHc())) {
+        throw new VoucherException("en[" + enn + "].bo.hc invalid");
+      }
+      if (!Objects.equals(hp, entry.getHp())) {
+        throw new VoucherException("en[" + enn + "].bo.hp invalid");
+      }
+
+      pk = entry.getPk();
+      hp = digestService.digestOf(US_ASCII.encode(eni.getBo()));
+    }
+  }
+
+  /**
+   * Import every regular file in a directory.
+   *
+   * @see #importFiles(List, VoucherIndex)
+   */
+  public Report importDirectory(Path source, VoucherIndex index) throws IOException {
+    final List<Path> files;
+    try (Stream<Path> paths = Files.list(source)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    return importFiles(files, index);
+  }
+
+  /**
+   * Import voucher files into an indexed voucher directory.
+   *
+   * <p>Each voucher is written to the directory as {@code <guid>.op}.  A voucher is refused if
+   * its GUID is already in the index or appears earlier in the list.  The index is saved when
+   * the import is done.
+   *
+   * @param files the voucher files
+   * @param index the index of the directory to import into
+   * @return what was imported, and why the rest wasn't
+   */
+  public Report importFiles(List<Path> files, VoucherIndex index) throws IOException {
+
+    final long start = System.nanoTime();
+    final Map<UUID, Path> claimed = new HashMap<>();
+    final Map<Path, String> failures = new ConcurrentHashMap<>();
+    final LongAdder imported = new LongAdder();
+
+    final ForkJoinPool pool = new ForkJoinPool(myParallelism);
+    try {
+      // Claim GUIDs in list order, so which of several duplicates is imported doesn't
+      // depend on thread scheduling: the first in the list wins.
+      final List<Candidate> candidates = pool.submit(() -> files.parallelStream()
+          .map(file -> check(file, failures))
+          .collect(Collectors.toList())).get();
+
+      final List<Candidate> accepted = new ArrayList<>();
+      for (Candidate candidate : candidates) {
+        if (null == candidate) {
+          continue;
+        }
+        final Path existing = index.find(candidate.myGuid).orElse(null);
+        final Path earlier = claimed.putIfAbsent(candidate.myGuid, candidate.myFile);
+        if (null != existing) {
+          failures.put(candidate.myFile, "guid " + candidate.myGuid + " already in " + existing);
+        } else if (null != earlier) {
+          failures.put(candidate.myFile, "guid " + candidate.myGuid + " duplicates " + earlier);
+        } else {
+          accepted.add(candidate);
+        }
+      }
+
+      pool.submit(() -> accepted.parallelStream().forEach(candidate -> {
+        try {
+          store(candidate, index);
+          imported.increment();
+        } catch (IOException | RuntimeException e) {
+          failures.put(candidate.myFile, "store failed: " + e.getMessage());
+        }
+      })).get();
+
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      pool.shutdown();
+    }
+
+    index.save();
+    final Report report = new Report(
+        files.size(), imported.intValue(), failures, Duration.ofNanos(System.nanoTime() - start));
+    logger().info(report.toString());
+    return report;
+  }
+
+  // Read and verify one file, recording why if it fails.
+  private Candidate check(Path file, Map<Path, String> failures) {
+    try {
+      final OwnershipVoucher voucher = new OwnershipVoucherParser().readObject(file);
+      if (!(voucher instanceof OwnershipVoucher113)) {
+        throw new VoucherException("unsupported voucher type");
+      }
+      final OwnershipVoucher113 voucher113 = (OwnershipVoucher113) voucher;
+      verify(voucher113);
+      if (!myIsOwnerKey.test(voucher113.getCurrentOwnerKey())) {
+        throw new VoucherException("last entry's key is not an owner key");
+      }
+      return new Candidate(file, voucher.getUuid());
+
+    } catch (IOException | RuntimeException e) {
+      failures.put(file, String.valueOf(e.getMessage()));
+      return null;
+    }
+  }
+
+  // Copy the voucher in, through a temporary file so the index never sees half of one.
+  private void store(Candidate candidate, VoucherIndex index) throws IOException {
+    final Path target = index.getDir().resolve(candidate.myGuid + ".op");
+    final Path temp = Files.createTempFile(index.getDir(), ".import", ".tmp");
+    try {
+      Files.copy(candidate.myFile, temp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    index.add(candidate.myGuid, target);
+  }
+
+  /**
+   * The outcome of an import.
+   */
+  public static class Report {
+
+    private final Duration myElapsed;
+    private final Map<Path, String> myFailures;
+    private final int myImported;
+    private final int mySubmitted;
+
+    Report(int submitted, int imported, Map<Path, String> failures, Duration elapsed) {
+      mySubmitted = submitted;
+      myImported = imported;
+      myFailures = Map.copyOf(failures);
+      myElapsed = elapsed;
+    }
+
+    public Duration getElapsed() {
+      return myElapsed;
+    }
+
+    /**
+     * Return the files which weren't imported, each with the reason why.
+     */
+    public Map<Path, String> getFailures() {
+      return myFailures;
+    }
+
+    public int getImported() {
+      return myImported;
+    }
+
+    public int getSubmitted() {
+      return mySubmitted;
+    }
+
+    /**
+     * Return the number of files handled per second.
+     */
+    public double getThroughput() {
+      final double seconds = myElapsed.toNanos() / 1e9;
+      return 0 < seconds ? mySubmitted / seconds : 0.0;
+    }
+
+    @Override
+    public String toString() {
+      return "imported " + myImported + " of " + mySubmitted + " vouchers"
+          + ", " + myFailures.size() + " failed"
+          + ", in " + myElapsed.toMillis() + " ms"
+          + String.format(" (%.1f/s)", getThroughput());
+    }
+  }
+
+  /**
+   * Thrown when a voucher doesn't verify.
+   */
+  static class VoucherException extends IOException {
+
+    VoucherException(String message) {
+      super(message);
+    }
+  }
+
+  private static class Candidate {
+
+    final Path myFile;
+    final UUID myGuid;
+
+    Candidate(Path file, UUID guid) {
+      myFile = file;
+      myGuid = guid;
+    }
+  }
+}
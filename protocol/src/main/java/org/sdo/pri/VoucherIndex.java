@@ -0,0 +1,481 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the ownership vouchers in a directory, by device GUID.
+ *
+ * <p>Finding a voucher by GUID otherwise means opening and decoding every file in the directory,
+ * which takes seconds once there are many thousands of vouchers.  This index decodes each file
+ * once, in parallel, and remembers which GUID it holds along with its size and modification
+ * time.  It can be saved to a file, so that a restart only decodes files which have changed
+ * since, and it can watch the directory to stay current as vouchers come and go.
+ *
+ * <p>With the index, loading a voucher is a single file read, and a GUID which isn't in the
+ * directory is refused without touching the disk at all.
+ */
+public class VoucherIndex implements Closeable {
+
+  private static final int MAGIC = 0x53444f58; // "SDOX"
+  // Wait for this long after the last change in the directory before re-indexing,
+  // so that files being written aren't read half-finished.
+  private static final long SETTLE_MILLIS = 250;
+  private static final int VERSION = 1;
+
+  private final Map<UUID, Entry> myByGuid = new ConcurrentHashMap<>();
+  private final Map<Path, UUID> myByName = new ConcurrentHashMap<>();
+  private final List<Consumer<UUID>> myChangeListeners = new CopyOnWriteArrayList<>();
+  private final Path myDir;
+  private final Path myIndexFile;
+  private final int myParallelism;
+  private Thread myWatcher = null;
+  private WatchService myWatchService = null;
+
+  /**
+   * Construct a new, empty index.
+   *
+   * @param dir         the voucher directory
+   * @param indexFile   the file the index is saved in, or null to keep it in memory only
+   * @param parallelism the number of threads which decode vouchers while building the index
+   */
+  public VoucherIndex(Path dir, Path indexFile, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    myDir = dir.toAbsolutePath();
+    myIndexFile = null != indexFile ? indexFile.toAbsolutePath() : null;
+    myParallelism = parallelism;
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(VoucherIndex.class);
+  }
+
+  private static OwnershipVoucher read(Path file) throws IOException {
+    return new OwnershipVoucherParser().readObject(file);
+  }
+
+  /**
+   * Bring the index up to date with the directory.
+   *
+   * <p>Entries from the saved index are reused for files whose size and modification time
+   * haven't changed; every other file is decoded.  The result is saved if there is an index
+   * file.
+   */
+  public synchronized void build() throws IOException {
+
+    // Entries already in memory are at least as fresh as those saved.
+    final Map<Path, Entry> saved = readIndexFile();
+    for (Entry entry : myByGuid.values()) {
+      saved.put(entry.myName, entry);
+    }
+
+    final Map<Path, BasicFileAttributes> files = new HashMap<>();
+    try (Stream<Path> paths = Files.list(myDir)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (!isIndexFile(path)) {
+          final BasicFileAttributes attributes =
+              Files.readAttributes(path, BasicFileAttributes.class);
+          if (attributes.isRegularFile()) {
+            files.put(path.getFileName(), attributes);
+          }
+        }
+      }
+    }
+
+    // Lookups carry on while the index is rebuilt, so update it in place.
+    for (Path name : Set.copyOf(myByName.keySet())) {
+      if (!files.containsKey(name)) {
+        remove(name);
+      }
+    }
+    final List<Path> changed = files.keySet().stream()
+        .filter(name -> {
+          final Entry entry = saved.get(name);
+          if (null != entry && entry.isCurrent(files.get(name))) {
+            if (!entry.equals(myByGuid.get(entry.myGuid))) {
+              put(entry);
+            }
+            return false;
+          } else {
+            return true;
+          }
+        })
+        .collect(Collectors.toList());
+
+    final ForkJoinPool pool = new ForkJoinPool(myParallelism);
+    try {
+      pool.submit(() -> changed.parallelStream().forEach(this::index)).get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      pool.shutdown();
+    }
+
+    logger().info("indexed " + myByGuid.size() + " vouchers in " + myDir
+        + ", " + changed.size() + " decoded");
+    save();
+  }
+
+  /**
+   * Record that a file in the directory holds the voucher for the given GUID.
+   *
+   * <p>This is for callers which have just written the file and already know what's in it, so
+   * it isn't decoded again.
+   *
+   * @param guid the voucher's GUID
+   * @param file the file, which must be in the indexed directory
+   */
+  public void add(UUID guid, Path file) throws IOException {
+    final Path absolute = file.toAbsolutePath();
+    if (!myDir.equals(absolute.getParent())) {
+      throw new IllegalArgumentException(file + " is not in " + myDir);
+    }
+    put(new Entry(guid, absolute.getFileName(),
+        Files.readAttributes(absolute, BasicFileAttributes.class)));
+  }
+
+  /**
+   * Call the given listener with the GUID of every voucher whose file is replaced, changed or
+   * removed, as the index learns of it.
+   *
+   * <p>Listeners are called on whichever thread updates the index, often the watcher, and
+   * shouldn't block.
+   */
+  public void addChangeListener(Consumer<UUID> listener) {
+    myChangeListeners.add(Objects.requireNonNull(listener));
+  }
+
+  /**
+   * Return the file which holds the voucher for the given GUID.
+   */
+  public Optional<Path> find(UUID guid) {
+    final Entry entry = myByGuid.get(guid);
+    return null != entry ? Optional.of(myDir.resolve(entry.myName)) : Optional.empty();
+  }
+
+  /**
+   * Return the size in bytes of the file which holds the voucher for the given GUID, as it was
+   * when last indexed.
+   */
+  public OptionalLong getSize(UUID guid) {
+    final Entry entry = myByGuid.get(guid);
+    return null != entry ? OptionalLong.of(entry.mySize) : OptionalLong.empty();
+  }
+
+  /**
+   * Load the voucher for the given GUID.
+   *
+   * <p>If the file no longer holds that voucher, it is re-indexed and nothing is returned.
+   */
+  public Optional<OwnershipVoucher> load(UUID guid) {
+    final Entry entry = myByGuid.get(guid);
+    if (null == entry) {
+      return Optional.empty();
+    }
+
+    try {
+      final OwnershipVoucher voucher = read(myDir.resolve(entry.myName));
+      if (guid.equals(voucher.getUuid())) {
+        return Optional.of(voucher);
+      }
+    } catch (IOException e) {
+      // Fall through and find out what the file holds now.
+    }
+
+    index(entry.myName);
+    return Optional.empty();
+  }
+
+  /**
+   * Return the GUIDs of every indexed voucher, as they stand now.
+   */
+  public Set<UUID> getGuids() {
+    return Set.copyOf(myByGuid.keySet());
+  }
+
+  /**
+   * Return the indexed directory.
+   */
+  public Path getDir() {
+    return myDir;
+  }
+
+  /**
+   * Return the number of vouchers indexed.
+   */
+  public int size() {
+    return myByGuid.size();
+  }
+
+  /**
+   * Save the index, if it has an index file.
+   */
+  public synchronized void save() throws IOException {
+    if (null == myIndexFile) {
+      return;
+    }
+
+    final Path temp = myIndexFile.resolveSibling(myIndexFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temp)))) {
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      final List<Entry> entries = List.copyOf(myByGuid.values());
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeLong(entry.myGuid.getMostSignificantBits());
+        out.writeLong(entry.myGuid.getLeastSignificantBits());
+        out.writeUTF(entry.myName.toString());
+        out.writeLong(entry.mySize);
+        out.writeLong(entry.myModified);
+      }
+    }
+    Files.move(temp, myIndexFile,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Keep the index current as files in the directory change.
+   */
+  public synchronized void startWatching() throws IOException {
+    if (null != myWatchService) {
+      return;
+    }
+
+    final WatchService watchService = myDir.getFileSystem().newWatchService();
+    myDir.register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+
+    myWatchService = watchService;
+    myWatcher = new Thread(() -> watch(watchService), getClass().getSimpleName() + "-watcher");
+    myWatcher.setDaemon(true);
+    myWatcher.start();
+  }
+
+  /**
+   * Stop watching the directory, and save the index.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (null != myWatchService) {
+      myWatchService.close();
+      myWatchService = null;
+      myWatcher = null;
+    }
+    save();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()
+        + "{dir=" + myDir
+        + ", size=" + size()
+        + "}";
+  }
+
+  // Decode one file and bring its index entry up to date.
+  private void index(Path name) {
+    final Path file = myDir.resolve(name);
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      final OwnershipVoucher voucher = read(file);
+      put(new Entry(voucher.getUuid(), name, attributes));
+    } catch (IOException | RuntimeException e) {
+      // The file is gone or doesn't contain a valid voucher.
+      remove(name);
+    }
+  }
+
+  private boolean isIndexFile(Path path) {
+    if (null == myIndexFile) {
+      return false;
+    }
+    final Path absolute = path.toAbsolutePath();
+    return absolute.equals(myIndexFile)
+        || absolute.equals(myIndexFile.resolveSibling(myIndexFile.getFileName() + ".tmp"));
+  }
+
+  private void put(Entry entry) {
+    final UUID previous = myByName.put(entry.myName, entry.myGuid);
+    if (null != previous && !previous.equals(entry.myGuid)) {
+      myByGuid.remove(previous);
+      changed(previous);
+    }
+    myByGuid.put(entry.myGuid, entry);
+    changed(entry.myGuid);
+  }
+
+  private void changed(UUID guid) {
+    for (Consumer<UUID> listener : myChangeListeners) {
+      listener.accept(guid);
+    }
+  }
+
+  private Map<Path, Entry> readIndexFile() {
+    final Map<Path, Entry> entries = new HashMap<>();
+    if (null == myIndexFile || !Files.exists(myIndexFile)) {
+      return entries;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(myIndexFile)))) {
+
+      if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+        logger().warn("ignoring unrecognized voucher index " + myIndexFile);
+        return entries;
+      }
+      for (int count = in.readInt(); count > 0; --count) {
+        final UUID guid = new UUID(in.readLong(), in.readLong());
+        final Path name = Path.of(in.readUTF());
+        entries.put(name, new Entry(guid, name, in.readLong(), in.readLong()));
+      }
+
+    } catch (IOException e) {
+      logger().warn("ignoring unreadable voucher index " + myIndexFile + ": " + e.getMessage());
+      entries.clear();
+    }
+    return entries;
+  }
+
+  private void remove(Path name) {
+    final UUID guid = myByName.remove(name);
+    if (null != guid) {
+      myByGuid.computeIfPresent(guid, (k, entry) -> name.equals(entry.myName) ? null : entry);
+      changed(guid);
+    }
+  }
+
+  // Block for changes, wait for them to settle, then re-index the files which changed.
+  // Closing the watch service ends the loop.
+  private void watch(WatchService watchService) {
+    try {
+      for (;;) {
+        final Set<Path> changed = new HashSet<>();
+        boolean isOverflow = collect(watchService.take(), changed);
+        WatchKey key;
+        while (null != (key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS))) {
+          isOverflow |= collect(key, changed);
+        }
+
+        try {
+          if (isOverflow) {
+            build();
+          } else if (!changed.isEmpty()) {
+            changed.forEach(this::index);
+            save();
+          }
+        } catch (IOException e) {
+          logger().warn("voucher index update failed: " + e.getMessage());
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      // We're finished.
+    }
+  }
+
+  // Gather the names of changed files, and return true if events were lost.
+  private boolean collect(WatchKey key, Set<Path> changed) {
+    boolean isOverflow = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+        isOverflow = true;
+      } else if (!isIndexFile(myDir.resolve((Path) event.context()))) {
+        changed.add((Path) event.context());
+      }
+    }
+    key.reset();
+    return isOverflow;
+  }
+
+  private static class Entry {
+
+    final UUID myGuid;
+    final long myModified;
+    final Path myName;
+    final long mySize;
+
+    Entry(UUID guid, Path name, BasicFileAttributes attributes) {
+      this(guid, name, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    Entry(UUID guid, Path name, long size, long modified) {
+      myGuid = guid;
+      myName = name;
+      mySize = size;
+      myModified = modified;
+    }
+
+    // Entries are equal if they describe the same file in the same state, so that build() can
+    // tell an unchanged file from one to re-index.
+    @Override
+    public boolean equals(Object o) {
+
+      if (this == o) {
+        return true;
+      }
+
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      Entry that = (Entry) o;
+      return this.mySize == that.mySize
+          && this.myModified == that.myModified
+          && this.myGuid.equals(that.myGuid)
+          && this.myName.equals(that.myName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myGuid, myName, mySize, myModified);
+    }
+
+    boolean isCurrent(BasicFileAttributes attributes) {
+      return mySize == attributes.size()
+          && myModified == attributes.lastModifiedTime().toMillis();
+    }
+  }
+}
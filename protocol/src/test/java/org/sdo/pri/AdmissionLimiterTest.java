@@ -0,0 +1,79 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class AdmissionLimiterTest {
+
+  @Test
+  void hellosAreShedBeforeContinuations() {
+    final AdmissionLimiter limiter =
+        new AdmissionLimiter(4, 0.5, Map.of(), Duration.ZERO, Duration.ofSeconds(5));
+
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_HELLO_DEVICE, true));
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_HELLO_DEVICE, true));
+    assertNull(limiter.tryAcquire(MessageType.TO2_HELLO_DEVICE, true));
+
+    final AdmissionLimiter.Permit permit =
+        limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false);
+    assertNotNull(permit);
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false));
+    assertNull(limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false));
+    assertEquals(2, limiter.getShed());
+    assertEquals(1, limiter.getShedHellos());
+
+    permit.release();
+    permit.release();
+    assertEquals(3, limiter.getInFlight());
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_DONE, false));
+  }
+
+  @Test
+  void typeLimitsApply() {
+    final AdmissionLimiter limiter = new AdmissionLimiter(10, 1.0,
+        Map.of(MessageType.TO2_PROVE_DEVICE, 1), Duration.ZERO, Duration.ofSeconds(5));
+
+    final AdmissionLimiter.Permit permit =
+        limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false);
+    assertNotNull(permit);
+    assertNull(limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false));
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_DONE, false));
+    assertEquals(2, limiter.getInFlight());
+
+    permit.release();
+    assertNotNull(limiter.tryAcquire(MessageType.TO2_PROVE_DEVICE, false));
+  }
+
+  @Test
+  void limitBacksOffWhenSlow() throws Exception {
+    final AdmissionLimiter limiter =
+        new AdmissionLimiter(100, 1.0, Map.of(), Duration.ofNanos(1), Duration.ofSeconds(5));
+
+    for (int i = 0; i < 100; i++) {
+      final AdmissionLimiter.Permit permit = limiter.tryAcquire(MessageType.TO2_DONE, false);
+      Thread.sleep(0, 1000);
+      permit.release();
+    }
+    assertEquals(90, limiter.getLimit());
+  }
+
+  @Test
+  void retryAfterIsSpread() {
+    final AdmissionLimiter limiter =
+        new AdmissionLimiter(1, 1.0, Map.of(), Duration.ZERO, Duration.ofSeconds(5));
+
+    for (int i = 0; i < 100; i++) {
+      final long retryAfter = limiter.getRetryAfterSeconds();
+      assertTrue(5 <= retryAfter && retryAfter <= 10);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class CachingObjectStorageTest {
+
+  private static class CountingStorage implements ObjectStorage<Integer, String> {
+
+    final AtomicInteger loads = new AtomicInteger();
+    final Map<Integer, String> values = new HashMap<>();
+
+    @Override
+    public Optional<String> load(Integer key) {
+      loads.incrementAndGet();
+      return Optional.ofNullable(values.get(key));
+    }
+
+    @Override
+    public void store(Integer key, String value) {
+      values.put(key, value);
+    }
+  }
+
+  @Test
+  void hitsAreServedFromMemory() {
+    final CountingStorage delegate = new CountingStorage();
+    delegate.values.put(1, new String("one"));
+    final CachingObjectStorage<Integer, String> cache =
+        new CachingObjectStorage<>(delegate, 1024, String::length, 1);
+
+    final String first = cache.load(1).get();
+    assertSame(first, cache.load(1).get());
+    assertSame(first, cache.load(1).get());
+    assertEquals(1, delegate.loads.get());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(2.0 / 3.0, cache.getHitRatio(), 1e-9);
+
+    // Missing objects aren't cached.
+    assertFalse(cache.load(2).isPresent());
+    assertFalse(cache.load(2).isPresent());
+    assertEquals(3, delegate.loads.get());
+  }
+
+  @Test
+  void storeInvalidates() {
+    final CountingStorage delegate = new CountingStorage();
+    delegate.values.put(1, "one");
+    final CachingObjectStorage<Integer, String> cache =
+        new CachingObjectStorage<>(delegate, 1024, String::length, 1);
+
+    assertEquals("one", cache.load(1).get());
+    cache.store(1, "uno");
+    assertEquals("uno", cache.load(1).get());
+    assertEquals(2, delegate.loads.get());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedByWeight() {
+    final CountingStorage delegate = new CountingStorage();
+    for (int i = 0; i < 4; ++i) {
+      delegate.values.put(i, "xxxx");
+    }
+    final CachingObjectStorage<Integer, String> cache =
+        new CachingObjectStorage<>(delegate, 12, String::length, 1);
+
+    cache.load(0);
+    cache.load(1);
+    cache.load(2);
+    cache.load(0); // 1 is now least recently used
+    cache.load(3);
+
+    assertEquals(3, cache.size());
+    assertEquals(12, cache.getBytes());
+    assertEquals(1, cache.getEvictions());
+    final int loads = delegate.loads.get();
+    cache.load(0);
+    assertEquals(loads, delegate.loads.get());
+    cache.load(1);
+    assertTrue(delegate.loads.get() > loads);
+  }
+}
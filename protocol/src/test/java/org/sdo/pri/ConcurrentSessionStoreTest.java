@@ -0,0 +1,113 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentSessionStoreTest {
+
+  private static ConcurrentSessionStore<UUID, byte[]> newStore(
+      Duration ttl, int maxEntries, long maxBytes) {
+
+    return new ConcurrentSessionStore<>(
+        ttl, maxEntries, maxBytes, b -> b.length, 1, Duration.ofHours(1));
+  }
+
+  @Test
+  void takeRemovesEntry() {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMinutes(1), 10, 100)) {
+      UUID key = UUID.randomUUID();
+      store.put(key, new byte[]{1, 2, 3});
+      assertEquals(3, store.getBytes());
+
+      assertArrayEquals(new byte[]{1, 2, 3}, store.take(key));
+      assertNull(store.take(key));
+      assertEquals(0, store.size());
+      assertEquals(0, store.getBytes());
+      assertEquals(1, store.getHits());
+      assertEquals(1, store.getMisses());
+    }
+  }
+
+  @Test
+  void expiredEntriesAreSwept() throws Exception {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMillis(10), 10, 100)) {
+      UUID key = UUID.randomUUID();
+      store.put(key, new byte[1]);
+      Thread.sleep(50);
+
+      store.sweep();
+      assertEquals(0, store.size());
+      assertEquals(1, store.getExpirations());
+      assertNull(store.take(key));
+    }
+  }
+
+  @Test
+  void eldestEntriesAreEvicted() {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMinutes(1), 2, 100)) {
+      UUID first = UUID.randomUUID();
+      UUID second = UUID.randomUUID();
+      UUID third = UUID.randomUUID();
+      store.put(first, new byte[1]);
+      store.put(second, new byte[1]);
+      store.put(third, new byte[1]);
+
+      assertEquals(2, store.size());
+      assertEquals(1, store.getEvictions());
+      assertNull(store.take(first));
+    }
+  }
+
+  @Test
+  void byteCapIsEnforced() {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMinutes(1), 10, 10)) {
+      store.put(UUID.randomUUID(), new byte[6]);
+      store.put(UUID.randomUUID(), new byte[6]);
+
+      assertEquals(1, store.size());
+      assertEquals(6, store.getBytes());
+      assertEquals(1, store.getEvictions());
+    }
+  }
+
+  @Test
+  void replaceAllReweighsAndRemoves() {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMinutes(1), 10, 100)) {
+      UUID kept = UUID.randomUUID();
+      UUID removed = UUID.randomUUID();
+      store.put(kept, new byte[4]);
+      store.put(removed, new byte[8]);
+
+      store.replaceAll((k, v) -> k.equals(kept) ? new byte[2] : null);
+      assertEquals(1, store.size());
+      assertEquals(2, store.getBytes());
+      assertArrayEquals(new byte[2], store.take(kept));
+    }
+  }
+
+  @Test
+  void replaceAllEnforcesTheCaps() {
+    try (ConcurrentSessionStore<UUID, byte[]> store = newStore(Duration.ofMinutes(1), 10, 10)) {
+      UUID first = UUID.randomUUID();
+      UUID second = UUID.randomUUID();
+      store.put(first, new byte[2]);
+      store.put(second, new byte[2]);
+
+      // Both grow to 6 bytes, which is too many for both, so the eldest goes.
+      store.replaceAll((k, v) -> new byte[6]);
+      assertEquals(1, store.size());
+      assertEquals(6, store.getBytes());
+      assertEquals(1, store.getEvictions());
+      assertNull(store.take(first));
+      assertArrayEquals(new byte[6], store.take(second));
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+class DurableRedirectStoreTest {
+
+  private static final Duration NEVER = Duration.ofDays(1);
+
+  private static DurableRedirectStore open(Path dir) throws Exception {
+    return new DurableRedirectStore(dir, new RedirectStore(1000, NEVER, NEVER), NEVER, NEVER);
+  }
+
+  private static RedirectionEntry load(DurableRedirectStore store, UUID guid) {
+    return (RedirectionEntry) store.load(guid).orElseThrow();
+  }
+
+  @Test
+  void redirectionsSurviveRestart() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+    kpg.initialize(new ECGenParameterSpec("secp256r1"));
+    final KeyPair deviceKeys = kpg.generateKeyPair();
+    final Instant later = Instant.now().plus(Duration.ofHours(1));
+    final UUID withKey = UUID.randomUUID();
+    final UUID withoutKey = UUID.randomUUID();
+    final UUID expired = UUID.randomUUID();
+    final UUID replaced = UUID.randomUUID();
+
+    try (DurableRedirectStore store = open(dir)) {
+      store.store(withKey, new RedirectionEntry(deviceKeys.getPublic(), "one", later));
+      store.store(expired, new RedirectionEntry(null, "gone", Instant.now().minusSeconds(1)));
+      store.snapshot();
+      store.store(withoutKey, new RedirectionEntry(null, "two", later));
+      store.store(replaced, new RedirectionEntry(null, "old", later));
+      store.store(replaced, new RedirectionEntry(null, "new", later));
+    }
+
+    try (DurableRedirectStore store = open(dir)) {
+      assertEquals("one", load(store, withKey).getRedirect());
+      assertEquals(
+          deviceKeys.getPublic().getEncoded().length,
+          load(store, withKey).getDevicePk().getEncoded().length);
+      assertEquals(later.getEpochSecond(), load(store, withKey).getExpiresAt().getEpochSecond());
+      assertEquals("two", load(store, withoutKey).getRedirect());
+      assertEquals("new", load(store, replaced).getRedirect());
+      assertFalse(store.load(expired).isPresent());
+      assertEquals(3, store.getStore().size());
+    }
+  }
+
+  @Test
+  void discardedRedirectionsStayGoneAfterRestart() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final Instant later = Instant.now().plus(Duration.ofHours(1));
+    final UUID snapshotted = UUID.randomUUID();
+    final UUID logged = UUID.randomUUID();
+
+    try (DurableRedirectStore store = open(dir)) {
+      store.store(snapshotted, new RedirectionEntry(null, "one", later));
+      store.snapshot();
+      store.store(logged, new RedirectionEntry(null, "two", later));
+      store.discard(snapshotted);
+      store.discard(logged);
+      assertEquals(0, store.getStore().size());
+    }
+
+    try (DurableRedirectStore store = open(dir)) {
+      assertFalse(store.load(snapshotted).isPresent());
+      assertFalse(store.load(logged).isPresent());
+    }
+  }
+
+  @Test
+  void recoveryStopsAtATornRecord() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final Instant later = Instant.now().plus(Duration.ofHours(1));
+    final UUID kept = UUID.randomUUID();
+
+    // Abandon the store without closing it, as a crash would.
+    final DurableRedirectStore crashed = open(dir);
+    crashed.store(kept, new RedirectionEntry(null, "kept", later));
+    final Path wal;
+    try (Stream<Path> files = Files.list(dir)) {
+      wal = files.filter(p -> p.toString().endsWith(".wal")).findFirst().orElseThrow();
+    }
+    Files.write(wal, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+    try (DurableRedirectStore store = open(dir)) {
+      assertEquals("kept", load(store, kept).getRedirect());
+      assertEquals(1, store.getStore().size());
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class FilteredRedirectStoreTest {
+
+  private static final Duration NEVER = Duration.ofDays(1);
+
+  static String helloBody(UUID g2) throws Exception {
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    final To1HelloSdo hello =
+        new To1HelloSdo(g2, new SigInfoFactory().build(generator.generateKeyPair().getPublic()));
+    final StringWriter w = new StringWriter();
+    new To1HelloSdoCodec().encoder().apply(w, hello);
+    return w.toString();
+  }
+
+  @Test
+  void filterNeverHidesAStoredRedirection() throws Exception {
+    try (RedirectStore store = new RedirectStore(100000, NEVER, NEVER);
+        FilteredRedirectStore filtered = new FilteredRedirectStore(store, store, NEVER)) {
+
+      final Instant expiresAt = Instant.now().plus(NEVER);
+      for (int i = 0; i < 20000; ++i) {
+        final UUID guid = UUID.randomUUID();
+        filtered.store(guid, new RedirectionEntry(null, "to1d", expiresAt));
+        assertTrue(filtered.load(guid).isPresent());
+      }
+
+      // The filter grew far past its first capacity.  Once it's rebuilt, it's sized to fit.
+      filtered.rebuild();
+      final long passedBefore = filtered.getPassed();
+      int passed = 0;
+      for (int i = 0; i < 20000; ++i) {
+        if (filtered.mightContain(UUID.randomUUID())) {
+          ++passed;
+        }
+      }
+      assertTrue(passed < 600, passed + " false positives in 20000");
+      assertEquals(passed, filtered.getPassed() - passedBefore);
+    }
+  }
+
+  @Test
+  void rebuildDropsExpiredRedirections() throws Exception {
+    try (RedirectStore store = new RedirectStore(100, NEVER, NEVER);
+        FilteredRedirectStore filtered = new FilteredRedirectStore(store, store, NEVER)) {
+
+      final UUID guid = UUID.randomUUID();
+      filtered.store(guid, new RedirectionEntry(null, "to1d", Instant.now().plusMillis(50)));
+      assertTrue(filtered.mightContain(guid));
+
+      Thread.sleep(100);
+      assertFalse(filtered.load(guid).isPresent());
+      assertEquals(1, filtered.getFalsePositives());
+
+      filtered.rebuild();
+      assertFalse(filtered.mightContain(guid));
+    }
+  }
+
+  @Test
+  void unregisteredDevicesGetTheUsualNotFoundError() throws Exception {
+    final UUID guid = UUID.randomUUID();
+    final ProtocolMessage hello = EncodedProtocolMessage.getInstance(
+        Version.VERSION_1_13, MessageType.TO1_HELLO_SDO, helloBody(guid));
+
+    assertNull(RendezvousDeviceService.answerUnregistered(hello, g2 -> true));
+
+    final ProtocolMessage answer = RendezvousDeviceService.answerUnregistered(hello, g2 -> false);
+    assertEquals(MessageType.ERROR, answer.getType());
+
+    // The ready-made answer matches the one a service would give.
+    final RendezvousDeviceService service = new RendezvousDeviceService();
+    try (RedirectStore store = new RedirectStore(100, NEVER, NEVER)) {
+      service.setRedirectionMap(store);
+      final ProtocolException e = assertThrows(ProtocolException.class, () -> service.next(hello));
+      assertEquals(e.getMessage(), answer.getBody());
+      assertEquals(0, e.getStackTrace().length);
+    }
+
+    final Error error = new ErrorCodec().decoder().apply(CharBuffer.wrap(answer.getBody()));
+    assertEquals(ErrorCode.ResourceNotFound, error.getEc());
+    assertTrue(error.getEm().contains(guid.toString()));
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class InstrumentedExecutorServiceTest {
+
+  @Test
+  void countsInFlightTasks() throws Exception {
+    final InstrumentedExecutorService executor = InstrumentedExecutorService.newVirtual();
+    try {
+      final CountDownLatch started = new CountDownLatch(3);
+      final CountDownLatch release = new CountDownLatch(1);
+      for (int i = 0; i < 3; i++) {
+        executor.execute(() -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      }
+
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      assertEquals(3, executor.getInFlight());
+      release.countDown();
+
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      assertEquals(0, executor.getInFlight());
+      assertEquals(3, executor.getPeakInFlight());
+      assertEquals(3, executor.getCompleted());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
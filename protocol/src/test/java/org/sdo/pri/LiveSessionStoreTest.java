@@ -0,0 +1,105 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class LiveSessionStoreTest {
+
+  private final AtomicInteger mySerializations = new AtomicInteger();
+
+  private LiveSessionStore<StringBuilder> newStore(boolean isLive) {
+    return newStore(isLive, Duration.ofMinutes(1), null);
+  }
+
+  private LiveSessionStore<StringBuilder> newStore(
+      boolean isLive, Duration ttl, SlabSessionStore offHeap) {
+    return new LiveSessionStore<>(new LiveSessionStore.Serializer<>() {
+      @Override
+      public StringBuilder deserialize(byte[] bytes) {
+        return new StringBuilder(new String(bytes, StandardCharsets.UTF_8));
+      }
+
+      @Override
+      public byte[] serialize(StringBuilder session) {
+        mySerializations.incrementAndGet();
+        return session.toString().getBytes(StandardCharsets.UTF_8);
+      }
+    }, isLive, 1.0, ttl, 10, 1000, 100, offHeap);
+  }
+
+  @Test
+  void liveSessionsAreNotSerialized() throws Exception {
+    try (LiveSessionStore<StringBuilder> store = newStore(true)) {
+      final UUID key = UUID.randomUUID();
+      final StringBuilder session = new StringBuilder("hello");
+      store.put(key, session);
+
+      assertEquals(100, store.getStore().getBytes());
+      assertSame(session, store.take(key));
+      assertNull(store.take(key));
+      assertEquals(0, mySerializations.get());
+    }
+  }
+
+  @Test
+  void serializedModeRoundTrips() throws Exception {
+    try (LiveSessionStore<StringBuilder> store = newStore(false)) {
+      final UUID key = UUID.randomUUID();
+      final StringBuilder session = new StringBuilder("hello");
+      store.put(key, session);
+
+      assertEquals(5, store.getStore().getBytes());
+      final StringBuilder restored = store.take(key);
+      assertNotSame(session, restored);
+      assertEquals("hello", restored.toString());
+    }
+  }
+
+  @Test
+  void drainSpillsLiveSessions() throws Exception {
+    try (LiveSessionStore<StringBuilder> store = newStore(true)) {
+      final UUID first = UUID.randomUUID();
+      final UUID second = UUID.randomUUID();
+      store.put(first, new StringBuilder("first"));
+      store.drain();
+      store.put(second, new StringBuilder("second"));
+
+      assertFalse(store.isLive());
+      assertEquals(1, store.getSpills());
+      assertEquals(2, mySerializations.get());
+      assertEquals(11, store.getStore().getBytes());
+      assertEquals("first", store.take(first).toString());
+      assertEquals("second", store.take(second).toString());
+    }
+  }
+
+  @Test
+  void spilledSessionsKeepTheirRemainingTtl() throws Exception {
+    final Duration ttl = Duration.ofMillis(300);
+    final SlabSessionStore offHeap =
+        new SlabSessionStore(ttl, 128, null, 64, 1, Duration.ofHours(1));
+    try (LiveSessionStore<StringBuilder> store = newStore(true, ttl, offHeap)) {
+      final UUID key = UUID.randomUUID();
+      store.put(key, new StringBuilder("hello"));
+      Thread.sleep(200);
+      store.drain();
+      assertEquals(1, offHeap.size());
+
+      // A fresh TTL would keep it for another 300ms.
+      Thread.sleep(200);
+      assertNull(store.take(key));
+    }
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process key/value server which stands in for a shared one in tests.
+ *
+ * <p>It speaks just enough of the Redis wire protocol for {@link SharedRedirectStore}:
+ * {@code PING}, {@code GET}, {@code SET} (with an optional {@code PX} expiry) and {@code DEL}.
+ * Values live in the heap, and expired ones are only dropped when they're next read.
+ */
+class LocalKeyValueServer implements Closeable {
+
+  private final Set<Socket> myConnections = ConcurrentHashMap.newKeySet();
+  private final Map<String, Value> myMap = new ConcurrentHashMap<>();
+  private final ServerSocket myServerSocket;
+
+  /**
+   * Start a server on the loopback interface.
+   *
+   * @param port the port to listen on, or zero for any free port
+   */
+  LocalKeyValueServer(int port) throws IOException {
+    myServerSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    daemon(this::accept, "accept").start();
+  }
+
+  private static Logger logger() {
+    return LoggerFactory.getLogger(LocalKeyValueServer.class);
+  }
+
+  private static Thread daemon(Runnable r, String name) {
+    final Thread t = new Thread(r, LocalKeyValueServer.class.getSimpleName() + "-" + name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  int getPort() {
+    return myServerSocket.getLocalPort();
+  }
+
+  /**
+   * Drop every connection, as a server restart or an idle timeout would, but keep listening.
+   */
+  void dropConnections() throws IOException {
+    for (Socket socket : myConnections) {
+      socket.close();
+    }
+  }
+
+  /**
+   * Stop listening and drop every connection.
+   */
+  @Override
+  public void close() throws IOException {
+    myServerSocket.close();
+    for (Socket socket : myConnections) {
+      socket.close();
+    }
+  }
+
+  private void accept() {
+    while (!myServerSocket.isClosed()) {
+      try {
+        final Socket socket = myServerSocket.accept();
+        myConnections.add(socket);
+        daemon(() -> serve(socket), "connection").start();
+      } catch (IOException e) {
+        if (!myServerSocket.isClosed()) {
+          logger().warn("accept failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (socket) {
+      final InputStream in = new BufferedInputStream(socket.getInputStream());
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      for (byte[][] request; null != (request = readRequest(in)); ) {
+        out.write(reply(request));
+        out.flush();
+      }
+    } catch (IOException e) {
+      logger().debug("connection closed: " + e.getMessage());
+    } finally {
+      myConnections.remove(socket);
+    }
+  }
+
+  // Read one array of bulk strings, or null at end of stream.
+  private byte[][] readRequest(InputStream in) throws IOException {
+    final String header;
+    try {
+      header = SharedRedirectStore.Connection.readLine(in);
+    } catch (EOFException e) {
+      return null;
+    }
+    if (!header.startsWith("*")) {
+      throw new IOException("expected an array, got " + header);
+    }
+    final byte[][] request = new byte[Integer.parseInt(header.substring(1))][];
+    for (int i = 0; i < request.length; ++i) {
+      final String bulk = SharedRedirectStore.Connection.readLine(in);
+      if (!bulk.startsWith("$")) {
+        throw new IOException("expected a bulk string, got " + bulk);
+      }
+      request[i] =
+          SharedRedirectStore.Connection.readBulk(in, Integer.parseInt(bulk.substring(1)));
+    }
+    return request;
+  }
+
+  private byte[] reply(byte[][] request) throws IOException {
+    final String command = 0 < request.length ? new String(request[0], US_ASCII) : "";
+    final long now = System.currentTimeMillis();
+
+    if ("PING".equalsIgnoreCase(command)) {
+      return "+PONG\r\n".getBytes(US_ASCII);
+
+    } else if ("GET".equalsIgnoreCase(command) && 2 == request.length) {
+      final String key = new String(request[1], ISO_8859_1);
+      final Value value = myMap.get(key);
+      if (null == value || value.myExpiresAt <= now) {
+        if (null != value) {
+          myMap.remove(key, value);
+        }
+        return "$-1\r\n".getBytes(US_ASCII);
+      }
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      SharedRedirectStore.Connection.writeBulk(out, value.myBytes);
+      return out.toByteArray();
+
+    } else if ("SET".equalsIgnoreCase(command) && (3 == request.length || 5 == request.length)) {
+      long expiresAt = Long.MAX_VALUE;
+      if (5 == request.length) {
+        if (!"PX".equalsIgnoreCase(new String(request[3], US_ASCII))) {
+          return "-ERR syntax error\r\n".getBytes(US_ASCII);
+        }
+        expiresAt = now + Long.parseLong(new String(request[4], US_ASCII));
+      }
+      myMap.put(new String(request[1], ISO_8859_1), new Value(request[2], expiresAt));
+      return "+OK\r\n".getBytes(US_ASCII);
+
+    } else if ("DEL".equalsIgnoreCase(command) && 2 <= request.length) {
+      long removed = 0;
+      for (int i = 1; i < request.length; ++i) {
+        final Value value = myMap.remove(new String(request[i], ISO_8859_1));
+        if (null != value && now < value.myExpiresAt) {
+          ++removed;
+        }
+      }
+      return (":" + removed + "\r\n").getBytes(US_ASCII);
+
+    } else {
+      return ("-ERR unsupported command '" + command + "'\r\n").getBytes(US_ASCII);
+    }
+  }
+
+  private static class Value {
+
+    final byte[] myBytes;
+    final long myExpiresAt;
+
+    Value(byte[] bytes, long expiresAt) {
+      myBytes = bytes;
+      myExpiresAt = expiresAt;
+    }
+  }
+}
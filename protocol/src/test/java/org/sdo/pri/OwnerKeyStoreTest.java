@@ -0,0 +1,91 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+
+class OwnerKeyStoreTest {
+
+  private static KeyPair rsa(int bits) throws Exception {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+    kpg.initialize(bits);
+    return kpg.generateKeyPair();
+  }
+
+  private static KeyPair ec() throws Exception {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+    kpg.initialize(new ECGenParameterSpec("secp256r1"));
+    return kpg.generateKeyPair();
+  }
+
+  // Private and public halves go in separate files, so the store must pair them up.
+  private static void write(Path dir, String name, KeyPair keys) throws IOException {
+    Files.write(dir.resolve(name + ".key"),
+        pem("PRIVATE KEY", keys.getPrivate().getEncoded()).getBytes(StandardCharsets.US_ASCII));
+    Files.write(dir.resolve(name + ".pub"),
+        pem("PUBLIC KEY", keys.getPublic().getEncoded()).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static String pem(String type, byte[] der) {
+    return "-----BEGIN " + type + "-----\n"
+        + Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der)
+        + "\n-----END " + type + "-----\n";
+  }
+
+  @Test
+  void indexesKeysByTypeAndSize() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final KeyPair rsa2k = rsa(2048);
+    final KeyPair rsa3k = rsa(3072);
+    final KeyPair ec256 = ec();
+    write(dir, "a", rsa2k);
+    write(dir, "b", rsa3k);
+    write(dir, "c", ec256);
+
+    try (OwnerKeyStore keyStore = OwnerKeyStore.ofDirectory(dir)) {
+      assertEquals(rsa2k.getPrivate(), keyStore.get(KeyType.RSA2048RESTR).getPrivate());
+      assertEquals(rsa2k.getPrivate(), keyStore.getRsa(2048).getPrivate());
+      assertEquals(rsa3k.getPrivate(), keyStore.get(KeyType.RSA_UR).getPrivate());
+      assertEquals(rsa3k.getPrivate(), keyStore.getRsa(3072).getPrivate());
+      assertEquals(ec256.getPrivate(), keyStore.get(KeyType.ECDSA_P_256).getPrivate());
+      assertEquals(ec256.getPublic(), keyStore.get(KeyType.ECDSA_P_256).getPublic());
+      assertNull(keyStore.get(KeyType.ECDSA_P_384));
+      assertNull(keyStore.getRsa(4096));
+    }
+  }
+
+  @Test
+  void reloadSwapsKeysAndKeepsThemOnFailure() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final KeyPair first = ec();
+    write(dir, "owner", first);
+
+    try (OwnerKeyStore keyStore = OwnerKeyStore.ofDirectory(dir)) {
+      assertEquals(first.getPrivate(), keyStore.get(KeyType.ECDSA_P_256).getPrivate());
+
+      final KeyPair second = ec();
+      write(dir, "owner", second);
+      keyStore.reload();
+      assertEquals(second.getPrivate(), keyStore.get(KeyType.ECDSA_P_256).getPrivate());
+      assertEquals(1, keyStore.getReloads());
+
+      Files.delete(dir.resolve("owner.key"));
+      assertThrows(IOException.class, keyStore::reload);
+      assertEquals(second.getPrivate(), keyStore.get(KeyType.ECDSA_P_256).getPrivate());
+      assertEquals(1, keyStore.getReloadFailures());
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class OwnerRuntimeTest {
+
+  @Test
+  void servicesShareTheRuntime() {
+    final List<ServiceInfoModule> modules = new ArrayList<>();
+    modules.add(new ServiceInfoMultiSource() {
+      @Override
+      public List<Entry<CharSequence, CharSequence>> getServiceInfo(UUID id) {
+        return List.of();
+      }
+    });
+    final OwnerRuntime runtime = OwnerRuntime.builder()
+        .secureRandom(new SecureRandom())
+        .serviceInfoModules(modules)
+        .build();
+
+    final OwnerService first = new OwnerService();
+    final OwnerService second = new OwnerService();
+    first.setRuntime(runtime);
+    second.setRuntime(runtime);
+
+    assertSame(first.getRuntime(), second.getRuntime());
+    assertSame(runtime.getServiceInfoModules(), runtime.toBuilder().build().getServiceInfoModules());
+  }
+
+  @Test
+  void settersDoNotModifySharedRuntime() {
+    final OwnerRuntime runtime = OwnerRuntime.builder().build();
+    final OwnerService service = new OwnerService();
+    service.setRuntime(runtime);
+
+    final SecureRandom secureRandom = new SecureRandom();
+    service.setSecureRandom(secureRandom);
+
+    assertNotSame(runtime, service.getRuntime());
+    assertSame(secureRandom, service.getRuntime().getSecureRandom());
+    assertSame(runtime.getHttpClient(), service.getRuntime().getHttpClient());
+    assertNotSame(secureRandom, runtime.getSecureRandom());
+    assertNull(runtime.getKeysProvider());
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class OwnerServiceStateCodecTest {
+
+  @BeforeAll
+  static void beforeAll() {
+    Provider provider = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+
+    if (null == provider) {
+      provider = new BouncyCastleProvider();
+      Security.insertProviderAt(provider, 1);
+    }
+  }
+
+  @Test
+  void roundTripAfterProveDevice() throws Exception {
+
+    final SecureRandom random = new SecureRandom();
+    final byte[] keyBytes = new byte[16];
+    ThreadLocalRandom.current().nextBytes(keyBytes);
+    final CtrCipher cipher = new CtrCipher(new SecretKeySpec(keyBytes, "AES"), random);
+    cipher.encipher(new byte[40]); // advance the counter
+
+    final OwnerService service = new OwnerService();
+    service.setOwnershipVoucherId(UUID.randomUUID());
+    service.setN6(new Nonce(random));
+    service.setN7(new Nonce(random));
+    service.setCipher(cipher);
+    service.setEncryptedMessageCodec(
+        new EncryptedMessageCodec(new SecretKeySpec(keyBytes, "HmacSHA256")));
+    service.setG3(UUID.randomUUID());
+    service.setR3(new RendezvousInfo());
+    service.setServiceInfoCursor(3);
+
+    final OwnerServiceStateCodec codec = new OwnerServiceStateCodec();
+    final byte[] snapshot = codec.encode(service);
+    final OwnerService restored = codec.decode(snapshot, random);
+
+    assertFalse(restored.isDone());
+    assertEquals(service.getOwnershipVoucherId(), restored.getOwnershipVoucherId());
+    assertEquals(service.getN6(), restored.getN6());
+    assertEquals(service.getN7(), restored.getN7());
+    assertEquals(service.getG3(), restored.getG3());
+    assertEquals(service.getR3(), restored.getR3());
+    assertEquals(Integer.valueOf(3), restored.getServiceInfoCursor());
+    assertNull(restored.getKeyExchange());
+
+    // The restored cipher must continue the original's IV sequence.
+    final CtrCipher restoredCipher = (CtrCipher) restored.getCipher();
+    assertEquals(cipher.getCounter(), restoredCipher.getCounter());
+    assertArrayEquals(cipher.getIvSeed(), restoredCipher.getIvSeed());
+    final byte[] plainText = "the quick brown fox".getBytes();
+    assertArrayEquals(plainText, cipher.decipher(restoredCipher.encipher(plainText)));
+    assertNotNull(restored.getEncryptedMessageCodec());
+  }
+
+  @Test
+  void roundTripWithKeyExchange() throws Exception {
+
+    final SecureRandom random = new SecureRandom();
+    final KeyExchange kx = new EcdhKeyExchange.P256.Owner(random);
+    kx.getMessage();
+
+    final OwnerService service = new OwnerService();
+    service.setKeyExchange(kx);
+    service.setCipherType(new CipherType(CipherAlgorithm.AES128, CipherBlockMode.CTR,
+        MacType.HMAC_SHA256));
+
+    final OwnerServiceStateCodec codec = new OwnerServiceStateCodec();
+    final OwnerService restored = codec.decode(codec.encode(service), random);
+
+    assertEquals(service.getCipherType(), restored.getCipherType());
+    assertTrue(restored.getKeyExchange().getMessage().equals(kx.getMessage()));
+  }
+
+  // A session restored with the given voucher id, whose storage holds the given voucher.
+  private static OwnerService restored(UUID guid, OwnershipVoucher voucher) throws Exception {
+    final OwnerService service = new OwnerService();
+    service.setOwnershipVoucherId(guid);
+
+    final OwnerServiceStateCodec codec = new OwnerServiceStateCodec();
+    final OwnerService restored = codec.decode(codec.encode(service), new SecureRandom());
+    restored.setOwnershipVoucherStorage(new ObjectStorage<>() {
+      @Override
+      public Optional<OwnershipVoucher> load(UUID key) {
+        return Optional.ofNullable(voucher);
+      }
+
+      @Override
+      public void store(UUID key, OwnershipVoucher value) {
+      }
+    });
+    return restored;
+  }
+
+  @Test
+  void restoredSessionWithoutItsVoucherIsRefused() throws Exception {
+    final OwnerService restored = restored(UUID.randomUUID(), null);
+
+    final ProtocolException e = assertThrows(ProtocolException.class,
+        () -> restored.next(EncodedProtocolMessage.getInstance(
+            Version.VERSION_1_13, MessageType.TO2_GET_OP_NEXT_ENTRY, "{\"enn\":0}")));
+    assertEquals(ErrorCode.ResourceNotFound, e.getError().getEc());
+    assertTrue(restored.isDone());
+  }
+
+  @Test
+  void malformedDeviceCertificatesAreRefused() throws Exception {
+    final OwnershipVoucher113 parsed = (OwnershipVoucher113) new OwnershipVoucherParser()
+        .readObject(new StringReader(OwnershipVoucherParserTest.voucherText(1)));
+    final OwnershipVoucher113 voucher = new OwnershipVoucher113(parsed.getOh(),
+        parsed.getHmac(), parsed.getOhText(), parsed.getHmacText(), "[1,2,[[3,\"!\"]]]",
+        List.of());
+    final OwnerService restored = restored(voucher.getUuid(), voucher);
+
+    // The chain is only decoded once TO2.ProveDevice arrives without a device key.
+    final SecureRandom random = new SecureRandom();
+    final StringWriter bo = new StringWriter();
+    new To2ProveDeviceCodec().encoder().apply(bo, new To2ProveDevice(
+        ByteBuffer.wrap(new byte[] {1}), new Nonce(random), new Nonce(random),
+        voucher.getUuid(), 1, ByteBuffer.wrap(new byte[] {1})));
+    final StringWriter body = new StringWriter();
+    new SignatureBlockCodec.Encoder(new PublicKeyCodec.Encoder(KeyEncoding.NONE))
+        .encode(body, new SignatureBlock(bo.toString(), null, new byte[] {1}));
+
+    final ProtocolException e = assertThrows(ProtocolException.class,
+        () -> restored.next(EncodedProtocolMessage.getInstance(
+            Version.VERSION_1_13, MessageType.TO2_PROVE_DEVICE, body.toString())));
+    assertEquals(ErrorCode.SyntaxError, e.getError().getEc());
+    assertTrue(restored.isDone());
+  }
+
+  @Test
+  void unknownVersionIsRefused() throws Exception {
+    final OwnerServiceStateCodec codec = new OwnerServiceStateCodec();
+    final byte[] snapshot = codec.encode(new OwnerService());
+    snapshot[0] = 99;
+    assertThrows(IOException.class, () -> codec.decode(snapshot, new SecureRandom()));
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class OwnershipVoucherParserTest {
+
+  // The sample voucher with its one entry repeated, to make it as long as needed.
+  static String voucherText(int entries) throws Exception {
+    final String text;
+    try (InputStream in = OwnershipVoucherParserTest.class.getResourceAsStream(
+        "/vouchers/1fae14fb-deca-405a-abdd-b25391b9d932.json")) {
+      text = new String(in.readAllBytes(), StandardCharsets.US_ASCII).trim();
+    }
+
+    final int en = text.indexOf("\"en\":[") + "\"en\":[".length();
+    final String entry = text.substring(en, text.length() - "]}".length());
+    final StringBuilder builder = new StringBuilder()
+        .append(text.substring(0, en).replaceFirst("\"sz\":1", "\"sz\":" + entries));
+    for (int i = 0; i < entries; ++i) {
+      builder.append(0 < i ? "," : "").append(entry);
+    }
+    return builder.append("]}").toString();
+  }
+
+  // The sample voucher under the given GUID, so that tests can have as many as they need.
+  static String voucherText(UUID guid) throws Exception {
+    final ByteBuffer g = ByteBuffer.allocate(16)
+        .putLong(guid.getMostSignificantBits())
+        .putLong(guid.getLeastSignificantBits());
+    return voucherText(1).replace("\"g\":\"H64U+97KQFqr3bJTkbnZMg==\"",
+        "\"g\":\"" + Base64.getEncoder().encodeToString(g.array()) + "\"");
+  }
+
+  // Long enough that the file is memory-mapped.
+  @Test
+  void everyInputFormDecodesTheSame() throws Exception {
+    final String text = voucherText(200);
+    final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+    final OwnershipVoucherParser parser = new OwnershipVoucherParser();
+
+    final OwnershipVoucher expected = parser.readObject(new StringReader(text));
+    assertEquals(200, ((OwnershipVoucher113) expected).getEn().size());
+    assertEquals(text, expected.toString());
+
+    assertEquals(text, parser.readObject(new ByteArrayInputStream(bytes)).toString());
+    assertEquals(text, parser.readObject(ByteBuffer.wrap(bytes)).toString());
+
+    final Path file = Files.createTempFile(getClass().getSimpleName(), ".op");
+    try {
+      Files.write(file, bytes);
+      assertEquals(text, parser.readObject(file).toString());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void entriesAndChainDecodeOnFirstUse() throws Exception {
+    final String text = voucherText(3);
+    final OwnershipVoucher113 voucher =
+        (OwnershipVoucher113) new OwnershipVoucherParser().readObject(new StringReader(text));
+
+    assertEquals(3, voucher.getEn().size());
+    assertNotNull(voucher.getDcText());
+    assertNotNull(voucher.getEnText(2));
+
+    final SignatureBlock entry = voucher.getEn().get(2);
+    assertNotNull(entry.getBo());
+    assertSame(entry, voucher.getEn().get(2));
+    assertEquals(2, voucher.getDc().getCertificates().size());
+    assertSame(voucher.getDc(), voucher.getDc());
+    assertEquals(text, voucher.toString());
+  }
+
+  @Test
+  void entriesAreSentAsTheirOriginalText() throws Exception {
+    final OwnershipVoucher113 voucher = (OwnershipVoucher113)
+        new OwnershipVoucherParser().readObject(new StringReader(voucherText(2)));
+    final To2OpNextEntry message = new To2OpNextEntry(1, voucher.getEnText(1));
+
+    final StringWriter w = new StringWriter();
+    new To2OpNextEntryCodec.Encoder(null).encode(w, message);
+    assertEquals("{\"enn\":1,\"eni\":" + voucher.getEnText(1) + "}", w.toString());
+
+    final To2OpNextEntry decoded =
+        new To2OpNextEntryCodec.Decoder().decode(CharBuffer.wrap(w.toString()));
+    assertEquals(voucher.getEn().get(1), decoded.getEni());
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+class PartitionedRedirectStoreTest {
+
+  private static final Duration NEVER = Duration.ofDays(1);
+  private static final List<URI> MEMBERS = List.of(
+      URI.create("http://localhost:8040/"),
+      URI.create("http://localhost:8041/"),
+      URI.create("http://localhost:8042/"));
+
+  // Connects the members in memory, and can take any of them down.
+  private static class LocalTransport implements PartitionedRedirectStore.Transport {
+
+    final Set<URI> myDown = ConcurrentHashMap.newKeySet();
+    final Map<URI, PartitionedRedirectStore> myMembers = new ConcurrentHashMap<>();
+
+    private PartitionedRedirectStore reach(URI member) throws IOException {
+      if (myDown.contains(member)) {
+        throw new IOException(member + " is down");
+      }
+      return myMembers.get(member);
+    }
+
+    @Override
+    public Optional<byte[]> load(URI member, UUID guid) throws IOException {
+      return reach(member).loadLocal(guid);
+    }
+
+    @Override
+    public void store(URI member, UUID guid, byte[] entry, boolean isHandoff)
+        throws IOException {
+      reach(member).storeLocal(guid, entry, isHandoff);
+    }
+
+    @Override
+    public boolean isAlive(URI member) {
+      return !myDown.contains(member);
+    }
+  }
+
+  @Test
+  void membersShareTheGuidsAndRebalanceWhenOneComesAndGoes() throws Exception {
+    final LocalTransport transport = new LocalTransport();
+    final Map<URI, RedirectStore> slices = new ConcurrentHashMap<>();
+    for (URI self : MEMBERS) {
+      final RedirectStore slice = new RedirectStore(10000, NEVER, NEVER);
+      slices.put(self, slice);
+      transport.myMembers.put(self,
+          new PartitionedRedirectStore(self, MEMBERS, slice, slice, transport, NEVER));
+    }
+    final PartitionedRedirectStore first = transport.myMembers.get(MEMBERS.get(0));
+    final PartitionedRedirectStore last = transport.myMembers.get(MEMBERS.get(2));
+
+    try {
+      final Instant expiresAt = Instant.now().plus(NEVER);
+      final List<UUID> guids = new ArrayList<>();
+      for (int i = 0; i < 3000; ++i) {
+        final UUID guid = UUID.randomUUID();
+        guids.add(guid);
+        first.store(guid, new RedirectionEntry(null, "to1d-" + i, expiresAt));
+      }
+
+      // Every member finds every redirection, and each holds about a third of them.
+      for (UUID guid : guids) {
+        assertTrue(last.load(guid).isPresent());
+      }
+      for (RedirectStore slice : slices.values()) {
+        assertTrue(700 < slice.size() && slice.size() < 1300, "slice of " + slice.size());
+      }
+
+      // The last member goes down; the others take over its share of the GUIDs.
+      final URI down = MEMBERS.get(2);
+      transport.myDown.add(down);
+      for (URI member : MEMBERS.subList(0, 2)) {
+        transport.myMembers.get(member).probe();
+      }
+      assertEquals(2, first.getLiveMembers().size());
+      final UUID registeredWhileDown = UUID.randomUUID();
+      first.store(registeredWhileDown, new RedirectionEntry(null, "late", expiresAt));
+
+      // It comes back, and gets its share, including what was registered meanwhile.
+      transport.myDown.remove(down);
+      for (PartitionedRedirectStore member : transport.myMembers.values()) {
+        member.probe();
+      }
+      assertEquals(3, first.getLiveMembers().size());
+      guids.add(registeredWhileDown);
+      for (UUID guid : guids) {
+        assertTrue(last.load(guid).isPresent());
+      }
+      assertEquals(guids.size(),
+          slices.values().stream().mapToInt(RedirectStore::size).sum());
+
+    } finally {
+      for (PartitionedRedirectStore member : transport.myMembers.values()) {
+        member.close();
+      }
+    }
+  }
+}
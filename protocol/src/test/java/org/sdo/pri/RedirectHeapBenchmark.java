@@ -0,0 +1,141 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Compares the heap used per registration by {@link RedirectStore} with the object-per-record
+ * layout it replaced.
+ *
+ * <p>This is not a unit test.  Run it by hand, with a heap big enough for both:
+ * {@code java -Xmx4g -cp <test and main classpath> org.sdo.pri.RedirectHeapBenchmark [count]}.
+ * Each registration has a TO0 redirect of typical size and its own P-256 device key.
+ */
+public class RedirectHeapBenchmark {
+
+  private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+  /**
+   * Run the benchmark.
+   */
+  public static void main(String[] args) throws Exception {
+    final int count = 0 < args.length ? Integer.parseInt(args[0]) : 1000000;
+
+    final KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+    kpg.initialize(new ECGenParameterSpec("secp256r1"));
+    final byte[] pk = kpg.generateKeyPair().getPublic().getEncoded();
+    final KeyFactory keyFactory = KeyFactory.getInstance("EC");
+    final Instant expiresAt = Instant.now().plus(Duration.ofDays(1));
+
+    System.out.printf("%-8s %10s %12s%n", "layout", "count", "heap B/reg");
+
+    long before = usedHeap();
+    final ObjectLayout objects = new ObjectLayout();
+    for (int i = 0; i < count; ++i) {
+      // The TO0 path holds a decoded key, as the key from each device's certificate.
+      final PublicKey key = keyFactory.generatePublic(new X509EncodedKeySpec(pk));
+      objects.store(UUID.randomUUID(), new ObjectLayout.Value(key, to1d(i), expiresAt));
+    }
+    report("objects", count, usedHeap() - before);
+    objects.clear();
+
+    before = usedHeap();
+    try (RedirectStore store = new RedirectStore(count, Duration.ofDays(1), Duration.ofDays(1))) {
+      for (int i = 0; i < count; ++i) {
+        store.store(UUID.randomUUID(), RedirectionEntry.withEncodedKey(pk, to1d(i), expiresAt));
+      }
+      report("compact", count, usedHeap() - before);
+    }
+  }
+
+  // A signed TO0 redirect blob, about as long as one with an IPv4 address, DNS name and port.
+  private static String to1d(int i) {
+    return "{\"bo\":{\"i1\":[4,[10,0," + (i >>> 8 & 0xff) + "," + (i & 0xff) + "]],"
+        + "\"dns1\":\"owner-" + i + ".example.com\",\"port1\":8042,\"pk\":[0,0,[0]]},"
+        + "\"pk\":[0,0,[0]],\"sg\":[71,\"MEUCIQDkXrH5" + Integer.toHexString(i)
+        + "4m7vJ0wqzyS3Uo2xAdKp5Ts9YgRbQmNfLhVeCIgZ1qjWu8T0cPa6kE3rHyDxsM2vLbN9oQtF4Gz7Jw5Ui\"]}";
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 5; ++i) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return MEMORY.getHeapMemoryUsage().getUsed();
+  }
+
+  private static void report(String name, int count, long bytes) {
+    System.out.printf("%-8s %10d %12.1f%n", name, count, (double) bytes / count);
+  }
+
+  // The store as it was: a concurrent map of entry objects, and a skip list ordering them by
+  // expiry.
+  private static class ObjectLayout {
+
+    private final NavigableSet<Entry> myExpiryIndex = new ConcurrentSkipListSet<>();
+    private final Map<UUID, Entry> myMap = new ConcurrentHashMap<>();
+    private long mySequence = 0;
+
+    void store(UUID key, Value value) {
+      final Entry entry =
+          new Entry(key, value, value.myExpiresAt.toEpochMilli(), ++mySequence);
+      myExpiryIndex.add(entry);
+      myMap.put(key, entry);
+    }
+
+    void clear() {
+      myExpiryIndex.clear();
+      myMap.clear();
+    }
+
+    static class Value {
+
+      final PublicKey myDevicePk;
+      final Instant myExpiresAt;
+      final String myRedirect;
+
+      Value(PublicKey devicePk, String redirect, Instant expiresAt) {
+        myDevicePk = devicePk;
+        myRedirect = redirect;
+        // Each registration's own expiry, as TO0 computes it.
+        myExpiresAt = Instant.ofEpochMilli(expiresAt.toEpochMilli());
+      }
+    }
+
+    static class Entry implements Comparable<Entry> {
+
+      final long myExpiresAt;
+      final UUID myKey;
+      final long mySequence;
+      final Value myValue;
+
+      Entry(UUID key, Value value, long expiresAt, long sequence) {
+        myKey = key;
+        myValue = value;
+        myExpiresAt = expiresAt;
+        mySequence = sequence;
+      }
+
+      @Override
+      public int compareTo(Entry that) {
+        final int byExpiry = Long.compare(myExpiresAt, that.myExpiresAt);
+        return 0 != byExpiry ? byExpiry : Long.compare(mySequence, that.mySequence);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class RedirectStoreTest {
+
+  private static final Duration NEVER = Duration.ofDays(1);
+
+  private static RedirectionEntry redirect(TestClock clock, Duration ws) {
+    return new RedirectionEntry(null, "to1d", clock.instant().plus(ws));
+  }
+
+  @Test
+  void redirectsExpireWithTheirWaitTime() {
+    final TestClock clock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+    try (RedirectStore store = new RedirectStore(100, NEVER, NEVER, clock)) {
+      final UUID shortLived = UUID.randomUUID();
+      final UUID longLived = UUID.randomUUID();
+      final UUID lookedUp = UUID.randomUUID();
+      store.store(shortLived, redirect(clock, Duration.ofSeconds(10)));
+      store.store(longLived, redirect(clock, Duration.ofSeconds(60)));
+      store.store(lookedUp, redirect(clock, Duration.ofSeconds(10)));
+      assertTrue(store.load(shortLived).isPresent());
+
+      clock.advance(Duration.ofSeconds(30));
+      assertFalse(store.load(lookedUp).isPresent());
+      store.sweep();
+      assertFalse(store.load(shortLived).isPresent());
+      assertTrue(store.load(longLived).isPresent());
+      assertEquals(1, store.size());
+      assertEquals(2, store.getExpirations());
+    }
+  }
+
+  @Test
+  void replacingARedirectResetsItsExpiry() {
+    final TestClock clock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+    try (RedirectStore store = new RedirectStore(100, NEVER, NEVER, clock)) {
+      final UUID guid = UUID.randomUUID();
+      store.store(guid, redirect(clock, Duration.ofSeconds(10)));
+      final RedirectionEntry renewed = redirect(clock, Duration.ofSeconds(60));
+      store.store(guid, renewed);
+
+      clock.advance(Duration.ofSeconds(30));
+      store.sweep();
+      final RedirectionEntry loaded = (RedirectionEntry) store.load(guid).get();
+      assertEquals(renewed.getRedirect(), loaded.getRedirect());
+      assertEquals(renewed.getExpiresAt(), loaded.getExpiresAt());
+      assertEquals(0, store.getExpirations());
+    }
+  }
+
+  @Test
+  void fullStoreEvictsTheSoonestToExpire() {
+    final TestClock clock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+    try (RedirectStore store = new RedirectStore(2, NEVER, NEVER, clock)) {
+      final UUID soon = UUID.randomUUID();
+      final UUID later = UUID.randomUUID();
+      final UUID latest = UUID.randomUUID();
+      store.store(later, redirect(clock, Duration.ofSeconds(20)));
+      store.store(soon, redirect(clock, Duration.ofSeconds(10)));
+      store.store(latest, redirect(clock, Duration.ofSeconds(30)));
+
+      assertFalse(store.load(soon).isPresent());
+      assertTrue(store.load(later).isPresent());
+      assertTrue(store.load(latest).isPresent());
+      assertEquals(1, store.getEvictions());
+    }
+  }
+
+  @Test
+  void recordsSurviveChurnAndCompaction() throws Exception {
+    final TestClock clock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+    final byte[] pk = KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic().getEncoded();
+    final Random random = new Random(1);
+    final Map<UUID, String> expected = new HashMap<>();
+    try (RedirectStore store = new RedirectStore(1000000, NEVER, NEVER, clock)) {
+      final UUID[] guids = new UUID[20000];
+      for (int i = 0; i < guids.length; ++i) {
+        guids[i] = new UUID(random.nextLong(), random.nextLong());
+      }
+      for (int i = 0; i < 200000; ++i) {
+        final UUID guid = guids[random.nextInt(guids.length)];
+        if (0 == random.nextInt(3)) {
+          store.discard(guid);
+          expected.remove(guid);
+        } else {
+          final String redirect = "to1d-" + i + "-".repeat(random.nextInt(200));
+          store.store(guid, RedirectionEntry.withEncodedKey(
+              0 == i % 2 ? pk : null, redirect, clock.instant().plus(NEVER)));
+          expected.put(guid, redirect);
+        }
+      }
+      store.sweep();
+
+      assertEquals(expected.size(), store.size());
+      for (UUID guid : guids) {
+        final RedirectionEntry loaded = (RedirectionEntry) store.load(guid).orElse(null);
+        if (expected.containsKey(guid)) {
+          assertEquals(expected.get(guid), loaded.getRedirect());
+        } else {
+          assertNull(loaded);
+        }
+      }
+      final Map<UUID, String> visited = new HashMap<>();
+      store.forEach((guid, value) -> visited.put(guid, ((RedirectionEntry) value).getRedirect()));
+      assertEquals(expected, visited);
+    }
+  }
+
+  @Test
+  void deviceKeysAreDecodedOnDemand() throws Exception {
+    final TestClock clock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+    final PublicKey pk = KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic();
+    try (RedirectStore store = new RedirectStore(100, NEVER, NEVER, clock)) {
+      final UUID guid = UUID.randomUUID();
+      store.store(guid, new RedirectionEntry(pk, "to1d", clock.instant().plus(NEVER)));
+      final RedirectionEntry loaded = (RedirectionEntry) store.load(guid).get();
+      assertArrayEquals(pk.getEncoded(), loaded.getDevicePk().getEncoded());
+    }
+  }
+}
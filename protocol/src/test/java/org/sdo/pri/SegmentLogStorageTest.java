@@ -0,0 +1,186 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class SegmentLogStorageTest {
+
+  private static final SegmentLogStorage.Serializer<String> SERIALIZER =
+      new SegmentLogStorage.Serializer<>() {
+        @Override
+        public String deserialize(byte[] bytes) {
+          return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] serialize(String value) {
+          return value.getBytes(StandardCharsets.UTF_8);
+        }
+      };
+
+  private static SegmentLogStorage<String> open(Path dir, long segmentBytes) throws Exception {
+    return new SegmentLogStorage<>(dir, SERIALIZER, segmentBytes, Duration.ZERO);
+  }
+
+  @Test
+  void recoversAndTruncatesTornTail() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final UUID first = UUID.randomUUID();
+    final UUID second = UUID.randomUUID();
+
+    try (SegmentLogStorage<String> log = open(dir, 1 << 20)) {
+      log.store(first, "one");
+      log.store(second, "two");
+      log.store(first, "uno");
+    }
+
+    // A crash mid-append leaves a partial record at the end of the log.
+    Files.write(dir.resolve(String.format("%016x.log", 0)), new byte[] {0, 0, 0, 9, 1, 2},
+        StandardOpenOption.APPEND);
+
+    try (SegmentLogStorage<String> log = open(dir, 1 << 20)) {
+      assertEquals(2, log.size());
+      assertEquals("uno", log.load(first).get());
+      assertEquals("two", log.load(second).get());
+      assertFalse(log.load(UUID.randomUUID()).isPresent());
+
+      log.store(second, "dos");
+    }
+
+    try (SegmentLogStorage<String> log = open(dir, 1 << 20)) {
+      assertEquals("dos", log.load(second).get());
+    }
+  }
+
+  @Test
+  void compactionKeepsLatestVersions() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final UUID key = UUID.randomUUID();
+    final UUID other = UUID.randomUUID();
+
+    try (SegmentLogStorage<String> log = open(dir, 256)) {
+      log.store(other, "keep me");
+      for (int i = 0; i < 20; ++i) {
+        log.store(key, "version " + i);
+      }
+      final int segments = log.getSegmentCount();
+      assertTrue(segments > 1);
+
+      log.compact();
+      assertTrue(log.getSegmentCount() < segments);
+      assertEquals("version 19", log.load(key).get());
+      assertEquals("keep me", log.load(other).get());
+    }
+
+    try (SegmentLogStorage<String> log = open(dir, 256)) {
+      assertEquals("version 19", log.load(key).get());
+      assertEquals("keep me", log.load(other).get());
+    }
+  }
+
+  @Test
+  void concurrentStoresShareSyncs() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final int writers = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+    try (SegmentLogStorage<String> log = open(dir, 1 << 20)) {
+      final List<Future<?>> futures = new ArrayList<>();
+
+      // Hold syncs back until every writer has appended, so one sync must cover them all.
+      synchronized (log.mySyncLock) {
+        for (int i = 0; i < writers; ++i) {
+          futures.add(executor.submit(() -> log.store(UUID.randomUUID(), "voucher")));
+        }
+        final long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (log.size() < writers && System.nanoTime() < deadline) {
+          Thread.sleep(1);
+        }
+        assertEquals(writers, log.size());
+        assertEquals(0, log.getStores());
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      assertEquals(writers, log.getStores());
+      assertTrue(log.getSyncs() < log.getStores(), "syncs: " + log.getSyncs());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void compactionCopiesNeverOutliveNewerStores() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final UUID filler = UUID.randomUUID();
+    final List<UUID> keys = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      keys.add(UUID.randomUUID());
+    }
+
+    try (SegmentLogStorage<String> log = open(dir, 512)) {
+      // Each sealed segment is mostly dead filler, so compaction copies the keys out of it.
+      for (UUID key : keys) {
+        log.store(key, "old");
+        log.store(filler, "overwritten");
+      }
+
+      final Thread compactor = new Thread(() -> {
+        try {
+          log.compact();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+
+      // Hold the write lock until compaction is waiting on it with a copy in hand, then store
+      // every key again.  The copy, whichever it is, must not land after the newer version.
+      synchronized (log.myWriteLock) {
+        compactor.start();
+        while (!isBlockedIn(compactor, "append")) {
+          assertTrue(compactor.isAlive(), "compaction finished without waiting");
+          log.myWriteLock.wait(1);
+        }
+        for (UUID key : keys) {
+          log.store(key, "new");
+        }
+      }
+      compactor.join();
+      assertTrue(0 < log.getCompactions());
+    }
+
+    try (SegmentLogStorage<String> log = open(dir, 512)) {
+      for (UUID key : keys) {
+        assertEquals("new", log.load(key).get());
+      }
+    }
+  }
+
+  private static boolean isBlockedIn(Thread thread, String method) {
+    final StackTraceElement[] stack = thread.getStackTrace();
+    return Thread.State.BLOCKED == thread.getState()
+        && 0 < stack.length
+        && SegmentLogStorage.class.getName().equals(stack[0].getClassName())
+        && method.equals(stack[0].getMethodName());
+  }
+}
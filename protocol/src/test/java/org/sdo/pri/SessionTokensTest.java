@@ -0,0 +1,70 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.Test;
+
+class SessionTokensTest {
+
+  private static final Duration TTL = Duration.ofMinutes(5);
+  private static final Instant NOW = Instant.parse("2020-01-01T00:00:00Z");
+
+  @Test
+  void tokensOpenOnlyUnalteredUnexpiredAndUnderTheirKey() throws Exception {
+    final SecureRandom random = new SecureRandom();
+    final SecretKey key = SessionTokens.generateKey(random);
+    final byte[] state = "n4 and a redirect".getBytes(StandardCharsets.US_ASCII);
+    final SessionTokens tokens =
+        new SessionTokens(key, TTL, random, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    final String token = tokens.seal(state);
+    assertArrayEquals(state, tokens.open(token).get());
+
+    // Another node with the same key can open it.
+    final SessionTokens sameKey = new SessionTokens(
+        SessionTokens.parseKey(Base64.getEncoder().encodeToString(key.getEncoded())),
+        TTL, random, Clock.fixed(NOW.plusSeconds(1), ZoneOffset.UTC));
+    assertArrayEquals(state, sameKey.open(token).get());
+
+    final SessionTokens otherKey = new SessionTokens(
+        SessionTokens.generateKey(random), TTL, random, Clock.fixed(NOW, ZoneOffset.UTC));
+    assertFalse(otherKey.open(token).isPresent());
+
+    final SessionTokens later =
+        new SessionTokens(key, TTL, random, Clock.fixed(NOW.plus(TTL), ZoneOffset.UTC));
+    assertFalse(later.open(token).isPresent());
+
+    final char[] altered = token.toCharArray();
+    final int last = altered.length - 1;
+    altered[last] = 'A' == altered[last] ? 'B' : 'A';
+    assertFalse(tokens.open(new String(altered)).isPresent());
+    assertFalse(tokens.open("not a token").isPresent());
+  }
+
+  @Test
+  void rendezvousOwnerSessionResumesFromItsState() throws Exception {
+    final RendezvousOwnerService first = new RendezvousOwnerService();
+    first.next(EncodedProtocolMessage.getInstance(
+        Version.VERSION_1_13, MessageType.TO0_HELLO, "{}"));
+    final byte[] state = first.getSessionState();
+    assertEquals(16, state.length);
+
+    final RendezvousOwnerService resumed = new RendezvousOwnerService();
+    resumed.setSessionState(state);
+    assertArrayEquals(state, resumed.getSessionState());
+    assertEquals(0, new RendezvousOwnerService().getSessionState().length);
+  }
+}
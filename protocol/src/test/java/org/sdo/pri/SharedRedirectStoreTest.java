@@ -0,0 +1,78 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class SharedRedirectStoreTest {
+
+  @Test
+  void nodesShareRedirectionsWithinTheNearCacheTtl() throws Exception {
+    final TestClock clock = new TestClock(Instant.now());
+    final Duration nearCacheTtl = Duration.ofSeconds(5);
+    try (LocalKeyValueServer server = new LocalKeyValueServer(0)) {
+      final InetSocketAddress address =
+          SharedRedirectStore.parseAddress("localhost:" + server.getPort());
+      try (SharedRedirectStore a = new SharedRedirectStore(address, nearCacheTtl, 100, clock);
+          SharedRedirectStore b = new SharedRedirectStore(address, nearCacheTtl, 100, clock)) {
+
+        final UUID guid = UUID.randomUUID();
+        assertFalse(b.load(guid).isPresent());
+
+        final Instant expiresAt = clock.instant().plus(Duration.ofHours(1));
+        a.store(guid, new RedirectionEntry(null, "to1d", expiresAt));
+        assertEquals("to1d", ((RedirectionEntry) a.load(guid).get()).getRedirect());
+
+        // b cached the miss, and may go on missing until its near-cache entry runs out.
+        assertFalse(b.load(guid).isPresent());
+        clock.advance(nearCacheTtl);
+        final RedirectionEntry shared = (RedirectionEntry) b.load(guid).get();
+        assertEquals("to1d", shared.getRedirect());
+        assertEquals(2, b.getServerReads());
+        assertEquals(1, b.getNearCacheHits());
+
+        // A registration which has already expired removes the shared one.
+        a.store(guid, new RedirectionEntry(null, "gone", clock.instant()));
+        clock.advance(nearCacheTtl);
+        assertFalse(b.load(guid).isPresent());
+      }
+    }
+  }
+
+  @Test
+  void serverExpiresRedirections() throws Exception {
+    try (LocalKeyValueServer server = new LocalKeyValueServer(0);
+        SharedRedirectStore store = new SharedRedirectStore(
+            SharedRedirectStore.parseAddress("localhost:" + server.getPort()), Duration.ZERO, 1)) {
+
+      final UUID guid = UUID.randomUUID();
+      store.store(guid, new RedirectionEntry(null, "to1d", Instant.now().plusMillis(200)));
+      assertTrue(store.load(guid).isPresent());
+      Thread.sleep(300);
+      assertFalse(store.load(guid).isPresent());
+      assertEquals(0, store.getNearCacheHits());
+    }
+  }
+
+  @Test
+  void staleConnectionsAreReplaced() throws Exception {
+    try (LocalKeyValueServer server = new LocalKeyValueServer(0);
+        SharedRedirectStore store = new SharedRedirectStore(
+            SharedRedirectStore.parseAddress("localhost:" + server.getPort()), Duration.ZERO, 1)) {
+
+      final UUID guid = UUID.randomUUID();
+      store.store(guid, new RedirectionEntry(null, "to1d", Instant.now().plusSeconds(60)));
+      server.dropConnections();
+      assertTrue(store.load(guid).isPresent());
+    }
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SlabSessionStoreTest {
+
+  private static final int SLAB_BYTES = 64;
+
+  private static SlabSessionStore newStore(Duration ttl, int slabs, Path dir) {
+    return new SlabSessionStore(ttl, (long) slabs * SLAB_BYTES, dir, SLAB_BYTES, 1,
+        Duration.ofHours(1));
+  }
+
+  private static byte[] randomBytes(int length) {
+    final byte[] bytes = new byte[length];
+    ThreadLocalRandom.current().nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  void takeRemovesSession() throws Exception {
+    try (SlabSessionStore store = newStore(Duration.ofMinutes(1), 2, null)) {
+      final UUID key = UUID.randomUUID();
+      final byte[] bytes = randomBytes(20);
+      assertTrue(store.put(key, bytes));
+      assertEquals(20, store.getLiveBytes());
+
+      assertArrayEquals(bytes, store.take(key));
+      assertNull(store.take(key));
+      assertEquals(0, store.size());
+      assertEquals(0, store.getLiveBytes());
+    }
+  }
+
+  @Test
+  void manySessionsSurviveIndexGrowth(@TempDir Path dir) throws Exception {
+    final int count = 5000;
+    try (SlabSessionStore store = newStore(Duration.ofMinutes(1), count, dir)) {
+      final List<UUID> keys = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        final UUID key = UUID.randomUUID();
+        keys.add(key);
+        assertTrue(store.put(key, new byte[]{(byte) i, (byte) (i >> 8)}));
+      }
+      assertEquals(count, store.size());
+
+      // Take every other session, then check the rest are still found.
+      for (int i = 0; i < count; i += 2) {
+        assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, store.take(keys.get(i)));
+      }
+      for (int i = 1; i < count; i += 2) {
+        assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, store.take(keys.get(i)));
+      }
+      assertEquals(0, store.size());
+    }
+  }
+
+  @Test
+  void fullStoreRefusesAndFreedSlabsAreReused() throws Exception {
+    try (SlabSessionStore store = newStore(Duration.ofMinutes(1), 2, null)) {
+      final UUID first = UUID.randomUUID();
+      final UUID second = UUID.randomUUID();
+      assertTrue(store.put(first, new byte[SLAB_BYTES]));
+      assertTrue(store.put(second, new byte[SLAB_BYTES]));
+      assertFalse(store.put(UUID.randomUUID(), new byte[1]));
+      assertFalse(store.put(UUID.randomUUID(), new byte[SLAB_BYTES + 1]));
+      assertEquals(2, store.getRejections());
+
+      store.take(first);
+      assertTrue(store.put(UUID.randomUUID(), new byte[SLAB_BYTES]));
+      assertEquals(2 * SLAB_BYTES, store.getAllocatedBytes());
+    }
+  }
+
+  @Test
+  void expiredSessionsAreRemoved() throws Exception {
+    try (SlabSessionStore store = newStore(Duration.ofMillis(10), 2, null)) {
+      final UUID key = UUID.randomUUID();
+      store.put(key, new byte[8]);
+      Thread.sleep(50);
+
+      store.maintain();
+      assertEquals(0, store.size());
+      assertEquals(0, store.getLiveBytes());
+      assertEquals(1, store.getExpirations());
+      assertNull(store.take(key));
+    }
+  }
+
+  @Test
+  void compactionMovesStragglers() throws Exception {
+    try (SlabSessionStore store = newStore(Duration.ofMinutes(1), 3, null)) {
+      // Fill the first slab, leave one straggler in it, and move on to a second slab.
+      final UUID straggler = UUID.randomUUID();
+      final byte[] bytes = randomBytes(8);
+      final List<UUID> taken = new ArrayList<>();
+      store.put(straggler, bytes);
+      for (int i = 0; i < 7; i++) {
+        final UUID key = UUID.randomUUID();
+        taken.add(key);
+        store.put(key, new byte[8]);
+      }
+      store.put(UUID.randomUUID(), new byte[8]);
+      for (UUID key : taken) {
+        store.take(key);
+      }
+
+      store.maintain();
+      assertEquals(1, store.getCompactions());
+      assertArrayEquals(bytes, store.take(straggler));
+    }
+  }
+
+  @Test
+  void sessionsMovedInKeepTheirRemainingTtl() throws Exception {
+    try (SlabSessionStore store = newStore(Duration.ofMinutes(1), 2, null)) {
+      final UUID nearlyDone = UUID.randomUUID();
+      final UUID fresh = UUID.randomUUID();
+      store.put(nearlyDone, new byte[8], Duration.ofMillis(10));
+      store.put(fresh, new byte[8]);
+      Thread.sleep(50);
+
+      store.maintain();
+      assertNull(store.take(nearlyDone));
+      assertEquals(1, store.getExpirations());
+      assertEquals(8, store.take(fresh).length);
+    }
+  }
+
+  @Test
+  void smallCapacitiesGetSmallerSlabs() throws Exception {
+    try (SlabSessionStore store = new SlabSessionStore(Duration.ofMinutes(1), 4 << 20, null)) {
+      assertTrue(store.put(UUID.randomUUID(), new byte[1 << 17]));
+      assertFalse(store.put(UUID.randomUUID(), new byte[(1 << 17) + 1]));
+    }
+    final IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> new SlabSessionStore(Duration.ofMinutes(1), 1 << 20, null));
+    assertTrue(e.getMessage().contains("at least 2097152 bytes"), e.getMessage());
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+// A clock tests move by hand.
+class TestClock extends Clock {
+
+  private volatile Instant myNow;
+
+  TestClock(Instant now) {
+    myNow = now;
+  }
+
+  void advance(Duration duration) {
+    myNow = myNow.plus(duration);
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return ZoneOffset.UTC;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return this;
+  }
+
+  @Override
+  public Instant instant() {
+    return myNow;
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class To0BatchTest {
+
+  private static final int PER_HOST = 2;
+  private static final int VOUCHERS = 40;
+
+  // Write a copy of the test voucher under a new GUID.
+  private static UUID writeVoucher(Path dir) throws Exception {
+    final UUID guid = UUID.randomUUID();
+    Files.writeString(dir.resolve(guid + ".op"), OwnershipVoucherParserTest.voucherText(guid),
+        StandardCharsets.US_ASCII);
+    return guid;
+  }
+
+  @Test
+  void batchBoundsHostConcurrencyRetriesAndResumes() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final Path checkpoint = dir.resolveSibling(dir.getFileName() + ".checkpoint");
+    UUID down = null;
+    for (int i = 0; i < VOUCHERS; ++i) {
+      down = writeVoucher(dir);
+    }
+    final UUID alwaysDown = down;
+
+    final Map<UUID, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> {
+      final int attempt = attempts.computeIfAbsent(voucher.getUuid(), g -> new AtomicInteger())
+          .incrementAndGet();
+      final int now = inFlight.incrementAndGet();
+      maxInFlight.accumulateAndGet(now, Math::max);
+      try {
+        Thread.sleep(2);
+        if (voucher.getUuid().equals(alwaysDown)
+            || 1 == attempt && 0 == (voucher.getUuid().hashCode() & 3)) {
+          throw new IOException(rendezvous + " refused");
+        }
+        return Duration.ofHours(1);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    };
+
+    final To0Batch batch = new To0Batch(
+        registrar, certPath -> true, 8, PER_HOST, 3, Duration.ofMillis(1), checkpoint);
+    final To0Batch.Report first = batch.run(List.of(dir));
+    assertEquals(VOUCHERS, first.getSubmitted());
+    assertEquals(VOUCHERS - 1, first.getRegistered());
+    assertEquals(1, first.getFailed());
+    assertEquals(3, attempts.get(alwaysDown).get());
+    assertTrue(maxInFlight.get() <= PER_HOST);
+    assertTrue(first.getLatency(0.5).compareTo(Duration.ofMillis(1)) >= 0);
+
+    // Only the voucher which failed is tried again.
+    attempts.clear();
+    final To0Batch.Report second = batch.run(List.of(dir));
+    assertEquals(VOUCHERS - 1, second.getSkipped());
+    assertEquals(0, second.getRegistered());
+    assertEquals(1, attempts.size());
+    assertEquals(3, attempts.get(alwaysDown).get());
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class To0CheckpointTest {
+
+  private static final int RENEWALS = 3000;
+
+  @Test
+  void compactsWhileOpen(@TempDir Path dir) throws Exception {
+    final Path file = dir.resolve("to0.checkpoint");
+    final UUID guid = UUID.randomUUID();
+    final Instant start = Instant.parse("2020-01-01T00:00:00Z");
+
+    try (To0Checkpoint checkpoint = To0Checkpoint.open(file)) {
+      for (int i = 0; i < RENEWALS; ++i) {
+        checkpoint.append(guid,
+            new To0Checkpoint.Registration(start.plusSeconds(i), Duration.ofSeconds(60)));
+      }
+      assertTrue(Files.readAllLines(file).size() < RENEWALS / 2, "checkpoint wasn't compacted");
+    }
+
+    try (To0Checkpoint checkpoint = To0Checkpoint.open(file)) {
+      assertEquals(start.plusSeconds(RENEWALS - 1),
+          checkpoint.getRegistrations().get(guid).getAcceptedAt());
+      assertEquals(1, Files.readAllLines(file).size());
+    }
+  }
+
+  @Test
+  void transferredOutlivesRestarts(@TempDir Path dir) throws Exception {
+    final Path file = dir.resolve("to0.checkpoint");
+    final UUID transferred = UUID.randomUUID();
+    final UUID registered = UUID.randomUUID();
+    final To0Checkpoint.Registration registration =
+        new To0Checkpoint.Registration(Instant.now(), Duration.ofSeconds(60));
+
+    try (To0Checkpoint checkpoint = To0Checkpoint.open(file)) {
+      checkpoint.append(transferred, registration);
+      checkpoint.append(registered, registration);
+      checkpoint.appendTransferred(transferred);
+    }
+
+    try (To0Checkpoint checkpoint = To0Checkpoint.open(file)) {
+      assertEquals(Set.of(transferred), checkpoint.getTransferred());
+      assertEquals(Set.of(registered), checkpoint.getRegistrations().keySet());
+    }
+  }
+}
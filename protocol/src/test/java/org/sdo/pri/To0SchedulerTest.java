@@ -0,0 +1,215 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.security.cert.CertPath;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The schedulers here are built with a test clock and no dispatcher, and the tests run their
+// queues by hand, so nothing waits on real time.
+class To0SchedulerTest {
+
+  private static final int VOUCHERS = 10;
+  private static final Duration WS = Duration.ofSeconds(400);
+
+  private final TestClock myClock = new TestClock(Instant.parse("2020-01-01T00:00:00Z"));
+  private final Map<UUID, OwnershipVoucher> myVouchers = new ConcurrentHashMap<>();
+
+  private static OwnershipVoucher voucher() throws Exception {
+    return new OwnershipVoucherParser().readObject(
+        new StringReader(OwnershipVoucherParserTest.voucherText(UUID.randomUUID())));
+  }
+
+  private UUID addVoucher() throws Exception {
+    final OwnershipVoucher voucher = voucher();
+    myVouchers.put(voucher.getUuid(), voucher);
+    return voucher.getUuid();
+  }
+
+  private To0Scheduler newScheduler(To0Batch.Registrar registrar,
+      Predicate<CertPath> certPathValidator,
+      Predicate<UUID> isTransferred,
+      double ratePerSecond,
+      Path checkpoint) throws Exception {
+
+    return new To0Scheduler(registrar,
+        () -> Set.copyOf(myVouchers.keySet()),
+        guid -> Optional.ofNullable(myVouchers.get(guid)),
+        certPathValidator,
+        isTransferred,
+        ratePerSecond, 0.5, 4, Duration.ofSeconds(1), checkpoint.resolve("to0.checkpoint"),
+        myClock);
+  }
+
+  @Test
+  void renewsBeforeExpiryAndDropsTransferred(@TempDir Path dir) throws Exception {
+    final UUID found = addVoucher();
+    final UUID reported = addVoucher();
+    final UUID kept = addVoucher();
+
+    final Map<UUID, AtomicInteger> registrations = new ConcurrentHashMap<>();
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> {
+      registrations.computeIfAbsent(voucher.getUuid(), g -> new AtomicInteger())
+          .incrementAndGet();
+      return WS;
+    };
+
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> true, found::equals, 100, dir)) {
+
+      // At 100 a second, three first registrations are spread over 30ms.
+      scheduler.scan();
+      myClock.advance(Duration.ofMillis(30));
+      assertEquals(3, scheduler.runDue());
+      assertNull(registrations.get(found));
+      assertEquals(1, scheduler.getDropped());
+      assertEquals(2, scheduler.getTracked());
+
+      // Each registration is renewed a quarter to three quarters of its wait time before
+      // it lapses.
+      myClock.advance(WS.dividedBy(4).minusSeconds(1));
+      assertEquals(0, scheduler.runDue());
+      myClock.advance(WS.dividedBy(2).plusSeconds(1));
+      assertEquals(2, scheduler.runDue());
+      assertEquals(2, registrations.get(reported).get());
+      assertEquals(2, registrations.get(kept).get());
+
+      // A transfer reported by the owner service drops the voucher at once.
+      scheduler.transferred(reported);
+      assertEquals(2, scheduler.getDropped());
+      assertEquals(1, scheduler.getTracked());
+      myClock.advance(WS);
+      scheduler.runDue();
+      assertEquals(2, registrations.get(reported).get());
+      assertEquals(3, registrations.get(kept).get());
+
+      // Rescans don't queue dropped vouchers again.
+      scheduler.scan();
+      assertEquals(1, scheduler.getTracked());
+      assertEquals(2, scheduler.getDropped());
+    }
+
+    // Nor do restarts, for transfers which were reported.
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> true, guid -> false, 100, dir)) {
+      scheduler.scan();
+      myClock.advance(WS);
+      scheduler.runDue();
+      assertEquals(2, registrations.get(reported).get());
+      assertEquals(4, registrations.get(kept).get());
+    }
+  }
+
+  @Test
+  void skipsVouchersWithInvalidDeviceCertificates(@TempDir Path dir) throws Exception {
+    addVoucher();
+    addVoucher();
+    final AtomicInteger registrations = new AtomicInteger();
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> {
+      registrations.incrementAndGet();
+      return WS;
+    };
+
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> false, guid -> false, 100, dir)) {
+      scheduler.scan();
+      myClock.advance(Duration.ofSeconds(1));
+      assertEquals(2, scheduler.runDue());
+      assertEquals(0, registrations.get());
+      assertEquals(2, scheduler.getDropped());
+
+      scheduler.scan();
+      assertEquals(0, scheduler.getTracked());
+    }
+  }
+
+  @Test
+  void skipsVouchersWithMalformedDeviceCertificates(@TempDir Path dir) throws Exception {
+    final OwnershipVoucher113 parsed = (OwnershipVoucher113) voucher();
+    myVouchers.put(parsed.getUuid(), new OwnershipVoucher113(parsed.getOh(), parsed.getHmac(),
+        parsed.getOhText(), parsed.getHmacText(), "[1,2,[[3,\"!\"]]]", List.of()));
+    final UUID valid = addVoucher();
+    final List<UUID> registered = new CopyOnWriteArrayList<>();
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> {
+      registered.add(voucher.getUuid());
+      return WS;
+    };
+
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> true, guid -> false, 100, dir)) {
+      scheduler.scan();
+      myClock.advance(Duration.ofSeconds(1));
+      assertEquals(2, scheduler.runDue());
+      assertEquals(List.of(valid), registered);
+      assertEquals(1, scheduler.getDropped());
+    }
+  }
+
+  @Test
+  void spreadsFirstRegistrationsAndResumes(@TempDir Path dir) throws Exception {
+    for (int i = 0; i < VOUCHERS; ++i) {
+      addVoucher();
+    }
+    final List<Instant> starts = new CopyOnWriteArrayList<>();
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> {
+      starts.add(myClock.instant());
+      return Duration.ofHours(1);
+    };
+
+    // At 20 a second, ten first registrations are spread over half a second.
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> true, guid -> false, 20, dir)) {
+      scheduler.scan();
+      assertEquals(VOUCHERS, scheduler.getTracked());
+      assertTrue(scheduler.runDue() < VOUCHERS, "registrations weren't spread out");
+      myClock.advance(Duration.ofMillis(500));
+      scheduler.runDue();
+      assertEquals(VOUCHERS, scheduler.getRegistered());
+    }
+    assertEquals(VOUCHERS, starts.size());
+
+    // Every registration is good for most of another hour, so a restart repeats none of them.
+    starts.clear();
+    try (To0Scheduler scheduler =
+        newScheduler(registrar, certPath -> true, guid -> false, 20, dir)) {
+      scheduler.scan();
+      myClock.advance(Duration.ofMinutes(10));
+      assertEquals(0, scheduler.runDue());
+      assertEquals(VOUCHERS, scheduler.getTracked());
+    }
+    assertEquals(0, starts.size());
+  }
+
+  @Test
+  void renewFractionMustLeaveRenewalsInsideTheWaitTime(@TempDir Path dir) {
+    final To0Batch.Registrar registrar = (voucher, rendezvous) -> WS;
+
+    // Jittered by up to half again, 0.7 of the wait time could renew before registering.
+    assertThrows(IllegalArgumentException.class, () -> new To0Scheduler(registrar,
+        Set::of,
+        guid -> Optional.empty(),
+        certPath -> true,
+        guid -> false,
+        20, 0.7, 4, Duration.ofSeconds(1), dir.resolve("to0.checkpoint")));
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast the rendezvous service turns away TO1.HelloSDO from unregistered devices.
+ *
+ * <p>This is not a unit test.  Run it by hand:
+ * {@code java -cp <test and main classpath> org.sdo.pri.To1MissBenchmark [threads]}.
+ * It compares building a service to answer each miss with answering from the GUID filter,
+ * against a store holding a million redirections, and reports misses per second.
+ */
+public class To1MissBenchmark {
+
+  private static final int GUIDS = 1024;
+  private static final Duration RUN = Duration.ofSeconds(5);
+  private static final int STORED = 1000000;
+  private static final Duration WARMUP = Duration.ofSeconds(2);
+
+  /**
+   * Run the benchmark.
+   */
+  public static void main(String[] args) throws Exception {
+    final int threads = 0 < args.length ? Integer.parseInt(args[0]) : 4;
+
+    final ProtocolMessage[] hellos = new ProtocolMessage[GUIDS];
+    for (int i = 0; i < hellos.length; ++i) {
+      hellos[i] = EncodedProtocolMessage.getInstance(Version.VERSION_1_13,
+          MessageType.TO1_HELLO_SDO, FilteredRedirectStoreTest.helloBody(UUID.randomUUID()));
+    }
+
+    try (RedirectStore store = new RedirectStore(STORED, RUN, RUN);
+        FilteredRedirectStore filtered = new FilteredRedirectStore(store, store, RUN)) {
+
+      final Instant expiresAt = Instant.now().plus(Duration.ofDays(1));
+      for (int i = 0; i < STORED; ++i) {
+        filtered.store(UUID.randomUUID(), new RedirectionEntry(null, "to1d", expiresAt));
+      }
+      filtered.rebuild();
+
+      System.out.printf("%-8s %8s %14s%n", "path", "threads", "misses/s");
+      run("service", threads, hello -> {
+        final RendezvousDeviceService service = new RendezvousDeviceService();
+        service.setRedirectionMap(store);
+        try {
+          service.next(hello);
+        } catch (ProtocolException e) {
+          return e.getError();
+        }
+        throw new IllegalStateException("expected a miss");
+      }, hellos);
+      run("filter", threads, hello -> {
+        final ProtocolMessage answer =
+            RendezvousDeviceService.answerUnregistered(hello, filtered::mightContain);
+        if (null == answer) {
+          throw new IllegalStateException("expected a miss");
+        }
+        return answer;
+      }, hellos);
+    }
+  }
+
+  private static void run(String name, int threads, Miss miss, ProtocolMessage[] hellos)
+      throws InterruptedException {
+
+    final LongAdder count = new LongAdder();
+    final Thread[] workers = new Thread[threads];
+    final long warm = System.nanoTime() + WARMUP.toNanos();
+    final long end = warm + RUN.toNanos();
+    for (int t = 0; t < threads; ++t) {
+      final int offset = t;
+      workers[t] = new Thread(() -> {
+        for (int i = offset; ; ++i) {
+          final long now = System.nanoTime();
+          if (end <= now) {
+            break;
+          }
+          miss.answer(hellos[i % hellos.length]);
+          if (warm <= now) {
+            count.increment();
+          }
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    System.out.printf("%-8s %8d %14.0f%n", name, threads, count.sum() / (RUN.toNanos() / 1e9));
+  }
+
+  private interface Miss {
+
+    ProtocolMessage answer(ProtocolMessage hello);
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class VoucherImporterTest {
+
+  private static final UUID GUID = UUID.fromString("1fae14fb-deca-405a-abdd-b25391b9d932");
+
+  private static String voucherText() throws Exception {
+    try (InputStream in =
+        VoucherImporterTest.class.getResourceAsStream("/vouchers/" + GUID + ".json")) {
+      return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+    }
+  }
+
+  @Test
+  void importsVerifiedVouchersOnce() throws Exception {
+    final Path source = Files.createTempDirectory(getClass().getSimpleName());
+    final Path target = Files.createTempDirectory(getClass().getSimpleName());
+    final String text = voucherText();
+    Files.write(source.resolve("a.op"), text.getBytes(StandardCharsets.US_ASCII));
+    Files.write(source.resolve("b.op"), text.getBytes(StandardCharsets.US_ASCII));
+    Files.write(source.resolve("c.op"), "not a voucher".getBytes(StandardCharsets.US_ASCII));
+
+    try (VoucherIndex index = new VoucherIndex(target, null, 2)) {
+      index.build();
+      final VoucherImporter.Report report =
+          new VoucherImporter(key -> true, 2).importDirectory(source, index);
+
+      assertEquals(3, report.getSubmitted());
+      assertEquals(1, report.getImported());
+      assertEquals(2, report.getFailures().size());
+      assertTrue(report.getFailures().get(source.resolve("b.op")).contains("duplicates"));
+      assertEquals(target.resolve(GUID + ".op").toAbsolutePath(), index.find(GUID).get());
+      assertEquals(text, Files.readString(index.find(GUID).get(), StandardCharsets.US_ASCII));
+
+      // A second import of the same voucher is refused.
+      final VoucherImporter.Report again = new VoucherImporter(key -> true, 2)
+          .importFiles(List.of(source.resolve("a.op")), index);
+      assertEquals(0, again.getImported());
+      assertTrue(again.getFailures().get(source.resolve("a.op")).contains("already"));
+    }
+  }
+
+  @Test
+  void refusesBadSignaturesAndForeignOwners() throws Exception {
+    final Path source = Files.createTempDirectory(getClass().getSimpleName());
+    final Path target = Files.createTempDirectory(getClass().getSimpleName());
+    final String text = voucherText();
+    Files.write(source.resolve("forged.op"), text.replace("\"sg\":[71,\"MEUCIQDYQ1",
+        "\"sg\":[71,\"MEUCIQDYQ2").getBytes(StandardCharsets.US_ASCII));
+    Files.write(source.resolve("foreign.op"), text.getBytes(StandardCharsets.US_ASCII));
+
+    try (VoucherIndex index = new VoucherIndex(target, null, 2)) {
+      final VoucherImporter.Report report =
+          new VoucherImporter(key -> false, 2).importDirectory(source, index);
+
+      assertEquals(0, report.getImported());
+      assertTrue(report.getFailures().get(source.resolve("forged.op")).contains(".sg"));
+      assertTrue(report.getFailures().get(source.resolve("foreign.op")).contains("owner key"));
+      assertEquals(0, index.size());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class VoucherIndexTest {
+
+  private static final UUID GUID = UUID.fromString("1fae14fb-deca-405a-abdd-b25391b9d932");
+
+  private static void copyVoucher(Path file) throws Exception {
+    try (InputStream in =
+        VoucherIndexTest.class.getResourceAsStream("/vouchers/" + GUID + ".json")) {
+      Files.copy(in, file);
+    }
+  }
+
+  @Test
+  void findsVouchersByGuid() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    copyVoucher(dir.resolve("device.op"));
+    Files.write(dir.resolve("README"), "not a voucher".getBytes(StandardCharsets.US_ASCII));
+
+    try (VoucherIndex index = new VoucherIndex(dir, null, 2)) {
+      index.build();
+      assertEquals(1, index.size());
+      assertEquals(dir.resolve("device.op").toAbsolutePath(), index.find(GUID).get());
+      assertEquals(GUID, index.load(GUID).get().getUuid());
+      assertFalse(index.load(UUID.randomUUID()).isPresent());
+
+      Files.delete(dir.resolve("device.op"));
+      index.build();
+      assertEquals(0, index.size());
+      assertFalse(index.find(GUID).isPresent());
+    }
+  }
+
+  @Test
+  void savedIndexSurvivesRestart() throws Exception {
+    final Path dir = Files.createTempDirectory(getClass().getSimpleName());
+    final Path indexFile = dir.resolve(".index");
+    copyVoucher(dir.resolve("device.op"));
+
+    try (VoucherIndex index = new VoucherIndex(dir, indexFile, 1)) {
+      index.build();
+    }
+    assertTrue(Files.exists(indexFile));
+
+    try (VoucherIndex index = new VoucherIndex(dir, indexFile, 1)) {
+      index.build();
+      assertEquals(1, index.size());
+      assertEquals(GUID, index.load(GUID).get().getUuid());
+    }
+  }
+
+  @Test
+  void reportsReplacedAndRemovedVouchers(@TempDir Path dir) throws Exception {
+    final Path file = dir.resolve("device.op");
+    copyVoucher(file);
+
+    try (VoucherIndex index = new VoucherIndex(dir, null, 1)) {
+      index.build();
+      assertEquals(Files.size(file), index.getSize(GUID).getAsLong());
+      final List<UUID> changed = new CopyOnWriteArrayList<>();
+      index.addChangeListener(changed::add);
+
+      // Rebuilding over unchanged files leaves their entries alone.
+      index.build();
+      assertEquals(List.of(), changed);
+
+      // A longer voucher under the same GUID, as when one is re-issued.
+      Files.writeString(file, OwnershipVoucherParserTest.voucherText(3),
+          StandardCharsets.US_ASCII);
+      index.build();
+      assertEquals(List.of(GUID), changed);
+      assertEquals(Files.size(file), index.getSize(GUID).getAsLong());
+
+      Files.delete(file);
+      index.build();
+      assertEquals(List.of(GUID, GUID), changed);
+      assertFalse(index.getSize(GUID).isPresent());
+    }
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2020 Intel Corporation
+// SPDX-License-Identifier: Apache 2.0
+
+package org.sdo.pri.rendezvous;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.sdo.pri.ObjectStorage;
+import org.sdo.pri.PartitionedRedirectStore;
+import org.sdo.pri.PerishableRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Serves this node's slice of the redirections to the other members of its cluster.
+ *
+ * <p>If this node isn't in a cluster, every request is refused with 404 Not Found.
+ *
+ * @see PartitionedRedirectStore.HttpTransport
+ */
+@Controller
+public class ClusterPeerController {
+
+  private final byte[] mySecret;
+  private final PartitionedRedirectStore myStore;
+
+  /**
+   * Construct a new object.
+   *
+   * @param redirectionMap The rendezvous service's redirection map
+   * @param secret         The secret shared by the cluster's members
+   */
+  public ClusterPeerController(
+      ObjectStorage<UUID, PerishableRecord> redirectionMap,
+      @Value("${org.sdo.rendezvous.cluster-secret:}") String secret) {
+
+    myStore = redirectionMap instanceof PartitionedRedirectStore
+        ? (PartitionedRedirectStore) redirectionMap
+        : null;
+    mySecret = secret.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Check the presented secret in constant time, so its value can't be found by timing.
+  private boolean isMember(RequestEntity<?> request) {
+    final String presented =
+        request.getHeaders().getFirst(PartitionedRedirectStore.SECRET_HEADER);
+    return null != myStore
+        && 0 < mySecret.length
+        && null != presented
+        && MessageDigest.isEqual(mySecret, presented.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @GetMapping("internal/ping")
+  ResponseEntity<String> ping(RequestEntity<String> request) {
+    return isMember(request) ? ResponseEntity.ok("") : ResponseEntity.notFound().build();
+  }
+
+  @GetMapping("internal/redirects/{guid}")
+  ResponseEntity<String> load(@PathVariable UUID guid, RequestEntity<String> request) {
+    if (!isMember(request)) {
+      return ResponseEntity.notFound().build();
+    }
+    final Optional<byte[]> entry = myStore.loadLocal(guid);
+    return entry.isPresent()
+        ? ResponseEntity.ok(Base64.getEncoder().encodeToString(entry.get()))
+        : ResponseEntity.notFound().build();
+  }
+
+  @PutMapping("internal/redirects/{guid}")
+  ResponseEntity<String> store(
+      @PathVariable UUID guid,
+      @RequestParam(name = "handoff", defaultValue = "false") boolean isHandoff,
+      RequestEntity<String> request) {
+
+    if (!isMember(request)) {
+      return ResponseEntity.notFound().build();
+    }
+    try {
+      myStore.storeLocal(guid,
+          Base64.getDecoder().decode(request.hasBody() ? request.getBody() : ""), isHandoff);
+    } catch (IOException | IllegalArgumentException e) {
+      return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+    }
+    return ResponseEntity.noContent().build();
+  }
+}
@@ -3,9 +3,57 @@
 
 package org.sdo.pri.rendezvous;
 
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.sdo.pri.MessageType;
+import org.sdo.pri.ProtocolMessage;
 import org.sdo.pri.ProtocolService;
+import org.sdo.pri.Version;
 
-@FunctionalInterface
 interface ProtocolServiceBuilder {
+
+  // Create a builder which builds services with the given factory.
+  static ProtocolServiceBuilder of(
+      Set<Entry<Version, MessageType>> hellos, Supplier<ProtocolService> factory) {
+
+    return of(hellos, factory, hello -> null);
+  }
+
+  // Create a builder which builds services with the given factory, after giving
+  // the answerer a chance to reply to the hello without one.
+  static ProtocolServiceBuilder of(
+      Set<Entry<Version, MessageType>> hellos,
+      Supplier<ProtocolService> factory,
+      Function<ProtocolMessage, ProtocolMessage> answerer) {
+
+    return new ProtocolServiceBuilder() {
+      @Override
+      public ProtocolMessage answer(ProtocolMessage hello) {
+        return answerer.apply(hello);
+      }
+
+      @Override
+      public ProtocolService build() {
+        return factory.get();
+      }
+
+      @Override
+      public Set<Entry<Version, MessageType>> getHellos() {
+        return hellos;
+      }
+    };
+  }
+
+  // Reply to a hello without building a service, if that's possible; null if not.
+  // Replies like this end the session.
+  ProtocolMessage answer(ProtocolMessage hello);
+
   ProtocolService build();
+
+  // The (version, message type) pairs which start a session with the services this builds.
+  // The web controller uses these to pick a builder without building anything.
+  Set<Entry<Version, MessageType>> getHellos();
 }
@@ -4,13 +4,14 @@
 package org.sdo.pri.rendezvous;
 
 import java.io.IOException;
-import java.util.UUID;
 
 import org.sdo.pri.ProtocolService;
 
 interface ProtocolServiceStorage {
 
-  UUID put(ProtocolService protocolService) throws IOException;
+  // Store a service between messages, returning the bearer token which will bring it back.
+  String put(ProtocolService protocolService) throws IOException;
 
-  ProtocolService take(UUID key);
+  // Return the service for a bearer token, or null if there's none.
+  ProtocolService take(String token);
 }
@@ -13,33 +13,51 @@ import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
 import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.crypto.SecretKey;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509ExtendedTrustManager;
 
+import org.sdo.pri.AdmissionLimiter;
+import org.sdo.pri.DurableRedirectStore;
+import org.sdo.pri.FilteredRedirectStore;
+import org.sdo.pri.InstrumentedExecutorService;
+import org.sdo.pri.LiveSessionStore;
+import org.sdo.pri.MessageType;
 import org.sdo.pri.ObjectStorage;
 import org.sdo.pri.OwnershipVoucher;
+import org.sdo.pri.PartitionedRedirectStore;
 import org.sdo.pri.PerishableRecord;
+import org.sdo.pri.ProtocolMessage;
 import org.sdo.pri.ProtocolService;
+import org.sdo.pri.RedirectStore;
 import org.sdo.pri.RendezvousDeviceService;
 import org.sdo.pri.RendezvousOwnerService;
+import org.sdo.pri.SessionTokens;
+import org.sdo.pri.SharedRedirectStore;
+import org.sdo.pri.SlabSessionStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -60,9 +78,45 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @SpringBootApplication
 public class RendezvousApp extends SpringBootServletInitializer implements WebMvcConfigurer {
 
+  // Redirections which don't say when they expire are kept this long.
+  private static final Duration REDIRECT_DEFAULT_TTL = Duration.ofHours(1);
+  private static final Duration REDIRECT_SWEEP_PERIOD = Duration.ofSeconds(1);
+  private static final Duration REDIRECT_SYNC_PERIOD = Duration.ofSeconds(1);
+  private static final byte TOKEN_DEVICE_SERVICE = 1;
+  private static final byte TOKEN_OWNER_SERVICE = 0;
+
+  private double myAdmissionHelloShare = 0.8;
+  private List<String> myClusterPeers = List.of();
+  private Duration myClusterProbePeriod = Duration.ofSeconds(5);
+  private String myClusterSecret = "";
+  private URI myClusterSelf = null;
+  private int myAdmissionMaxInFlight = 0;
+  private Duration myAdmissionRetryAfter = Duration.ofSeconds(5);
+  private Duration myAdmissionTargetLatency = Duration.ZERO;
+  private List<String> myAdmissionTypeLimits = List.of();
   private URL myEpidOnlineUrl = null;
+  private String myExecutorMode = "platform";
+  private Duration myExecutorReportPeriod = Duration.ZERO;
+  private String myExecutorTracePinnedThreads = "";
   private boolean myIsEpidTestModeEnabled = false;
+  private Path myRedirectDir = null;
+  private Duration myRedirectFilterRebuildPeriod = Duration.ofMinutes(1);
+  private int myRedirectMaxEntries = 1000000;
+  private Duration myRedirectNearCacheTtl = Duration.ofSeconds(5);
+  private Duration myRedirectReportPeriod = Duration.ZERO;
+  private String myRedirectServer = null;
+  private Duration myRedirectSnapshotPeriod = Duration.ofMinutes(5);
   private List<String> mySecureRandomAlgorithms = List.of("NativePRNG", "Windows-PRNG", "SHA1PRNG");
+  private long mySessionMaxBytes = 0;
+  private int mySessionMaxEntries = 100000;
+  private long mySessionOffHeapBytes = 0;
+  private Path mySessionOffHeapDir = null;
+  private boolean mySessionLive = false;
+  private String mySessionTokenKey = null;
+  private boolean mySessionTokens = false;
+  private long mySessionLiveWeight = 4096;
+  private double mySessionSpillThreshold = 0.8;
+  private Duration mySessionTtl = Duration.ofMinutes(5);
 
   // A common point for spring boot config, as we must do it from both main() and configure().
   private static SpringApplicationBuilder configureApplication(SpringApplicationBuilder builder) {
@@ -143,24 +197,74 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
     converters.add(fallbackMessageConverter);
   }
 
-  // A trivial in-RAM redirection map for this example.  Real services will want more than this.
+  // The redirection map.  TO0 and TO1 sessions use it from many threads at once,
+  // and redirections expire in the background when their TO0 wait time runs out.
+  // If a shared server is configured, redirections are kept there so that any of several
+  // rendezvous nodes can answer for any device.  Otherwise, if a directory is configured,
+  // redirections are also logged there so they survive a restart; otherwise they're held
+  // in RAM only.
+  //
+  // If cluster peers are configured, the nodes partition the GUIDs between them, each
+  // keeping its own slice as above and forwarding requests for other slices to their owners.
+  //
+  // Redirections held here are also covered by a filter of their GUIDs, so TO1 polls from
+  // devices whose owners haven't yet run TO0 can be answered without a lookup.  Clustered
+  // nodes don't filter, since each holds only a slice of the GUIDs.
   @Bean
-  ObjectStorage<UUID, PerishableRecord> redirectionMap() {
-
-    return new ObjectStorage<>() {
-      Map<UUID, PerishableRecord> myMap = new HashMap<>();
-
-      @Override
-      public Optional<PerishableRecord> load(UUID key) {
-        myMap.entrySet().removeIf(entry -> entry.getValue().isExpired());
-        return Optional.ofNullable(myMap.get(key));
+  ObjectStorage<UUID, PerishableRecord> redirectionMap() throws IOException {
+    if (null != myRedirectServer) {
+      if (null != myRedirectDir) {
+        logger().warn("redirect-server is set, so redirect-dir is ignored");
       }
+      return new SharedRedirectStore(SharedRedirectStore.parseAddress(myRedirectServer),
+          myRedirectNearCacheTtl, myRedirectMaxEntries);
+    }
 
-      @Override
-      public void store(UUID key, PerishableRecord value) {
-        myMap.put(key, value);
+    final RedirectStore store =
+        new RedirectStore(myRedirectMaxEntries, REDIRECT_DEFAULT_TTL, REDIRECT_SWEEP_PERIOD);
+    store.startReporting(myRedirectReportPeriod);
+    final ObjectStorage<UUID, PerishableRecord> local = null != myRedirectDir
+        ? new DurableRedirectStore(
+            myRedirectDir, store, REDIRECT_SYNC_PERIOD, myRedirectSnapshotPeriod)
+        : store;
+
+    if (!myClusterPeers.isEmpty()) {
+      if (null == myClusterSelf || myClusterSecret.isBlank()) {
+        throw new IllegalArgumentException(
+            "cluster-peers needs cluster-self and cluster-secret to be set");
       }
-    };
+      final List<URI> peers = new ArrayList<>();
+      for (String peer : myClusterPeers) {
+        peers.add(URI.create(peer.trim()));
+      }
+      if (!(myRedirectFilterRebuildPeriod.isZero()
+          || myRedirectFilterRebuildPeriod.isNegative())) {
+        // A node's filter would only cover its own slice, so it can't answer for the cluster.
+        logger().warn("cluster-peers is set, so the redirect filter is disabled");
+      }
+      return new PartitionedRedirectStore(myClusterSelf, peers, local, store,
+          new PartitionedRedirectStore.HttpTransport(
+              HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+              myClusterSecret),
+          myClusterProbePeriod);
+    }
+
+    if (myRedirectFilterRebuildPeriod.isZero() || myRedirectFilterRebuildPeriod.isNegative()) {
+      return local;
+    }
+    final FilteredRedirectStore filtered =
+        new FilteredRedirectStore(local, store, myRedirectFilterRebuildPeriod);
+    filtered.startReporting(myRedirectReportPeriod);
+    return filtered;
+  }
+
+  // Answers TO1.HelloSDO from devices which the redirection filter says can't be registered.
+  private ProtocolMessage answerUnregistered(ProtocolMessage hello) throws IOException {
+    final ObjectStorage<UUID, PerishableRecord> redirections = redirectionMap();
+    return redirections instanceof FilteredRedirectStore
+        ? RendezvousDeviceService.answerUnregistered(
+            hello, ((FilteredRedirectStore) redirections)::mightContain)
+        : null;
   }
 
   // Configure EPID service options via the same two-property scheme used in SDO <= 1.6
@@ -190,10 +294,47 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
     }
   }
 
-  // The web controller needs an executor in order to run asynchronously
+  // Limits the number of protocol messages in flight.  Messages past the limit are refused
+  // with 503 Service Unavailable, and messages which start new sessions are refused first.
+  @Bean
+  AdmissionLimiter admissionLimiter() {
+    final Map<MessageType, Integer> typeLimits = new EnumMap<>(MessageType.class);
+    for (String limit : myAdmissionTypeLimits) {
+      final String[] parts = limit.split(":", 2);
+      if (2 != parts.length) {
+        throw new IllegalArgumentException("expected <message type>:<limit>, got " + limit);
+      }
+      final String type = parts[0].trim();
+      typeLimits.put(
+          type.chars().allMatch(Character::isDigit)
+              ? MessageType.valueOfInt(Integer.parseInt(type))
+              : MessageType.valueOf(type),
+          Integer.parseInt(parts[1].trim()));
+    }
+
+    return new AdmissionLimiter(
+        0 < myAdmissionMaxInFlight ? myAdmissionMaxInFlight : Integer.MAX_VALUE,
+        myAdmissionHelloShare,
+        typeLimits,
+        myAdmissionTargetLatency,
+        myAdmissionRetryAfter);
+  }
+
+  // The web controller needs an executor in order to run asynchronously.
+  // Message handling mostly blocks on I/O, so virtual threads (where available)
+  // let far more messages be in flight than a platform thread pool would.
   @Bean
   ExecutorService executorService() {
-    return Executors.newCachedThreadPool();
+    final InstrumentedExecutorService executor;
+    if ("virtual".equalsIgnoreCase(myExecutorMode)) {
+      InstrumentedExecutorService.setTracePinnedThreads(myExecutorTracePinnedThreads);
+      executor = InstrumentedExecutorService.newVirtual();
+    } else {
+      executor = InstrumentedExecutorService.newPlatform();
+    }
+    logger().info("using " + (executor.isVirtual() ? "virtual" : "platform") + " threads");
+    executor.startReporting(myExecutorReportPeriod);
+    return executor;
   }
 
   // The HTTP client to be used by the protocol service for outgoing connections.
@@ -205,7 +346,7 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
   }
 
   private ProtocolService initRendezvousService(RendezvousDeviceService service)
-      throws MalformedURLException, NoSuchAlgorithmException, KeyManagementException {
+      throws IOException, NoSuchAlgorithmException, KeyManagementException {
 
     service.setSecureRandom(secureRandom());
     service.setEpidServiceUrl(epidServiceUrl());
@@ -214,7 +355,8 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
     return service;
   }
 
-  private ProtocolService initRendezvousService(RendezvousOwnerService service) {
+  private ProtocolService initRendezvousService(RendezvousOwnerService service)
+      throws IOException {
     service.setSecureRandom(secureRandom());
     service.setWaitSecondsResponder(waitSecondsResponder());
     service.setRedirectionMap(redirectionMap());
@@ -232,7 +374,7 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
   // so this builder lets the controller ask for the right service when it has information.
   @Bean
   ProtocolServiceBuilder rendezvousDeviceServiceBuilder() {
-    return () -> {
+    final Supplier<ProtocolService> factory = () -> {
       try {
         return initRendezvousService(new RendezvousDeviceService());
       } catch (Exception e) {
@@ -240,63 +382,180 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
         return null;
       }
     };
+    final Function<ProtocolMessage, ProtocolMessage> answerer = hello -> {
+      try {
+        return answerUnregistered(hello);
+      } catch (Exception e) {
+        logger().error(e.getMessage(), e);
+        return null;
+      }
+    };
+    return ProtocolServiceBuilder.of(Set.of(RendezvousDeviceService.HELLO), factory, answerer);
   }
 
   @Bean
   ProtocolServiceBuilder rendezvousOwnerServiceBuilder() {
-    return () -> {
+    return ProtocolServiceBuilder.of(Set.of(RendezvousOwnerService.HELLO), () -> {
       try {
         return initRendezvousService(new RendezvousOwnerService());
       } catch (Exception e) {
         logger().error(e.getMessage(), e);
         return null;
       }
-    };
+    });
+  }
+
+  // The protocol services which are waiting for their next request.
+  // Sessions which a client abandons expire after the configured idle TTL, and the store
+  // evicts its oldest sessions if it grows past its entry or byte caps.
+  //
+  // In live mode, services are held as-is between messages and are only serialized
+  // if the heap fills up or the application is shutting down.
+  //
+  // If an off-heap capacity is configured, serialized services are kept outside the heap.
+  @Bean
+  LiveSessionStore<ProtocolService> sessionStore() {
+    final long maxBytes =
+        0 < mySessionMaxBytes ? mySessionMaxBytes : Runtime.getRuntime().maxMemory() / 4;
+
+    return new LiveSessionStore<>(
+        new LiveSessionStore.Serializer<>() {
+          @Override
+          public ProtocolService deserialize(byte[] bytes) throws IOException {
+
+            final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+            final Object o;
+            try {
+              o = new ObjectInputStream(in).readObject();
+            } catch (ClassNotFoundException e) {
+              throw new IOException(e);
+            }
+
+            try {
+              if (o instanceof RendezvousDeviceService) {
+                RendezvousDeviceService service = (RendezvousDeviceService) o;
+                return initRendezvousService(service);
+              } else if (o instanceof RendezvousOwnerService) {
+                RendezvousOwnerService service = (RendezvousOwnerService) o;
+                return initRendezvousService(service);
+              } else {
+                return null;
+              }
+            } catch (Exception e) {
+              throw new IOException(e);
+            }
+          }
+
+          @Override
+          public byte[] serialize(ProtocolService session) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ObjectOutputStream(out).writeObject(session);
+            return out.toByteArray();
+          }
+        },
+        mySessionLive,
+        mySessionSpillThreshold,
+        mySessionTtl,
+        mySessionMaxEntries,
+        maxBytes,
+        mySessionLiveWeight,
+        0 < mySessionOffHeapBytes
+            ? new SlabSessionStore(mySessionTtl, mySessionOffHeapBytes, mySessionOffHeapDir)
+            : null);
   }
 
   // A storage service for protocol service objects.  Between requests, the web service
   // has to put the protocol objects somewhere, and this provides those hooks.
+  //
+  // In token mode, a session's state travels in its bearer token instead, so no node
+  // keeps sessions and any node can take a session's next message.
   @Bean
   ProtocolServiceStorage sdoServiceStorage() {
+    if (mySessionTokens) {
+      return tokenServiceStorage();
+    }
+
     return new ProtocolServiceStorage() {
 
-      private final Map<UUID, byte[]> myMap = new HashMap<>();
+      private final LiveSessionStore<ProtocolService> myStore = sessionStore();
 
       @Override
-      public synchronized UUID put(ProtocolService protocolService) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        new ObjectOutputStream(out).writeObject(protocolService);
+      public String put(ProtocolService protocolService) throws IOException {
         UUID sessionId = UUID.randomUUID();
-        byte[] bytes = out.toByteArray();
-        myMap.put(sessionId, Arrays.copyOf(bytes, bytes.length));
-        return sessionId;
+        myStore.put(sessionId, protocolService);
+        return sessionId.toString();
       }
 
       @Override
-      public synchronized ProtocolService take(UUID sessionId) {
-
-        byte[] bytes = myMap.remove(sessionId);
-        if (null == bytes) {
+      public ProtocolService take(String token) {
+        try {
+          return myStore.take(UUID.fromString(token));
+        } catch (IllegalArgumentException e) {
+          // the bearer token isn't a UUID and we'll treat it like a lookup failure
+          return null;
+        } catch (Exception e) {
+          logger().error(e.getMessage(), e);
           return null;
         }
+      }
+    };
+  }
+
+  // Session storage which seals each service's state into its bearer token.
+  // The first byte of the sealed state says which service it belongs to.
+  private ProtocolServiceStorage tokenServiceStorage() {
+    final SecretKey key;
+    if (null != mySessionTokenKey) {
+      key = SessionTokens.parseKey(mySessionTokenKey);
+    } else {
+      logger().warn("no session token key is set, so only this node can resume its sessions");
+      key = SessionTokens.generateKey(secureRandom());
+    }
+    final SessionTokens tokens = new SessionTokens(key, mySessionTtl, secureRandom());
+
+    return new ProtocolServiceStorage() {
+
+      @Override
+      public String put(ProtocolService protocolService) throws IOException {
+        final byte tag;
+        final byte[] state;
+        if (protocolService instanceof RendezvousOwnerService) {
+          tag = TOKEN_OWNER_SERVICE;
+          state = ((RendezvousOwnerService) protocolService).getSessionState();
+        } else if (protocolService instanceof RendezvousDeviceService) {
+          tag = TOKEN_DEVICE_SERVICE;
+          state = ((RendezvousDeviceService) protocolService).getSessionState();
+        } else {
+          throw new IOException("can't seal " + protocolService.getClass().getName());
+        }
 
-        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-        final Object o;
         try {
-          o = new ObjectInputStream(in).readObject();
-        } catch (Exception e) {
+          return tokens.seal(ByteBuffer.allocate(1 + state.length).put(tag).put(state).array());
+        } catch (GeneralSecurityException e) {
+          throw new IOException(e);
+        }
+      }
+
+      @Override
+      public ProtocolService take(String token) {
+        final byte[] sealed = tokens.open(token).orElse(null);
+        if (null == sealed || 0 == sealed.length) {
           return null;
         }
 
+        final byte[] state = Arrays.copyOfRange(sealed, 1, sealed.length);
         try {
-          if (o instanceof RendezvousDeviceService) {
-            RendezvousDeviceService service = (RendezvousDeviceService) o;
-            return initRendezvousService(service);
-          } else if (o instanceof RendezvousOwnerService) {
-            RendezvousOwnerService service = (RendezvousOwnerService) o;
-            return initRendezvousService(service);
-          } else {
-            return null;
+          switch (sealed[0]) {
+            case TOKEN_OWNER_SERVICE:
+              final RendezvousOwnerService owner = new RendezvousOwnerService();
+              owner.setSessionState(state);
+              return initRendezvousService(owner);
+            case TOKEN_DEVICE_SERVICE:
+              final RendezvousDeviceService device = new RendezvousDeviceService();
+              device.setSessionState(state);
+              return initRendezvousService(device);
+            default:
+              return null;
           }
         } catch (Exception e) {
           logger().error(e.getMessage(), e);
@@ -329,6 +588,57 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
     return null;
   }
 
+  @Value("${org.sdo.admission.hello-share:0.8}")
+  void setAdmissionHelloShare(double admissionHelloShare) {
+    this.myAdmissionHelloShare = admissionHelloShare;
+  }
+
+  @Value("${org.sdo.admission.max-in-flight:0}")
+  void setAdmissionMaxInFlight(int admissionMaxInFlight) {
+    this.myAdmissionMaxInFlight = admissionMaxInFlight;
+  }
+
+  @Value("${org.sdo.admission.retry-after:PT5S}")
+  void setAdmissionRetryAfter(Duration admissionRetryAfter) {
+    this.myAdmissionRetryAfter = admissionRetryAfter;
+  }
+
+  @Value("${org.sdo.admission.target-latency:PT0S}")
+  void setAdmissionTargetLatency(Duration admissionTargetLatency) {
+    this.myAdmissionTargetLatency = admissionTargetLatency;
+  }
+
+  @Value("${org.sdo.admission.type-limits:}")
+  void setAdmissionTypeLimits(@Nullable List<String> admissionTypeLimits) {
+    if (null != admissionTypeLimits) {
+      this.myAdmissionTypeLimits = admissionTypeLimits;
+    }
+  }
+
+  @Value("${org.sdo.rendezvous.cluster-peers:}")
+  void setClusterPeers(@Nullable List<String> clusterPeers) {
+    if (null != clusterPeers) {
+      this.myClusterPeers = clusterPeers;
+    }
+  }
+
+  @Value("${org.sdo.rendezvous.cluster-probe-period:PT5S}")
+  void setClusterProbePeriod(Duration period) {
+    this.myClusterProbePeriod = period;
+  }
+
+  @Value("${org.sdo.rendezvous.cluster-secret:}")
+  void setClusterSecret(String secret) {
+    this.myClusterSecret = secret;
+  }
+
+  @Value("${org.sdo.rendezvous.cluster-self:}")
+  void setClusterSelf(String self) {
+    if (null != self && !self.isBlank()) {
+      this.myClusterSelf = URI.create(self.trim());
+    }
+  }
+
   @Value("${org.sdo.epid.test-mode:false}")
   void setEnableEpidTestMode(boolean isEpidTestModeEnabled) {
     this.myIsEpidTestModeEnabled = isEpidTestModeEnabled;
@@ -341,6 +651,114 @@ public class RendezvousApp extends SpringBootServletInitializer implements WebMv
     }
   }
 
+  @Value("${org.sdo.executor.mode:platform}")
+  void setExecutorMode(String executorMode) {
+    this.myExecutorMode = executorMode;
+  }
+
+  @Value("${org.sdo.executor.report-period:PT0S}")
+  void setExecutorReportPeriod(Duration executorReportPeriod) {
+    this.myExecutorReportPeriod = executorReportPeriod;
+  }
+
+  @Value("${org.sdo.executor.trace-pinned-threads:}")
+  void setExecutorTracePinnedThreads(String executorTracePinnedThreads) {
+    this.myExecutorTracePinnedThreads = executorTracePinnedThreads;
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-dir:}")
+  void setRedirectDir(String dir) {
+    if (null != dir && !dir.isBlank()) {
+      this.myRedirectDir = Paths.get(dir);
+    }
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-filter-rebuild-period:PT1M}")
+  void setRedirectFilterRebuildPeriod(Duration period) {
+    this.myRedirectFilterRebuildPeriod = period;
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-max-entries:1000000}")
+  void setRedirectMaxEntries(int maxEntries) {
+    this.myRedirectMaxEntries = maxEntries;
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-near-cache-ttl:PT5S}")
+  void setRedirectNearCacheTtl(Duration ttl) {
+    this.myRedirectNearCacheTtl = ttl;
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-report-period:PT0S}")
+  void setRedirectReportPeriod(Duration period) {
+    this.myRedirectReportPeriod = period;
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-server:}")
+  void setRedirectServer(String server) {
+    if (null != server && !server.isBlank()) {
+      this.myRedirectServer = server.trim();
+    }
+  }
+
+  @Value("${org.sdo.rendezvous.redirect-snapshot-period:PT5M}")
+  void setRedirectSnapshotPeriod(Duration period) {
+    this.myRedirectSnapshotPeriod = period;
+  }
+
+  @Value("${org.sdo.session.live:false}")
+  void setSessionLive(boolean sessionLive) {
+    this.mySessionLive = sessionLive;
+  }
+
+  @Value("${org.sdo.session.live-weight:4096}")
+  void setSessionLiveWeight(long sessionLiveWeight) {
+    this.mySessionLiveWeight = sessionLiveWeight;
+  }
+
+  @Value("${org.sdo.session.max-bytes:0}")
+  void setSessionMaxBytes(long sessionMaxBytes) {
+    this.mySessionMaxBytes = sessionMaxBytes;
+  }
+
+  @Value("${org.sdo.session.max-entries:100000}")
+  void setSessionMaxEntries(int sessionMaxEntries) {
+    this.mySessionMaxEntries = sessionMaxEntries;
+  }
+
+  @Value("${org.sdo.session.off-heap-bytes:0}")
+  void setSessionOffHeapBytes(long sessionOffHeapBytes) {
+    this.mySessionOffHeapBytes = sessionOffHeapBytes;
+  }
+
+  @Value("${org.sdo.session.off-heap-dir:}")
+  void setSessionOffHeapDir(String dir) {
+    if (null != dir && !dir.isBlank()) {
+      this.mySessionOffHeapDir = Paths.get(dir);
+    }
+  }
+
+  @Value("${org.sdo.session.spill-threshold:0.8}")
+  void setSessionSpillThreshold(double sessionSpillThreshold) {
+    this.mySessionSpillThreshold = sessionSpillThreshold;
+  }
+
+  @Value("${org.sdo.session.token-key:}")
+  void setSessionTokenKey(String sessionTokenKey) {
+    if (null != sessionTokenKey && !sessionTokenKey.isBlank()) {
+      this.mySessionTokenKey = sessionTokenKey;
+    }
+  }
+
+  @Value("${org.sdo.session.tokens:false}")
+  void setSessionTokens(boolean sessionTokens) {
+    this.mySessionTokens = sessionTokens;
+  }
+
+  @Value("${org.sdo.session.ttl:PT5M}")
+  void setSessionTtl(Duration sessionTtl) {
+    this.mySessionTtl = sessionTtl;
+  }
+
   @Value("${org.sdo.secure-random:}")
   void setSecureRandomAlgorithms(@Nullable List<String> secureRandomAlgorithms) {
     if (null != secureRandomAlgorithms && !secureRandomAlgorithms.isEmpty()) {
@@ -3,13 +3,17 @@
 
 package org.sdo.pri.rendezvous;
 
-import java.util.Iterator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.sdo.pri.AdmissionLimiter;
 import org.sdo.pri.MessageType;
+import org.sdo.pri.ProtocolException;
 import org.sdo.pri.ProtocolMessage;
 import org.sdo.pri.ProtocolService;
 import org.sdo.pri.Version;
@@ -29,8 +33,10 @@ public class RendezvousWebController {
 
   private static final String BEARER = "Bearer ";
 
+  private final AdmissionLimiter myAdmissionLimiter;
   private final ExecutorService myExecutorService;
-  private final Set<ProtocolServiceBuilder> myProtocolServiceBuilders;
+  // The builders for each hello message, by version and message type.
+  private final Map<Version, Map<MessageType, ProtocolServiceBuilder>> myHelloBuilders;
   private final ProtocolServiceStorage myProtocolServiceStorage;
 
   /**
@@ -39,21 +45,62 @@ public class RendezvousWebController {
    * @param executorService         The ExecutorService for asynchronous tasks
    * @param protocolServiceBuilders The ServiceBuilders providing rendezvous service objects
    * @param protocolServiceStorage  The storage for our protocol services
+   * @param admissionLimiter        The limit on messages in flight
    */
   public RendezvousWebController(
       ExecutorService executorService,
       Set<ProtocolServiceBuilder> protocolServiceBuilders,
-      ProtocolServiceStorage protocolServiceStorage) {
+      ProtocolServiceStorage protocolServiceStorage,
+      AdmissionLimiter admissionLimiter) {
 
     this.myExecutorService = Objects.requireNonNull(executorService);
-    this.myProtocolServiceBuilders = Objects.requireNonNull(protocolServiceBuilders);
+    this.myHelloBuilders = indexHellos(protocolServiceBuilders);
     this.myProtocolServiceStorage = Objects.requireNonNull(protocolServiceStorage);
+    this.myAdmissionLimiter = Objects.requireNonNull(admissionLimiter);
+  }
+
+  private static Map<Version, Map<MessageType, ProtocolServiceBuilder>> indexHellos(
+      Set<ProtocolServiceBuilder> builders) {
+
+    final Map<Version, Map<MessageType, ProtocolServiceBuilder>> index =
+        new EnumMap<>(Version.class);
+    for (ProtocolServiceBuilder builder : builders) {
+      for (Entry<Version, MessageType> hello : builder.getHellos()) {
+        final ProtocolServiceBuilder previous = index
+            .computeIfAbsent(hello.getKey(), k -> new EnumMap<>(MessageType.class))
+            .put(hello.getValue(), builder);
+        if (null != previous) {
+          throw new IllegalStateException("more than one service accepts hello " + hello);
+        }
+      }
+    }
+    return index;
   }
 
   private Logger logger() {
     return LoggerFactory.getLogger(getClass());
   }
 
+  // Errors go out as 500 Internal Server Error, with the SDO error message as the body.
+  private ResponseEntity<String> toErrorResponseEntity(String errorBody) {
+    final ResponseEntity<String> responseEntity =
+        ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorBody);
+    logger().debug(responseEntity.toString());
+    return responseEntity;
+  }
+
+  private ResponseEntity<String> toResponseEntity(
+      ProtocolMessage sdoResponse, ResponseEntity.BodyBuilder responseBuilder) {
+
+    if (null != sdoResponse && MessageType.ERROR == sdoResponse.getType()) {
+      return toErrorResponseEntity(sdoResponse.getBody());
+    }
+    final ResponseEntity<String> responseEntity =
+        responseBuilder.body(null != sdoResponse ? sdoResponse.getBody() : "");
+    logger().debug(responseEntity.toString());
+    return responseEntity;
+  }
+
   @PostMapping("mp/{versionId}/msg/{messageId}")
   DeferredResult<ResponseEntity<?>> onPost(
       @PathVariable int versionId,
@@ -93,19 +140,22 @@ public class RendezvousWebController {
       }
     };
 
-    myExecutorService.submit(() -> {
+    // Are we continuing an existing session?
+    final String auth = requestEntity.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+
+    // Shed excess load before doing any work for it, so that refusing a message stays cheap.
+    final AdmissionLimiter.Permit permit =
+        myAdmissionLimiter.tryAcquire(messageType, !(null != auth && auth.startsWith(BEARER)));
+    if (null == permit) {
+      deferredResult.setResult(serviceUnavailable());
+      return deferredResult;
+    }
+
+    final Runnable task = () -> {
       try {
         ProtocolService protocolService = null;
-        // Are we continuing an existing session?
-        final String auth = requestEntity.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
         if (null != auth && auth.startsWith(BEARER)) {
-          try {
-            final UUID sessionId = UUID.fromString(auth.substring(BEARER.length()));
-            protocolService = myProtocolServiceStorage.take(sessionId);
-          } catch (IllegalArgumentException e) {
-            // the bearer token isn't a UUID and we'll treat it like a lookup failure
-            protocolService = null;
-          }
+          protocolService = myProtocolServiceStorage.take(auth.substring(BEARER.length()));
 
           if (null == protocolService) {
             // The session was invalid or not in our lookup table, so fail the request
@@ -113,12 +163,16 @@ public class RendezvousWebController {
             return;
           }
         } else { // no auth, might be a hello
-          Iterator<ProtocolServiceBuilder> builderIt = myProtocolServiceBuilders.iterator();
-          while (null == protocolService && builderIt.hasNext()) {
-            final ProtocolService candidate = builderIt.next().build();
-            if (candidate.isHello(sdoRequest)) {
-              protocolService = candidate;
+          final Map<MessageType, ProtocolServiceBuilder> builders = myHelloBuilders.get(version);
+          final ProtocolServiceBuilder builder =
+              null != builders ? builders.get(messageType) : null;
+          if (null != builder) {
+            final ProtocolMessage answer = builder.answer(sdoRequest);
+            if (null != answer) {
+              deferredResult.setResult(toResponseEntity(answer, ResponseEntity.ok()));
+              return;
             }
+            protocolService = builder.build();
           }
         }
 
@@ -129,28 +183,48 @@ public class RendezvousWebController {
         }
 
         ResponseEntity.BodyBuilder responseBuilder = ResponseEntity.ok();
-        final ProtocolMessage sdoResponse = protocolService.next(sdoRequest);
+        final ProtocolMessage sdoResponse;
+        try {
+          sdoResponse = protocolService.next(sdoRequest);
+        } catch (ProtocolException e) {
+          // The exception's message is the encoded error.
+          deferredResult.setResult(toErrorResponseEntity(e.getMessage()));
+          return;
+        }
 
         if (!(null == sdoResponse
             || MessageType.ERROR == sdoResponse.getType()
             || protocolService.isDone())) {
 
-          final UUID sessionId = myProtocolServiceStorage.put(protocolService);
-          responseBuilder = responseBuilder
-              .header(HttpHeaders.AUTHORIZATION, BEARER + sessionId.toString());
+          final String token = myProtocolServiceStorage.put(protocolService);
+          responseBuilder = responseBuilder.header(HttpHeaders.AUTHORIZATION, BEARER + token);
         }
 
-        final ResponseEntity<String> responseEntity =
-            responseBuilder.body(null != sdoResponse ? sdoResponse.getBody() : "");
-        logger().debug(responseEntity.toString());
-
-        deferredResult.setResult(responseEntity);
+        deferredResult.setResult(toResponseEntity(sdoResponse, responseBuilder));
 
       } catch (Throwable t) {
         deferredResult.setErrorResult(t);
+      } finally {
+        permit.release();
       }
-    });
+    };
+
+    // The task releases the permit, but only if it runs.  An executor which is shutting down,
+    // or whose queue is full, refuses it, so the permit must be released here instead.
+    try {
+      myExecutorService.submit(task);
+    } catch (RejectedExecutionException e) {
+      permit.release();
+      deferredResult.setResult(serviceUnavailable());
+    }
 
     return deferredResult;
   }
+
+  // Tell the device to come back later.
+  private ResponseEntity<?> serviceUnavailable() {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(myAdmissionLimiter.getRetryAfterSeconds()))
+        .build();
+  }
 }
@@ -4,7 +4,6 @@
 package org.sdo.pri.to0client;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,34 +16,22 @@ import java.net.URI;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.net.http.HttpClient;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyManagementException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.cert.CRL;
 import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertStore;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.security.cert.CollectionCertStoreParameters;
-import java.security.cert.PKIXParameters;
 import java.security.cert.PKIXRevocationChecker;
 import java.security.cert.PKIXRevocationChecker.Option;
-import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
@@ -63,7 +50,9 @@ import org.sdo.pri.OwnerLocationInfo;
 import org.sdo.pri.OwnerTransferOwnershipClient;
 import org.sdo.pri.OwnershipVoucher;
 import org.sdo.pri.OwnershipVoucherParser;
+import org.sdo.pri.PkixCertPathValidator;
 import org.sdo.pri.ProtocolException;
+import org.sdo.pri.To0Batch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -80,9 +69,17 @@ import org.springframework.lang.Nullable;
 @SpringBootApplication
 public class To0ClientApp {
 
+  private static final String BATCH_COMMAND = "batch";
+
   private InetAddress advertisedOwnerAddress = getLocalAddress();
   private String advertisedOwnerHostname = getLocalAddress().getHostName();
   private int advertisedOwnerPort = 0;
+  private Path myBatchCheckpoint = Paths.get("to0-batch.checkpoint");
+  private int myBatchFailures = 0;
+  private int myBatchMaxAttempts = 5;
+  private int myBatchParallelism = 64;
+  private int myBatchPerHostConcurrency = 16;
+  private Duration myBatchRetryDelay = Duration.ofSeconds(2);
   private Set<URI> myCrlUris = null;
   private boolean isRevocationCheckingEnabled = false;
   private URI ownerCertificateUri = null;
@@ -118,8 +115,14 @@ public class To0ClientApp {
   ApplicationRunner applicationRunner() throws IOException, CertificateException {
     KeyPair keys = new KeyPair(ownerPublicKey(), ownerPrivateKey());
     return args -> {
+      final List<String> operands = args.getNonOptionArgs();
+      if (!operands.isEmpty() && BATCH_COMMAND.equals(operands.get(0))) {
+        runBatch(operands.subList(1, operands.size()), keys);
+        return;
+      }
+
       // args is one or more ownership voucher (.op) files to run TO0 on
-      for (String arg : args.getNonOptionArgs()) {
+      for (String arg : operands) {
         final OwnershipVoucher voucher;
 
         try (FileReader reader = new FileReader(new File(arg))) {
@@ -142,64 +145,39 @@ public class To0ClientApp {
     };
   }
 
+  // 'batch <dir>...' runs TO0 on every voucher in the given directories or files at once,
+  // over our one HttpClient, resuming from the checkpoint if there is one.
+  private void runBatch(List<String> sources, KeyPair keys) throws Exception {
+    final HttpClient httpClient = httpClient();
+    final OwnerLocationInfo ownerLocationInfo = ownerLocationInfo();
+    final Function<OwnershipVoucher, Duration> waitSecondsBuilder = waitSecondsBuilder();
+    final To0Batch batch = new To0Batch(
+        (voucher, rendezvous) -> new OwnerTransferOwnershipClient(
+            httpClient,
+            voucher,
+            null, // the batch checks the certificate path itself
+            ownerLocationInfo,
+            type -> keys,
+            waitSecondsBuilder).to0(rendezvous),
+        certPathValidator(),
+        myBatchParallelism,
+        myBatchPerHostConcurrency,
+        myBatchMaxAttempts,
+        myBatchRetryDelay,
+        myBatchCheckpoint);
+
+    final To0Batch.Report report =
+        batch.run(sources.stream().map(Paths::get).collect(Collectors.toList()));
+    myBatchFailures += report.getFailed();
+  }
+
   @Bean
   Predicate<CertPath> certPathValidator() throws Exception {
     if (isRevocationCheckingEnabled) {
-
-      CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-
-      Set<CRL> crls = new HashSet<>();
-
-      for (URI uri : myCrlUris) {
-        Collection<File> files = findRegularFiles(uri);
-        for (File file : files) {
-          try (FileInputStream inputStream = new FileInputStream(file)) {
-            crls.addAll(certificateFactory.generateCRLs(inputStream));
-          }
-        }
-      } // foreach uri
-
-      CollectionCertStoreParameters params = new CollectionCertStoreParameters(crls);
-      final CertStore certStore = CertStore.getInstance("Collection", params);
-
-      Set<TrustAnchor> trustAnchors = new HashSet<>();
-
-      for (URI uri : myTrustAnchorUris) {
-        Collection<File> files = findRegularFiles(uri);
-        for (File file : files) {
-          try (FileInputStream inputStream = new FileInputStream(file)) {
-            certificateFactory.generateCertificates(inputStream).stream()
-                .filter(cert -> cert instanceof X509Certificate)
-                .map(X509Certificate.class::cast)
-                .map(cert -> new TrustAnchor(cert, null))
-                .forEach(trustAnchors::add);
-          }
-        }
-      } // foreach uri
-
-      // BouncyCastle does not provide CertPathValidatorSpi::engineGetRevocationChecker
-      // so we must explicitly use the SUN provider
-      CertPathValidator cpv = CertPathValidator.getInstance("PKIX", "SUN");
-      PKIXRevocationChecker rc = (PKIXRevocationChecker) cpv.getRevocationChecker();
-      rc.setOptions(revocationCheckerOptions);
-      PKIXParameters certPathParameters = new PKIXParameters(trustAnchors);
-      certPathParameters.addCertPathChecker(rc);
-      certPathParameters.addCertStore(certStore);
-      certPathParameters.setRevocationEnabled(true);
-
-      return certPath -> {
-        try {
-          cpv.validate(certPath, certPathParameters);
-          return true; // If it didn't throw an exception, test passes
-        } catch (CertPathValidatorException | InvalidAlgorithmParameterException e) {
-          logger().error(e.getMessage(), e);
-          return false;
-        } finally {
-          List<CertPathValidatorException> softErrs = rc.getSoftFailExceptions();
-          logger().debug(softErrs.toString());
-        }
-      };
-
+      return new PkixCertPathValidator(
+          myTrustAnchorUris,
+          null != myCrlUris ? myCrlUris : Set.of(),
+          revocationCheckerOptions);
     } else {
       return certPath -> true;
     }
@@ -221,10 +199,11 @@ public class To0ClientApp {
     };
   }
 
-  // The Spring ExitCodeGenerator, for healthy exits.
+  // The Spring ExitCodeGenerator, for healthy exits.  A batch exits non-zero if any voucher
+  // wasn't registered.
   @Bean
   ExitCodeGenerator exitCodeGenerator() {
-    return () -> 0;
+    return () -> 0 < myBatchFailures ? 1 : 0;
   }
 
   // The HttpClient which SDO components will use for outgoing HTTP.
@@ -325,6 +304,35 @@ public class To0ClientApp {
     }
   }
 
+  @Value("${org.sdo.to0.batch.checkpoint:to0-batch.checkpoint}")
+  void setBatchCheckpoint(String checkpoint) {
+    if (null != checkpoint && !checkpoint.isBlank()) {
+      this.myBatchCheckpoint = Paths.get(checkpoint);
+    }
+  }
+
+  @Value("${org.sdo.to0.batch.max-attempts:5}")
+  void setBatchMaxAttempts(int attempts) {
+    this.myBatchMaxAttempts = attempts;
+  }
+
+  @Value("${org.sdo.to0.batch.parallelism:64}")
+  void setBatchParallelism(int parallelism) {
+    this.myBatchParallelism = parallelism;
+  }
+
+  @Value("${org.sdo.to0.batch.per-host-concurrency:16}")
+  void setBatchPerHostConcurrency(int concurrency) {
+    this.myBatchPerHostConcurrency = concurrency;
+  }
+
+  @Value("${org.sdo.to0.batch.retry-delay:PT2S}")
+  void setBatchRetryDelay(String delay) {
+    if (null != delay && !delay.isBlank()) {
+      this.myBatchRetryDelay = Duration.parse(delay);
+    }
+  }
+
   @Value("${org.sdo.pkix.crls:}")
   void setCrlUris(List<String> s) {
     if (null != s) {
@@ -433,20 +441,6 @@ public class To0ClientApp {
     return (voucher) -> waitSeconds;
   }
 
-  private Collection<File> findRegularFiles(URI uri) throws IOException {
-    Path path = Paths.get(uri);
-    if (Files.isDirectory(path)) { // if it's a directory, check all the files in it
-      return Files.list(path)
-          .filter(Files::isRegularFile)
-          .map(Path::toFile)
-          .collect(Collectors.toList());
-    } else if (Files.isRegularFile(path)) { // if it's a file...
-      return List.of(path.toFile());
-    } else {
-      return Collections.emptyList();
-    }
-  }
-
   private InetAddress getLocalAddress() {
     // This odd-looking socket doesn't actually connect to the outside world,
     // nor does the target IP need to be reachable.  By putting a datagram socket